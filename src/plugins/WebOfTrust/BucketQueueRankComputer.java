@@ -0,0 +1,175 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import plugins.WebOfTrust.Score.ScoreID;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import freenet.support.Logger;
+
+/**
+ * {@link RankComputer} which computes the ranks of all Identitys in the trust tree of a source
+ * {@link OwnIdentity} at once by walking the {@link TrustGraph} forward from the source.
+ * The ranks are cached per source, so each further call for the same source is O(1).
+ *
+ * The UCS-based implementations such as
+ * {@link WebOfTrust#computeRankFromScratch_Caching(OwnIdentity, Identity, java.util.Map)} need a
+ * PriorityQueue of Vertex objects, with duplicate inserts since the JDK queue has no
+ * decreaseKey(). But the edge weights of the rank graph are only 1 (positive Trust) or
+ * "infinite and terminal" (zero or negative Trust, yielding a rank of Integer.MAX_VALUE which
+ * cannot be handed down). Thus the priority queue degenerates into two buckets: The vertices of
+ * the current rank, and the ones of the next rank. They are stored as int arrays of
+ * {@link TrustGraph} indices which are re-used for all sources, so the computation allocates no
+ * objects except the result array.
+ * Each vertex enters a bucket at most once since its rank is final once it is finite, so the
+ * runtime is O(IdentityCount + TrustCount) per source.
+ *
+ * See {@link RankComputer} for the constraints of using instances of this class. */
+final class BucketQueueRankComputer implements RankComputer {
+
+	/**
+	 * Marker for a rank of Integer.MAX_VALUE which was given by the source itself. Other than
+	 * one which was given by another truster, it must not be replaced by a finite rank if
+	 * another path is found: The decision of the OwnIdentity overrides all others.
+	 * Replaced by Integer.MAX_VALUE once the computation is finished. */
+	private static final int DISTRUSTED_BY_SOURCE = -2;
+
+	private final WebOfTrust mWebOfTrust;
+
+	private final TrustGraph mGraph;
+
+	/**
+	 * Key = {@link Identity#getID()} of the source.
+	 * Value = Ranks of all Identitys, index = their {@link TrustGraph} index. */
+	private final HashMap<String, int[]> mRanks = new HashMap<String, int[]>();
+
+	/** Key = {@link Identity#getID()} of the source. Value = Rank of the source in its own trust
+	 *  tree, -1 if it has none. Separate from {@link #mRanks} because the source might not
+	 *  have a TrustGraph index. */
+	private final HashMap<String, Integer> mSourceRanks = new HashMap<String, Integer>();
+
+	/** The bucket of the vertices of the current rank. */
+	private int[] mCurrentBucket = new int[0];
+
+	/** The bucket of the vertices of the next rank. */
+	private int[] mNextBucket = new int[0];
+
+
+	BucketQueueRankComputer(WebOfTrust webOfTrust, TrustGraph graph) {
+		mWebOfTrust = webOfTrust;
+		mGraph = graph;
+	}
+
+	@Override public int computeRank(OwnIdentity source, Identity target) {
+		final String sourceID = source.getID();
+		final int sourceRank = getSourceRank(source);
+
+		if(sourceID.equals(target.getID()))
+			return sourceRank;
+
+		final int targetIndex = mGraph.getIndex(target.getID());
+		if(targetIndex == TrustGraph.NONE) // Has received no Trust
+			return -1;
+
+		int[] ranks = mRanks.get(sourceID);
+		if(ranks == null) {
+			ranks = computeRanks(mGraph.getIndex(sourceID), sourceRank);
+			mRanks.put(sourceID, ranks);
+		}
+
+		return ranks[targetIndex];
+	}
+
+	private int getSourceRank(OwnIdentity source) {
+		Integer sourceRank = mSourceRanks.get(source.getID());
+
+		if(sourceRank == null) {
+			try {
+				sourceRank = mWebOfTrust.getScore(new ScoreID(source, source).toString())
+					.getRank();
+			} catch(NotInTrustTreeException e) {
+				Logger.warning(this, "initTrustTreeWithoutCommit() not called for: " + source);
+				// Some unit tests require the special case of initTrustTreeWithoutCommit() not
+				// having been called for an OwnIdentity yet to yield a proper result of "no rank".
+				sourceRank = -1;
+			}
+
+			mSourceRanks.put(source.getID(), sourceRank);
+		}
+
+		return sourceRank;
+	}
+
+	/**
+	 * @param sourceIndex The {@link TrustGraph} index of the source, may be
+	 *     {@link TrustGraph#NONE}.
+	 * @return The ranks of all Identitys in the trust tree of the source, index = their
+	 *     {@link TrustGraph} index. Identitys which are not in the tree have a rank of -1. */
+	private int[] computeRanks(final int sourceIndex, final int sourceRank) {
+		final TrustGraph graph = mGraph;
+		final int[] ranks = new int[graph.getIdentityCount()];
+		Arrays.fill(ranks, -1);
+
+		// The source can only give a rank to its trustees if it has a valid one itself.
+		if(sourceIndex == TrustGraph.NONE || sourceRank < 0 || sourceRank == Integer.MAX_VALUE)
+			return ranks;
+
+		if(mCurrentBucket.length < ranks.length) {
+			mCurrentBucket = new int[ranks.length];
+			mNextBucket = new int[ranks.length];
+		}
+
+		int[] currentBucket = mCurrentBucket;
+		int[] nextBucket = mNextBucket;
+		int currentSize = 0;
+
+		ranks[sourceIndex] = sourceRank;
+		currentBucket[currentSize++] = sourceIndex;
+
+		for(int rank = sourceRank; currentSize > 0; ++rank) {
+			final int trusteeRank = rank + 1;
+			int nextSize = 0;
+
+			for(int i = 0; i < currentSize; ++i) {
+				final int truster = currentBucket[i];
+				assert(ranks[truster] == rank);
+
+				for(int e = graph.getGivenTrustsBegin(truster);
+						e < graph.getGivenTrustsEnd(truster); ++e) {
+
+					final int trustee = graph.getTrustee(e);
+					final int oldTrusteeRank = ranks[trustee];
+
+					// All finite ranks are final: Ranks are processed in ascending order. This
+					// includes the ones given by the source, which are processed first.
+					// DISTRUSTED_BY_SOURCE is final as well.
+					if(oldTrusteeRank != -1 && oldTrusteeRank != Integer.MAX_VALUE)
+						continue;
+
+					if(graph.getGivenTrustValue(e) > 0) {
+						ranks[trustee] = trusteeRank;
+						nextBucket[nextSize++] = trustee;
+					} else if(oldTrusteeRank == -1)
+						ranks[trustee] = truster == sourceIndex
+							? DISTRUSTED_BY_SOURCE : Integer.MAX_VALUE;
+				}
+			}
+
+			final int[] swap = currentBucket;
+			currentBucket = nextBucket;
+			nextBucket = swap;
+			currentSize = nextSize;
+		}
+
+		for(int i = 0; i < ranks.length; ++i) {
+			if(ranks[i] == DISTRUSTED_BY_SOURCE)
+				ranks[i] = Integer.MAX_VALUE;
+		}
+
+		return ranks;
+	}
+
+}
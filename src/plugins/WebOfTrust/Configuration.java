@@ -396,6 +396,22 @@ public final class Configuration extends Persistent {
 		return mIntParams.keySet().toArray(new String[mIntParams.size()]);
 	}
 
+	/**
+	 * Copies the parameters and the {@link #getLastVerificationOfScoresDate()} of the given
+	 * Configuration into this one, for {@link DatabaseCloner}. Does not copy the
+	 * {@link #getLastDefragDate()}: The copy of a database does not need to be defragmented.
+	 * You have to call storeWithoutCommit to write it to disk. */
+	synchronized void copyFrom(Configuration source) {
+		for(String key : source.getAllStringKeys())
+			set(key, source.getString(key));
+		
+		for(String key : source.getAllIntKeys())
+			set(key, source.getInt(key));
+		
+		checkedActivate(1); // Date is a db4o primitive type so 1 is enough
+		mLastVerificationOfScoresDate = source.getLastVerificationOfScoresDate();
+	}
+
 	/**
 	 * Add the default configuration values to the database.
 	 * 
@@ -0,0 +1,271 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.io.PrintStream;
+
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+import com.db4o.ObjectSet;
+import com.db4o.ext.ExtObjectContainer;
+
+import freenet.support.Logger;
+
+/**
+ * Copies the {@link Identity}, {@link OwnIdentity}, {@link Trust} and {@link Score} objects and
+ * the {@link Configuration} of a database into another one.
+ *
+ * As opposed to db4o's defragmentation and backup mechanisms, this creates the whole database
+ * from scratch by storing new objects with the attributes of the original ones. Thus it also
+ * gets rid of corrupted internal structures of db4o, and it can copy databases which cannot be
+ * defragmented anymore.
+ *
+ * The objects are copied one after another and committed in batches of a given size, so the
+ * memory usage does not depend on the size of the database: The source database is iterated
+ * using {@link Persistent.InitializingObjectSet}, which only holds the IDs of the objects, and
+ * db4o does not keep the copied objects alive after the commit. The references between the
+ * objects are preserved by looking up the copies of the truster / trustee of each Trust and
+ * Score by their ID in the target database.
+ *
+ * Copying can be interrupted at any time, for example by shutting down the JVM. If it is run
+ * again upon the same source and target, objects which exist in the target already are skipped,
+ * so it resumes where it was interrupted. The uncommitted batch is lost then, which is fine as it
+ * will be copied again. ATTENTION: The source must not have been modified in the meantime! This
+ * is detected by the comparison of the databases at the end, which causes {@link #run()} to
+ * throw, but the copy is useless then.
+ *
+ * Does NOT copy:
+ * - {@link IntroductionPuzzle}s because we can just download new ones.
+ * - {@link IdentityFetcher} commands because they aren't persistent across startups anyway.
+ * - {@link SubscriptionManager} objects because subscriptions are not persistent across startups
+ *   either. */
+public final class DatabaseCloner {
+
+	/** Number of objects which are copied per transaction if nothing else is specified. */
+	public static final int DEFAULT_BATCH_SIZE = 1024;
+
+	private final WebOfTrust mSource;
+
+	private final WebOfTrust mTarget;
+
+	private final ExtObjectContainer mTargetDB;
+
+	private final int mBatchSize;
+
+	/** May be null. {@link Logger} is used in addition to it. */
+	private final PrintStream mProgressOutput;
+
+
+	/**
+	 * @param source Is not modified.
+	 * @param target Should be a new, empty database, or the target of an interrupted run upon the
+	 *     same source.
+	 * @param batchSize Number of objects which are stored per transaction.
+	 * @param progressOutput If non-null, progress is printed there. */
+	public DatabaseCloner(WebOfTrust source, WebOfTrust target, int batchSize,
+			PrintStream progressOutput) {
+
+		if(source == target)
+			throw new IllegalArgumentException("Source and target must be different!");
+
+		if(batchSize < 1)
+			throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+
+		mSource = source;
+		mTarget = target;
+		mTargetDB = target.getDatabase();
+		mBatchSize = batchSize;
+		mProgressOutput = progressOutput;
+	}
+
+	/**
+	 * Copies the database, checks the integrity of the copy and whether it is
+	 * {@link WebOfTrust#equals(Object)} to the source.
+	 *
+	 * Must not be used while the source or target are being used by other threads, it only takes
+	 * the locks which are necessary for the copying.
+	 *
+	 * @throws RuntimeException If the integrity check or the comparison fail. */
+	public void run() {
+		synchronized(mSource) {
+		synchronized(mTarget) {
+			copyConfiguration();
+			copyIdentities();
+			copyTrusts();
+			copyScores();
+
+			printProgress("Checking database integrity of clone...");
+			if(!mTarget.verifyDatabaseIntegrity())
+				throw new RuntimeException("Database integrity check of clone failed!");
+
+			// Does a deep comparison of all Identitys, Trusts and Scores. It also detects whether
+			// the source was modified since an interrupted run, which would have left stale
+			// copies in the target.
+			printProgress("Checking source.equals(clone)...");
+			if(!mSource.equals(mTarget))
+				throw new RuntimeException("Clone is not equal!");
+
+			printProgress("Cloning database finished.");
+		}
+		}
+	}
+
+	private void copyConfiguration() {
+		synchronized(Persistent.transactionLock(mTargetDB)) {
+			try {
+				final Configuration config = mTarget.getConfig();
+				config.copyFrom(mSource.getConfig());
+				config.storeWithoutCommit();
+				Persistent.checkedCommit(mTargetDB, this);
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mTargetDB, this, e);
+			}
+		}
+	}
+
+	private void copyIdentities() {
+		final ObjectSet<Identity> identities = mSource.getAllIdentities();
+		final Progress progress = new Progress("Identitys", identities.size());
+
+		synchronized(Persistent.transactionLock(mTargetDB)) {
+			try {
+				for(Identity identity : identities) {
+					try {
+						mTarget.getIdentityByID(identity.getID());
+						progress.onSkipped();
+						continue;
+					} catch(UnknownIdentityException e) {}
+
+					identity.cloneForDatabase(mTarget).storeWithoutCommit();
+					progress.onCopied();
+				}
+				progress.onFinished();
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mTargetDB, this, e);
+			}
+		}
+	}
+
+	private void copyTrusts() {
+		final ObjectSet<Trust> trusts = mSource.getAllTrusts();
+		final Progress progress = new Progress("Trusts", trusts.size());
+
+		synchronized(Persistent.transactionLock(mTargetDB)) {
+			try {
+				for(Trust trust : trusts) {
+					try {
+						mTarget.getTrust(trust.getID());
+						progress.onSkipped();
+						continue;
+					} catch(NotTrustedException e) {}
+
+					trust.cloneWithIdentities(mTarget,
+						mTarget.getIdentityByID(trust.getTruster().getID()),
+						mTarget.getIdentityByID(trust.getTrustee().getID())
+					).storeWithoutCommit();
+					progress.onCopied();
+				}
+				progress.onFinished();
+			} catch(UnknownIdentityException e) {
+				// The Identitys were copied before, so this means that the source is corrupted.
+				Persistent.checkedRollbackAndThrow(mTargetDB, this, new RuntimeException(e));
+			} catch(DuplicateTrustException e) {
+				Persistent.checkedRollbackAndThrow(mTargetDB, this, new RuntimeException(e));
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mTargetDB, this, e);
+			}
+		}
+	}
+
+	private void copyScores() {
+		final ObjectSet<Score> scores = mSource.getAllScores();
+		final Progress progress = new Progress("Scores", scores.size());
+
+		synchronized(Persistent.transactionLock(mTargetDB)) {
+			try {
+				for(Score score : scores) {
+					try {
+						mTarget.getScore(score.getID());
+						progress.onSkipped();
+						continue;
+					} catch(NotInTrustTreeException e) {}
+
+					score.cloneWithIdentities(mTarget,
+						mTarget.getOwnIdentityByID(score.getTruster().getID()),
+						mTarget.getIdentityByID(score.getTrustee().getID())
+					).storeWithoutCommit();
+					progress.onCopied();
+				}
+				progress.onFinished();
+			} catch(UnknownIdentityException e) {
+				// The Identitys were copied before, so this means that the source is corrupted.
+				Persistent.checkedRollbackAndThrow(mTargetDB, this, new RuntimeException(e));
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mTargetDB, this, e);
+			}
+		}
+	}
+
+	private void printProgress(String message) {
+		Logger.normal(this, message);
+
+		if(mProgressOutput != null)
+			mProgressOutput.println(message);
+	}
+
+	/**
+	 * Counts the objects of a single class, commits every {@link DatabaseCloner#mBatchSize}
+	 * stored objects and prints the progress after each commit.
+	 * Must be used while holding the transaction lock. */
+	private final class Progress {
+		private final String mName;
+
+		private final int mTotal;
+
+		private int mCopied = 0;
+
+		private int mSkipped = 0;
+
+		private int mUncommitted = 0;
+
+
+		Progress(String name, int total) {
+			mName = name;
+			mTotal = total;
+			printProgress("Copying " + total + " " + name + "...");
+		}
+
+		void onCopied() {
+			++mCopied;
+
+			if(++mUncommitted == mBatchSize) {
+				Persistent.checkedCommit(mTargetDB, DatabaseCloner.this);
+				mUncommitted = 0;
+				print();
+			}
+		}
+
+		/** Must be called for objects which existed in the target already. */
+		void onSkipped() {
+			++mSkipped;
+		}
+
+		void onFinished() {
+			Persistent.checkedCommit(mTargetDB, DatabaseCloner.this);
+			mUncommitted = 0;
+			print();
+		}
+
+		private void print() {
+			final int done = mCopied + mSkipped;
+			printProgress(mName + ": " + done + " / " + mTotal
+				+ " (" + (mTotal > 0 ? (done * 100L / mTotal) : 100) + "%), "
+				+ mSkipped + " existed already");
+		}
+	}
+
+}
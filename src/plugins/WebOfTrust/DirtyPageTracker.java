@@ -0,0 +1,145 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.BitSet;
+
+import com.db4o.ext.Db4oIOException;
+import com.db4o.ext.ExtObjectContainer;
+import com.db4o.io.IoAdapter;
+import com.db4o.io.VanillaIoAdapter;
+
+/**
+ * db4o {@link IoAdapter} which records which pages of the database file have been written, so
+ * {@link OnlineBackup} can copy only the pages which changed.
+ *
+ * The instance which is passed to {@link com.db4o.config.Configuration#io(IoAdapter)} only serves
+ * as a factory: db4o uses the instance which {@link #open(String, boolean, long, boolean)}
+ * returns, which is available by {@link #getOpenedFile()}.
+ *
+ * The pages are tracked at the level at which db4o accesses the file, i.e. above any caching
+ * IoAdapter which the given delegate might use. Thus the pages must be read by
+ * {@link #readPage(int, byte[])} and not from the file on disk: Otherwise a page could be read
+ * before the cache has written the change which marked it as dirty. */
+final class DirtyPageTracker extends VanillaIoAdapter {
+
+	/** Size of the unit of tracking and copying. */
+	static final int PAGE_SIZE = 64 * 1024;
+
+	/** Null for the factory instance. */
+	private final BitSet mDirtyPages;
+
+	/** Current file position of the delegate, to know which page {@link #write(byte[], int)}
+	 *  writes to. */
+	private long mPosition = 0;
+
+	/** The result of the last {@link #open(String, boolean, long, boolean)}. */
+	private volatile DirtyPageTracker mOpenedFile = null;
+
+
+	/** Constructs the factory instance. */
+	DirtyPageTracker(IoAdapter delegate) {
+		super(delegate);
+		mDirtyPages = null;
+	}
+
+	private DirtyPageTracker(IoAdapter delegate, String path, boolean lockFile,
+			long initialLength, boolean readOnly) throws Db4oIOException {
+
+		super(delegate, path, lockFile, initialLength, readOnly);
+		mDirtyPages = new BitSet();
+	}
+
+	@Override public IoAdapter open(String path, boolean lockFile, long initialLength,
+			boolean readOnly) throws Db4oIOException {
+
+		final DirtyPageTracker file
+			= new DirtyPageTracker(_delegate, path, lockFile, initialLength, readOnly);
+		mOpenedFile = file;
+		return file;
+	}
+
+	/** @return The instance which db4o uses for the database file, null if it was not opened. */
+	DirtyPageTracker getOpenedFile() {
+		return mOpenedFile;
+	}
+
+	@Override public void seek(long position) throws Db4oIOException {
+		super.seek(position);
+		mPosition = position;
+	}
+
+	@Override public int read(byte[] buffer, int length) throws Db4oIOException {
+		final int read = super.read(buffer, length);
+		if(read > 0)
+			mPosition += read;
+		return read;
+	}
+
+	@Override public void write(byte[] buffer, int length) throws Db4oIOException {
+		super.write(buffer, length);
+		markDirty(mPosition, length);
+		mPosition += length;
+	}
+
+	@Override public void copy(long oldAddress, long newAddress, int length)
+			throws Db4oIOException {
+		super.copy(oldAddress, newAddress, length);
+		markDirty(newAddress, length);
+	}
+
+	@Override public void copy(byte[] buffer, long oldAddress, long newAddress)
+			throws Db4oIOException {
+		super.copy(buffer, oldAddress, newAddress);
+		markDirty(newAddress, buffer.length);
+	}
+
+	private synchronized void markDirty(long position, int length) {
+		if(length <= 0)
+			return;
+
+		final int firstPage = (int)(position / PAGE_SIZE);
+		final int lastPage = (int)((position + length - 1) / PAGE_SIZE);
+		mDirtyPages.set(firstPage, lastPage + 1);
+	}
+
+	/** @return The pages which were written since the previous call. */
+	synchronized BitSet takeDirtyPages() {
+		final BitSet result = (BitSet)mDirtyPages.clone();
+		mDirtyPages.clear();
+		return result;
+	}
+
+	/** @return The number of pages of the file, including a partial last page. */
+	int getPageCount() {
+		return (int)((getLength() + PAGE_SIZE - 1) / PAGE_SIZE);
+	}
+
+	/**
+	 * Reads the given page into the given buffer of {@link #PAGE_SIZE} bytes.
+	 *
+	 * Must be called while synchronized on the {@link ExtObjectContainer#lock()} of the database:
+	 * db4o holds it during its own file access, so this does not change the file position between
+	 * a seek and a read / write of db4o.
+	 *
+	 * @return The number of bytes read, which is less than {@link #PAGE_SIZE} for the last page
+	 *     and 0 for pages beyond the end of the file. */
+	int readPage(int page, byte[] buffer) throws Db4oIOException {
+		assert(buffer.length == PAGE_SIZE);
+
+		final long position = (long)page * PAGE_SIZE;
+		final int length = (int)Math.max(0, Math.min(PAGE_SIZE, getLength() - position));
+
+		if(length == 0)
+			return 0;
+
+		seek(position);
+
+		if(read(buffer, length) != length)
+			throw new IllegalStateException("Unexpected end of file at page " + page);
+
+		return length;
+	}
+
+}
@@ -4,6 +4,7 @@
 package plugins.WebOfTrust;
 
 import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.MalformedURLException;
@@ -18,6 +19,9 @@ import java.util.UUID;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.util.Base32;
 import plugins.WebOfTrust.util.ReallyCloneable;
+
+import com.db4o.query.Query;
+
 import freenet.keys.FreenetURI;
 import freenet.keys.USK;
 import freenet.support.Base64;
@@ -35,6 +39,8 @@ import freenet.support.codeshortification.IfNull;
  * @author xor (xor@freenetproject.org)
  * @author Julien Cornuwel (batosai@freenetproject.org)
  */
+// mCreationDate is the date shown as "Discovered" on the KnownIdentitiesPage, which can sort by it
+@Persistent.IndexedField(names = {"mCreationDate"})
 public class Identity extends Persistent implements ReallyCloneable<Identity>, EventSource {
 
 	/** @see Serializable */
@@ -83,6 +89,14 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
      */
     protected String mRequestURIString;
 
+	/**
+	 * The edition of {@link #mRequestURIString}. Stored separately so the database can sort by it
+	 * instead of having to parse the URIs of all Identitys, see
+	 * {@link WebOfTrust#getAllIdentitiesFilteredAndSorted(OwnIdentity, String,
+	 * WebOfTrust.SortOrder)}. */
+	@IndexedField
+	private long mEdition = 0;
+
 	public static enum FetchState {
 		NotFetched,
 		ParsingFailed,
@@ -115,6 +129,34 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 	/** A list of this Identity's custom properties */
 	protected HashMap<String, String> mProperties;
 	
+	/**
+	 * True if this Identity has received at least one {@link Score}.
+	 * Part of an aggregate of all received Scores which allows {@link WebOfTrust#getBestScore(
+	 * Identity)}, {@link WebOfTrust#getBestCapacity(Identity)} and
+	 * {@link WebOfTrust#shouldFetchIdentity(Identity)} to not query all of them.
+	 * Kept up to date by {@link Score#storeWithoutCommit()} and
+	 * {@link Score#deleteWithoutCommit()}, see
+	 * {@link #onScoreStoredWithoutCommit(Score, boolean, int, int)}.
+	 * Not compared by {@link #equals(Object)}: It is not a property of the Identity itself.
+	 * Indexed because {@link WebOfTrust} queries the Identitys which have Scores. */
+	@IndexedField
+	private boolean mHasScores = false;
+	
+	/** Maximum {@link Score#getValue()} of all received Scores if {@link #mHasScores}.
+	 *  @see #mHasScores */
+	private int mBestScore = 0;
+	
+	/** Maximum {@link Score#getCapacity()} of all received Scores if {@link #mHasScores}.
+	 *  @see #mHasScores */
+	private int mBestCapacity = 0;
+	
+	/**
+	 * Number of {@link Trust}s this Identity has received. Indexed so the database can sort by it.
+	 * Kept up to date by {@link Trust#storeWithoutCommit()} and {@link Trust#deleteWithoutCommit()}.
+	 * Not compared by {@link #equals(Object)}: It is not a property of the Identity itself. */
+	@IndexedField
+	private int mReceivedTrustCount = 0;
+	
 	/**
 	 * @see Identity#activateProperties()
 	 */
@@ -390,7 +432,8 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 	 * Safe to be called without any additional synchronization.
 	 */
 	public final long getEdition() {
-		return getRequestURI().getEdition();
+		checkedActivate(1); // long is a db4o primitive type so 1 is enough
+		return mEdition;
 	}
 	
 	public final FetchState getCurrentEditionFetchState() {
@@ -438,6 +481,7 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
             // to the enum and long which we set in the following code.
             /* checkedDelete(mRequestURIString); */
             mRequestURIString = requestURI.setSuggestedEdition(newEdition).toString();
+            mEdition = newEdition;
 			mCurrentEditionFetchState = FetchState.NotFetched;
 			if (newEdition > mLatestEditionHint) {
 				// Do not call setNewEditionHint() to prevent confusing logging.
@@ -466,6 +510,7 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
             // to the long which we set in the following code.
             /* checkedDelete(mRequestURIString); */
             mRequestURIString = requestURI.setSuggestedEdition(newEdition).toString();
+            mEdition = newEdition;
 			if (newEdition > mLatestEditionHint) {
 				// Do not call setNewEditionHint() to prevent confusing logging.
 				mLatestEditionHint = newEdition;
@@ -524,6 +569,7 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
         // String is a db4o primitive type, and thus automatically deleted.
         /* checkedDelete(mRequestURIString); */
         mRequestURIString = requestURI.toString();
+        mEdition = requestURI.getEdition();
 
 		// TODO: I decided that we should not decrease the edition hint here. Think about that again.
 	}
@@ -969,6 +1015,182 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		}
 	}
 		
+	/** @return True if this Identity has received at least one {@link Score}. */
+	final boolean hasScores() {
+		checkedActivate(1); // boolean is a db4o primitive type so 1 is enough
+		return mHasScores;
+	}
+	
+	/**
+	 * @return The maximum {@link Score#getValue()} of all Scores this Identity has received.
+	 *     Must only be used if {@link #hasScores()}. */
+	final int getBestScore() {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		assert(mHasScores);
+		return mBestScore;
+	}
+	
+	/**
+	 * @return The maximum {@link Score#getCapacity()} of all Scores this Identity has received.
+	 *     Must only be used if {@link #hasScores()}. */
+	final int getBestCapacity() {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		assert(mHasScores);
+		return mBestCapacity;
+	}
+	
+	/**
+	 * Updates {@link #getBestScore()} / {@link #getBestCapacity()} / {@link #hasScores()} after
+	 * the given Score which this Identity has received was stored, and stores this Identity if
+	 * they changed.
+	 * Only queries the other Scores if the given one was the best one before, i.e. its old value
+	 * or capacity equalled the best one, and has decreased below it.
+	 * 
+	 * Must be called by {@link Score#storeWithoutCommit()} after storing the Score. The same
+	 * synchronization as for that function is required.
+	 * 
+	 * @param wasStored False if the Score was stored for the first time. The old value and
+	 *     capacity are ignored then.
+	 * @param oldValue The {@link Score#getValue()} which was stored previously.
+	 * @param oldCapacity The {@link Score#getCapacity()} which was stored previously. */
+	final void onScoreStoredWithoutCommit(Score score, boolean wasStored, int oldValue,
+			int oldCapacity) {
+		
+		checkedActivate(1); // int/boolean is a db4o primitive type so 1 is enough
+		assert(score.getTrustee() == this);
+		
+		final int value = score.getValue();
+		final int capacity = score.getCapacity();
+		
+		if(!mHasScores && !wasStored) {
+			mHasScores = true;
+			mBestScore = value;
+			mBestCapacity = capacity;
+			checkedStore();
+			return;
+		}
+		
+		if(!mHasScores || (wasStored && ((oldValue == mBestScore && value < mBestScore)
+				|| (oldCapacity == mBestCapacity && capacity < mBestCapacity)))) {
+			updateBestScoreWithoutCommit(null);
+			return;
+		}
+		
+		final int bestScore = Math.max(value, mBestScore);
+		final int bestCapacity = Math.max(capacity, mBestCapacity);
+		if(bestScore != mBestScore || bestCapacity != mBestCapacity) {
+			mBestScore = bestScore;
+			mBestCapacity = bestCapacity;
+			checkedStore();
+		}
+	}
+	
+	/**
+	 * Updates {@link #getBestScore()} / {@link #getBestCapacity()} / {@link #hasScores()} after
+	 * the given Score which this Identity has received was deleted.
+	 * Only queries the other Scores if the given one was the best one, i.e. its value or
+	 * capacity equalled the best one.
+	 * 
+	 * Must be called by {@link Score#deleteWithoutCommit()} after deleting the Score. The same
+	 * synchronization as for that function is required.
+	 * 
+	 * @param oldValue The {@link Score#getValue()} which was stored.
+	 * @param oldCapacity The {@link Score#getCapacity()} which was stored. */
+	final void onScoreDeletedWithoutCommit(Score score, int oldValue, int oldCapacity) {
+		checkedActivate(1); // int/boolean is a db4o primitive type so 1 is enough
+		
+		if(!mHasScores || oldValue == mBestScore || oldCapacity == mBestCapacity)
+			updateBestScoreWithoutCommit(score);
+	}
+	
+	/**
+	 * Recomputes {@link #getBestScore()} / {@link #getBestCapacity()} / {@link #hasScores()}
+	 * by querying all Scores this Identity has received, and stores this Identity if they
+	 * changed. Also used by {@link WebOfTrust#upgradeDB()} to initialize them.
+	 * 
+	 * @param deletedScore A Score which was deleted in the current transaction and thus must be
+	 *     ignored even if the query still returns it. Compared by object identity, not by
+	 *     {@link Score#getID()}, to not ignore a duplicate of it. May be null. */
+	final void updateBestScoreWithoutCommit(Score deletedScore) {
+		checkedActivate(1); // int/boolean is a db4o primitive type so 1 is enough
+		
+		boolean hasScores = false;
+		int bestScore = Integer.MIN_VALUE;
+		int bestCapacity = 0;
+		
+		final Query query = mDB.query();
+		query.constrain(Score.class);
+		query.descend("mTrustee").constrain(this).identity();
+		for(Score score : new Persistent.InitializingObjectSet<Score>(mWebOfTrust, query)) {
+			if(score == deletedScore)
+				continue;
+			
+			hasScores = true;
+			bestScore = Math.max(score.getValue(), bestScore);
+			bestCapacity = Math.max(score.getCapacity(), bestCapacity);
+		}
+		
+		if(!hasScores) {
+			bestScore = 0;
+			bestCapacity = 0;
+		}
+		
+		if(hasScores != mHasScores || bestScore != mBestScore || bestCapacity != mBestCapacity) {
+			mHasScores = hasScores;
+			mBestScore = bestScore;
+			mBestCapacity = bestCapacity;
+			checkedStore();
+		}
+	}
+	
+	/** @return The number of {@link Trust}s this Identity has received. */
+	public final int getReceivedTrustCount() {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		return mReceivedTrustCount;
+	}
+	
+	/**
+	 * Must be called by {@link Trust#storeWithoutCommit()} after storing a Trust which this
+	 * Identity has received and which was not stored before. The same synchronization as for that
+	 * function is required. */
+	final void onTrustStoredWithoutCommit(Trust trust) {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		assert(trust.getTrustee() == this);
+		++mReceivedTrustCount;
+		checkedStore();
+	}
+	
+	/**
+	 * Must be called by {@link Trust#deleteWithoutCommit()} after deleting a Trust which this
+	 * Identity has received. The same synchronization as for that function is required. */
+	final void onTrustDeletedWithoutCommit(Trust trust) {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		assert(mReceivedTrustCount > 0);
+		--mReceivedTrustCount;
+		checkedStore();
+	}
+	
+	/** Queries the received Trusts to count them. */
+	private int countReceivedTrusts() {
+		final Query query = mDB.query();
+		query.constrain(Trust.class);
+		query.descend("mTrustee").constrain(this).identity();
+		return query.execute().size();
+	}
+	
+	/**
+	 * Initializes the values of {@link #getEdition()} and {@link #getReceivedTrustCount()} of
+	 * Identitys which were stored before they existed, and stores this Identity.
+	 * 
+	 * @deprecated Only for being used in {@link WebOfTrust#upgradeDB()} */
+	@Deprecated
+	final void upgradeDatabaseFormatVersion9WithoutCommit() {
+		checkedActivate(1);
+		mEdition = getRequestURI().getEdition();
+		mReceivedTrustCount = countReceivedTrusts();
+		checkedStore();
+	}
+	
 	/**
 	 * Tell that this Identity has been updated.
 	 * 
@@ -1103,6 +1325,7 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 			// Clone it because date is mutable. Set it *after* calling all setters since they would
 			// update it to the current time otherwise.
 	        clone.mLastChangedDate = (Date)mLastChangedDate.clone();
+			clone.mLastFetchedDate = (Date)mLastFetchedDate.clone();
 	        
 			return clone;
 			
@@ -1119,6 +1342,23 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		return clone();
 	}
 
+	/**
+	 * Copies this Identity for storing it in the database of the given WebOfTrust, see
+	 * {@link DatabaseCloner}. As opposed to {@link #clone()} all attributes are copied, including
+	 * the dates and the {@link #getVersionID()}.
+	 * The attributes which are derived from the received Trusts and Scores are reset: Storing the
+	 * copies of those will compute them again.
+	 * 
+	 * If this is an {@link OwnIdentity}, the copy is one as well. */
+	final Identity cloneForDatabase(WebOfTrustInterface target) {
+		final Identity copy = (Identity)Persistent.deserialize(target, serialize());
+		copy.mHasScores = false;
+		copy.mBestScore = 0;
+		copy.mBestCapacity = 0;
+		copy.mReceivedTrustCount = 0;
+		return copy;
+	}
+
 	/**
 	 * Stores this identity in the database without committing the transaction
 	 * You must synchronize on the WoT, on the identity and then on the database when using this function!
@@ -1262,6 +1502,18 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
             throw new IllegalStateException("Invalid edition hint: " + mLatestEditionHint
                                           + "; current edition: " + requestURI.getEdition());
         }
+		
+		if(mEdition != requestURI.getEdition()) {
+			throw new IllegalStateException("mEdition does not match request URI: " + mEdition
+			                              + "; URI edition: " + requestURI.getEdition());
+		}
+		
+		// Deserialized copies such as the ones of SubscriptionManager notifications are not stored,
+		// the query would not find the Trusts they have received.
+		if(mDB.isStored(this) && mReceivedTrustCount != countReceivedTrusts()) {
+			throw new IllegalStateException("Wrong mReceivedTrustCount: " + mReceivedTrustCount
+			                              + "; actual count: " + countReceivedTrusts());
+		}
 
 		if(mLastFetchedDate == null)
 			throw new NullPointerException("mLastFetchedDate==null");
@@ -1309,6 +1561,14 @@ public class Identity extends Persistent implements ReallyCloneable<Identity>, E
 		activateFully();
 		stream.defaultWriteObject();
 	}
+	
+	/**
+	 * Recomputes {@link #mEdition}: Identitys which were serialized before it existed, such as the
+	 * ones of pending {@link SubscriptionManager} notifications, don't contain it. */
+	private void readObject(ObjectInputStream stream) throws IOException, ClassNotFoundException {
+		stream.defaultReadObject();
+		mEdition = new FreenetURI(mRequestURIString).getEdition();
+	}
 
 	/** {@inheritDoc} */
     @Override public void setVersionID(UUID versionID) { 
@@ -16,6 +16,9 @@ import java.util.HashMap;
 
 import plugins.WebOfTrust.Identity.FetchState;
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
+import plugins.WebOfTrust.LockOrder.Lock;
+import plugins.WebOfTrust.LockStatistics.Acquisition;
+import plugins.WebOfTrust.LockStatistics.Site;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
 import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
@@ -56,6 +59,7 @@ import freenet.support.io.NativeThread;
  *	synchronized(instance of IntroductionPuzzleStore) {
  *	synchronized(instance of IdentityFetcher) {
  *	synchronized(Persistent.transactionLock(instance of ObjectContainer)) {
+ * The order is defined centrally by {@link LockOrder}, see there for how to check it.
  * 
  * TODO: Code quality: Rename to IdentityFileFetcher to match the naming of
  * {@link IdentityFileQueue} and {@link IdentityFileProcessor}. Notice that this needs to be done
@@ -86,6 +90,9 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	 * again. Thus please only use this flag with throwaway databases. */
 	public static final boolean DEBUG__NETWORK_DUMP_MODE = false;
 
+	/** The {@link LockStatistics} {@link Site} of {@link #run()}. */
+	private static final Site RUN_SITE = new Site("IdentityFetcher.run");
+
 	private final WebOfTrust mWoT;
 	
 	private final ExtObjectContainer mDB;
@@ -524,9 +531,15 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 	public void run() {
 	    final Thread thread = Thread.currentThread();
 
+		assert(mWoT.getLockOrder().mayAcquire(Lock.WEB_OF_TRUST));
+		final Acquisition acquisition = mWoT.getLockStatistics().begin(RUN_SITE);
 		synchronized(mWoT) { // Lock needed because we do getIdentityByID() in fetch()
+		acquisition.acquired(Lock.WEB_OF_TRUST);
+		try {
 		synchronized(this) {
+		acquisition.acquired(Lock.IDENTITY_FETCHER);
 		synchronized(Persistent.transactionLock(mDB)) {
+		acquisition.acquired(Lock.TRANSACTION);
 			try  {
 				if(logDEBUG) Logger.debug(this, "Processing identity fetcher commands ...");
 				
@@ -573,17 +586,23 @@ public final class IdentityFetcher implements USKRetrieverCallback, PrioRunnable
 				
 				if(logDEBUG) Logger.debug(this, "Processing finished.");
 				
-				Persistent.checkedCommit(mDB, this);
+				// Deferrable: The transaction only deletes the processed commands. If the
+				// deletion gets lost, they will merely be processed again, which is harmless.
+				Persistent.checkedCommitDeferrable(mDB, this);
 			} catch(RuntimeException e) {
 				Persistent.checkedRollback(mDB, this, e);
 			}
 		}
 		}
+		} finally {
+			acquisition.released();
+		}
 		}
 	}
 	
 	private void fetch(String identityID) throws Exception {
 		try {
+			assert(mWoT.getLockOrder().mayAcquire(Lock.WEB_OF_TRUST));
 			synchronized(mWoT) {
 				Identity identity = mWoT.getIdentityByID(identityID);
 				fetch(identity);
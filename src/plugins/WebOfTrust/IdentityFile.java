@@ -8,7 +8,12 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
 import freenet.clients.fcp.FCPConnectionInputHandler;
@@ -30,6 +35,26 @@ import freenet.support.io.LineReadingInputStream;
  * FILE FORMAT EXAMPLE:
  * 
  * # IdentityFile
+ * Version=7
+ * SourceURI=USK@...
+ * Compression=Deflate
+ * UncompressedLength=1400
+ * CRC32=cdef9876
+ * DataLength=400
+ * Data
+ * (DataLength bytes of XML compressed with {@link Deflater})
+ * 
+ * The XML is compressed because the trust list of an Identity with hundreds of trustees is large
+ * and very repetitive: The "USK@" prefixes and attribute names make up most of it. Compression
+ * hence reduces the disk usage of the queue and the write I/O during bootstrap severalfold.
+ * If compression would not reduce the size, the XML is stored as is with "Compression=None".
+ * The CRC32 is computed over the SourceURI and the stored, i.e. compressed, bytes, so corruption
+ * is detected before decompressing.
+ * 
+ * Files of version 6 can still be read. They have no Compression and UncompressedLength, the raw
+ * XML follows after the "Data" line:
+ * 
+ * # IdentityFile
  * Version=6
  * CRC32=cdef9876
  * SourceURI=USK@...
@@ -71,7 +96,10 @@ import freenet.support.io.LineReadingInputStream;
 final class IdentityFile {
 	public static transient final String FILE_EXTENSION = ".wot-identity";
 	
-	public static transient final int FILE_FORMAT_VERSION = 6;
+	public static transient final int FILE_FORMAT_VERSION = 7;
+
+	/** The previous version of the file format, which {@link #read(InputStream)} supports. */
+	static transient final int FILE_FORMAT_VERSION_UNCOMPRESSED = 6;
 
 	/** @see #getURI() */
 	private final FreenetURI mURI;
@@ -108,43 +136,124 @@ final class IdentityFile {
 	}
 
 	public void write(File file) {
+		FileOutputStream fos = null;
+		
+		try {
+			fos = new FileOutputStream(file);
+			write(fos);
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			Closer.close(fos);
+		}
+	}
+
+	/** Writes the same format as {@link #write(File)}. Does not close the stream. */
+	public void write(OutputStream os) throws IOException {
+		byte[] compressed = deflate(mXML);
+		boolean compress = compressed.length < mXML.length;
+		byte[] data = compress ? compressed : mXML;
+		
 		SimpleFieldSet sfs = new SimpleFieldSet(true);
 		// Metadata
 		sfs.setHeader("IdentityFile");
 		sfs.put("Version", FILE_FORMAT_VERSION);
 		// Data
 		sfs.putOverwrite("SourceURI", mURI.toString());
-		sfs.putOverwrite("CRC32", Long.toHexString(crc32()));
-		sfs.put("DataLength", mXML.length); // Same format as FCP messages with Data attachment
-		// XML follows after SimpleFieldSet dump
+		sfs.putOverwrite("Compression", compress ? "Deflate" : "None");
+		sfs.put("UncompressedLength", mXML.length);
+		sfs.putOverwrite("CRC32", Long.toHexString(crc32(mURI, data)));
+		sfs.put("DataLength", data.length); // Same format as FCP messages with Data attachment
+		// Data follows after SimpleFieldSet dump
 		sfs.setEndMarker("Data"); // Same format as FCP messages with Data attachment
 		
-		FileOutputStream fos = null;
+		// TODO: Code quality: Add a function to SimpleFieldSet for writing with a custom
+		// Charset and pass XMLTransformer.XML_CHARSET as Charset.
+		assert(XMLTransformer.XML_CHARSET.name().equals("UTF-8"));
+		sfs.writeTo(os);
 		
+		os.write(data);
+	}
+
+	/**
+	 * Compresses with {@link Deflater#BEST_SPEED}: The files are written by the threads which
+	 * fetch them, and the XML is repetitive enough to compress well at any level. */
+	private static byte[] deflate(byte[] uncompressed) {
+		Deflater deflater = new Deflater(Deflater.BEST_SPEED);
 		try {
-			fos = new FileOutputStream(file);
+			deflater.setInput(uncompressed);
+			deflater.finish();
+			
+			ByteArrayOutputStream bos = new ByteArrayOutputStream(uncompressed.length / 4 + 64);
+			byte[] buffer = new byte[4096];
+			while(!deflater.finished()) {
+				int length = deflater.deflate(buffer);
+				bos.write(buffer, 0, length);
+			}
+			return bos.toByteArray();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * @param length The expected size of the uncompressed data, must not exceed
+	 *     {@link XMLTransformer#MAX_IDENTITY_XML_BYTE_SIZE} to prevent decompression bombs.
+	 * @throws IOException If the data is invalid or does not decompress to the given length. */
+	private static byte[] inflate(byte[] compressed, int length) throws IOException {
+		if(length <= 0 || length > XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE)
+			throw new IOException("Invalid uncompressed length: " + length);
+		
+		Inflater inflater = new Inflater();
+		try {
+			inflater.setInput(compressed);
+			byte[] result = new byte[length];
+			int done = 0;
 			
-			// TODO: Code quality: Add a function to SimpleFieldSet for writing with a custom
-			// Charset and pass XMLTransformer.XML_CHARSET as Charset.
-			assert(XMLTransformer.XML_CHARSET.name().equals("UTF-8"));
-			sfs.writeTo(fos);
+			while(done < length && !inflater.finished()) {
+				int inflated = inflater.inflate(result, done, length - done);
+				if(inflated == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+					throw new IOException("Compressed data is truncated!");
+				done += inflated;
+			}
 			
-			fos.write(mXML);
-		} catch(IOException e) {
-			throw new RuntimeException(e);
+			// Consume the end of the stream, and check that it does not contain more data.
+			if(!inflater.finished() && inflater.inflate(new byte[1]) != 0)
+				throw new IOException("Compressed data is longer than " + length + " bytes!");
+			
+			if(done != length || !inflater.finished())
+				throw new IOException("Compressed data has the wrong length!");
+			
+			return result;
+		} catch(DataFormatException e) {
+			throw new IOException(e);
 		} finally {
-			Closer.close(fos);
+			inflater.end();
 		}
 	}
 
 	public static IdentityFile read(File source) {
 		FileInputStream fis = null;
-		LineReadingInputStream lris = null;
-		ByteArrayOutputStream xmlBos = null;
 		
 		try {
 			fis = new FileInputStream(source);
-			lris = new LineReadingInputStream(fis);
+			return read(fis);
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		} finally {
+			Closer.close(fis);
+		}
+	}
+
+	/**
+	 * Reads the format of {@link #write(OutputStream)}, or the one of
+	 * {@link #FILE_FORMAT_VERSION_UNCOMPRESSED}.
+	 * The stream must end where the file ends, and is not closed. */
+	public static IdentityFile read(InputStream source) {
+		ByteArrayOutputStream dataBos = null;
+		
+		try {
+			LineReadingInputStream lris = new LineReadingInputStream(source);
 			
 			SimpleFieldSet sfs
 				= new SimpleFieldSet(lris, Integer.MAX_VALUE, 4096, true, false, true);
@@ -153,32 +262,39 @@ final class IdentityFile {
 			if(headers == null || !headers[0].equals("IdentityFile"))
 				throw new IOException("Unexpected file type: IdentityFile header not found!");
 			
-			if(sfs.getInt("Version") != FILE_FORMAT_VERSION)
-				throw new IOException("Unknown file format version: " + sfs.getInt("Version"));
+			int version = sfs.getInt("Version");
+			if(version != FILE_FORMAT_VERSION && version != FILE_FORMAT_VERSION_UNCOMPRESSED)
+				throw new IOException("Unknown file format version: " + version);
 			
 			FreenetURI uri = new FreenetURI(sfs.getString("SourceURI"));
 			
-			int xmlLength = sfs.getInt("DataLength");
-			assert(xmlLength > 0 && xmlLength <= XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE);
-			assert(xmlLength == lris.available());
-			xmlBos = new ByteArrayOutputStream(xmlLength);
-			FileUtil.copy(lris, xmlBos, xmlLength);
-
-			final IdentityFile deserialized = new IdentityFile(uri, xmlBos.toByteArray());
+			int dataLength = sfs.getInt("DataLength");
+			assert(dataLength > 0 && dataLength <= XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE);
+			assert(dataLength == lris.available());
+			dataBos = new ByteArrayOutputStream(dataLength);
+			FileUtil.copy(lris, dataBos, dataLength);
+			byte[] data = dataBos.toByteArray();
 			
+			// Version 6 computed it over the XML, which is the same as the data there.
 			long expectedCRC = Long.parseLong(sfs.getString("CRC32"), 16);
-			if(deserialized.crc32() != expectedCRC)
+			if(crc32(uri, data) != expectedCRC)
 				throw new IOException("CRC mismatch!");
 			
-			return deserialized;
+			String compression = version == FILE_FORMAT_VERSION_UNCOMPRESSED
+				? "None" : sfs.getString("Compression");
+			
+			if(compression.equals("None"))
+				return new IdentityFile(uri, data);
+			else if(compression.equals("Deflate"))
+				return new IdentityFile(uri, inflate(data, sfs.getInt("UncompressedLength")));
+			else
+				throw new IOException("Unknown compression: " + compression);
 		} catch(IOException e) {
 			throw new RuntimeException(e);
 		} catch(FSParseException e) {
 			throw new RuntimeException(e);
 		} finally {
-			Closer.close(xmlBos);
-			Closer.close(lris);
-			Closer.close(fis);
+			Closer.close(dataBos);
 		}
 	}
 
@@ -188,9 +304,13 @@ final class IdentityFile {
 	}
 
 	public long crc32() {
+		return crc32(mURI, mXML);
+	}
+
+	private static long crc32(FreenetURI uri, byte[] data) {
 		CRC32 crc = new CRC32();
-		crc.update(mURI.toString().getBytes(XMLTransformer.XML_CHARSET));
-		crc.update(mXML);
+		crc.update(uri.toString().getBytes(XMLTransformer.XML_CHARSET));
+		crc.update(data);
 		return crc.getValue();
 	}
 
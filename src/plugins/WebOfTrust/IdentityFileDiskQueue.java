@@ -3,59 +3,145 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import static java.lang.Math.max;
+import static java.lang.Math.min;
+import static java.util.concurrent.TimeUnit.MINUTES;
+
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayDeque;
 import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.TreeSet;
+import java.util.zip.CRC32;
 
 import plugins.WebOfTrust.Identity.IdentityID;
 import plugins.WebOfTrust.util.jobs.BackgroundJob;
 import freenet.keys.FreenetURI;
+import freenet.support.CurrentTimeUTC;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 
 /**
  * {@link IdentityFileQueue} implementation which writes the files to disk instead of keeping them
  * in memory.<br><br>
- * 
+ *
  * Deduplicating queue: Only the latest edition of each file is returned; see
  * {@link IdentityFileQueue} for details.<br>
- * The order of files is not preserved.<br>
- */
+ * The files are returned by priority, see {@link PriorityCallback}: On a fresh node, importing the
+ * files of the Identitys which are close to the {@link OwnIdentity}s first makes the trust graph,
+ * and thereby the decisions which Identitys to fetch, converge much sooner.<br>
+ * To prevent starvation, the priority only delays a file by {@link #AGING_MILLISECONDS} per
+ * priority level compared to a file of priority 0 which was queued at the same time: The files are
+ * returned in order of {@link QueuedFile#getDeadline()}. A file which replaces an older edition of
+ * the same {@link Identity} by deduplication inherits the time at which the older one was queued,
+ * so Identitys which publish frequently cannot delay themselves.<br><br>
+ *
+ * STORAGE FORMAT:<br>
+ * The files are appended to a small number of segment files in the subdirectory "Segments",
+ * instead of storing each file separately: With one file per {@link Identity}, each
+ * {@link #poll()} had to list the queue directory, which is slow with the tens of thousands of
+ * files a large queue contains, and {@link #add(IdentityFileStream)} had to read the existing
+ * queued file to compare the editions.<br>
+ * Instead, {@link #mQueue} indexes the location, edition and priority of each queued file in
+ * memory. It is
+ * rebuilt at startup by reading the segments in the order in which they were written. Each
+ * segment is a sequence of records:<br>
+ * - {@link #RECORD_ADD}: A queued {@link IdentityFile}. A later ADD record of the same queue key
+ *   supersedes it, see {@link #getQueueKey(FreenetURI)}.<br>
+ * - {@link #RECORD_REMOVE}: Marks the file of the given queue key and edition as dequeued by
+ *   {@link #poll()}.<br>
+ * Each record is protected by a CRC32, a record which was only partially written when WoT
+ * crashed is truncated at startup.<br><br>
+ *
+ * COMPACTION:<br>
+ * Once the segment which is appended to reaches {@link #mSegmentSize}, a new one is started.
+ * Segments are only ever deleted starting at the oldest one: A REMOVE record is never older than
+ * the ADD record it cancels, so deleting the oldest segment cannot make a dequeued file reappear
+ * at startup. The oldest segment is deleted once none of its records are live anymore, or once
+ * less than half of it is live: The live records are then copied to the end of the current
+ * segment. Since the aging makes {@link #poll()} return the oldest files first in the long run,
+ * the oldest segment usually becomes dead first. */
 final class IdentityFileDiskQueue implements IdentityFileQueue {
+	/** Default value of {@link #mSegmentSize}. */
+	static final long SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	private static final String SEGMENT_FILE_EXTENSION = ".wot-identity-segment";
+
+	/** Delay of a file per level of {@link PriorityCallback#getPriority(FreenetURI)}. */
+	static final long AGING_MILLISECONDS = MINUTES.toMillis(5);
+
+	/**
+	 * Priorities are limited to this so no file is delayed by more than an hour, see
+	 * {@link #AGING_MILLISECONDS}. */
+	static final int MAX_PRIORITY = 12;
+
+	/**
+	 * Record type: Payload is the queue key, the edition, the priority, the time at which the file
+	 * was queued, and the {@link IdentityFile}. */
+	private static final byte RECORD_ADD = 1;
+
+	/** Record type: Payload is the queue key and the edition. */
+	private static final byte RECORD_REMOVE = 2;
+
+	/** Size of the type, payload length and CRC32 of the payload which precede each payload. */
+	private static final int RECORD_HEADER_SIZE = 1 + 4 + 4;
+
 	/** Subdirectory of WOT data directory where we put our data dirs. */
 	private final File mDataDir;
 
-	/** {@link #add(IdentityFileStream)} puts files to this subdir of {@link #mDataDir}. */
-	private final File mQueueDir;
-
-	/** {@link #poll()} puts files to this subdir of {@link #mDataDir}. */
-	private final File mProcessingDir;
+	/** Contains the segment files, see the JavaDoc of this class. */
+	private final File mSegmentDir;
 
 	/**
 	 * If {@link #logDEBUG} is true, when the stream of a file returned by {@link #poll()} is
-	 * closed, the closing function of the stream will move the file to this subdir of
-	 * {@link #mDataDir}.<br>
-	 * If {@link #logDEBUG} is false, the finished files will be deleted upon stream closure. */
+	 * closed, the closing function of the stream will write the file to this subdir of
+	 * {@link #mDataDir}. */
 	private final File mFinishedDir;
 
+	/** Size at which a new segment is started. */
+	private final long mSegmentSize;
+
 	/** @see IdentityFetcher#DEBUG__NETWORK_DUMP_MODE */
 	private final boolean mDeduplicationEnabled;
 
+	/** Null if all files have priority 0, i.e. are returned in the order in which they were
+	 *  queued. */
+	private final PriorityCallback mPriorityCallback;
+
 	/**
 	 * Amount of old files in {@link #mFinishedDir}, i.e. files from a previous session.<br>
 	 * We use this to ensure that filename index prefixes of new files do not collide.<br><br>
-	 * 
+	 *
 	 * Notice: We do intentionally track this separately instead of initializing
 	 * {@link IdentityFileQueueStatistics#mFinishedFiles} with this value: The other statistics are
 	 * not persisted, so they would not be coherent with this value. */
 	private int mOldFinishedFileCount;
 
+	/** The segments, oldest first. Records are appended to the last one. */
+	private final ArrayDeque<Segment> mSegments = new ArrayDeque<Segment>();
+
+	/** The queued files by {@link #getQueueKey(FreenetURI)}. */
+	private final HashMap<String, QueuedFile> mQueue = new HashMap<String, QueuedFile>();
+
+	/** The files of {@link #mQueue} in the order in which {@link #poll()} returns them. */
+	private final TreeSet<QueuedFile> mOrder = new TreeSet<QueuedFile>(QueuedFile.ORDER);
+
+	/** @see QueuedFile#mSequence */
+	private long mSequence = 0;
+
 	/** @see #getStatistics() */
 	private final IdentityFileQueueStatistics mStatistics = new IdentityFileQueueStatistics();
-	
+
 	/** @see #registerEventHandler(BackgroundJob) */
 	private BackgroundJob mEventHandler;
 
@@ -65,7 +151,7 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 	 * {@link LogLevel#DEBUG} for this class. Used as performance optimization to prevent
 	 * construction of the log strings if it is not necessary. */
 	private static transient volatile boolean logDEBUG = false;
-	
+
 	/**
 	 * Automatically set to true by {@link Logger} if the log level is set to
 	 * {@link LogLevel#MINOR} for this class. Used as performance optimization to prevent
@@ -78,88 +164,285 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 	}
 
 
+	/** A segment file. Only accessed while synchronized(IdentityFileDiskQueue.this). */
+	private static final class Segment {
+		/** Segments are numbered in the order of their creation, which is the order of replay. */
+		final int mNumber;
+
+		final File mFile;
+
+		/** Kept open for the lifetime of the segment, it is used for reading and appending. */
+		final RandomAccessFile mRAF;
+
+		/** The end of the last valid record. */
+		long mLength = 0;
+
+		/** Number of ADD records which are still in {@link IdentityFileDiskQueue#mQueue}. */
+		int mLiveRecords = 0;
+
+		/** Total size of the records of {@link #mLiveRecords}. */
+		long mLiveBytes = 0;
+
+		Segment(File directory, int number) throws IOException {
+			mNumber = number;
+			mFile = new File(directory, String.format("%09d" + SEGMENT_FILE_EXTENSION, number));
+			mRAF = new RandomAccessFile(mFile, "rw");
+		}
+
+		void delete() throws IOException {
+			mRAF.close();
+			if(!mFile.delete())
+				throw new IOException("Cannot delete " + mFile);
+		}
+	}
+
+	/**
+	 * A queued file. Its location is the one of its live ADD record, which changes when
+	 * {@link IdentityFileDiskQueue#compact()} copies the record. */
+	private static final class QueuedFile {
+		/** Orders by {@link #getDeadline()}, then by {@link #mSequence}. */
+		static final Comparator<QueuedFile> ORDER = new Comparator<QueuedFile>() {
+			@Override public int compare(QueuedFile a, QueuedFile b) {
+				int result = Long.compare(a.getDeadline(), b.getDeadline());
+				return result != 0 ? result : Long.compare(a.mSequence, b.mSequence);
+			}
+		};
+
+		final String mKey;
+
+		final long mEdition;
+
+		/** @see PriorityCallback#getPriority(FreenetURI) */
+		final int mPriority;
+
+		/**
+		 * {@link CurrentTimeUTC#getInMillis()} when the file was queued. A file which replaces an
+		 * older edition by deduplication uses the value of the older one. */
+		final long mQueuedTime;
+
+		/** Unique, increases in the order of queueing to keep files of equal deadline FIFO. */
+		final long mSequence;
+
+		Segment mSegment;
+
+		long mOffset;
+
+		/** Size of the whole record, including the header. */
+		int mLength;
+
+		QueuedFile(String key, long edition, int priority, long queuedTime, long sequence) {
+			mKey = key;
+			mEdition = edition;
+			mPriority = priority;
+			mQueuedTime = queuedTime;
+			mSequence = sequence;
+		}
+
+		void setLocation(Segment segment, long offset, int length) {
+			mSegment = segment;
+			mOffset = offset;
+			mLength = length;
+		}
+
+		/** The time at which the file is as urgent as a file of priority 0 queued right now. */
+		long getDeadline() {
+			return mQueuedTime + mPriority * AGING_MILLISECONDS;
+		}
+	}
+
+	/** A record as read by {@link IdentityFileDiskQueue#readRecord(Segment, long, long)}. */
+	private static final class Record {
+		final byte mType;
+
+		final String mKey;
+
+		final long mEdition;
+
+		/** Only for {@link #RECORD_ADD}, see {@link QueuedFile#mPriority}. */
+		final int mPriority;
+
+		/** Only for {@link #RECORD_ADD}, see {@link QueuedFile#mQueuedTime}. */
+		final long mQueuedTime;
+
+		/** Size of the whole record, including the header. */
+		final int mLength;
+
+		/** For {@link #RECORD_ADD}: Positioned at the serialized {@link IdentityFile}. */
+		final InputStream mData;
+
+		Record(byte type, String key, long edition, int priority, long queuedTime, int length,
+				InputStream data) {
+			mType = type;
+			mKey = key;
+			mEdition = edition;
+			mPriority = priority;
+			mQueuedTime = queuedTime;
+			mLength = length;
+			mData = data;
+		}
+	}
+
+
+	/** Supplies the priorities of the queued files. */
+	interface PriorityCallback {
+		/**
+		 * @return The priority of the given file, 0 is the most urgent. Values above
+		 *     {@link IdentityFileDiskQueue#MAX_PRIORITY} are treated as it.<br>
+		 *     Is called by {@link IdentityFileDiskQueue#add(IdentityFileStream)} without holding
+		 *     the lock of the queue, so it may take the locks of WoT. */
+		int getPriority(FreenetURI identityFileURI);
+	}
+
+
+	/** Constructs a queue without priorities. */
 	public IdentityFileDiskQueue(File parentDirectory) {
+		this(parentDirectory, null);
+	}
+
+	/** @param priorityCallback See {@link #mPriorityCallback}. */
+	public IdentityFileDiskQueue(File parentDirectory, PriorityCallback priorityCallback) {
+		this(parentDirectory, SEGMENT_SIZE, priorityCallback);
+	}
+
+	/** @param segmentSize See {@link #mSegmentSize}. Should only be changed by unit tests. */
+	IdentityFileDiskQueue(File parentDirectory, long segmentSize,
+			PriorityCallback priorityCallback) {
+
 		mDataDir = new File(parentDirectory, "IdentityFileQueue");
-		mQueueDir = new File(mDataDir, "Queued");
-		mProcessingDir = new File(mDataDir, "Processing");
+		mSegmentDir = new File(mDataDir, "Segments");
 		mFinishedDir = new File(mDataDir, "Finished");
-		
+		mSegmentSize = segmentSize;
+		mPriorityCallback = priorityCallback;
+
 		if(!mDataDir.exists() && !mDataDir.mkdir())
 			throw new RuntimeException("Cannot create " + mDataDir);
-		
-		if(!mQueueDir.exists() && !mQueueDir.mkdir())
-			throw new RuntimeException("Cannot create " + mQueueDir);
-		
-		if(!mProcessingDir.exists() && !mProcessingDir.mkdir())
-			throw new RuntimeException("Cannot create " + mProcessingDir);
-		
+
+		if(!mSegmentDir.exists() && !mSegmentDir.mkdir())
+			throw new RuntimeException("Cannot create " + mSegmentDir);
+
 		if(!mFinishedDir.exists() && !mFinishedDir.mkdir())
 			throw new RuntimeException("Cannot create " + mFinishedDir);
 
-		cleanDirectories();
-		
 		if(!IdentityFetcher.DEBUG__NETWORK_DUMP_MODE) {
 			mDeduplicationEnabled = true;
 		} else {
 			Logger.warning(this,
 				"IdentityFetcher.DEBUG__NETWORK_DUMP_MODE == true: Disabling deduplication!");
-			
+
 			mDeduplicationEnabled = false;
 		}
+
+		try {
+			loadSegments();
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		countOldFinishedFiles();
+		importQueueDirectory();
 	}
 
-	/** Used at startup to ensure that the data directories are in a clean state */
-	private synchronized void cleanDirectories() {
-		Logger.normal(this, "cleanDirectories(): Inspecting old files...");
-		
-		// Queue dir policy:
-		// - Keep all queued files so we don't have to download them again.
-		// - Count them so mStatistics.mQueuedFiles is correct.
-		for(File file : mQueueDir.listFiles()) {
-			if(!file.getName().endsWith(IdentityFile.FILE_EXTENSION)) {
-				Logger.warning(this, "cleanDirectories(): Unexpected file type: " + file);
+	/** Used at startup to rebuild {@link #mQueue} from the segments. */
+	private synchronized void loadSegments() throws IOException {
+		Logger.normal(this, "loadSegments(): Reading queued files...");
+
+		File[] files = mSegmentDir.listFiles();
+		int[] numbers = new int[files.length];
+		int count = 0;
+
+		for(File file : files) {
+			String name = file.getName();
+
+			if(!name.endsWith(SEGMENT_FILE_EXTENSION)) {
+				Logger.warning(this, "loadSegments(): Unexpected file type: " + file);
 				continue;
 			}
 
-			++mStatistics.mQueuedFiles;
-			++mStatistics.mTotalQueuedFiles;
+			try {
+				numbers[count++] = Integer.parseInt(
+					name.substring(0, name.length() - SEGMENT_FILE_EXTENSION.length()));
+			} catch(NumberFormatException e) {
+				Logger.warning(this, "loadSegments(): Cannot parse file name: " + file);
+				--count;
+			}
 		}
 
-		Logger.normal(this, "cleanDirectories(): Old queued files: " + mStatistics.mQueuedFiles);
+		numbers = Arrays.copyOf(numbers, count);
+		Arrays.sort(numbers);
 
-		// Processing dir policy:
-		// In theory we could move the files back to the queue. But its possible that a colliding
-		// filename exists there, which would need special code to handle.
-		// Since there should only be 1 file at a time in processing, and lost files will
-		// automatically be downloaded again, we just delete it to avoid the hassle of writing code
-		// for moving it back.
-		for(File file : mProcessingDir.listFiles()) {
-			if(!file.getName().endsWith(IdentityFile.FILE_EXTENSION)) {
-				Logger.warning(this, "cleanDirectories(): Unexpected file type: " + file);
-				continue;
-			}
-			
-			if(!file.delete())  {
-				Logger.error(this, "cleanDirectories(): Cannot delete old file in mProcessingDir: "
-			                     + file);
-			} else {
-				Logger.normal(this, "cleanDirectories(): Deleted old processing file: " + file);
+		for(int number : numbers) {
+			Segment segment = new Segment(mSegmentDir, number);
+			mSegments.addLast(segment);
+			replaySegment(segment);
+		}
+
+		if(mSegments.isEmpty())
+			mSegments.addLast(new Segment(mSegmentDir, 1));
+
+		mStatistics.mQueuedFiles = mQueue.size();
+		mStatistics.mTotalQueuedFiles = mQueue.size();
+
+		Logger.normal(this, "loadSegments(): Segments: " + mSegments.size()
+		                  + "; Old queued files: " + mStatistics.mQueuedFiles);
+
+		// A previous session may have ended before compacting.
+		compact();
+	}
+
+	/**
+	 * Applies the records of the given segment to {@link #mQueue}.
+	 * Truncates the segment at the first record which is incomplete or corrupted: These are
+	 * caused by crashes during writing, and the following data cannot be trusted anymore. */
+	private void replaySegment(Segment segment) throws IOException {
+		long fileLength = segment.mRAF.length();
+		long offset = 0;
+
+		while(offset < fileLength) {
+			Record record;
+
+			try {
+				record = readRecord(segment, offset, fileLength);
+			} catch(IOException e) {
+				Logger.error(this, "replaySegment(): Truncating " + segment.mFile + " at "
+				                 + offset + " of " + fileLength + " bytes", e);
+
+				segment.mRAF.setLength(offset);
+				break;
 			}
+
+			QueuedFile queued = mQueue.get(record.mKey);
+
+			if(record.mType == RECORD_ADD) {
+				// add() only writes a file if it is not older than the queued one.
+				if(queued != null)
+					dequeue(queued);
+
+				QueuedFile file = new QueuedFile(record.mKey, record.mEdition, record.mPriority,
+					record.mQueuedTime, ++mSequence);
+				file.setLocation(segment, offset, record.mLength);
+				enqueue(file);
+			} else if(queued != null && queued.mEdition == record.mEdition)
+				dequeue(queued);
+
+			offset += record.mLength;
 		}
-		
-		
-		// Finished dir policy:
-		// The finished dir is an archival dir which archives old identity files for debug purposes.
-		// Thus, we want to keep all files in mFinishedDir.
-		// To ensure that new files do not collide with the index prefixes of old ones, we now need
-		// to find the highest filename index prefix of the old files.
+
+		segment.mLength = offset;
+	}
+
+	/**
+	 * Counts the old files in {@link #mFinishedDir}.<br>
+	 * The finished dir is an archival dir which archives old identity files for debug purposes.
+	 * Thus, we want to keep all files in it. To ensure that new files do not collide with the index
+	 * prefixes of old ones, we need to find the highest filename index prefix of the old files. */
+	private synchronized void countOldFinishedFiles() {
 		int maxFinishedIndex = 0;
 
 		for(File file: mFinishedDir.listFiles()) {
 			String name = file.getName();
-			
+
 			if(!name.endsWith(IdentityFile.FILE_EXTENSION)) {
-				Logger.warning(this, "cleanDirectories(): Unexpected file type: " + file);
+				Logger.warning(this, "countOldFinishedFiles(): Unexpected file type: " + file);
 				continue;
 			}
 
@@ -168,47 +451,97 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 				 maxFinishedIndex = Math.max(maxFinishedIndex, index);
 			} catch(RuntimeException e) { // TODO: Code quality: Java 7
 				                          // catch NumberFormatException | IndexOutOfBoundsException
-				
-				Logger.warning(this, "cleanDirectories(): Cannot parse file name: " + file);
+
+				Logger.warning(this, "countOldFinishedFiles(): Cannot parse file name: " + file);
 				continue;
 			}
 		}
-		
+
 		mOldFinishedFileCount = maxFinishedIndex;
-		
-		Logger.normal(this, "cleanDirectories(): Old finished files: " + mOldFinishedFileCount);
-		
+
+		Logger.normal(this, "countOldFinishedFiles(): Old finished files: "
+		                  + mOldFinishedFileCount);
+
 		assert(mStatistics.checkConsistency());
 		assert(checkDiskConsistency());
-		
-		// We cannot do this now since we have no event handler yet.
-		// registerEventHandler() does it for us.
-		/*
-		if(mStatistics.mQueuedFiles != 0)
-			mEventHandler.triggerExecution();
-		*/
-		
-		Logger.normal(this, "cleanDirectories(): Finished.");
 	}
 
-	@Override public synchronized void add(IdentityFileStream identityFileStream) {
+	/**
+	 * Older versions of this class stored each queued file separately in the subdirectory
+	 * "Queued", and the file which was being processed in "Processing". This adds the files of
+	 * "Queued" to the queue so they don't have to be downloaded again, and deletes both
+	 * directories.<br>
+	 * TODO: Code quality: Remove this once all users have upgraded. */
+	private void importQueueDirectory() {
+		File oldQueueDir = new File(mDataDir, "Queued");
+		File oldProcessingDir = new File(mDataDir, "Processing");
+
+		if(oldQueueDir.isDirectory()) {
+			Logger.normal(this, "importQueueDirectory(): Importing " + oldQueueDir + " ...");
+
+			for(File file : oldQueueDir.listFiles()) {
+				if(file.getName().endsWith(IdentityFile.FILE_EXTENSION)) {
+					try {
+						IdentityFile data = IdentityFile.read(file);
+						add(new IdentityFileStream(data.getURI(),
+							new ByteArrayInputStream(data.mXML)));
+					} catch(RuntimeException e) {
+						Logger.error(this, "importQueueDirectory(): Cannot import: " + file, e);
+					}
+				}
+
+				if(!file.delete())
+					Logger.error(this, "importQueueDirectory(): Cannot delete: " + file);
+			}
+		}
+
+		// Since there should only be 1 file at a time in processing, and lost files will
+		// automatically be downloaded again, we just delete it.
+		if(oldProcessingDir.isDirectory()) {
+			for(File file : oldProcessingDir.listFiles()) {
+				if(!file.delete())
+					Logger.error(this, "importQueueDirectory(): Cannot delete: " + file);
+			}
+		}
+
+		for(File dir : new File[] { oldQueueDir, oldProcessingDir }) {
+			if(dir.exists() && !dir.delete())
+				Logger.error(this, "importQueueDirectory(): Cannot delete: " + dir);
+		}
+	}
+
+	@Override public void add(IdentityFileStream identityFileStream) {
+		// Not while synchronized(this): The callback may wait for the lock of the WebOfTrust, and
+		// threads which hold it may call getStatistics().
+		add(identityFileStream, getPriority(identityFileStream.mURI));
+	}
+
+	private int getPriority(FreenetURI identityFileURI) {
+		if(mPriorityCallback == null)
+			return 0;
+
+		try {
+			return max(0, min(MAX_PRIORITY, mPriorityCallback.getPriority(identityFileURI)));
+		} catch(RuntimeException e) {
+			Logger.error(this, "getPriority() failed for: " + identityFileURI, e);
+			return MAX_PRIORITY;
+		}
+	}
+
+	private synchronized void add(IdentityFileStream identityFileStream, int priority) {
 		try {
 			// We increment the counter before errors could occur so erroneously dropped files are
 			// included: This ensures that the user might notice dropped files from the statistics
 			// in the UI.
 			++mStatistics.mTotalQueuedFiles;
-			
-			File filename = getQueueFilename(identityFileStream.mURI);
-			// Delete for deduplication
-			if(filename.exists()) {
-				IdentityFile existingQueuedData = IdentityFile.read(filename);
-				assert(IdentityID.constructAndValidateFromURI(existingQueuedData.getURI())
-					   .equals(IdentityID.constructAndValidateFromURI(identityFileStream.mURI)))
-					: "Filenames should only collide for the same Identity, see getQueueFilename()";
-				
-				long existingQueuedEdition = existingQueuedData.getURI().getEdition();
-				long givenEdition = identityFileStream.mURI.getEdition();
-				
+
+			String key = getQueueKey(identityFileStream.mURI);
+			long givenEdition = identityFileStream.mURI.getEdition();
+			QueuedFile existing = mQueue.get(key);
+
+			if(existing != null) {
+				long existingQueuedEdition = existing.mEdition;
+
 				// Make sure that we do not delete a queued new edition in favor of an old one
 				// passed to us. This can happen because:
 				// A) the IdentityFetcher.onFound() USK subscription callback is called in threads
@@ -218,45 +551,49 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 				//    have not been imported in the main database yet, the edition there may be
 				//    older than what is queued.
 				// Notice: This is intentionally a ">" check instead of ">=":
-				// If we re-fetch the same edition, we better drop the file on disk to protect
+				// If we re-fetch the same edition, we better replace the queued file to protect
 				// against broken files which are stuck in the queue due to corruption/bugs.
 				if(existingQueuedEdition > givenEdition) {
 					if(logMINOR) {
 						Logger.minor(this, "Fetched edition which is older than queued file, "
 										 + "dropping: " + givenEdition);
 					}
-					
+
 					++mStatistics.mDeduplicatedFiles;
 					assert(mStatistics.checkConsistency());
 					assert(checkDiskConsistency());
 					return;
-				} else {
-					// Queued file *is* old, deduplicate it
-					if(filename.delete()) {
-						if(logMINOR) {
-							Logger.minor(this, "Deduplicating edition " + existingQueuedEdition
-							                 + " with edition " + givenEdition
-							                 + " for: " + identityFileStream.mURI);
-						}
-						
-						--mStatistics.mQueuedFiles;
-						++mStatistics.mDeduplicatedFiles;
-						// Must first add the new file to the queue before this is valid again
-						// because mTotalQueuedFiles has been incremented already.
-						/* assert(mStatistics.checkConsistency()); */
-					} else
-						throw new RuntimeException("Cannot write to " + filename);				
 				}
 			}
-			
+
 			// FIXME: Measure how long this takes. The IdentityFileProcessor contains code which
 			// could be recycled for that.
-			IdentityFile.read(identityFileStream).write(filename);
-			
+			IdentityFile data = IdentityFile.read(identityFileStream);
+			QueuedFile added = new QueuedFile(key, givenEdition, priority,
+				existing != null ? existing.mQueuedTime : CurrentTimeUTC.getInMillis(), ++mSequence);
+			appendAddRecord(added, data);
+
+			if(existing != null) {
+				// Queued file *is* old, deduplicate it. The new ADD record supersedes it on disk.
+				if(logMINOR) {
+					Logger.minor(this, "Deduplicating edition " + existing.mEdition
+					                 + " with edition " + givenEdition
+					                 + " for: " + identityFileStream.mURI);
+				}
+
+				dequeue(existing);
+				--mStatistics.mQueuedFiles;
+				++mStatistics.mDeduplicatedFiles;
+			}
+
+			enqueue(added);
+
 			++mStatistics.mQueuedFiles;
 			assert(mStatistics.checkConsistency());
+
+			compact();
 			assert(checkDiskConsistency());
-			
+
 			if(mEventHandler != null)
 				mEventHandler.triggerExecution();
 			else {
@@ -284,6 +621,10 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 					 			 + "queue!");
 				*/
 			}
+		} catch(IOException e) {
+			++mStatistics.mFailedFiles;
+			assert(mStatistics.checkConsistency());
+			throw new RuntimeException(e);
 		} catch(RuntimeException e) {
 			++mStatistics.mFailedFiles;
 			assert(mStatistics.checkConsistency());
@@ -295,21 +636,17 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 		}
 	}
 
-	private File getQueueFilename(FreenetURI identityFileURI) {
-		if(mDeduplicationEnabled) {
-			// We want to deduplicate editions of files for the same identity.
-			// This can be done by causing filenames to always collide for the same identity:
-			// An existing file of an old edition will be overwritten then.
-			// We cause the collissions by using the ID of the identity as the only variable
-			// component of the filename.
-			return new File(mQueueDir,
-			            getEncodedIdentityID(identityFileURI) + IdentityFile.FILE_EXTENSION);
-		} else {
-			// Return non-colliding filenames by including edition
-			return new File(mQueueDir,
-				String.format("identityID-%s_edition-%018d" + IdentityFile.FILE_EXTENSION,
-								getEncodedIdentityID(identityFileURI),
-								identityFileURI.getEdition()));	
+	/**
+	 * Returns the key of the given file in {@link #mQueue}.<br>
+	 * If deduplication is enabled, this is the ID of the {@link Identity} so the files of all
+	 * editions of it collide, and the latest edition replaces the older ones. Otherwise, the edition
+	 * is included to not have any collisions. */
+	private String getQueueKey(FreenetURI identityFileURI) {
+		if(mDeduplicationEnabled)
+			return getEncodedIdentityID(identityFileURI);
+		else {
+			return String.format("%s_edition-%018d",
+				getEncodedIdentityID(identityFileURI), identityFileURI.getEdition());
 		}
 	}
 
@@ -320,71 +657,49 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 	}
 
 	@Override public synchronized IdentityFileStream poll() {
-		File[] queue = mQueueDir.listFiles();
-		assert(queue.length == mStatistics.mQueuedFiles);
-		
-		if(logDEBUG) {
-			Logger.debug(this, "poll(): DEBUG logging enabled, sorting files alphabetically...");
-			Arrays.sort(queue);
-		}
+		// If reading a file fails, we try the others until we succeed.
+		while(!mOrder.isEmpty()) {
+			QueuedFile queuedFile = mOrder.first();
 
-		// In theory, we should not have to loop over the result of listFiles(), we could always
-		// return the first slot in its resulting array: poll() is not required to return any
-		// specific selection of files.
-		// However, to be robust against things such as the user sticking arbitrary files in the
-		// directory, we loop over the files in the queue dir nevertheless:
-		// If processing a file fails, we try the others until we succeed. 
-		for(File queuedFile : queue) {
 			try {
-				IdentityFile fileData = IdentityFile.read(queuedFile);
-				
-				// Before we can return the file data, we must move the on-disk file from mQueueDir
-				// to mProcessingDir to prevent it from getting poll()ed again.
-				File dequeuedFile = new File(mProcessingDir, queuedFile.getName());
-				assert(!dequeuedFile.exists());
-				if(!queuedFile.renameTo(dequeuedFile)) {
-					throw new RuntimeException("Cannot move file, source: " + queuedFile
-			                                 + "; dest: " + dequeuedFile);
+				IdentityFile fileData;
+
+				try {
+					Record record = readRecord(queuedFile.mSegment, queuedFile.mOffset,
+						queuedFile.mSegment.mLength);
+					assert(record.mType == RECORD_ADD && record.mKey.equals(queuedFile.mKey));
+					fileData = IdentityFile.read(record.mData);
+				} finally {
+					// Also remove a broken file so it doesn't get stuck in the queue.
+					// Since a dequeued file is lost if WoT is terminated during processing, it
+					// will be downloaded again then.
+					dequeue(queuedFile);
+					--mStatistics.mQueuedFiles;
+					appendRemoveRecord(queuedFile);
 				}
-				
-				// The InputStreamWithCleanup wrapper will remove the file from mProcessingDir once
-				// the stream is close()d.
-				// TODO: Code quality: Close inner streams upon construction failure of outer ones.
-				// Not critical to fix: The streams do not lock any resources. Also, closing the
-				// InputStreamWithCleanup would delete the file even though we haven't returned it
-				// for processing yet.
+
+				// The InputStreamWithCleanup wrapper will update the statistics once the stream is
+				// close()d.
 				IdentityFileStream result = new IdentityFileStream(fileData.getURI(),
-					new InputStreamWithCleanup(dequeuedFile, fileData,
-						new ByteArrayInputStream(fileData.mXML)));
-				
+					new InputStreamWithCleanup(fileData, new ByteArrayInputStream(fileData.mXML)));
+
 				++mStatistics.mProcessingFiles;
 				assert(mStatistics.mProcessingFiles == 1);
-				
-				--mStatistics.mQueuedFiles;
 				assert(mStatistics.checkConsistency());
+
+				compact();
 				assert(checkDiskConsistency());
-				
-				if(logDEBUG) Logger.debug(this, "poll(): Yielded " + queuedFile.getName());
+
+				if(logDEBUG) {
+					Logger.debug(this, "poll(): Yielded " + fileData.getURI() + " with priority "
+					                 + queuedFile.mPriority);
+				}
 				return result;
+			} catch(IOException e) {
+				onPollFailed(queuedFile.mKey, e);
 			} catch(RuntimeException e) {
-				Logger.error(this, "Error in poll() for queued file: " + queuedFile, e);
-				
-				++mStatistics.mFailedFiles;
-				assert(mStatistics.checkConsistency());
-				
-				if(!logDEBUG) {
-					Logger.error(this, "logDEBUG is false, deleting erroneous file: " + queuedFile);
-					
-					if(queuedFile.delete()) {
-						--mStatistics.mQueuedFiles;
-						assert(mStatistics.checkConsistency());
-						assert(checkDiskConsistency());
-					} else
-						Logger.error(this, "Cannot delete file: " + queuedFile);
-				}
-				
-				// Try whether we can process the next file
-				continue;
+				// TODO: Java 7: Merge with above to catch(IOException | RuntimeException e)
+				onPollFailed(queuedFile.mKey, e);
 			}
 		}
 
@@ -392,32 +707,214 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 		return null; // Queue is empty
 	}
 
+	/** Must be called while synchronized(this) */
+	private void onPollFailed(String key, Exception e) {
+		Logger.error(this, "Error in poll() for queued file: " + key, e);
+
+		++mStatistics.mFailedFiles;
+		assert(mStatistics.checkConsistency());
+	}
+
+	/** Adds the given file to {@link #mQueue} and {@link #mOrder}. Its location must be set. */
+	private void enqueue(QueuedFile file) {
+		mQueue.put(file.mKey, file);
+		mOrder.add(file);
+		addLiveRecord(file);
+	}
+
+	private void dequeue(QueuedFile file) {
+		mQueue.remove(file.mKey);
+		mOrder.remove(file);
+		removeLiveRecord(file);
+	}
+
+	/**
+	 * Appends a {@link #RECORD_ADD} for the given file, and sets the location of the file to it.
+	 * The record is not yet included in {@link Segment#mLiveRecords}. */
+	private void appendAddRecord(QueuedFile file, IdentityFile data) throws IOException {
+		ByteArrayOutputStream payloadBytes
+			= new ByteArrayOutputStream(data.mXML.length + 1024);
+		DataOutputStream payload = new DataOutputStream(payloadBytes);
+		payload.writeUTF(file.mKey);
+		payload.writeLong(file.mEdition);
+		payload.writeInt(file.mPriority);
+		payload.writeLong(file.mQueuedTime);
+		data.write(payload);
+		payload.flush();
+
+		appendRecord(RECORD_ADD, payloadBytes, file);
+	}
+
+	/** Appends a {@link #RECORD_REMOVE} for the given file. */
+	private void appendRemoveRecord(QueuedFile file) throws IOException {
+		ByteArrayOutputStream payloadBytes = new ByteArrayOutputStream(128);
+		DataOutputStream payload = new DataOutputStream(payloadBytes);
+		payload.writeUTF(file.mKey);
+		payload.writeLong(file.mEdition);
+		payload.flush();
+
+		appendRecord(RECORD_REMOVE, payloadBytes, null);
+	}
+
+	/**
+	 * Appends a record to the last segment of {@link #mSegments}.<br>
+	 * The record is written with a single write() to the file so a crash can only leave a
+	 * truncated record, which {@link #replaySegment(Segment)} discards.
+	 *
+	 * @param file If non-null, its location is set to the record. */
+	private void appendRecord(byte type, ByteArrayOutputStream payload, QueuedFile file)
+			throws IOException {
+
+		CRC32 crc = new CRC32();
+		crc.update(payload.toByteArray());
+
+		ByteArrayOutputStream recordBytes
+			= new ByteArrayOutputStream(RECORD_HEADER_SIZE + payload.size());
+		DataOutputStream record = new DataOutputStream(recordBytes);
+		record.writeByte(type);
+		record.writeInt(payload.size());
+		record.writeInt((int)crc.getValue());
+		payload.writeTo(record);
+		record.flush();
+
+		appendRawRecord(recordBytes.toByteArray(), file);
+	}
+
+	/** Appends an already serialized record, see {@link #appendRecord}. */
+	private void appendRawRecord(byte[] record, QueuedFile file) throws IOException {
+		Segment segment = mSegments.getLast();
+		long offset = segment.mLength;
+
+		segment.mRAF.seek(offset);
+		segment.mRAF.write(record);
+		segment.mLength += record.length;
+
+		if(segment.mLength >= mSegmentSize)
+			mSegments.addLast(new Segment(mSegmentDir, segment.mNumber + 1));
+
+		if(file != null)
+			file.setLocation(segment, offset, record.length);
+	}
+
+	/**
+	 * @param end The end of the valid data of the segment.
+	 * @throws IOException If the record is incomplete or the CRC does not match. */
+	private Record readRecord(Segment segment, long offset, long end) throws IOException {
+		if(end - offset < RECORD_HEADER_SIZE)
+			throw new EOFException("Incomplete record header");
+
+		RandomAccessFile raf = segment.mRAF;
+		raf.seek(offset);
+		byte type = raf.readByte();
+		int length = raf.readInt();
+		int expectedCRC = raf.readInt();
+
+		if(type != RECORD_ADD && type != RECORD_REMOVE)
+			throw new IOException("Unknown record type: " + type);
+
+		if(length < 0 || length > end - offset - RECORD_HEADER_SIZE)
+			throw new EOFException("Incomplete record, length: " + length);
+
+		byte[] payload = new byte[length];
+		raf.readFully(payload);
+
+		CRC32 crc = new CRC32();
+		crc.update(payload);
+		if((int)crc.getValue() != expectedCRC)
+			throw new IOException("CRC mismatch!");
+
+		DataInputStream data = new DataInputStream(new ByteArrayInputStream(payload));
+		String key = data.readUTF();
+		long edition = data.readLong();
+		int priority = 0;
+		long queuedTime = 0;
+
+		if(type == RECORD_ADD) {
+			priority = data.readInt();
+			queuedTime = data.readLong();
+		}
+
+		return new Record(type, key, edition, priority, queuedTime, RECORD_HEADER_SIZE + length,
+			data);
+	}
+
+	private static void addLiveRecord(QueuedFile file) {
+		++file.mSegment.mLiveRecords;
+		file.mSegment.mLiveBytes += file.mLength;
+	}
+
+	private static void removeLiveRecord(QueuedFile file) {
+		--file.mSegment.mLiveRecords;
+		file.mSegment.mLiveBytes -= file.mLength;
+		assert(file.mSegment.mLiveRecords >= 0 && file.mSegment.mLiveBytes >= 0);
+	}
+
+	/**
+	 * Deletes the oldest segments while they are dead or mostly dead, see the JavaDoc of this
+	 * class.<br>
+	 * Failure is logged but not thrown: The queue stays consistent, only disk space is wasted
+	 * until the next attempt.<br>
+	 * Must be called while synchronized(this) */
+	private void compact() {
+		try {
+			compactOldestSegments();
+		} catch(IOException e) {
+			Logger.error(this, "compact() failed", e);
+		}
+	}
+
+	private void compactOldestSegments() throws IOException {
+		while(mSegments.size() > 1) {
+			Segment oldest = mSegments.getFirst();
+
+			if(oldest.mLiveRecords > 0) {
+				if(oldest.mLiveBytes * 2 > oldest.mLength)
+					break;
+
+				if(logMINOR) {
+					Logger.minor(this, "compact(): Copying " + oldest.mLiveRecords
+					                 + " files from " + oldest.mFile);
+				}
+
+				for(QueuedFile file : mQueue.values()) {
+					if(file.mSegment != oldest)
+						continue;
+
+					byte[] record = new byte[file.mLength];
+					oldest.mRAF.seek(file.mOffset);
+					oldest.mRAF.readFully(record);
+
+					// Doesn't change the position in mOrder.
+					removeLiveRecord(file);
+					appendRawRecord(record, file);
+					addLiveRecord(file);
+				}
+
+				assert(oldest.mLiveRecords == 0);
+			}
+
+			mSegments.removeFirst();
+			oldest.delete();
+
+			if(logMINOR) Logger.minor(this, "compact(): Deleted " + oldest.mFile);
+		}
+	}
+
 	/**
 	 * When we return {@link IdentityFileStream} objects from {@link IdentityFileDiskQueue#poll()},
 	 * we wrap their {@link InputStream} in this wrapper. Its purpose is to hook {@link #close()} to
-	 * implement cleanup of our disk directories. */
+	 * update the statistics and archive the file if {@link #logDEBUG} is true. */
 	private final class InputStreamWithCleanup extends FilterInputStream {
-		/**
-		 * The backend file in {@link IdentityFileDiskQueue#mProcessingDir}.<br>
-		 * On {@link #close()} we delete it; or archive it for debugging purposes if
-		 * {@link IdentityFileDiskQueue#logDEBUG} is true */
-		private final File mSourceFile;
-
-		/**
-		 * The URI where the File {@link #mSourceFile} was downloaded from.<br>
-		 * If the file is to be archived for debugging purposes, the URI will be used for producing
-		 * a new filename for archival. */
-		private final FreenetURI mSourceURI;
+		/** The file, used for archiving it if {@link #logDEBUG} is true. */
+		private final IdentityFile mFileData;
 
 		/** Used to prevent {@link #close()} from executing twice */
 		private boolean mClosedAlready = false;
 
 
-		public InputStreamWithCleanup(File fileName, IdentityFile fileData,
-				InputStream fileStream) {
+		public InputStreamWithCleanup(IdentityFile fileData, InputStream fileStream) {
 			super(fileStream);
-			mSourceFile = fileName;
-			mSourceURI = fileData.getURI();
+			mFileData = fileData;
 		}
 
 		@Override
@@ -434,62 +931,45 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 					assert(mStatistics.mProcessingFiles == 1);
 
 					if(!logDEBUG)
-						deleteFile();
+						++mStatistics.mFinishedFiles;
 					else
 						archiveFile();
-					
+
+					--mStatistics.mProcessingFiles;
+
+					if(mStatistics.mConvergenceTimeMilliseconds == -1 && mQueue.isEmpty()) {
+						mStatistics.mConvergenceTimeMilliseconds = CurrentTimeUTC.getInMillis()
+							- mStatistics.mStartupTimeMilliseconds;
+					}
+
 					assert(mStatistics.mProcessingFiles == 0);
+					assert(mStatistics.checkConsistency());
+					assert(checkDiskConsistency());
 
 					mClosedAlready = true;
 				}
 			}
 		}
-		
-		/** Must be called while synchronized(IdentityFileDiskQueue.this) */
-		private void deleteFile() {
-			++mStatistics.mFinishedFiles;
-			
-			if(mSourceFile.delete())
-				--mStatistics.mProcessingFiles;
-			else
-				Logger.error(this, "Cannot delete file: " + mSourceFile);
-			
-			assert(mStatistics.checkConsistency());
-			assert(checkDiskConsistency());
-		}
 
 		/** Must be called while synchronized(IdentityFileDiskQueue.this) */
 		private void archiveFile() {
-			File moveTo = getAndReserveFinishedFilename(mSourceURI);
-
-			assert(mSourceFile.exists());
-			assert(!moveTo.exists());
+			File archiveTo = getAndReserveFinishedFilename(mFileData.getURI());
+			assert(!archiveTo.exists());
 
-			if(!mSourceFile.renameTo(moveTo)) {
-				Logger.error(this, "Cannot move file, source: " + mSourceFile
-								 + "; dest: " + moveTo);
-
-				// We must delete as fallback: Otherwise, subsequent processed files of the
-				// same Identity would collide with the filenames in the mProcessingDir.
-				// (Do not use deleteFile() since it would update mStatistics which we did already.)
-				if(mSourceFile.delete())
-					--mStatistics.mProcessingFiles;
-				else
-					Logger.error(this, "Cannot delete file: " + mSourceFile);
-			} else
-				--mStatistics.mProcessingFiles;
-			
-			assert(mStatistics.checkConsistency());
-			assert(checkDiskConsistency());
+			try {
+				mFileData.write(archiveTo);
+			} catch(RuntimeException e) {
+				Logger.error(this, "Cannot archive file: " + archiveTo, e);
+			}
 		}
 	}
 
 	/**
 	 * Returns a filename suitable for use in directory {@link #mFinishedDir}.<br>
 	 * Subsequent calls will never return the same filename again.<br><br>
-	 * 
+	 *
 	 * ATTENTION: Must be called while being synchronized(this).<br><br>
-	 * 
+	 *
 	 * Format:<br>
 	 *     "I_identityID-HASH_edition-E.wot-identity"<br>
 	 * where:<br>
@@ -498,7 +978,7 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 	 *     HASH = the ID of the {@link Identity}.<br>
 	 *     E = the {@link Identity#getEdition() edition} of the identity file, as a zero-padded long
 	 *         integer.<br><br>
-	 * 
+	 *
 	 * Notice: The filenames contain more information than WOT needs for general purposes of future
 	 * external scripts. */
 	private File getAndReserveFinishedFilename(FreenetURI sourceURI) {
@@ -507,10 +987,10 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 				++mStatistics.mFinishedFiles + mOldFinishedFileCount,
 				getEncodedIdentityID(sourceURI),
 				sourceURI.getEdition()));
-		
+
 		// Cannot do this yet: mProcessingFiles etc. are not updated yet.
 		/* assert(mStatistics.checkConsistency()); */
-		
+
 		return result;
 	}
 
@@ -519,9 +999,9 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 			throw new UnsupportedOperationException(
 				"Support for more than one event handler is not implemented yet.");
 		}
-		
+
 		mEventHandler = handler;
-		
+
 		// We preserve queued files across restarts, so as soon after startup as we know who
 		// the event handler is, we must wake up the event handler to process the waiting files.
 		if(mStatistics.mQueuedFiles != 0)
@@ -534,18 +1014,26 @@ final class IdentityFileDiskQueue implements IdentityFileQueue {
 		assert(checkDiskConsistency());
 		return result;
 	}
-	
+
 	/**
-	 * Returns true if the numbers in {@link #mStatistics} match the amount of files in the on-disk
-	 * directories. */
+	 * Returns true if the numbers in {@link #mStatistics} match the live records of the segments
+	 * and the amount of files in {@link #mFinishedDir}. */
 	private synchronized boolean checkDiskConsistency() {
-		int queued = mQueueDir.listFiles().length;
-		int processing = mProcessingDir.listFiles().length;
+		int live = 0;
+		for(Segment segment : mSegments)
+			live += segment.mLiveRecords;
+
+		for(QueuedFile file : mQueue.values()) {
+			if(!mSegments.contains(file.mSegment))
+				return false;
+		}
+
 		int finished = mFinishedDir.listFiles().length;
-		
+
 		return (
-				(queued == mStatistics.mQueuedFiles)
-			 && (processing == mStatistics.mProcessingFiles)
+				(live == mStatistics.mQueuedFiles)
+			 && (mQueue.size() == mStatistics.mQueuedFiles)
+			 && (mOrder.size() == mStatistics.mQueuedFiles)
 			 && (finished ==
 					(logDEBUG == false ?
 						mOldFinishedFileCount
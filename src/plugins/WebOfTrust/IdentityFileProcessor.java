@@ -7,12 +7,25 @@ import static freenet.support.TimeUtil.formatTime;
 import static java.util.concurrent.TimeUnit.MINUTES;
 import static java.util.concurrent.TimeUnit.SECONDS;
 import static plugins.WebOfTrust.Configuration.IS_UNIT_TEST;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
+import plugins.WebOfTrust.XMLTransformer.ImportResult;
+import plugins.WebOfTrust.XMLTransformer.ParsedIdentityXML;
 import plugins.WebOfTrust.util.jobs.BackgroundJob;
 import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
 import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
 import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
+import freenet.keys.FreenetURI;
 import freenet.node.PrioRunnable;
+import freenet.support.Executor;
 import freenet.support.Logger;
 import freenet.support.Ticker;
 import freenet.support.io.Closer;
@@ -23,8 +36,12 @@ import freenet.support.io.NativeThread.PriorityLevel;
  * in the {@link IdentityFileQueue}. The job of this processor is to take the files from the queue,
  * and import them into the WOT database using the {@link XMLTransformer}.<br><br>
  * 
- * Notice: The implementation is single-threaded and processes the files sequentially one-by-one.
- * It is not parallelized since the core WOT {@link Score} computation algorithm is not.<br><br>
+ * Notice: The import is single-threaded and processes the files sequentially.
+ * It is not parallelized since the core WOT {@link Score} computation algorithm is not.
+ * But the XML of the next {@link #PARSE_AHEAD} files is parsed concurrently by {@link Parser}
+ * threads while the import thread holds the locks, so the import throughput is bounded by the
+ * database work only. Also, up to {@link #IMPORT_BATCH_SIZE} files are imported in a single
+ * transaction to share the cost of locking, Score computation and committing.<br><br>
  * 
  * Implemented as a {@link DelayedBackgroundJob} instead of just {@link BackgroundJob}: The default
  * implementation of {@link IdentityFileQueue} supports deduplication of old versions of identity
@@ -53,9 +70,35 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 	public static final long PROCESSING_DELAY_MILLISECONDS
 		= IS_UNIT_TEST ? SECONDS.toMillis(1) : MINUTES.toMillis(1);
 
+	/**
+	 * Number of files which are parsed ahead of their import. This is also the maximal number of
+	 * concurrent {@link Parser} threads.
+	 * Together with the up to {@link #IMPORT_BATCH_SIZE} parsed files which wait for their import,
+	 * this bounds the memory usage to {@link #IMPORT_BATCH_SIZE} + PARSE_AHEAD files of up to
+	 * {@link XMLTransformer#MAX_IDENTITY_XML_BYTE_SIZE} each. */
+	static final int PARSE_AHEAD
+		= Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors()));
+
+	/**
+	 * Maximal number of files which are imported with a single acquisition of the locks, a single
+	 * Score update and a single commit, see {@link XMLTransformer#importIdentities(List, long)}.
+	 * This reduces the per-file overhead when many files are queued, e.g. when bootstrapping a
+	 * new node.
+	 * Batches are not delayed to reach this size: A batch contains the files which were parsed
+	 * while the previous one was imported, so it grows when the import is slower than parsing. */
+	static final int IMPORT_BATCH_SIZE = 32;
+
+	/**
+	 * Once importing a batch has taken this long, no further files of it are imported while
+	 * holding the locks, so the UI etc. don't have to wait for too long. */
+	static final long IMPORT_BATCH_DURATION_MILLISECONDS = SECONDS.toMillis(1);
+
 	/** We consume the files of this queue when it calls our {@link #triggerExecution()}. */
 	private final IdentityFileQueue mQueue;
 
+	/** Runs the {@link Parser}s. Null if no Ticker was provided, i.e. in unit tests. */
+	private final Executor mExecutor;
+
 	/** Backend of the functions of this class which implement {@link DelayedBackgroundJob}. */
 	private final DelayedBackgroundJob mRealDelayedBackgroundJob;
 	
@@ -68,20 +111,34 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 		/** Number of files for which processing has been finished successfully. */
 		public int mProcessedFiles = 0;
 
+		/**
+		 * Number of files which were not imported because their Identity is not wanted anymore,
+		 * or because a newer or the same edition was imported already. */
+		public int mSkippedFiles = 0;
+
 		/**
 		 * Number of files for which processing failed.<br>
 		 * This does not necessarily indicate bugs: Processing fails if remote Identitys have
 		 * inserted bogus data, which they might do as they please. */
 		public int mFailedFiles = 0;
 
-		/** Total time it took to process all {@link #mProcessedFiles}. */
+		/**
+		 * Total time it took to import all {@link #mProcessedFiles}.<br>
+		 * Does not include {@link #mParsingTimeNanoseconds}. */
 		public long mProcessingTimeNanoseconds = 0;
 
+		/**
+		 * Total time the {@link Parser} threads took to parse the XML of the files.<br>
+		 * Parsing happens concurrently to the import of the previous files, so this is not
+		 * included in {@link #mProcessingTimeNanoseconds}. */
+		public long mParsingTimeNanoseconds = 0;
+
 		/**
 		 * Gets the average time it took for processing a file, in seconds. This is rather crude as
 		 * it includes all of those:<br>
-		 * - The time to acquire all locks, which could be a lot if WOT is busy.<br>
-		 * - The time to parse the XML.<br>
+		 * - The time to acquire all locks, which could be a lot if WOT is busy. It can be
+		 *   measured separately by enabling {@link LockStatistics}, see the Site
+		 *   "XMLTransformer.importIdentity" there.<br>
 		 * - The time to do Score recomputations.<br>
 		 * (There is a FIXME in {@link IdentityFileProcessor.Processor#run()} to improve this).<br>
 		 * <br>
@@ -117,12 +174,14 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 			mRealDelayedBackgroundJob = new TickerDelayedBackgroundJob(
 				new Processor(), "WOT IdentityFileProcessor", PROCESSING_DELAY_MILLISECONDS,
 				ticker);
+			mExecutor = ticker.getExecutor();
 		} else {
 			// Don't log this as error since it is used for unit tests
 			Logger.warning(this, "No Ticker provided, processing will never execute!",
 				new RuntimeException("For stack trace"));
 
 			mRealDelayedBackgroundJob = MockDelayedBackgroundJob.DEFAULT;
+			mExecutor = null;
 		}
 		
 		mQueue = queue;
@@ -169,39 +228,193 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 		mRealDelayedBackgroundJob.triggerExecution(delayMillis);
 	}
 
-	/** The actual processing thread, run by {@link IdentityFileProcessor#triggerExecution()}. */
+	/**
+	 * The actual processing thread, run by {@link IdentityFileProcessor#triggerExecution()}.
+	 * Imports the files in batches of up to {@link #IMPORT_BATCH_SIZE} in the order in which they
+	 * were polled from the queue, while up to {@link #PARSE_AHEAD} of the following ones are being
+	 * parsed by {@link Parser}s. */
 	private final class Processor implements Runnable, PrioRunnable {
 		public void run() {
 			Logger.normal(this, "run()...");
 			
+			// The files which are being parsed, in the order in which they were polled.
+			final ArrayDeque<Parser> parsers = new ArrayDeque<Parser>(PARSE_AHEAD);
+			// The parsed files which are waiting for import.
+			final ArrayList<ParsedIdentityXML> batch
+				= new ArrayList<ParsedIdentityXML>(IMPORT_BATCH_SIZE);
+			
 			// We query the IdentityFileQueue for *multiple* files until it is empty since if
 			// it does multiple calls to triggerExecution(), that will only cause one execution of
 			// run().
 			while(true) {
-				IdentityFileStream stream = null;
+				try {
+					fillBatch(parsers, batch);
+				} catch(InterruptedException e) {
+					// terminate() interrupts our thread, so we obey that. The partial batch is not
+					// imported: That would take all locks and commit during shutdown.
+					Logger.normal(this, "run(): Shutdown requested, exiting...");
+					break;
+				}
+				
+				if(batch.isEmpty())
+					break;
 				
 				try {
-					stream = mQueue.poll();
-					if(stream == null)
-						break;
-					
-					Logger.normal(this, "run(): Processing: " + stream.mURI);
+					Logger.normal(this, "run(): Importing " + batch.size() + " files...");
 
-
-					// FIXME: Improve accuracy: importIdentity() first takes a lot of locks, which
+					// FIXME: Improve accuracy: importIdentities() first takes a lot of locks, which
 					// might take some time if other daemons (CAPTCHAs, UI, SubscriptionManager)
 					// are running. Thus, it should do the measurement itself to exclude that, and
 					// return the measured value.
-					// When implementing that, also do separate measurement of XML processing time
-					// so we get an idea how slow it is (I suspect it to be rather slow).
+					// Until then, the LockStatistics of WebOfTrust show the time it waits for the
+					// locks and which code was holding them, if enabled.
 					final long startTime = System.nanoTime();
-					mXMLTransformer.importIdentity(stream.mURI, stream.mXMLInputStream);
+					final ImportResult result = mXMLTransformer.importIdentities(batch,
+						IMPORT_BATCH_DURATION_MILLISECONDS);
 					final long endTime = System.nanoTime();
 
 					synchronized(IdentityFileProcessor.this) {
-						++mStatistics.mProcessedFiles;
+						mStatistics.mProcessedFiles += result.mImportedFiles;
+						mStatistics.mSkippedFiles += result.mSkippedFiles;
+						mStatistics.mFailedFiles += result.mFailedFiles;
 						mStatistics.mProcessingTimeNanoseconds +=  endTime - startTime;
 					}
+				} catch(RuntimeException e) {
+					// WebOfTrust.beginTrustListImport() failed, which is not the fault of any of
+					// the files, so none of them is dropped or counted as failed.
+					// Retrying immediately would most likely fail again, so we stop and leave
+					// the remaining files to the IdentityFetcher: Their editions were not updated,
+					// so it will download them again.
+					Logger.error(this, "Importing identity XML failed severely, exiting run()", e);
+					break;
+				}
+				
+				if(Thread.interrupted()) {
+					// terminate() interrupts our thread, so we obey that.
+					// The remaining files are not imported. They have been removed from the queue
+					// already, but as the edition of their Identitys was not updated, the
+					// IdentityFetcher will download them again.
+					Logger.normal(this, "run(): Shutdown requested, exiting...");
+					break;
+				}
+				
+				// Processing identity files can take a long time, and thus we give other stuff
+				// a chance to execute in between processing each batch.
+				Thread.yield();
+			}
+			
+			awaitParsers(parsers);
+			Logger.normal(this, "run() finished.");
+		}
+
+		/**
+		 * Waits for the given parsers to finish and discards their results, so no {@link Parser}
+		 * is running anymore once {@link IdentityFileProcessor#waitForTermination(long)} returns.
+		 * Parsing a file is quick, it is bounded by
+		 * {@link XMLTransformer#MAX_IDENTITY_XML_BYTE_SIZE}.
+		 * Like the remaining files of the batch, the discarded files will be fetched again. */
+		private void awaitParsers(ArrayDeque<Parser> parsers) {
+			boolean interrupted = false;
+			
+			for(Parser parser : parsers) {
+				while(true) {
+					try {
+						parser.awaitResult();
+						break;
+					} catch(InterruptedException e) {
+						// Don't let another terminate() abandon the parser, but obey it below.
+						interrupted = true;
+					} catch(RuntimeException e) {
+						break; // Parser thread failed, the result is discarded anyway.
+					}
+				}
+			}
+			parsers.clear();
+			
+			if(interrupted)
+				Thread.currentThread().interrupt();
+		}
+
+		/**
+		 * Adds the parsed files to the batch until it contains {@link #IMPORT_BATCH_SIZE} files,
+		 * the queue is empty, or the next file is still being parsed. Keeps the given parsers
+		 * busy with the files which will follow.
+		 * Only waits for a parser if the batch is empty: As only {@link #PARSE_AHEAD} files are
+		 * parsed concurrently, waiting for a full batch would serialize the parsing with the
+		 * import instead of doing it meanwhile.
+		 * 
+		 * The batch may contain files which were left over by the previous import because its
+		 * {@link #IMPORT_BATCH_DURATION_MILLISECONDS} expired. */
+		private void fillBatch(ArrayDeque<Parser> parsers, ArrayList<ParsedIdentityXML> batch)
+				throws InterruptedException {
+			
+			while(true) {
+				while(parsers.size() < PARSE_AHEAD) {
+					final Parser parser = pollAndStartParser();
+					if(parser == null)
+						break;
+					parsers.add(parser);
+				}
+				
+				if(batch.size() >= IMPORT_BATCH_SIZE)
+					return;
+				
+				final Parser parser = parsers.peek();
+				if(parser == null)
+					return;
+				
+				if(!batch.isEmpty() && !parser.isFinished())
+					return;
+				
+				parsers.poll();
+				
+				try {
+					batch.add(parser.awaitResult());
+				} catch(RuntimeException e) {
+					Logger.error(this,
+					    "Parsing identity XML failed severely - edition probably could NOT be "
+					  + "marked for not being fetched again: " + parser.mURI, e);
+					
+					synchronized(IdentityFileProcessor.this) {
+						++mStatistics.mFailedFiles;
+					}
+				}
+				
+				synchronized(IdentityFileProcessor.this) {
+					mStatistics.mParsingTimeNanoseconds += parser.getParsingTimeNanoseconds();
+				}
+			}
+		}
+
+		/**
+		 * Polls the next file from the queue and starts a {@link Parser} for it.
+		 * 
+		 * The {@link IdentityFileQueue} does not support concurrent processing of multiple files,
+		 * so the XML is copied out of the file's stream and the stream is closed before parsing.
+		 * This is cheap since the XML is held in memory by the queue implementations anyway.
+		 * 
+		 * @return Null if the queue is empty. */
+		private Parser pollAndStartParser() {
+			// Loop to skip files which fail so a single broken file doesn't stop processing.
+			while(true) {
+				IdentityFileStream stream = null;
+				
+				try {
+					stream = mQueue.poll();
+					if(stream == null)
+						return null;
+					
+					Logger.normal(this, "run(): Parsing: " + stream.mURI);
+					
+					final Parser parser = new Parser(stream.mURI, readAll(stream.mXMLInputStream));
+					mExecutor.execute(parser, "WOT IdentityFileProcessor parser");
+					return parser;
+				} catch(IOException e) {
+					Logger.error(this, "Reading identity XML failed: " + stream.mURI, e);
+					
+					synchronized(IdentityFileProcessor.this) {
+						++mStatistics.mFailedFiles;
+					}
 				} catch(RuntimeException e) {
 					if(stream != null && stream.mURI != null) {
 						Logger.error(this,
@@ -217,19 +430,7 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 					if(stream != null)
 						Closer.close(stream.mXMLInputStream);
 				}
-				
-				if(Thread.interrupted()) {
-					// terminate() interrupts our thread, so we obey that.
-					Logger.normal(this, "run(): Shutdown requested, exiting...");
-					break;
-				}
-				
-				// Processing an identity file can take a long time, and thus we give other stuff
-				// a chance to execute in between processing each.
-				Thread.yield();
 			}
-			
-			Logger.normal(this, "run() finished.");
 		}
 
 		@Override public int getPriority() {
@@ -241,6 +442,85 @@ public final class IdentityFileProcessor implements DelayedBackgroundJob {
 	}
 
 
+	private static byte[] readAll(InputStream stream) throws IOException {
+		final ByteArrayOutputStream result = new ByteArrayOutputStream(64 * 1024);
+		final byte[] buffer = new byte[64 * 1024];
+		int read;
+		while((read = stream.read(buffer)) >= 0)
+			result.write(buffer, 0, read);
+		return result.toByteArray();
+	}
+
+	/**
+	 * Parses the XML of a single file using
+	 * {@link XMLTransformer#parseIdentityXML(FreenetURI, InputStream)}, run by
+	 * {@link IdentityFileProcessor#mExecutor}. Does not take any locks, so multiple instances can
+	 * run concurrently to the import of the {@link Processor}. */
+	private final class Parser implements Runnable, PrioRunnable {
+		final FreenetURI mURI;
+
+		/** Null once parsing is finished to allow it to be garbage collected early. */
+		private byte[] mXML;
+
+		/** Guarded by this. Null if parsing failed severely, i.e. by throwing. */
+		private ParsedIdentityXML mResult = null;
+
+		/** Guarded by this. */
+		private boolean mFinished = false;
+
+		/** Guarded by this. */
+		private long mParsingTimeNanoseconds = 0;
+
+		Parser(FreenetURI uri, byte[] xml) {
+			mURI = uri;
+			mXML = xml;
+		}
+
+		@Override public void run() {
+			final long startTime = System.nanoTime();
+			ParsedIdentityXML result = null;
+			try {
+				result = mXMLTransformer.parseIdentityXML(mURI, new ByteArrayInputStream(mXML));
+			} finally {
+				final long endTime = System.nanoTime();
+				synchronized(this) {
+					mXML = null;
+					mResult = result;
+					mParsingTimeNanoseconds = endTime - startTime;
+					mFinished = true;
+					notifyAll();
+				}
+			}
+		}
+
+		/**
+		 * Waits until parsing is finished.
+		 * @throws RuntimeException If {@link #run()} threw. Parse errors of the XML do not cause
+		 *     this, they are contained in the result. */
+		synchronized ParsedIdentityXML awaitResult() throws InterruptedException {
+			while(!mFinished)
+				wait();
+			
+			if(mResult == null)
+				throw new RuntimeException("Parser thread failed, see log: " + mURI);
+			
+			return mResult;
+		}
+
+		synchronized boolean isFinished() {
+			return mFinished;
+		}
+
+		synchronized long getParsingTimeNanoseconds() {
+			return mParsingTimeNanoseconds;
+		}
+
+		@Override public int getPriority() {
+			// Same as the Processor: Parsing ahead is useless if the import is starved anyway.
+			return PriorityLevel.LOW_PRIORITY.value;
+		}
+	}
+
 	/** Must be called before the WOT plugin is terminated. */
 	@Override public void terminate() {
 		mRealDelayedBackgroundJob.terminate();
@@ -154,6 +154,16 @@ public interface IdentityFileQueue {
 		/** Number of files which the queue has dropped due to internal errors. These are bugs. */
 		public int mFailedFiles = 0;
 
+		/**
+		 * Time from {@link #mStartupTimeMilliseconds} until the queue was empty for the first time
+		 * after a file had been processed, i.e. how long it took to process the backlog of a
+		 * fresh node or of a restart. -1 if this has not happened yet.<br><br>
+		 * 
+		 * Notice: Queue implementations are free to not track this number, i.e. keep it at -1.<br>
+		 * Without warranty it can be said that {@link IdentityFileDiskQueue} does track this
+		 * number, but {@link IdentityFileMemoryQueue} does not. */
+		public long mConvergenceTimeMilliseconds = -1;
+
 
 		/** Value of {@link CurrentTimeUTC#getInMillis()} when this object was created. */
 		public final long mStartupTimeMilliseconds = CurrentTimeUTC.getInMillis();
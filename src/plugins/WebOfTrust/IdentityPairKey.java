@@ -0,0 +1,48 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import plugins.WebOfTrust.Score.ScoreID;
+import plugins.WebOfTrust.Trust.TrustID;
+
+/**
+ * Computes the compact database key of {@link Trust} and {@link Score} objects, which is stored
+ * and indexed instead of their String ID.
+ *
+ * The {@link TrustID} / {@link ScoreID} is 87 characters long. An index upon it is large and each
+ * lookup needs several String comparisons, which db4o does after reading the Strings from disk.
+ * The key is a 64-bit hash of the ID, so the index entries are 8 bytes and are compared as longs.
+ * db4o can neither index byte arrays nor multiple fields together, which rules out storing the two
+ * binary routing keys of the truster / trustee instead.
+ *
+ * As different IDs can have the same key, queries must constrain the (non-indexed) String ID as
+ * well. db4o will evaluate that constraint only upon the few objects which the index returned.
+ *
+ * ATTENTION: The key is stored in the database, so the algorithm must never be changed without
+ * a database format upgrade which recomputes the keys of all existing objects. */
+final class IdentityPairKey {
+
+	/** 64-bit FNV-1a, see http://www.isthe.com/chongo/tech/comp/fnv/ */
+	private static final long FNV_OFFSET_BASIS = 0xcbf29ce484222325L;
+
+	private static final long FNV_PRIME = 0x100000001b3L;
+
+	private IdentityPairKey() {}
+
+	/**
+	 * There is no variant which hashes the two {@link Identity#getID()}s without concatenating
+	 * them: The lookups need the String ID anyway, to constrain the query upon it and as the key
+	 * of the {@link ObjectCache}.
+	 * 
+	 * @param id A {@link TrustID} or {@link ScoreID}, as returned by their toString(). */
+	static long fromID(final String id) {
+		long hash = FNV_OFFSET_BASIS;
+		for(int i = 0; i < id.length(); ++i) {
+			hash ^= id.charAt(i);
+			hash *= FNV_PRIME;
+		}
+		return hash;
+	}
+
+}
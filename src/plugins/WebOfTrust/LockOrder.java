@@ -0,0 +1,100 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import freenet.support.Logger;
+
+/**
+ * Central definition of the order in which the locks of the core of WoT must be taken to
+ * prevent deadlocks, and a debug mode which checks that code obeys it.
+ *
+ * There are two modes of access to the data of WoT:
+ * - Shared read access: Read-only code such as the UI should use {@link ReadSnapshot}s obtained
+ *   from {@link WebOfTrust#getReadSnapshot()}. They need no locks at all, so any number of
+ *   readers can proceed in parallel with one another and with a writer.
+ * - Exclusive write access: Code which modifies the database, or needs to read the newest
+ *   uncommitted state of it, must take the monitors of the {@link Lock}s it requires in the
+ *   order of the declaration of the Lock enum:
+ *   <code>
+ *   synchronized(instance of WebOfTrust) {
+ *   synchronized(instance of IntroductionPuzzleStore) {
+ *   synchronized(instance of IdentityFetcher) {
+ *   synchronized(instance of SubscriptionManager) {
+ *   synchronized(Persistent.transactionLock(instance of ObjectContainer)) {
+ *   </code>
+ *   Locks may be skipped if they aren't needed, but a Lock must never be taken while holding a
+ *   Lock which comes after it - unless it is held already, monitors are re-entrant.
+ *
+ * Debug mode:
+ * Before taking the first Lock of a write path, code should call
+ * <code>assert(mWebOfTrust.getLockOrder().mayAcquire(Lock.X));</code>. This costs nothing in
+ * production since assertions are disabled there, but when running with assertions enabled, as
+ * the unit tests do, a wrong order is reported by an {@link AssertionError} right where it
+ * happens - instead of a deadlock which only shows up under rare thread interleavings.
+ * Notice that the monitors of synchronized functions are taken before their body executes, so
+ * the check must be done by the first explicit synchronized() block within them: If a caller
+ * held a later Lock when calling the synchronized function, it will still hold it there. */
+public final class LockOrder {
+
+	/** The locks in the order in which they must be taken. */
+	public static enum Lock {
+		WEB_OF_TRUST,
+		INTRODUCTION_PUZZLE_STORE,
+		IDENTITY_FETCHER,
+		SUBSCRIPTION_MANAGER,
+		/** {@link Persistent#transactionLock(com.db4o.ext.ExtObjectContainer)} */
+		TRANSACTION;
+	}
+
+	private static final Lock[] LOCKS = Lock.values();
+
+	private final WebOfTrust mWebOfTrust;
+
+
+	LockOrder(WebOfTrust webOfTrust) {
+		mWebOfTrust = webOfTrust;
+	}
+
+	/**
+	 * @return The object upon which code must synchronize to take the given lock. Null if it does
+	 *     not exist yet, which can happen during startup. */
+	public Object getMonitor(Lock lock) {
+		switch(lock) {
+			case WEB_OF_TRUST: return mWebOfTrust;
+			case INTRODUCTION_PUZZLE_STORE: return mWebOfTrust.getIntroductionPuzzleStore();
+			case IDENTITY_FETCHER: return mWebOfTrust.getIdentityFetcher();
+			case SUBSCRIPTION_MANAGER: return mWebOfTrust.getSubscriptionManager();
+			case TRANSACTION:
+				// The transactionLock is static currently, it doesn't depend on the database.
+				return Persistent.transactionLock(mWebOfTrust.getDatabase());
+			default: throw new UnsupportedOperationException("Unknown lock: " + lock);
+		}
+	}
+
+	/**
+	 * Debug mode check, for use in assert(). See the JavaDoc of this class.
+	 *
+	 * @return False if the current thread holds a Lock which comes after the given one in the
+	 *     order, and does not hold the given one already. The violation is also logged then,
+	 *     including a stack trace. True otherwise. */
+	public boolean mayAcquire(Lock lock) {
+		final Object monitor = getMonitor(lock);
+
+		if(monitor != null && Thread.holdsLock(monitor))
+			return true;
+
+		for(int i = lock.ordinal() + 1; i < LOCKS.length; ++i) {
+			final Object laterMonitor = getMonitor(LOCKS[i]);
+
+			if(laterMonitor != null && Thread.holdsLock(laterMonitor)) {
+				Logger.error(this, "Lock order violation: Acquiring " + lock + " while holding "
+					+ LOCKS[i], new Exception("Stack trace for debugging"));
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+}
@@ -0,0 +1,373 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.MICROSECONDS;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import plugins.WebOfTrust.LockOrder.Lock;
+import plugins.WebOfTrust.ui.fcp.FCPInterface;
+import plugins.WebOfTrust.ui.web.StatisticsPage;
+
+/**
+ * Measures how long code waits for and holds the {@link Lock}s of the core of WoT, so we can tell
+ * whether a slow daemon such as the {@link IdentityFileProcessor} is working or waiting.
+ * Displayed on the {@link StatisticsPage} and available via the FCP message "GetLockStatistics"
+ * of the {@link FCPInterface}.
+ *
+ * The measurements are done by the code which takes the locks, each place in the code which does
+ * so is a {@link Site}. The pattern is:
+ * <code>
+ * Acquisition acquisition = mWebOfTrust.getLockStatistics().begin(SITE);
+ * synchronized(mWebOfTrust) {
+ * acquisition.acquired(Lock.WEB_OF_TRUST);
+ * try {
+ * synchronized(mSubscriptionManager) {
+ * acquisition.acquired(Lock.SUBSCRIPTION_MANAGER);
+ *     ...
+ * }
+ * } finally {
+ *     acquisition.released();
+ * }
+ * }
+ * </code>
+ * For each Site, this records:
+ * - a {@link Histogram} of the time waited for each Lock.
+ * - a Histogram of the time for which the Locks were held, from acquiring the first one until
+ *   released() is called.
+ * - the contending callers: When the wait for a Lock exceeds
+ *   {@link #CONTENTION_THRESHOLD_NANOSECONDS}, the Site which held the Lock when the waiting
+ *   began is counted. If the holder was not instrumented it is counted as null.
+ *
+ * Disabled by default, see {@link WebOfTrust#LOCK_STATISTICS_CONFIG_KEY}. When disabled,
+ * {@link #begin(Site)} returns a shared dummy {@link Acquisition}, so the only cost is a volatile
+ * read per Site and a field check per Lock: No allocation, no call to {@link System#nanoTime()}.
+ *
+ * Synchronization: This class is a leaf in the {@link LockOrder}, it synchronizes upon itself
+ * while the callers hold any Locks. It never takes another lock while doing so. */
+public final class LockStatistics {
+
+	/**
+	 * Waits shorter than this are not considered as contention: Taking a monitor which is not held
+	 * by another thread costs far less. */
+	public static final long CONTENTION_THRESHOLD_NANOSECONDS = MICROSECONDS.toNanos(100);
+
+	/** Returned by {@link #begin(Site)} when disabled. */
+	private static final Acquisition DISABLED = new Acquisition(null, null);
+
+	private volatile boolean mEnabled = false;
+
+	private final HashMap<Site, SiteStatistics> mStatistics = new HashMap<Site, SiteStatistics>();
+
+	/**
+	 * For each Lock, by {@link Lock#ordinal()}, the Site which currently holds it, or null if it
+	 * is not held by an instrumented Site. */
+	private final Site[] mHolders = new Site[Lock.values().length];
+
+
+	/**
+	 * A place in the code which takes Locks. Declare it as a static final constant there.
+	 * Sites are compared by identity. */
+	public static final class Site {
+		private final String mName;
+
+		/** @param name Should be "ClassName.functionName". */
+		public Site(String name) {
+			mName = name;
+		}
+
+		public String getName() {
+			return mName;
+		}
+
+		@Override public String toString() {
+			return mName;
+		}
+	}
+
+	/**
+	 * Counts durations in buckets of exponentially growing size: Bucket 0 counts durations of
+	 * less than 1 microsecond, bucket i &gt; 0 counts durations of at least 2^(i-1) and less than
+	 * 2^i microseconds. The last bucket also counts all longer durations. */
+	public static final class Histogram implements Cloneable {
+		/** The last bucket starts at 2^22 microseconds = ~4 seconds. */
+		public static final int SIZE = 24;
+
+		private long[] mBuckets = new long[SIZE];
+
+		private long mCount = 0;
+
+		private long mTotalNanoseconds = 0;
+
+
+		void add(long nanoseconds) {
+			final long microseconds = nanoseconds / 1000;
+			// For microseconds in [2^(i-1), 2^i) this is i, for 0 it is 0.
+			final int bucket = 64 - Long.numberOfLeadingZeros(microseconds);
+			++mBuckets[Math.min(bucket, SIZE - 1)];
+			++mCount;
+			mTotalNanoseconds += nanoseconds;
+		}
+
+		public long getBucket(int index) {
+			return mBuckets[index];
+		}
+
+		/**
+		 * @return The exclusive upper bound of the durations which the given bucket counts, in
+		 *     nanoseconds. {@link Long#MAX_VALUE} for the last bucket. */
+		public static long getUpperBoundNanoseconds(int index) {
+			return index < SIZE - 1 ? MICROSECONDS.toNanos(1L << index) : Long.MAX_VALUE;
+		}
+
+		public long getCount() {
+			return mCount;
+		}
+
+		public long getTotalNanoseconds() {
+			return mTotalNanoseconds;
+		}
+
+		public long getAverageNanoseconds() {
+			return mCount != 0 ? mTotalNanoseconds / mCount : 0;
+		}
+
+		@Override public Histogram clone() {
+			try {
+				final Histogram clone = (Histogram)super.clone();
+				clone.mBuckets = mBuckets.clone();
+				return clone;
+			} catch(CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+	/** The measurements of a single {@link Site}. */
+	public static final class SiteStatistics {
+		private final Site mSite;
+
+		private final Histogram mHoldTimes;
+
+		private final EnumMap<Lock, Histogram> mWaitTimes;
+
+		/** Key = holding Site, or null if it was not instrumented. Value = count. */
+		private final EnumMap<Lock, HashMap<Site, Long>> mContenders;
+
+
+		private SiteStatistics(Site site) {
+			mSite = site;
+			mHoldTimes = new Histogram();
+			mWaitTimes = new EnumMap<Lock, Histogram>(Lock.class);
+			mContenders = new EnumMap<Lock, HashMap<Site, Long>>(Lock.class);
+		}
+
+		/** Deep copy constructor. */
+		private SiteStatistics(SiteStatistics original) {
+			mSite = original.mSite;
+			mHoldTimes = original.mHoldTimes.clone();
+			mWaitTimes = new EnumMap<Lock, Histogram>(Lock.class);
+			for(Map.Entry<Lock, Histogram> entry : original.mWaitTimes.entrySet())
+				mWaitTimes.put(entry.getKey(), entry.getValue().clone());
+			mContenders = new EnumMap<Lock, HashMap<Site, Long>>(Lock.class);
+			for(Map.Entry<Lock, HashMap<Site, Long>> entry : original.mContenders.entrySet())
+				mContenders.put(entry.getKey(), new HashMap<Site, Long>(entry.getValue()));
+		}
+
+		public Site getSite() {
+			return mSite;
+		}
+
+		/** The amount of acquisitions is {@link Histogram#getCount()} of this. */
+		public Histogram getHoldTimes() {
+			return mHoldTimes;
+		}
+
+		/** @return The Locks which this Site has taken, in the {@link LockOrder}. */
+		public Set<Lock> getLocks() {
+			return Collections.unmodifiableSet(mWaitTimes.keySet());
+		}
+
+		public Histogram getWaitTimes(Lock lock) {
+			final Histogram result = mWaitTimes.get(lock);
+			return result != null ? result : new Histogram();
+		}
+
+		/**
+		 * @return The Sites which held the given Lock when this Site had to wait for it, with the
+		 *     number of times this happened. A key of null stands for code which is not
+		 *     instrumented. */
+		public Map<Site, Long> getContenders(Lock lock) {
+			final HashMap<Site, Long> result = mContenders.get(lock);
+			return result != null
+				? Collections.unmodifiableMap(result) : Collections.<Site, Long>emptyMap();
+		}
+	}
+
+	/**
+	 * The measurement of a single execution of a {@link Site}, see the JavaDoc of
+	 * {@link LockStatistics}. Must only be used by a single thread. */
+	public static final class Acquisition {
+		private final LockStatistics mStatistics;
+
+		private final Site mSite;
+
+		/** The holders of the Locks when the waiting began, see {@link LockStatistics#mHolders}. */
+		private final Site[] mHolders;
+
+		/** Time of begin() or of the previous acquired(), whichever came last. */
+		private long mLastTime;
+
+		/** Time of the first acquired(), 0 if none happened yet. */
+		private long mHoldStartTime = 0;
+
+		private final boolean[] mAcquired;
+
+
+		private Acquisition(LockStatistics statistics, Site site) {
+			mStatistics = statistics;
+			mSite = site;
+
+			if(statistics == null) { // DISABLED
+				mHolders = null;
+				mAcquired = null;
+				return;
+			}
+
+			synchronized(statistics) {
+				mHolders = statistics.mHolders.clone();
+			}
+			mAcquired = new boolean[mHolders.length];
+			mLastTime = System.nanoTime();
+		}
+
+		/**
+		 * Must be called right after entering the synchronized() block of the given Lock.
+		 * The time since begin() or the previous acquired() is counted as waiting time, so the
+		 * Locks must be taken right after one another. Don't measure Locks which are taken later
+		 * on in the code of the Site. */
+		public void acquired(Lock lock) {
+			if(mStatistics == null)
+				return;
+
+			final long time = System.nanoTime();
+			final long waitTime = time - mLastTime;
+			mLastTime = time;
+
+			if(mHoldStartTime == 0)
+				mHoldStartTime = time;
+
+			mStatistics.onAcquired(this, lock, waitTime);
+		}
+
+		/**
+		 * Must be called before leaving the synchronized() block of the first Lock, in a
+		 * finally{} block. */
+		public void released() {
+			if(mStatistics == null || mHoldStartTime == 0)
+				return;
+
+			mStatistics.onReleased(this, System.nanoTime() - mHoldStartTime);
+		}
+	}
+
+
+	/**
+	 * Starts the measurement of an execution of the given {@link Site}. Must be called right
+	 * before taking the first Lock.
+	 * See the JavaDoc of this class for how to use the returned {@link Acquisition}. */
+	public Acquisition begin(Site site) {
+		return mEnabled ? new Acquisition(this, site) : DISABLED;
+	}
+
+	private synchronized void onAcquired(Acquisition acquisition, Lock lock, long waitTime) {
+		final SiteStatistics statistics = getOrCreate(acquisition.mSite);
+		Histogram waitTimes = statistics.mWaitTimes.get(lock);
+		if(waitTimes == null) {
+			waitTimes = new Histogram();
+			statistics.mWaitTimes.put(lock, waitTimes);
+		}
+		waitTimes.add(waitTime);
+
+		final int index = lock.ordinal();
+
+		if(waitTime >= CONTENTION_THRESHOLD_NANOSECONDS) {
+			final Site holder = acquisition.mHolders[index];
+			HashMap<Site, Long> contenders = statistics.mContenders.get(lock);
+			if(contenders == null) {
+				contenders = new HashMap<Site, Long>();
+				statistics.mContenders.put(lock, contenders);
+			}
+			final Long count = contenders.get(holder);
+			contenders.put(holder, count != null ? count + 1 : 1);
+		}
+
+		// Re-entering a Lock which is held by an outer Site must not overwrite it as the holder.
+		if(mHolders[index] == null) {
+			mHolders[index] = acquisition.mSite;
+			acquisition.mAcquired[index] = true;
+		}
+	}
+
+	private synchronized void onReleased(Acquisition acquisition, long holdTime) {
+		getOrCreate(acquisition.mSite).mHoldTimes.add(holdTime);
+
+		for(int i = 0; i < mHolders.length; ++i) {
+			if(acquisition.mAcquired[i])
+				mHolders[i] = null;
+		}
+	}
+
+	private SiteStatistics getOrCreate(Site site) {
+		SiteStatistics result = mStatistics.get(site);
+		if(result == null) {
+			result = new SiteStatistics(site);
+			mStatistics.put(site, result);
+		}
+		return result;
+	}
+
+	public boolean isEnabled() {
+		return mEnabled;
+	}
+
+	/**
+	 * Changes are effective for {@link #begin(Site)} calls after this, executions of Sites which
+	 * have begun already are finished in the previous mode. */
+	public void setEnabled(boolean enabled) {
+		mEnabled = enabled;
+	}
+
+	/** @return Deep copies of the measurements of all Sites, sorted by name. */
+	public synchronized List<SiteStatistics> getStatistics() {
+		final ArrayList<SiteStatistics> result
+			= new ArrayList<SiteStatistics>(mStatistics.size());
+
+		for(SiteStatistics statistics : mStatistics.values())
+			result.add(new SiteStatistics(statistics));
+
+		Collections.sort(result, new Comparator<SiteStatistics>() {
+			@Override public int compare(SiteStatistics a, SiteStatistics b) {
+				return a.mSite.getName().compareTo(b.mSite.getName());
+			}
+		});
+
+		return result;
+	}
+
+	/** Discards all measurements. */
+	public synchronized void clear() {
+		mStatistics.clear();
+		// Don't clear mHolders: Executions which are in progress will release their Locks.
+	}
+
+}
@@ -0,0 +1,303 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.Arrays.fill;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes the trust trees of up to {@link #MAX_SOURCES} {@link OwnIdentity}s with a single
+ * pass over the {@link TrustGraph}, as an alternative to executing one
+ * {@link TrustTreeComputation} per OwnIdentity. The results are the same, they can be obtained
+ * as TrustTreeComputation objects using {@link #getTrees()}.
+ *
+ * Nodes which host many OwnIdentitys have heavily overlapping trust trees: Most of them trust
+ * the same seed identities, so each TrustTreeComputation would walk mostly the same Trusts.
+ * Instead, the breadth first search of the ranks is done for all trees at once: Each Identity
+ * has a bitset in a long of the trees in which it has received a finite rank, and of the trees
+ * in which it is to be processed at the current rank. So each Trust is walked once per rank at
+ * which its truster is reached, for all trees at once, instead of once per tree.
+ * Each received Trust is also only loaded once for computing the Score values of all trees.
+ *
+ * The memory usage is the same as the one of the according number of TrustTreeComputations.
+ * The computation itself is single threaded, callers may execute multiple instances in parallel
+ * upon a {@link TrustGraph#snapshot()}, see {@link WebOfTrust#computeTrustTrees(TrustGraph,
+ * List)}.
+ *
+ * See {@link TrustTreeComputation#computeRanks()} for an explanation of the rank semantics which
+ * this class must match. */
+final class MultiSourceTrustTreeComputation extends RecursiveAction {
+
+	/** Number of bits in the bitset of each Identity. */
+	static final int MAX_SOURCES = Long.SIZE;
+
+	private static final long serialVersionUID = 1L;
+
+	private final TrustGraph mGraph;
+
+	/** {@link TrustGraph} indices of the treeOwners, may be {@link TrustGraph#NONE}.
+	 *  Index = number of the source, which is the bit of it in the bitsets. */
+	private final int[] mTreeOwnerIndices;
+
+	/** Ranks of the treeOwners in their own trust trees, or -1 if they have none. */
+	private final int[] mTreeOwnerRanks;
+
+	/** Index = number of the source; Value = results as in TrustTreeComputation. */
+	private int[][] mRanks = null;
+
+	/** @see #mRanks */
+	private int[][] mCapacities = null;
+
+	/** @see #mRanks */
+	private int[][] mScores = null;
+
+
+	/**
+	 * @param treeOwnerIndices {@link TrustGraph} indices of the treeOwners, may be
+	 *     {@link TrustGraph#NONE}. At most {@link #MAX_SOURCES}.
+	 * @param treeOwnerRanks Ranks of the treeOwners in their own trust trees, or -1 if they have
+	 *     none. */
+	MultiSourceTrustTreeComputation(TrustGraph graph, int[] treeOwnerIndices,
+			int[] treeOwnerRanks) {
+
+		assert(treeOwnerIndices.length <= MAX_SOURCES);
+		assert(treeOwnerIndices.length == treeOwnerRanks.length);
+
+		mGraph = graph;
+		mTreeOwnerIndices = treeOwnerIndices;
+		mTreeOwnerRanks = treeOwnerRanks;
+	}
+
+	@Override protected void compute() {
+		final int sourceCount = mTreeOwnerIndices.length;
+		final int identityCount = mGraph.getIdentityCount();
+		mRanks = new int[sourceCount][identityCount];
+		mCapacities = new int[sourceCount][identityCount];
+		mScores = new int[sourceCount][identityCount];
+
+		for(int[] ranks : mRanks)
+			fill(ranks, -1);
+
+		computeRanks();
+		computeCapacities();
+		computeScores();
+	}
+
+	private void computeRanks() {
+		final TrustGraph graph = mGraph;
+		final int sourceCount = mTreeOwnerIndices.length;
+		final int identityCount = graph.getIdentityCount();
+
+		// Bit s = The Identity has a final rank in the tree of source s. All finite ranks are
+		// final, and the Integer.MAX_VALUE rank of a treeOwner.
+		final long[] ranked = new long[identityCount];
+		// Bit s = The Identity has a rank of Integer.MAX_VALUE in the tree of source s.
+		final long[] distrusted = new long[identityCount];
+		// Bit s = The Identity has a rank of Integer.MAX_VALUE which was given by source s itself.
+		// It must not be replaced by a finite rank: The decision of the OwnIdentity overrides all
+		// others.
+		final long[] distrustedBySource = new long[identityCount];
+		// Bit s = The Identity is the treeOwner of source s.
+		final long[] treeOwnerOf = new long[identityCount];
+		// Bit s = The Identity has received its finite rank in the tree of source s at the
+		// current rank and thus must hand it down to its trustees.
+		long[] current = new long[identityCount];
+		long[] next = new long[identityCount];
+
+		// The Identitys which have any bit set in current / next. Each Identity is in each list
+		// at most once, so IdentityCount slots suffice.
+		int[] currentQueue = new int[identityCount];
+		int[] nextQueue = new int[identityCount];
+		int currentSize = 0;
+		int nextSize = 0;
+
+		// Trees whose treeOwner has no rank, or is not in the graph, have no other Identitys.
+		// Neither have the ones whose treeOwner has a rank of Integer.MAX_VALUE, which cannot be
+		// handed down.
+		int minRank = Integer.MAX_VALUE;
+		int maxRank = -1;
+		for(int s = 0; s < sourceCount; ++s) {
+			if(mTreeOwnerIndices[s] == TrustGraph.NONE || mTreeOwnerRanks[s] == -1)
+				continue;
+
+			treeOwnerOf[mTreeOwnerIndices[s]] |= 1L << s;
+
+			if(mTreeOwnerRanks[s] == Integer.MAX_VALUE) {
+				mRanks[s][mTreeOwnerIndices[s]] = Integer.MAX_VALUE;
+				ranked[mTreeOwnerIndices[s]] |= 1L << s;
+				continue;
+			}
+
+			minRank = Math.min(minRank, mTreeOwnerRanks[s]);
+			maxRank = Math.max(maxRank, mTreeOwnerRanks[s]);
+		}
+
+		for(int rank = minRank; rank <= maxRank || currentSize > 0; ++rank) {
+			// Normally all treeOwners have a rank of 0, but the rank is a parameter of the
+			// algorithm, so we must support others: Each treeOwner enters at its own rank.
+			for(int s = 0; s < sourceCount && rank <= maxRank; ++s) {
+				final int treeOwner = mTreeOwnerIndices[s];
+				if(treeOwner == TrustGraph.NONE || mTreeOwnerRanks[s] != rank)
+					continue;
+
+				assert((ranked[treeOwner] & (1L << s)) == 0);
+
+				final long bit = 1L << s;
+				ranked[treeOwner] |= bit;
+				mRanks[s][treeOwner] = rank;
+				if(current[treeOwner] == 0)
+					currentQueue[currentSize++] = treeOwner;
+				current[treeOwner] |= bit;
+			}
+
+			final int trusteeRank = rank + 1;
+
+			for(int i = 0; i < currentSize; ++i) {
+				final int truster = currentQueue[i];
+				final long trusterBits = current[truster];
+				current[truster] = 0;
+
+				for(int e = graph.getGivenTrustsBegin(truster);
+						e < graph.getGivenTrustsEnd(truster); ++e) {
+
+					final int trustee = graph.getTrustee(e);
+					// Finite ranks are final: Ranks are processed in ascending order.
+					final long newBits = trusterBits & ~ranked[trustee];
+					if(newBits == 0)
+						continue;
+
+					if(graph.getGivenTrustValue(e) > 0) {
+						final long rankedBits = newBits & ~distrustedBySource[trustee];
+						if(rankedBits == 0)
+							continue;
+
+						ranked[trustee] |= rankedBits;
+						distrusted[trustee] &= ~rankedBits;
+						if(next[trustee] == 0)
+							nextQueue[nextSize++] = trustee;
+						next[trustee] |= rankedBits;
+
+						for(long bits = rankedBits; bits != 0; bits &= bits - 1)
+							mRanks[Long.numberOfTrailingZeros(bits)][trustee] = trusteeRank;
+					} else {
+						distrusted[trustee] |= newBits;
+						// The treeOwner of source s is only processed for s at its own rank,
+						// before any other Identity of the tree, as in TrustTreeComputation.
+						distrustedBySource[trustee] |= newBits & treeOwnerOf[truster];
+					}
+				}
+			}
+
+			final int[] swapQueue = currentQueue;
+			currentQueue = nextQueue;
+			nextQueue = swapQueue;
+			currentSize = nextSize;
+			nextSize = 0;
+
+			final long[] swap = current;
+			current = next;
+			next = swap;
+		}
+
+		for(int identity = 0; identity < identityCount; ++identity) {
+			for(long bits = distrusted[identity]; bits != 0; bits &= bits - 1)
+				mRanks[Long.numberOfTrailingZeros(bits)][identity] = Integer.MAX_VALUE;
+		}
+	}
+
+	/** Same as {@link TrustTreeComputation#computeCapacities()}, for each tree. */
+	private void computeCapacities() {
+		final TrustGraph graph = mGraph;
+
+		for(int s = 0; s < mTreeOwnerIndices.length; ++s) {
+			final int[] ranks = mRanks[s];
+			final int[] capacities = mCapacities[s];
+
+			for(int identity = 0; identity < ranks.length; ++identity) {
+				final int rank = ranks[identity];
+
+				if(rank != -1 && rank != Integer.MAX_VALUE) {
+					capacities[identity] = WebOfTrust.computeCapacity(graph,
+						mTreeOwnerIndices[s], identity, rank);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Same as {@link TrustTreeComputation#computeScores()}, for each tree, but the received Trusts
+	 * of each target are loaded only once for all trees. */
+	private void computeScores() {
+		final TrustGraph graph = mGraph;
+		final int sourceCount = mTreeOwnerIndices.length;
+		final int identityCount = graph.getIdentityCount();
+
+		// The trees in which the current target needs the sum of its received Trusts.
+		final int[] summedSources = new int[sourceCount];
+
+		for(int target = 0; target < identityCount; ++target) {
+			int summedSourceCount = 0;
+
+			for(int s = 0; s < sourceCount; ++s) {
+				final int targetRank = mRanks[s][target];
+
+				if(targetRank == -1)
+					continue;
+
+				// The treeOwner trusts himself.
+				if(targetRank == 0) {
+					mScores[s][target] = Integer.MAX_VALUE;
+					continue;
+				}
+
+				// If the treeOwner has assigned a trust value to the target, it always overrides
+				// the "remote" score.
+				final int treeOwnerTrust = graph.getValue(mTreeOwnerIndices[s], target);
+
+				if(treeOwnerTrust != TrustGraph.NONE) {
+					mScores[s][target] = treeOwnerTrust;
+					continue;
+				}
+
+				summedSources[summedSourceCount++] = s;
+			}
+
+			if(summedSourceCount == 0)
+				continue;
+
+			for(int e = graph.getReceivedTrustsBegin(target);
+					e < graph.getReceivedTrustsEnd(target); ++e) {
+
+				final int truster = graph.getTruster(e);
+				final int value = graph.getReceivedTrustValue(e);
+
+				for(int i = 0; i < summedSourceCount; ++i) {
+					final int s = summedSources[i];
+					mScores[s][target] += (value * mCapacities[s][truster]) / 100;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return One {@link TrustTreeComputation} per treeOwner, in the order of the constructor
+	 *     parameters, which contain the results. They must not be executed. */
+	List<TrustTreeComputation> getTrees() {
+		assert(isDone());
+
+		final ArrayList<TrustTreeComputation> result
+			= new ArrayList<TrustTreeComputation>(mTreeOwnerIndices.length);
+
+		for(int s = 0; s < mTreeOwnerIndices.length; ++s) {
+			result.add(new TrustTreeComputation(mGraph, mTreeOwnerIndices[s], mTreeOwnerRanks[s],
+				mRanks[s], mCapacities[s], mScores[s]));
+		}
+
+		return result;
+	}
+
+}
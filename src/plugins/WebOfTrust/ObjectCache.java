@@ -0,0 +1,176 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import com.db4o.ext.ExtObjectContainer;
+
+/**
+ * LRU cache of the {@link Persistent} objects of a single class, keyed by their
+ * {@link Persistent#getID()}. Used by {@link WebOfTrust#getIdentityByID(String)},
+ * {@link WebOfTrust#getTrust(String)} and {@link WebOfTrust#getScore(String)} to avoid database
+ * queries, which are a lot slower than a hash table lookup.
+ *
+ * The cached objects are the same Java objects which db4o would return for a query: db4o keeps
+ * a single object for each database entry as long as it is referenced. Thus the cache stays
+ * valid as long as the objects are neither deleted nor rolled back:
+ * - {@link Persistent#checkedDelete(Object)} removes the object from all caches of the database.
+ *   {@link Persistent#checkedStore(Object)} does so as well if the cached object with the same ID
+ *   is a different one, i.e. a clone.
+ * - {@link Persistent#checkedRollback(ExtObjectContainer, Object, Throwable)} clears all caches
+ *   of the database. This must happen before it runs the garbage collector: A rollback does not
+ *   revert the in-memory objects, it only works because db4o re-reads them from disk once they
+ *   are garbage collected. References held by the cache would prevent that.
+ * The caches register for this at {@link Persistent#registerObjectCache(ObjectCache)}.
+ *
+ * Negative results are not cached, so creating an object doesn't need to update the cache.
+ *
+ * The lookups only check for duplicates, e.g. throw a DuplicateIdentityException, when they
+ * query the database: An object is only put into the cache if the query returned exactly one
+ * object with its ID. A duplicate which is stored later on is a different object with the same
+ * ID, so {@link Persistent#checkedStore(Object)} removes the cached object and the next lookup
+ * queries the database again. Thus only duplicates which are stored without checkedStore(), or
+ * by a different database instance, are not detected while the original is cached.
+ *
+ * Synchronization: The functions are synchronized on the cache so invalidation by threads which
+ * don't hold the {@link WebOfTrust} lock is safe. Getting and putting objects must be done while
+ * holding the WebOfTrust lock, as the lookups which use the cache do anyway: Otherwise an object
+ * could be put after another thread deleted it.
+ *
+ * @param <T> The class of the cached objects. Objects of subclasses are cached as well. */
+public final class ObjectCache<T extends Persistent> {
+
+	/**
+	 * Name of the int {@link Configuration} parameter which overrides {@link #DEFAULT_SIZE}.
+	 * Only read at startup. 0 disables the caches. */
+	public static final String SIZE_CONFIG_KEY = "WebOfTrust.ObjectCacheSize";
+
+	/** Default maximal amount of objects in each cache. */
+	public static final int DEFAULT_SIZE = 10000;
+
+	private final ExtObjectContainer mDB;
+
+	private final Class<T> mType;
+
+	private final int mMaxSize;
+
+	/** Access-ordered, so the eldest entry is the least recently used one. */
+	private final LinkedHashMap<String, T> mObjects;
+
+	private long mHits = 0;
+
+	private long mMisses = 0;
+
+	private long mInvalidations = 0;
+
+
+	ObjectCache(final ExtObjectContainer db, final Class<T> type, final int maxSize) {
+		if(maxSize < 0)
+			throw new IllegalArgumentException("Invalid size: " + maxSize);
+
+		mDB = db;
+		mType = type;
+		mMaxSize = maxSize;
+		mObjects = new LinkedHashMap<String, T>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override protected boolean removeEldestEntry(Map.Entry<String, T> eldest) {
+				return size() > mMaxSize;
+			}
+		};
+	}
+
+	/** @return The database of whose objects the cache consists. */
+	ExtObjectContainer getDatabase() {
+		return mDB;
+	}
+
+	/** @return The cached object with the given ID, or null if it is not cached. */
+	synchronized T get(final String id) {
+		final T result = mObjects.get(id);
+
+		if(result != null)
+			++mHits;
+		else
+			++mMisses;
+
+		return result;
+	}
+
+	/**
+	 * Caches the given object, which must have been returned by a database query in the current
+	 * transaction. */
+	synchronized void put(final T object) {
+		if(mMaxSize == 0)
+			return;
+
+		assert(mDB.isStored(object));
+		mObjects.put(object.getID(), object);
+	}
+
+	/**
+	 * Called for every object which is stored. Removes the cached object with the same ID unless
+	 * it is the stored object itself: A different object would be a clone, which the database
+	 * doesn't return for queries, or a duplicate, which the next lookup must detect. */
+	synchronized void invalidateIfDifferent(final Object object) {
+		if(!mType.isInstance(object))
+			return;
+
+		final String id = ((Persistent)object).getID();
+		final T cached = mObjects.get(id);
+		if(cached != null && cached != object) {
+			mObjects.remove(id);
+			++mInvalidations;
+		}
+	}
+
+	/** Called for every object which is deleted. Removes it if it is cached. */
+	synchronized void invalidate(final Object object) {
+		if(!mType.isInstance(object))
+			return;
+
+		if(mObjects.remove(((Persistent)object).getID()) != null)
+			++mInvalidations;
+	}
+
+	/** Removes all objects from the cache. Called upon transaction rollback. */
+	synchronized void clear() {
+		mInvalidations += mObjects.size();
+		mObjects.clear();
+	}
+
+	/** @return The class of the cached objects. */
+	public Class<T> getType() {
+		return mType;
+	}
+
+	/** @return The amount of objects in the cache. */
+	public synchronized int getSize() {
+		return mObjects.size();
+	}
+
+	/** @return The configured maximal amount of objects in the cache. */
+	public int getMaxSize() {
+		return mMaxSize;
+	}
+
+	/** @return The amount of calls to {@link #get(String)} which returned an object. */
+	public synchronized long getHits() {
+		return mHits;
+	}
+
+	/** @return The amount of calls to {@link #get(String)} which returned null. */
+	public synchronized long getMisses() {
+		return mMisses;
+	}
+
+	/** @return The amount of objects which were removed because they were stored, deleted, or
+	 *      rolled back. Objects which were removed due to the size limit are not included. */
+	public synchronized long getInvalidations() {
+		return mInvalidations;
+	}
+
+}
@@ -0,0 +1,331 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static plugins.WebOfTrust.DirtyPageTracker.PAGE_SIZE;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.BitSet;
+import java.util.Date;
+
+import plugins.WebOfTrust.util.StopWatch;
+
+import com.db4o.ext.ExtObjectContainer;
+
+import freenet.support.CurrentTimeUTC;
+import freenet.support.Logger;
+
+/**
+ * Backs up the database file while WoT is running, as opposed to
+ * {@link ExtObjectContainer#backup(String)} which blocks all database access for the whole copy.
+ *
+ * The file is copied in chunks of {@link #CHUNK_PAGES} pages. Only db4o's internal lock is held
+ * while a chunk is read, so trust list imports and the UI continue between the chunks. Pages
+ * which are written meanwhile are recorded by the {@link DirtyPageTracker} and copied again by the
+ * next pass over the file. Once few enough pages remain dirty, the final pass copies them while
+ * holding the {@link Persistent#transactionLock(ExtObjectContainer)}, so no transaction can commit
+ * during it. The backup then is the state of the database at the end of the backup, as if WoT
+ * had been shut down at that moment.
+ * The pause of commits is bounded by {@link #MAX_FINAL_PAGES}, unless the database is modified so
+ * quickly that the number of dirty pages does not fall below it within {@link #MAX_PASSES}.
+ *
+ * Consecutive backups during the same run of WoT only copy the pages which were written since
+ * the previous backup. The first backup after startup reads the whole database, but only writes
+ * the pages which differ from the existing backup file.
+ *
+ * The backup is written to a working file with the suffix ".incomplete", which starts as a copy
+ * of the previous backup. Once it is complete and synced to disk, it atomically replaces the
+ * backup file. So the file with the final name always is a complete backup, and the previous
+ * backup stays valid while a backup is running and if it fails. */
+public final class OnlineBackup {
+
+	/** Number of pages which are read per acquisition of the lock. */
+	static final int CHUNK_PAGES = 16;
+
+	/** Maximal number of pages for the final pass, during which no commits can happen. */
+	static final int MAX_FINAL_PAGES = 256;
+
+	/** Maximal number of passes, the last one is the final pass regardless of
+	 *  {@link #MAX_FINAL_PAGES}. */
+	static final int MAX_PASSES = 8;
+
+	private final ExtObjectContainer mDB;
+
+	private final DirtyPageTracker mFile;
+
+	private final File mBackupFile;
+
+	private final File mIncompleteFile;
+
+	/**
+	 * True if the {@link #mBackupFile} was written by the previous call to {@link #backup()}, so
+	 * the next one only has to copy the pages which the {@link DirtyPageTracker} reports as
+	 * dirty into a copy of it. */
+	private boolean mBackupIsCurrent = false;
+
+	/** Guarded by itself, {@link #backup()} holds the monitor of this for a long time. */
+	private final Statistics mStatistics = new Statistics();
+
+	/**
+	 * For unit tests only: Run by {@link #backup()} at the end of the final pass while it still
+	 * holds the {@link Persistent#transactionLock(ExtObjectContainer)}, i.e. while the database
+	 * is in the state of the backup. Null if not used. */
+	private volatile Runnable mFinalPassCallback = null;
+
+
+	public static final class Statistics implements Cloneable {
+		/** True while {@link OnlineBackup#backup()} is running. */
+		public boolean mRunning = false;
+
+		/** Number of the current pass over the file, starting at 1. */
+		public int mPass = 0;
+
+		/** Number of pages which the current pass has read. */
+		public int mPassPagesDone = 0;
+
+		/** Number of pages which the current pass has to read. */
+		public int mPassPages = 0;
+
+		/** End of the last successful backup. Null if there was none since startup. */
+		public Date mLastBackupDate = null;
+
+		/** Duration of the last successful backup. */
+		public long mLastDurationMilliseconds = 0;
+
+		/** Number of pages which the last successful backup has written to the backup file. */
+		public int mLastWrittenPages = 0;
+
+		/** Number of pages of the database at the end of the last successful backup. */
+		public int mLastTotalPages = 0;
+
+		/** Time for which the final pass of the last successful backup blocked commits. */
+		public long mLastPauseNanoseconds = 0;
+
+		/** Number of backups which failed since startup. */
+		public int mFailedBackups = 0;
+
+		@Override public Statistics clone() {
+			try {
+				return (Statistics)super.clone();
+			} catch (CloneNotSupportedException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+
+	/**
+	 * @param file The {@link DirtyPageTracker#getOpenedFile()} of the given database.
+	 * @param backupFile Is replaced by each successful {@link #backup()}. */
+	OnlineBackup(ExtObjectContainer db, DirtyPageTracker file, File backupFile) {
+		mDB = db;
+		mFile = file;
+		mBackupFile = backupFile;
+		mIncompleteFile = new File(backupFile.getAbsolutePath() + ".incomplete");
+	}
+
+	public File getBackupFile() {
+		return mBackupFile;
+	}
+
+	/**
+	 * Copies the database to the backup file, see the JavaDoc of this class.
+	 *
+	 * Must not be called while holding any locks of WoT.
+	 *
+	 * @throws IOException If accessing the backup file fails. The previous backup is kept then,
+	 *     and the working file with the suffix ".incomplete" is completed by the next backup.
+	 * @throws InterruptedException If the thread was interrupted. Also keeps the previous
+	 *     backup. */
+	public synchronized void backup() throws IOException, InterruptedException {
+		Logger.normal(this, "Backing up database to " + mBackupFile.getAbsolutePath() + " ...");
+		final StopWatch time = new StopWatch();
+
+		if(mIncompleteFile.exists()) {
+			// Left over by a failed backup, we don't know which of its pages are current.
+			mBackupIsCurrent = false;
+		} else if(mBackupFile.exists()) {
+			// Only the changed pages are written, so the previous backup is the base.
+			Files.copy(mBackupFile.toPath(), mIncompleteFile.toPath());
+		}
+
+		synchronized(mStatistics) {
+			mStatistics.mRunning = true;
+		}
+
+		boolean success = false;
+		final RandomAccessFile backup = new RandomAccessFile(mIncompleteFile, "rw");
+		try {
+			// The pages which are written from now on are copied by the next pass.
+			final BitSet dirtyPages = mFile.takeDirtyPages();
+			BitSet pages;
+			boolean compare;
+
+			if(mBackupIsCurrent) {
+				pages = dirtyPages;
+				compare = false;
+			} else {
+				// Unknown which pages differ, compare them all to not write unchanged ones.
+				pages = new BitSet();
+				synchronized(mDB.lock()) {
+					pages.set(0, mFile.getPageCount());
+				}
+				compare = true;
+			}
+			mBackupIsCurrent = false;
+
+			int writtenPages = 0;
+			long pauseNanoseconds;
+			int totalPages;
+
+			for(int pass = 1; ; ++pass) {
+				if(pages.cardinality() > MAX_FINAL_PAGES && pass < MAX_PASSES) {
+					writtenPages += copyPages(pages, backup, compare, pass);
+					pages = mFile.takeDirtyPages();
+					compare = false; // They are known to be dirty
+					continue;
+				}
+
+				synchronized(Persistent.transactionLock(mDB)) {
+					final StopWatch pause = new StopWatch();
+					// Include the changes of deferred commits: They have been acknowledged.
+					Persistent.flushDeferredCommits(mDB, this);
+					pages.or(mFile.takeDirtyPages());
+					writtenPages += copyPages(pages, backup, compare, pass);
+
+					synchronized(mDB.lock()) {
+						totalPages = mFile.getPageCount();
+						backup.setLength(mFile.getLength());
+					}
+					pause.stop();
+					pauseNanoseconds = pause.getNanos();
+					
+					final Runnable callback = mFinalPassCallback;
+					if(callback != null)
+						callback.run();
+				}
+				break;
+			}
+
+			backup.getFD().sync();
+			success = true;
+
+			synchronized(mStatistics) {
+				mStatistics.mLastBackupDate = CurrentTimeUTC.get();
+				mStatistics.mLastDurationMilliseconds = time.getNanos() / (1000 * 1000);
+				mStatistics.mLastWrittenPages = writtenPages;
+				mStatistics.mLastTotalPages = totalPages;
+				mStatistics.mLastPauseNanoseconds = pauseNanoseconds;
+			}
+		} finally {
+			backup.close();
+
+			synchronized(mStatistics) {
+				mStatistics.mRunning = false;
+				mStatistics.mPass = 0;
+				if(!success)
+					++mStatistics.mFailedBackups;
+			}
+		}
+
+		Files.move(mIncompleteFile.toPath(), mBackupFile.toPath(), REPLACE_EXISTING, ATOMIC_MOVE);
+
+		mBackupIsCurrent = true;
+		Logger.normal(this, "Backing up database finished: " + getStatistics().mLastWrittenPages
+			+ " changed pages of " + PAGE_SIZE + " bytes, took " + time);
+	}
+
+	/**
+	 * Reads the given pages in chunks of {@link #CHUNK_PAGES} pages while holding the
+	 * {@link ExtObjectContainer#lock()} of the database, and writes them to the backup after
+	 * releasing it.
+	 *
+	 * @param compare If true, pages which are equal in the backup are not written.
+	 * @return The number of pages which were written. */
+	private int copyPages(BitSet pages, RandomAccessFile backup, boolean compare, int pass)
+			throws IOException, InterruptedException {
+
+		synchronized(mStatistics) {
+			mStatistics.mPass = pass;
+			mStatistics.mPassPagesDone = 0;
+			mStatistics.mPassPages = pages.cardinality();
+		}
+
+		final byte[][] chunk = new byte[CHUNK_PAGES][PAGE_SIZE];
+		final int[] chunkPages = new int[CHUNK_PAGES];
+		final int[] chunkLengths = new int[CHUNK_PAGES];
+		final byte[] existing = compare ? new byte[PAGE_SIZE] : null;
+		int writtenPages = 0;
+
+		for(int page = pages.nextSetBit(0); page >= 0; ) {
+			if(Thread.interrupted())
+				throw new InterruptedException();
+
+			int count = 0;
+			synchronized(mDB.lock()) {
+				for(; page >= 0 && count < CHUNK_PAGES; page = pages.nextSetBit(page + 1)) {
+					chunkPages[count] = page;
+					chunkLengths[count] = mFile.readPage(page, chunk[count]);
+					++count;
+				}
+			}
+
+			for(int i = 0; i < count; ++i) {
+				final long position = (long)chunkPages[i] * PAGE_SIZE;
+				final int length = chunkLengths[i];
+
+				if(length == 0) // Beyond the end of the database file
+					continue;
+
+				if(compare && isEqual(backup, position, chunk[i], length, existing))
+					continue;
+
+				backup.seek(position);
+				backup.write(chunk[i], 0, length);
+				++writtenPages;
+			}
+
+			synchronized(mStatistics) {
+				mStatistics.mPassPagesDone += count;
+			}
+		}
+
+		return writtenPages;
+	}
+
+	/** @return True if the given data is stored at the given position of the backup. */
+	private static boolean isEqual(RandomAccessFile backup, long position, byte[] data, int length,
+			byte[] buffer) throws IOException {
+
+		if(position + length > backup.length())
+			return false;
+
+		backup.seek(position);
+		backup.readFully(buffer, 0, length);
+
+		for(int i = 0; i < length; ++i) {
+			if(buffer[i] != data[i])
+				return false;
+		}
+
+		return true;
+	}
+
+	/** For unit tests only, see {@link #mFinalPassCallback}. */
+	void setFinalPassCallback(Runnable callback) {
+		mFinalPassCallback = callback;
+	}
+
+	public Statistics getStatistics() {
+		synchronized(mStatistics) {
+			return mStatistics.clone();
+		}
+	}
+
+}
@@ -43,6 +43,12 @@ public final class OwnIdentity extends Identity implements Cloneable, Serializab
 
 	protected Date mLastInsertDate;
 	
+	/**
+	 * True if the {@link Score}s of the trust tree of this OwnIdentity are not maintained, see
+	 * {@link WebOfTrust#setTrustTreeDormant(String, boolean)}.
+	 * False for OwnIdentity objects of databases which were created before this was added. */
+	protected boolean mTrustTreeDormant = false;
+	
 	
 	/**
 	 * Creates a new OwnIdentity with the given parameters.
@@ -281,6 +287,20 @@ public final class OwnIdentity extends Identity implements Cloneable, Serializab
 		// checkedDelete(mLastInsertDate); /* Not stored because db4o considers it as a primitive */
 		mLastInsertDate = CurrentTimeUTC.get();
 	}
+	
+	/** @see WebOfTrust#setTrustTreeDormant(String, boolean) */
+	public final boolean isTrustTreeDormant() {
+		checkedActivate(1); // boolean is a db4o primitive type so 1 is enough
+		return mTrustTreeDormant;
+	}
+	
+	/**
+	 * Must only be called by {@link WebOfTrust#setTrustTreeDormant(String, boolean)}, which
+	 * also updates the {@link Score}s. */
+	final void setTrustTreeDormant(boolean dormant) {
+		checkedActivate(1); // boolean is a db4o primitive type so 1 is enough
+		mTrustTreeDormant = dormant;
+	}
 
 
 	/**
@@ -340,12 +360,14 @@ public final class OwnIdentity extends Identity implements Cloneable, Serializab
 			clone.setCreationDate(getCreationDate());
 			clone.mCurrentEditionFetchState = getCurrentEditionFetchState();
 			clone.mLastInsertDate = (Date)mLastInsertDate.clone();	// Clone it because date is mutable
+			clone.mTrustTreeDormant = isTrustTreeDormant();
 			clone.mLatestEditionHint = getLatestEditionHint(); // Don't use the setter since it won't lower the current edition hint.
 			clone.setContexts(getContexts());
 			clone.setProperties(getProperties());
             // Clone it because date is mutable. Set it *after* calling all setters since they would
             // update it to the current time otherwise.
             clone.mLastChangedDate = (Date)mLastChangedDate.clone();
+			clone.mLastFetchedDate = (Date)mLastFetchedDate.clone();
             
 			return clone;
 		} catch(InvalidParameterException e) {
@@ -4,6 +4,7 @@
 package plugins.WebOfTrust;
 
 import static java.lang.System.identityHashCode;
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
@@ -15,11 +16,16 @@ import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
 
 import com.db4o.ObjectSet;
 import com.db4o.ext.ExtObjectContainer;
@@ -80,6 +86,50 @@ public abstract class Persistent implements Serializable {
 	 * Since we only support one open database at a moment there is only one.
 	 */
 	private static transient final Object mTransactionLock = new Object();
+
+	/**
+	 * Incremented by {@link #checkedCommit(ExtObjectContainer, Object)}.
+	 * Allows in-memory mirrors of database contents such as {@link TrustGraph} to detect whether
+	 * their modifications have been committed, see {@link #mRollbackCount}. */
+	private static transient volatile long mCommitCount = 0;
+
+	/**
+	 * Incremented by {@link #checkedRollback(ExtObjectContainer, Object, Throwable, LogLevel)}.
+	 * Allows in-memory mirrors of database contents such as {@link TrustGraph} to detect whether
+	 * their modifications have been rolled back and thus must be discarded. */
+	private static transient volatile long mRollbackCount = 0;
+
+	/**
+	 * Maximal amount of calls to {@link #checkedCommitDeferrable(ExtObjectContainer, Object)}
+	 * which are coalesced into a single physical commit. 1 disables group commit.
+	 * @see #configureGroupCommit(int, long, DelayedBackgroundJob) */
+	private static transient int mGroupCommitBatchSize = 1;
+
+	/**
+	 * Maximal time in milliseconds for which the physical commit of a call to
+	 * {@link #checkedCommitDeferrable(ExtObjectContainer, Object)} may be delayed.
+	 * @see #configureGroupCommit(int, long, DelayedBackgroundJob) */
+	private static transient long mGroupCommitMaxLatency = 0;
+
+	/**
+	 * Calls {@link #flushDeferredCommits(ExtObjectContainer, Object)} once
+	 * {@link #mGroupCommitMaxLatency} has expired. If null, group commit is disabled.
+	 * @see #configureGroupCommit(int, long, DelayedBackgroundJob) */
+	private static transient DelayedBackgroundJob mGroupCommitFlusher = null;
+
+	/**
+	 * Amount of calls to {@link #checkedCommitDeferrable(ExtObjectContainer, Object)} which were
+	 * not followed by a physical commit yet. Protected by {@link #mTransactionLock}. */
+	private static transient int mDeferredCommits = 0;
+
+	/** {@link System#nanoTime()} of the first of the {@link #mDeferredCommits}. */
+	private static transient long mFirstDeferredCommitTime;
+
+	/**
+	 * The {@link ObjectCache}s which must be notified when objects are stored, deleted or rolled
+	 * back. Rarely modified, so copy-on-write is fine. */
+	private static transient final CopyOnWriteArrayList<ObjectCache<?>> mObjectCaches
+		= new CopyOnWriteArrayList<ObjectCache<?>>();
 	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
 	
@@ -237,6 +287,72 @@ public abstract class Persistent implements Serializable {
 		return mTransactionLock;
 	}
 
+	/**
+	 * @return The amount of calls to {@link #checkedCommit(ExtObjectContainer, Object)} since
+	 *     startup. Must be called while holding the {@link #transactionLock(ExtObjectContainer)}
+	 *     if the result shall be compared to the one of a previous call. */
+	static final long getCommitCount() {
+		return mCommitCount;
+	}
+
+	/**
+	 * @return The amount of calls to
+	 *     {@link #checkedRollback(ExtObjectContainer, Object, Throwable, LogLevel)} since startup.
+	 * @see #getCommitCount() */
+	static final long getRollbackCount() {
+		return mRollbackCount;
+	}
+
+	/**
+	 * Configures {@link #checkedCommitDeferrable(ExtObjectContainer, Object)}. Group commit is
+	 * disabled by default, i.e. until this is called, and after it was called with a flusher of
+	 * null.
+	 * 
+	 * @param batchSize The maximal amount of deferrable commits which are coalesced into a single
+	 *     physical commit.
+	 * @param maxLatencyMillis The maximal time for which a deferrable commit may be delayed.
+	 * @param flusher Must call {@link #flushDeferredCommits(ExtObjectContainer, Object)} when it
+	 *     is executed. Is triggered with the delay of maxLatencyMillis by the first deferrable
+	 *     commit of a batch. Pass null to disable group commit, for example at shutdown. */
+	static final void configureGroupCommit(final int batchSize, final long maxLatencyMillis,
+			final DelayedBackgroundJob flusher) {
+		
+		if(batchSize < 1)
+			throw new IllegalArgumentException("Invalid batch size: " + batchSize);
+		if(maxLatencyMillis < 0)
+			throw new IllegalArgumentException("Invalid latency: " + maxLatencyMillis);
+		
+		synchronized(mTransactionLock) {
+			mGroupCommitBatchSize = batchSize;
+			mGroupCommitMaxLatency = maxLatencyMillis;
+			mGroupCommitFlusher = flusher;
+		}
+	}
+
+	/**
+	 * Causes the given cache to be invalidated by {@link #checkedStore(Object)},
+	 * {@link #checkedDelete(Object)} and
+	 * {@link #checkedRollback(ExtObjectContainer, Object, Throwable, LogLevel)} upon changes to
+	 * its database. Must be undone using {@link #unregisterObjectCache(ObjectCache)} when the
+	 * database is closed. */
+	static final void registerObjectCache(final ObjectCache<?> cache) {
+		mObjectCaches.add(cache);
+	}
+
+	/** @see #registerObjectCache(ObjectCache) */
+	static final void unregisterObjectCache(final ObjectCache<?> cache) {
+		mObjectCaches.remove(cache);
+	}
+
+	/**
+	 * @return The amount of calls to {@link #checkedCommitDeferrable(ExtObjectContainer, Object)}
+	 *     which were not physically committed yet. Must be called while holding the
+	 *     {@link #transactionLock(ExtObjectContainer)}. */
+	static final int getDeferredCommitCount() {
+		assert(Thread.holdsLock(mTransactionLock));
+		return mDeferredCommits;
+	}
+
 	/**
 	 * Only to be used by the extending classes, not to be called from the outside.
 	 * 
@@ -291,6 +407,10 @@ public abstract class Persistent implements Serializable {
 	protected final void checkedStore(final Object object) {
 		testDatabaseIntegrity();
 		mDB.store(object);
+		for(ObjectCache<?> cache : mObjectCaches) {
+			if(cache.getDatabase() == mDB)
+				cache.invalidateIfDifferent(object);
+		}
 		testDatabaseIntegrity();
 	}
 	
@@ -313,9 +433,13 @@ public abstract class Persistent implements Serializable {
 	 */
 	protected final void checkedDelete(final Object object) {
 		testDatabaseIntegrity();
-		if(mDB.isStored(object))
+		if(mDB.isStored(object)) {
 			mDB.delete(object);
-		else {
+			for(ObjectCache<?> cache : mObjectCaches) {
+				if(cache.getDatabase() == mDB)
+					cache.invalidate(object);
+			}
+		} else {
 			Logger.warning(this, "Trying to delete a nonexistent object: " + object,
 			    new RuntimeException()); // Exception added to get a stack trace
 		}
@@ -376,11 +500,23 @@ public abstract class Persistent implements Serializable {
 	 */
 	public static final void checkedRollback(final ExtObjectContainer db, final Object loggingObject, final Throwable error, LogLevel logLevel) {
 		// As of db4o 7.4 it seems necessary to call gc(); to cause rollback() to work.
+		// Thus the ObjectCaches must be cleared before, their references would prevent it.
+		for(ObjectCache<?> cache : mObjectCaches) {
+			if(cache.getDatabase() == db)
+				cache.clear();
+		}
 		testDatabaseIntegrity(null, db);
 		System.gc();
 		db.rollback();
+		++mRollbackCount;
 		System.gc(); 
 		Logger.logStatic(loggingObject, "ROLLED BACK!", error, logLevel);
+		if(mDeferredCommits > 0) {
+			// Not an error: The callers of checkedCommitDeferrable() must tolerate this.
+			Logger.normal(loggingObject, "Rollback discarded " + mDeferredCommits
+				+ " deferred commits.");
+			mDeferredCommits = 0;
+		}
 		testDatabaseIntegrity(null, db);
 	}
 	
@@ -499,9 +635,84 @@ public abstract class Persistent implements Serializable {
 	public static final void checkedCommit(final ExtObjectContainer db, final Object loggingObject) {
 		testDatabaseIntegrity(null, db);
 		db.commit();
+		++mCommitCount;
+		mDeferredCommits = 0;
 		if(logDEBUG) Logger.debug(loggingObject, "COMMITED.");
 		testDatabaseIntegrity(null, db);
 	}
+
+	/**
+	 * Group commit: Alternative to {@link #checkedCommit(ExtObjectContainer, Object)} for
+	 * transactions which do not need to be durable immediately. The physical commit, which
+	 * flushes the database to disk, is delayed until either:
+	 * - the amount of deferred commits reaches the configured batch size.
+	 * - the configured maximal latency has expired. The flusher job of
+	 *   {@link #configureGroupCommit(int, long, DelayedBackgroundJob)} then calls
+	 *   {@link #flushDeferredCommits(ExtObjectContainer, Object)}.
+	 * - any other transaction calls {@link #checkedCommit(ExtObjectContainer, Object)}: db4o has
+	 *   only a single transaction, so that commits the deferred changes as well.
+	 * 
+	 * Thereby many small transactions can share a single physical commit, which reduces disk I/O.
+	 * If group commit is not configured, this is the same as a regular commit.
+	 * 
+	 * ATTENTION: Until the physical commit, the changes will be discarded if any other transaction
+	 * is rolled back, or if the node crashes. Thus only use this for changes which are safe to
+	 * get lost, for example for deleting processed commands which can be executed again.
+	 * For the same reason the changes are not counted by {@link #getCommitCount()} before the
+	 * physical commit: Do not use this for transactions which modify in-memory mirrors of the
+	 * database such as the {@link TrustGraph}.
+	 * 
+	 * The call to this function must be embedded in a transaction, that is a block of:<br />
+	 * synchronized(Persistent.transactionLock(mDB)) {<br />
+	 * 	try { object.deleteWithoutCommit(); Persistent.checkedCommitDeferrable(mDB, this); }<br />
+	 * 	catch(RuntimeException e) { Persistent.checkedRollbackAndThrow(mDB, this, e); }<br />
+	 * } */
+	public static final void checkedCommitDeferrable(final ExtObjectContainer db,
+			final Object loggingObject) {
+		
+		assert(Thread.holdsLock(mTransactionLock));
+		
+		final long now = System.nanoTime();
+		if(mDeferredCommits == 0)
+			mFirstDeferredCommitTime = now;
+		++mDeferredCommits;
+		
+		if(mGroupCommitFlusher == null || mDeferredCommits >= mGroupCommitBatchSize
+				|| now - mFirstDeferredCommitTime
+					>= MILLISECONDS.toNanos(mGroupCommitMaxLatency)) {
+			
+			checkedCommit(db, loggingObject);
+			return;
+		}
+		
+		if(logDEBUG) Logger.debug(loggingObject, "COMMIT DEFERRED: " + mDeferredCommits);
+		
+		if(mDeferredCommits == 1)
+			mGroupCommitFlusher.triggerExecution(mGroupCommitMaxLatency);
+	}
+
+	/**
+	 * Physically commits the pending calls to
+	 * {@link #checkedCommitDeferrable(ExtObjectContainer, Object)}, if there are any.
+	 * Takes the {@link #transactionLock(ExtObjectContainer)} on its own, so it must not be called
+	 * while a non-deferrable transaction is in progress. */
+	public static final void flushDeferredCommits(final ExtObjectContainer db,
+			final Object loggingObject) {
+		
+		synchronized(mTransactionLock) {
+			if(mDeferredCommits == 0)
+				return;
+			
+			try {
+				if(logMINOR)
+					Logger.minor(loggingObject, "Flushing " + mDeferredCommits + " commits...");
+				
+				checkedCommit(db, loggingObject);
+			} catch(RuntimeException e) {
+				checkedRollbackAndThrow(db, loggingObject, e);
+			}
+		}
+	}
 	
 	/**
 	 * This is one of the only functions which outside classes should use. It is used for committing the transaction.
@@ -570,22 +781,37 @@ public abstract class Persistent implements Serializable {
 	}
 	
 	/**
-	 * An implementation of ObjectSet which encapsulates a given ObjectSet of objects which extend Persistent and calls initializeTransient() for each returned object
-	 * automatically.
+	 * An implementation of ObjectSet which encapsulates the result of a database query of objects which extend Persistent and calls
+	 * initializeTransient() for each returned object automatically.
+	 * 
+	 * It obtains the database IDs of the query result once at construction and fetches the objects
+	 * lazily by ID, in pages of {@link #PAGE_SIZE} objects while iterating. Thus, other than the
+	 * db4o ObjectSet, it can be iterated multiple times, also concurrently by multiple iterators and
+	 * starting at any index, without re-running the query: Iterating a db4o ObjectSet more than
+	 * once triggered <a href="https://bugs.freenetproject.org/view.php?id=6646">a db4o bug</a>.
+	 * 
+	 * As the db4o ObjectSet, the set is a snapshot of the query result: Objects which are stored
+	 * after the query are not contained. Objects which are deleted after the query are skipped by
+	 * the iterators, but still counted by {@link #size()} and returned as null by
+	 * {@link #get(int)}: Filtering them out there would require fetching all objects.
 	 */
 	public static final class InitializingObjectSet<Type extends Persistent> implements ObjectSet<Type> {
 		
-		private final WebOfTrustInterface mWebOfTrust;
-		private final ObjectSet<Type> mObjectSet;
 		/**
-		 * Used to detect iterating over the same ObjectSet twice. This is a trick to notice
-		 * usage of db4o in a way which would trigger a db4o bug.
-		 * See <a href="https://bugs.freenetproject.org/view.php?id=6596">the bugtracker entry</a>.
-		 * TODO: Performance: Remove once the issue which caused this workaround is fixed:
-		 * https://bugs.freenetproject.org/view.php?id=6646 */
-		private boolean mIterated1 = false;
-		/** Same purpose as {@link #mIterated1}. */
-		private boolean mIterated2 = false;
+		 * Amount of objects which an iterator fetches from the database at once. It keeps them
+		 * referenced until it leaves the page so db4o won't drop them from its weak reference
+		 * cache and load them again if the iterator goes back. */
+		static final int PAGE_SIZE = 64;
+		
+		private final WebOfTrustInterface mWebOfTrust;
+		
+		private final ExtObjectContainer mDB;
+		
+		/** The database IDs of the query result, see {@link ExtObjectContainer#getByID(long)}. */
+		private final long[] mIDs;
+		
+		/** Used by the {@link #hasNext()} / {@link #next()} functions which ObjectSet inherits from Iterator. */
+		private ListIterator<Type> mIterator = null;
 		
 		/**
 		 * Private because we can only safely initialize {@link Persistent#mActivatedUpTo} to
@@ -593,15 +819,52 @@ public abstract class Persistent implements Serializable {
 		 * are the direct result from a query and thus activated up to the default depth.
 		 * (The opposite to being a "direct result from a query" is obtaining other objects from
 		 * the member variables of objects which came from a query.) */
-		@SuppressWarnings("unchecked") 	// "ObjectSet<Type> myObjectSet" won't compile against db4o-7.12 so we use the Suppress trick
 		private InitializingObjectSet(final WebOfTrustInterface myWebOfTrust, @SuppressWarnings("rawtypes") final ObjectSet myObjectSet) {
 			mWebOfTrust = myWebOfTrust;
-			mObjectSet = (ObjectSet<Type>)myObjectSet;
+			mDB = myWebOfTrust.getDatabase();
+			mIDs = myObjectSet.ext().getIDs();
 		}
 		
 		public InitializingObjectSet(final WebOfTrustInterface myWebOfTrust, final Query myQuery) {
 			this(myWebOfTrust, myQuery.execute());
 		}
+		
+		/**
+		 * @return The object at the given index, activated to {@link Persistent#DEFAULT_ACTIVATION_DEPTH}, or null if it was
+		 *     deleted after the query. */
+		@SuppressWarnings("unchecked")
+		private Type fetch(final int index) {
+			final Type object = (Type)mDB.getByID(mIDs[index]);
+			
+			if(object == null || !mDB.isStored(object))
+				return null;
+			
+			mDB.activate(object, DEFAULT_ACTIVATION_DEPTH);
+			object.initializeTransient(mWebOfTrust, DEFAULT_ACTIVATION_DEPTH);
+			return object;
+		}
+		
+		/** @return The index of the given object in {@link #mIDs}, starting the search at the given end, or -1 if it is not contained. */
+		private int indexOf(final Object o, final boolean fromStart) {
+			if(!(o instanceof Persistent) || !mDB.isStored(o))
+				return -1;
+			
+			final long id = mDB.getID(o);
+			
+			if(fromStart) {
+				for(int i = 0; i < mIDs.length; ++i) {
+					if(mIDs[i] == id)
+						return i;
+				}
+			} else {
+				for(int i = mIDs.length - 1; i >= 0; --i) {
+					if(mIDs[i] == id)
+						return i;
+				}
+			}
+			
+			return -1;
+		}
 	
 		@Override
 		public ExtObjectSet ext() {
@@ -610,32 +873,32 @@ public abstract class Persistent implements Serializable {
 
 		@Override
 		public boolean hasNext() {
-			assert(!mIterated2);
-			assert(mIterated1 = true);
+			if(mIterator == null)
+				mIterator = listIterator();
 			
-			return mObjectSet.hasNext();
+			return mIterator.hasNext();
 		}
 
 		@Override
 		public Type next() {
-			assert(!mIterated2);
-			assert(mIterated1 = true);
+			if(mIterator == null)
+				mIterator = listIterator();
 			
-			final Type next = mObjectSet.next();
-			next.initializeTransient(mWebOfTrust, DEFAULT_ACTIVATION_DEPTH);
-			return next;
+			return mIterator.next();
 		}
 
 		@Override
 		public void reset() {
-			assert(false) : "See mIterated1";
-			
-			mObjectSet.reset();
+			mIterator = null;
 		}
 
+		/**
+		 * @return The number of objects which the query returned. Also counts objects which were
+		 *     deleted after the query, so it can be larger than the number of objects which the
+		 *     iterators return. See {@link #get(int)}. */
 		@Override
 		public int size() {
-			return mObjectSet.size();
+			return mIDs.length;
 		}
 
 		@Override
@@ -665,109 +928,121 @@ public abstract class Persistent implements Serializable {
 
 		@Override
 		public boolean contains(final Object o) {
-			return mObjectSet.contains(o);
+			return indexOf(o, true) != -1;
 		}
 
 		@Override
 		public boolean containsAll(final Collection<?> c) {
-			return mObjectSet.containsAll(c);
+			for(Object o : c) {
+				if(!contains(o))
+					return false;
+			}
+			return true;
 		}
 
+		/**
+		 * The indices are those of the query result, consistent with {@link #size()}.
+		 * 
+		 * @return The object at the given index, or null if it was deleted after the query. */
 		@Override
 		public Type get(final int index) {
-			Type object = mObjectSet.get(index);
-			object.initializeTransient(mWebOfTrust, DEFAULT_ACTIVATION_DEPTH);
-			return object;
+			if(index < 0 || index >= mIDs.length)
+				throw new IndexOutOfBoundsException("Index: " + index + "; size: " + mIDs.length);
+			
+			return fetch(index);
 		}
 
 		@Override
 		public int indexOf(final Object o) {
-			return mObjectSet.indexOf(o);
+			return indexOf(o, true);
 		}
 
 		@Override
 		public boolean isEmpty() {
-			return mObjectSet.isEmpty();
+			return mIDs.length == 0;
 		}
 
 		@Override
 		public final Iterator<Type> iterator() {
-			assert(!mIterated1);
-			assert(!mIterated2);
-			assert(mIterated2 = true);
-			
-			return new Iterator<Type>() {
-				final Iterator<Type> mIterator = mObjectSet.iterator(); 
-				
-				@Override
-				public boolean hasNext() {
-					return mIterator.hasNext();
-				}
-
-				@Override
-				public Type next() {
-					final Type next = mIterator.next();
-					next.initializeTransient(mWebOfTrust, DEFAULT_ACTIVATION_DEPTH);
-					return next;
-				}
-
-				@Override
-				public void remove() {
-					throw new UnsupportedOperationException();
-				}
-				
-			};
+			return listIterator();
 		}
 
 		@Override
 		public int lastIndexOf(final Object o) {
-			return mObjectSet.lastIndexOf(o);
+			return indexOf(o, false);
 		}
 
-		private final class InitializingListIterator<ListType extends Persistent> implements ListIterator<ListType> {
-			private final ListIterator<ListType> mIterator;
+		/** Fetches the objects lazily, see {@link InitializingObjectSet#PAGE_SIZE}. */
+		private final class InitializingListIterator implements ListIterator<Type> {
+			/** Index of the object which {@link #next()} returns. */
+			private int mIndex;
+			
+			/** Index of the first object in {@link #mPage}. */
+			private int mPageStart = -1;
+			
+			/** The current page of objects. Contains null for objects which were deleted after the query. */
+			private final ArrayList<Type> mPage = new ArrayList<Type>(PAGE_SIZE);
+			
+			public InitializingListIterator(final int index) {
+				mIndex = index;
+			}
 			
-			public InitializingListIterator(final ListIterator<ListType> myIterator) {
-				 mIterator = myIterator;
+			private Type getObject(final int index) {
+				if(mPageStart == -1 || index < mPageStart || index >= mPageStart + mPage.size()) {
+					mPage.clear();
+					mPageStart = (index / PAGE_SIZE) * PAGE_SIZE;
+					for(int i = mPageStart; i < Math.min(mPageStart + PAGE_SIZE, mIDs.length); ++i)
+						mPage.add(fetch(i));
+				}
+				
+				return mPage.get(index - mPageStart);
 			}
 
 			@Override
-			public void add(final ListType e) {
+			public void add(final Type e) {
 				throw new UnsupportedOperationException();
 			}
 
 			@Override
 			public boolean hasNext() {
-				return mIterator.hasNext();
+				while(mIndex < mIDs.length && getObject(mIndex) == null)
+					++mIndex;
+				
+				return mIndex < mIDs.length;
 			}
 
 			@Override
 			public boolean hasPrevious() {
-				return mIterator.hasPrevious();
+				while(mIndex > 0 && getObject(mIndex - 1) == null)
+					--mIndex;
+				
+				return mIndex > 0;
 			}
 
 			@Override
-			public ListType next() {
-				final ListType next = mIterator.next();
-				next.initializeTransient(mWebOfTrust, DEFAULT_ACTIVATION_DEPTH);
-				return next;
+			public Type next() {
+				if(!hasNext())
+					throw new NoSuchElementException();
+				
+				return getObject(mIndex++);
 			}
 
 			@Override
 			public int nextIndex() {
-				return mIterator.nextIndex();
+				return mIndex;
 			}
 
 			@Override
-			public ListType previous() {
-				final ListType previous = mIterator.previous();
-				previous.initializeTransient(mWebOfTrust, DEFAULT_ACTIVATION_DEPTH);
-				return previous;
+			public Type previous() {
+				if(!hasPrevious())
+					throw new NoSuchElementException();
+				
+				return getObject(--mIndex);
 			}
 
 			@Override
 			public int previousIndex() {
-				return mIterator.previousIndex();
+				return mIndex - 1;
 			}
 
 			@Override
@@ -776,27 +1051,22 @@ public abstract class Persistent implements Serializable {
 			}
 
 			@Override
-			public void set(final ListType e) {
+			public void set(final Type e) {
 				throw new UnsupportedOperationException();
 			}
 		}
 		
 		@Override
 		public ListIterator<Type> listIterator() {
-			assert(!mIterated1);
-			assert(!mIterated2);
-			assert(mIterated2 = true);
-			
-			return new InitializingListIterator<Type>(mObjectSet.listIterator());
+			return new InitializingListIterator(0);
 		}
 		
 		@Override
 		public ListIterator<Type> listIterator(final int index) {
-			assert(!mIterated1);
-			assert(!mIterated2);
-			assert(mIterated2 = true);
+			if(index < 0 || index > mIDs.length)
+				throw new IndexOutOfBoundsException("Index: " + index + "; size: " + mIDs.length);
 			
-			return new InitializingListIterator<Type>(mObjectSet.listIterator(index));
+			return new InitializingListIterator(index);
 		}
 
 		@Override
@@ -829,12 +1099,13 @@ public abstract class Persistent implements Serializable {
 			throw new UnsupportedOperationException();
 		}
 
+		/** Does not contain objects which were deleted after the query. */
 		@Override
 		public Object[] toArray() {
-			Object[] result = mObjectSet.toArray();
-			for(Object o : result)
-				((Persistent)o).initializeTransient(mWebOfTrust, DEFAULT_ACTIVATION_DEPTH);
-			return result;
+			final ArrayList<Type> result = new ArrayList<Type>(mIDs.length);
+			for(Type object : this)
+				result.add(object);
+			return result.toArray();
 		}
 
 		@Override
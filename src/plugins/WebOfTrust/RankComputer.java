@@ -0,0 +1,33 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+/**
+ * Computes the {@link Score#getRank()} of an {@link Identity} in the trust tree of an
+ * {@link OwnIdentity} from the {@link Trust} graph, without using the stored ranks of other
+ * Scores.
+ *
+ * Implementations:
+ * - {@link BucketQueueRankComputer}
+ * - {@link WebOfTrust#newCachingRankComputer()}, an adapter for
+ *   {@link WebOfTrust#computeRankFromScratch_Caching(OwnIdentity, Identity, java.util.Map)}.
+ *
+ * Implementations may cache results, so an instance must only be used as long as the Trust graph
+ * does not change. The ranks of the treeOwners in their own trust trees must not change either.
+ *
+ * Synchronization:
+ * Instances are not thread-safe. They must be used while holding the same locks as
+ * {@link WebOfTrust#computeAllScoresWithoutCommit()}. */
+interface RankComputer {
+
+	/**
+	 * @return The rank which the given target should have in the trust tree of the given source:
+	 *     - 0 for the source itself, in the case of the source not having a rank in its own tree
+	 *       -1.
+	 *     - For all other Identitys the shortest path in trust steps from the source.
+	 *     - Integer.MAX_VALUE if the shortest path ends with a Trust value of zero or less.
+	 *     - -1 if there is no path. */
+	int computeRank(OwnIdentity source, Identity target);
+
+}
@@ -0,0 +1,579 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+import plugins.WebOfTrust.Trust.TrustID;
+import plugins.WebOfTrust.WebOfTrust.SortOrder;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/**
+ * Immutable view of the {@link Identity}, {@link Trust} and {@link Score} tables of the database
+ * as they were after a certain commit. Obtained by {@link WebOfTrust#getReadSnapshot()}.
+ *
+ * Reading the database directly requires synchronizing on the {@link WebOfTrust} to get coherent
+ * results, see <a href="https://bugs.freenetproject.org/view.php?id=6247">bug 6247</a>. Thus any
+ * UI request would have to wait for a running trust list import or Score computation to finish.
+ * Instances of this class never change after their creation and can be read by any number of
+ * threads concurrently without locking. The data is as old as the last commit before the call
+ * to getReadSnapshot(), so it may lag behind the database by the duration of the currently
+ * running transaction. Code which modifies the database based on what it read must therefore
+ * still use the database under the proper locks.
+ *
+ * The view contains:
+ * - An {@link Identity#clone()} of each Identity / {@link OwnIdentity}. Do not modify them.
+ * - A {@link TrustRecord} of each Trust, and a {@link ScoreRecord} of each Score. They refer to
+ *   the Identitys by ID instead of referencing the clones: This saves memory, and allows a change
+ *   of an Identity to only replace the clone of that Identity instead of also all records of its
+ *   Trusts and Scores.
+ *
+ * Snapshots are published by {@link ReadSnapshotPublisher}, see its JavaDoc for how they are
+ * kept current. */
+public final class ReadSnapshot {
+
+	/** Immutable copy of the attributes of a {@link Trust} which the UI needs. */
+	public static final class TrustRecord {
+
+		private final String mTrusterID;
+
+		private final String mTrusteeID;
+
+		private final byte mValue;
+
+		private final String mComment;
+
+		private final long mTrusterEdition;
+
+
+		TrustRecord(Trust trust) {
+			mTrusterID = trust.getTruster().getID();
+			mTrusteeID = trust.getTrustee().getID();
+			mValue = trust.getValue();
+			mComment = trust.getComment();
+			mTrusterEdition = trust.getTrusterEdition();
+		}
+
+		public String getTrusterID() {
+			return mTrusterID;
+		}
+
+		public String getTrusteeID() {
+			return mTrusteeID;
+		}
+
+		/** @see Trust#getID() */
+		public String getID() {
+			return new TrustID(mTrusterID, mTrusteeID).toString();
+		}
+
+		/** @see Trust#getValue() */
+		public byte getValue() {
+			return mValue;
+		}
+
+		/** @see Trust#getComment() */
+		public String getComment() {
+			return mComment;
+		}
+
+		/** @see Trust#getTrusterEdition() */
+		public long getTrusterEdition() {
+			return mTrusterEdition;
+		}
+
+		/**
+		 * Same as {@link Trust#getVersionID()} of a database object: The version ID is only
+		 * set upon objects which are deployed to clients by the {@link SubscriptionManager}, so
+		 * a random one is returned. */
+		public UUID getVersionID() {
+			return UUID.randomUUID();
+		}
+
+		@Override public String toString() {
+			return "[TrustRecord: truster: " + mTrusterID + "; trustee: " + mTrusteeID
+				+ "; value: " + mValue + "; comment: \"" + mComment + "\"]";
+		}
+	}
+
+	/** Immutable copy of the attributes of a {@link Score} which the UI needs. */
+	public static final class ScoreRecord {
+
+		private final String mTrusterID;
+
+		private final String mTrusteeID;
+
+		private final int mValue;
+
+		private final int mRank;
+
+		private final int mCapacity;
+
+
+		ScoreRecord(Score score) {
+			mTrusterID = score.getTruster().getID();
+			mTrusteeID = score.getTrustee().getID();
+			mValue = score.getScore();
+			mRank = score.getRank();
+			mCapacity = score.getCapacity();
+		}
+
+		public String getTrusterID() {
+			return mTrusterID;
+		}
+
+		public String getTrusteeID() {
+			return mTrusteeID;
+		}
+
+		/** @see Score#getScore() */
+		public int getScore() {
+			return mValue;
+		}
+
+		/** @see Score#getRank() */
+		public int getRank() {
+			return mRank;
+		}
+
+		/** @see Score#getCapacity() */
+		public int getCapacity() {
+			return mCapacity;
+		}
+
+		/** @see TrustRecord#getVersionID() */
+		public UUID getVersionID() {
+			return UUID.randomUUID();
+		}
+
+		@Override public String toString() {
+			return "[ScoreRecord: truster: " + mTrusterID + "; trustee: " + mTrusteeID
+				+ "; value: " + mValue + "; rank: " + mRank + "; capacity: " + mCapacity + "]";
+		}
+	}
+
+	/**
+	 * Everything the snapshot knows about a single Identity. A new Row is created for each
+	 * Identity which is touched by a commit, the Rows of all others are shared with the previous
+	 * snapshot. Thus the maps must not be modified after the Row has been created. */
+	static final class Row {
+
+		static final Row EMPTY = new Row(null,
+			Collections.<String, TrustRecord>emptyMap(), Collections.<String, TrustRecord>emptyMap(),
+			Collections.<String, ScoreRecord>emptyMap(), Collections.<String, ScoreRecord>emptyMap());
+
+		/** Null if the Identity does not exist (anymore) but the Row was created by a Trust or
+		 *  Score which references it, which can happen temporarily during a transaction. */
+		final Identity mIdentity;
+
+		/** Key = {@link Identity#getID()} of the trustee. */
+		final Map<String, TrustRecord> mGivenTrusts;
+
+		/** Key = {@link Identity#getID()} of the truster. */
+		final Map<String, TrustRecord> mReceivedTrusts;
+
+		/** Key = {@link Identity#getID()} of the trustee. Only non-empty for OwnIdentitys. */
+		final Map<String, ScoreRecord> mGivenScores;
+
+		/** Key = {@link Identity#getID()} of the truster. */
+		final Map<String, ScoreRecord> mReceivedScores;
+
+
+		Row(Identity identity, Map<String, TrustRecord> givenTrusts,
+				Map<String, TrustRecord> receivedTrusts, Map<String, ScoreRecord> givenScores,
+				Map<String, ScoreRecord> receivedScores) {
+
+			mIdentity = identity;
+			mGivenTrusts = givenTrusts;
+			mReceivedTrusts = receivedTrusts;
+			mGivenScores = givenScores;
+			mReceivedScores = receivedScores;
+		}
+
+		boolean isEmpty() {
+			return mIdentity == null && mGivenTrusts.isEmpty() && mReceivedTrusts.isEmpty()
+				&& mGivenScores.isEmpty() && mReceivedScores.isEmpty();
+		}
+	}
+
+
+	/** {@link Persistent#getCommitCount()} at the time of publishing, as a version number for
+	 *  comparing snapshots. */
+	private final long mVersion;
+
+	/** Key = {@link Identity#getID()}. */
+	private final HashMap<String, Row> mRows;
+
+	private final int mIdentityCount;
+
+	private final int mOwnIdentityCount;
+
+	private final int mTrustCount;
+
+	private final int mScoreCount;
+
+
+	/** @param rows Is stored as is, so it must not be modified by the caller afterwards. */
+	ReadSnapshot(long version, HashMap<String, Row> rows) {
+		mVersion = version;
+		mRows = rows;
+
+		int identityCount = 0;
+		int ownIdentityCount = 0;
+		int trustCount = 0;
+		int scoreCount = 0;
+
+		for(Row row : rows.values()) {
+			if(row.mIdentity != null) {
+				++identityCount;
+				if(row.mIdentity instanceof OwnIdentity)
+					++ownIdentityCount;
+			}
+
+			trustCount += row.mGivenTrusts.size();
+			scoreCount += row.mGivenScores.size();
+		}
+
+		mIdentityCount = identityCount;
+		mOwnIdentityCount = ownIdentityCount;
+		mTrustCount = trustCount;
+		mScoreCount = scoreCount;
+	}
+
+	/** For {@link ReadSnapshotPublisher} only. Returns {@link Row#EMPTY} if there is no Row. */
+	Row getRow(String identityID) {
+		final Row row = mRows.get(identityID);
+		return row != null ? row : Row.EMPTY;
+	}
+
+	/** For {@link ReadSnapshotPublisher} only. Do not modify the returned map. */
+	HashMap<String, Row> getRows() {
+		return mRows;
+	}
+
+	/**
+	 * @return The {@link Persistent#getCommitCount()} at the time this snapshot was published.
+	 *     A snapshot with a higher version is newer. */
+	public long getVersion() {
+		return mVersion;
+	}
+
+	/** @see WebOfTrust#getIdentityByID(String) */
+	public Identity getIdentityByID(String id) throws UnknownIdentityException {
+		final Row row = mRows.get(id);
+
+		if(row == null || row.mIdentity == null)
+			throw new UnknownIdentityException(id);
+
+		return row.mIdentity;
+	}
+
+	/** @see WebOfTrust#getOwnIdentityByID(String) */
+	public OwnIdentity getOwnIdentityByID(String id) throws UnknownIdentityException {
+		final Identity identity = getIdentityByID(id);
+
+		if(!(identity instanceof OwnIdentity))
+			throw new UnknownIdentityException(id);
+
+		return (OwnIdentity)identity;
+	}
+
+	/** @return A new list of all {@link Identity}s, including the {@link OwnIdentity}s. */
+	public List<Identity> getAllIdentities() {
+		final ArrayList<Identity> result = new ArrayList<Identity>(mIdentityCount);
+
+		for(Row row : mRows.values()) {
+			if(row.mIdentity != null)
+				result.add(row.mIdentity);
+		}
+
+		return result;
+	}
+
+	/** @return A new list of all {@link OwnIdentity}s. */
+	public List<OwnIdentity> getAllOwnIdentities() {
+		final ArrayList<OwnIdentity> result = new ArrayList<OwnIdentity>(mOwnIdentityCount);
+
+		for(Row row : mRows.values()) {
+			if(row.mIdentity instanceof OwnIdentity)
+				result.add((OwnIdentity)row.mIdentity);
+		}
+
+		return result;
+	}
+
+	public int getIdentityCount() {
+		return mIdentityCount;
+	}
+
+	public int getOwnIdentityCount() {
+		return mOwnIdentityCount;
+	}
+
+	/** @see WebOfTrust#getTrust(String, String) */
+	public TrustRecord getTrust(String trusterID, String trusteeID) throws NotTrustedException {
+		final TrustRecord trust = getRow(trusterID).mGivenTrusts.get(trusteeID);
+
+		if(trust == null)
+			throw new NotTrustedException(new TrustID(trusterID, trusteeID).toString());
+
+		return trust;
+	}
+
+	/** @see WebOfTrust#getGivenTrusts(Identity) */
+	public Collection<TrustRecord> getGivenTrusts(String trusterID) {
+		return Collections.unmodifiableCollection(getRow(trusterID).mGivenTrusts.values());
+	}
+
+	/** @see WebOfTrust#getReceivedTrusts(Identity) */
+	public Collection<TrustRecord> getReceivedTrusts(String trusteeID) {
+		return Collections.unmodifiableCollection(getRow(trusteeID).mReceivedTrusts.values());
+	}
+
+	/**
+	 * @param select Same semantics as the one of {@link WebOfTrust#getGivenTrusts(Identity, int)}:
+	 *     Positive counts values &gt;= 0, negative counts values &lt; 0, zero counts values of 0.
+	 * @see WebOfTrust#getGivenTrusts(Identity, int) */
+	public int getGivenTrustCount(String trusterID, int select) {
+		return countSelected(getRow(trusterID).mGivenTrusts.values(), select);
+	}
+
+	/** @see #getGivenTrustCount(String, int) */
+	public int getReceivedTrustCount(String trusteeID, int select) {
+		return countSelected(getRow(trusteeID).mReceivedTrusts.values(), select);
+	}
+
+	private static int countSelected(Collection<TrustRecord> trusts, int select) {
+		int count = 0;
+
+		for(TrustRecord trust : trusts) {
+			if(select > 0 ? trust.getValue() >= 0
+					: (select < 0 ? trust.getValue() < 0 : trust.getValue() == 0))
+				++count;
+		}
+
+		return count;
+	}
+
+	/** @return A new list of all {@link TrustRecord}s. */
+	public List<TrustRecord> getAllTrusts() {
+		final ArrayList<TrustRecord> result = new ArrayList<TrustRecord>(mTrustCount);
+
+		for(Row row : mRows.values())
+			result.addAll(row.mGivenTrusts.values());
+
+		return result;
+	}
+
+	public int getTrustCount() {
+		return mTrustCount;
+	}
+
+	/** @see WebOfTrust#getScore(OwnIdentity, Identity) */
+	public ScoreRecord getScore(String trusterID, String trusteeID)
+			throws NotInTrustTreeException {
+
+		final ScoreRecord score = getRow(trusterID).mGivenScores.get(trusteeID);
+
+		if(score == null)
+			throw new NotInTrustTreeException(new Score.ScoreID(trusterID, trusteeID).toString());
+
+		return score;
+	}
+
+	/** @see WebOfTrust#getGivenScores(OwnIdentity) */
+	public Collection<ScoreRecord> getGivenScores(String trusterID) {
+		return Collections.unmodifiableCollection(getRow(trusterID).mGivenScores.values());
+	}
+
+	/** @see WebOfTrust#getScores(Identity) */
+	public Collection<ScoreRecord> getReceivedScores(String trusteeID) {
+		return Collections.unmodifiableCollection(getRow(trusteeID).mReceivedScores.values());
+	}
+
+	/**
+	 * @param trusterID The owner of the trust tree, null if you want the trusted identities of
+	 *     all owners.
+	 * @return A new list of the Scores of non-own Identitys matching the criteria of
+	 *     {@link WebOfTrust#getIdentitiesByScore(OwnIdentity, int)}.
+	 * @see WebOfTrust#getIdentitiesByScore(OwnIdentity, int) */
+	public List<ScoreRecord> getIdentitiesByScore(String trusterID, int select) {
+		final ArrayList<ScoreRecord> result = new ArrayList<ScoreRecord>();
+
+		if(trusterID != null)
+			addIdentitiesByScore(getRow(trusterID), select, result);
+		else {
+			for(Row row : mRows.values())
+				addIdentitiesByScore(row, select, result);
+		}
+
+		return result;
+	}
+
+	private void addIdentitiesByScore(Row truster, int select, List<ScoreRecord> result) {
+		for(ScoreRecord score : truster.mGivenScores.values()) {
+			final int value = score.getScore();
+
+			if(select > 0 ? value < 0 : (select < 0 ? value >= 0 : value != 0))
+				continue;
+
+			if(getRow(score.getTrusteeID()).mIdentity instanceof OwnIdentity)
+				continue;
+
+			result.add(score);
+		}
+	}
+
+	/** @return A new list of all {@link ScoreRecord}s. */
+	public List<ScoreRecord> getAllScores() {
+		final ArrayList<ScoreRecord> result = new ArrayList<ScoreRecord>(mScoreCount);
+
+		for(Row row : mRows.values())
+			result.addAll(row.mGivenScores.values());
+
+		return result;
+	}
+
+	public int getScoreCount() {
+		return mScoreCount;
+	}
+
+	/**
+	 * Same as {@link WebOfTrust#getAllIdentitiesFilteredAndSorted(OwnIdentity, String,
+	 * SortOrder)}, but sorts in memory instead of by a database query.
+	 * As with the database query, the orders by Score or local Trust only include the Identitys
+	 * which have a Score or Trust from the given truster.
+	 * Identitys which compare as equal are ordered by ID so the paging of the UI is stable.
+	 *
+	 * @param nickFilter If non-null and not empty after trimming, only Identitys whose nickname
+	 *     contains it, ignoring case, are returned.
+	 * @return A new list. */
+	public List<Identity> getAllIdentitiesFilteredAndSorted(final String trusterID,
+			String nickFilter, final SortOrder sortInstruction) {
+
+		final List<Identity> identities;
+		final Row truster = getRow(trusterID);
+
+		switch(sortInstruction) {
+			case ByScoreAscending:
+			case ByScoreDescending:
+				identities = getExistingIdentities(truster.mGivenScores.keySet());
+				break;
+			case ByLocalTrustAscending:
+			case ByLocalTrustDescending:
+				identities = getExistingIdentities(truster.mGivenTrusts.keySet());
+				break;
+			default:
+				identities = getAllIdentities();
+		}
+
+		if(nickFilter != null) {
+			nickFilter = nickFilter.trim().toLowerCase(Locale.ROOT);
+
+			if(!nickFilter.equals("")) {
+				for(int i = identities.size() - 1; i >= 0; --i) {
+					final String nickname = identities.get(i).getNickname();
+
+					if(nickname == null || !nickname.toLowerCase(Locale.ROOT).contains(nickFilter))
+						identities.remove(i);
+				}
+			}
+		}
+
+		Collections.sort(identities, new Comparator<Identity>() {
+			@Override public int compare(Identity a, Identity b) {
+				int result = compareBy(sortInstruction, truster, a, b);
+
+				switch(sortInstruction) {
+					case ByAddedDescending:
+					case ByEditionDescending:
+					case ByFetchedDescending:
+					case ByNicknameDescending:
+					case ByScoreDescending:
+					case ByLocalTrustDescending:
+					case ByTrustersDescending:
+						result = -result;
+						break;
+					default:
+						break;
+				}
+
+				return result != 0 ? result : a.getID().compareTo(b.getID());
+			}
+		});
+
+		return identities;
+	}
+
+	/** @return The ascending order of the attribute which the given {@link SortOrder} sorts by. */
+	private int compareBy(SortOrder sortInstruction, Row truster, Identity a, Identity b) {
+		switch(sortInstruction) {
+			case ByAddedAscending:
+			case ByAddedDescending:
+				return compare(a.getCreationDate(), b.getCreationDate());
+			case ByEditionAscending:
+			case ByEditionDescending:
+				return compare(a.getEdition(), b.getEdition());
+			case ByFetchedAscending:
+			case ByFetchedDescending:
+				return compare(a.getLastFetchedDate(), b.getLastFetchedDate());
+			case ByNicknameAscending:
+			case ByNicknameDescending:
+				// Not yet downloaded Identitys have no nickname, sort them first.
+				final String nicknameA = a.getNickname();
+				final String nicknameB = b.getNickname();
+				if(nicknameA == null || nicknameB == null)
+					return nicknameA == null ? (nicknameB == null ? 0 : -1) : 1;
+				return nicknameA.compareTo(nicknameB);
+			case ByScoreAscending:
+			case ByScoreDescending:
+				return compare(truster.mGivenScores.get(a.getID()).getScore(),
+				               truster.mGivenScores.get(b.getID()).getScore());
+			case ByLocalTrustAscending:
+			case ByLocalTrustDescending:
+				return compare(truster.mGivenTrusts.get(a.getID()).getValue(),
+				               truster.mGivenTrusts.get(b.getID()).getValue());
+			case ByTrustersAscending:
+			case ByTrustersDescending:
+				return compare(getRow(a.getID()).mReceivedTrusts.size(),
+				               getRow(b.getID()).mReceivedTrusts.size());
+			default:
+				throw new IllegalArgumentException("Unknown SortOrder: " + sortInstruction);
+		}
+	}
+
+	private static int compare(long a, long b) {
+		return a < b ? -1 : (a == b ? 0 : 1);
+	}
+
+	private static int compare(Date a, Date b) {
+		return compare(a.getTime(), b.getTime());
+	}
+
+	/** @return A new list of the Identitys with the given IDs which exist in this snapshot. */
+	private List<Identity> getExistingIdentities(Collection<String> identityIDs) {
+		final ArrayList<Identity> result = new ArrayList<Identity>(identityIDs.size());
+
+		for(String id : identityIDs) {
+			final Identity identity = getRow(id).mIdentity;
+
+			if(identity != null)
+				result.add(identity);
+		}
+
+		return result;
+	}
+
+}
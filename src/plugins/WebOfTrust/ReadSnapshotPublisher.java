@@ -0,0 +1,412 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import plugins.WebOfTrust.ReadSnapshot.Row;
+import plugins.WebOfTrust.ReadSnapshot.ScoreRecord;
+import plugins.WebOfTrust.ReadSnapshot.TrustRecord;
+import freenet.support.Logger;
+
+/**
+ * Maintains the {@link ReadSnapshot}s which {@link WebOfTrust#getReadSnapshot()} returns.
+ *
+ * Keeping the snapshot current:
+ * - {@link SubscriptionManager#storeIdentityChangedNotificationWithoutCommit(Identity,
+ *   Identity)} and its siblings for Trusts and Scores pass every change to this class. Thus the
+ *   snapshot contains the same data which FCP clients receive by subscribing to events.
+ *   Code which modifies the database without notifying the SubscriptionManager must call the
+ *   according function of this class directly, or {@link #invalidate()} if modifying many
+ *   objects in ways which are difficult to track.
+ * - The changes are recorded as new {@link Row}s of the affected Identitys, which are copies of
+ *   the ones of the latest snapshot. They are buffered until their transaction is committed:
+ *   Like {@link TrustGraph}, we detect the end of a transaction using
+ *   {@link Persistent#getCommitCount()} and {@link Persistent#getRollbackCount()}. If the
+ *   transaction was rolled back, the changes are discarded. If we cannot tell whether it was
+ *   committed or rolled back, the snapshot will be re-loaded from the database.
+ * - Publishing a new snapshot happens lazily when a reader requests one and there are
+ *   committed changes: The map of Rows is shallow-copied, and the changed Rows are replaced.
+ *   Thus an import which commits many times without any reader requesting a snapshot meanwhile
+ *   only causes one publication.
+ *
+ * Synchronization:
+ * Functions which modify the snapshot must be called while holding the
+ * {@link Persistent#transactionLock(com.db4o.ext.ExtObjectContainer)} of the transaction which
+ * modifies the database, so the commit / rollback tracking works. They synchronize on this
+ * object on their own.
+ * {@link #getSnapshot()} needs no locks. It will only wait for the transactionLock if the
+ * snapshot needs to be loaded from the database, which happens upon the first call and after
+ * {@link #invalidate()}. */
+final class ReadSnapshotPublisher {
+
+	private final WebOfTrust mWebOfTrust;
+
+	/** The latest published snapshot. Null if it was not loaded yet or has been
+	 *  {@link #invalidate()}d. In that case the modification functions ignore all changes since
+	 *  loading it will yield them anyway. */
+	private volatile ReadSnapshot mPublished = null;
+
+	/** Rows of changes which have not been committed yet. Key = {@link Identity#getID()}. */
+	private final HashMap<String, RowBuilder> mUncommitted = new HashMap<String, RowBuilder>();
+
+	/** Rows of changes which have been committed but not published yet. Key =
+	 *  {@link Identity#getID()}. */
+	private final HashMap<String, Row> mCommitted = new HashMap<String, Row>();
+
+	/** {@link Persistent#getCommitCount()} at the time of the last modification. */
+	private long mCommitCountAtChange;
+
+	/** {@link Persistent#getRollbackCount()} at the time of the last modification. */
+	private long mRollbackCountAtChange;
+
+	/** Statistics: How often the snapshot was loaded from the database. */
+	private int mLoadCount = 0;
+
+	/** Statistics: How many snapshots were published. */
+	private int mPublishCount = 0;
+
+
+	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
+
+	private static transient volatile boolean logDEBUG = false;
+	private static transient volatile boolean logMINOR = false;
+
+	static {
+		Logger.registerClass(ReadSnapshotPublisher.class);
+	}
+
+
+	/**
+	 * Copy-on-write version of a {@link Row}: Each map of the original Row is only copied once
+	 * it is modified. */
+	private static final class RowBuilder {
+
+		private Identity mIdentity;
+
+		private Map<String, TrustRecord> mGivenTrusts;
+
+		private Map<String, TrustRecord> mReceivedTrusts;
+
+		private Map<String, ScoreRecord> mGivenScores;
+
+		private Map<String, ScoreRecord> mReceivedScores;
+
+		/** Bit 0 to 3: The according map of the four above was copied already. */
+		private int mCopied = 0;
+
+
+		RowBuilder(Row original) {
+			mIdentity = original.mIdentity;
+			mGivenTrusts = original.mGivenTrusts;
+			mReceivedTrusts = original.mReceivedTrusts;
+			mGivenScores = original.mGivenScores;
+			mReceivedScores = original.mReceivedScores;
+		}
+
+		Map<String, TrustRecord> givenTrusts() {
+			if((mCopied & 1) == 0) {
+				mGivenTrusts = new HashMap<String, TrustRecord>(mGivenTrusts);
+				mCopied |= 1;
+			}
+			return mGivenTrusts;
+		}
+
+		Map<String, TrustRecord> receivedTrusts() {
+			if((mCopied & 2) == 0) {
+				mReceivedTrusts = new HashMap<String, TrustRecord>(mReceivedTrusts);
+				mCopied |= 2;
+			}
+			return mReceivedTrusts;
+		}
+
+		Map<String, ScoreRecord> givenScores() {
+			if((mCopied & 4) == 0) {
+				mGivenScores = new HashMap<String, ScoreRecord>(mGivenScores);
+				mCopied |= 4;
+			}
+			return mGivenScores;
+		}
+
+		Map<String, ScoreRecord> receivedScores() {
+			if((mCopied & 8) == 0) {
+				mReceivedScores = new HashMap<String, ScoreRecord>(mReceivedScores);
+				mCopied |= 8;
+			}
+			return mReceivedScores;
+		}
+
+		Row build() {
+			return new Row(mIdentity, mGivenTrusts, mReceivedTrusts, mGivenScores,
+				mReceivedScores);
+		}
+	}
+
+
+	ReadSnapshotPublisher(WebOfTrust webOfTrust) {
+		mWebOfTrust = webOfTrust;
+	}
+
+	/**
+	 * Returns the latest snapshot which contains all changes that had been committed when this
+	 * function was called. See {@link ReadSnapshotPublisher} for the locking. */
+	ReadSnapshot getSnapshot() {
+		synchronized(this) {
+			detectTransactionEnd();
+
+			if(mPublished != null) {
+				publishCommitted();
+				return mPublished;
+			}
+		}
+
+		// Loading must not see uncommitted changes. Every transaction holds the transactionLock
+		// until it has committed or rolled back, so holding it ensures there are none.
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+		synchronized(this) {
+			detectTransactionEnd();
+
+			if(mPublished == null)
+				load();
+			else
+				publishCommitted();
+
+			return mPublished;
+		}
+		}
+	}
+
+	/**
+	 * Same as {@link #getSnapshot()}, but never waits for the transactionLock: Returns null
+	 * instead if the snapshot would have to be loaded from the database. */
+	ReadSnapshot getSnapshotIfLoaded() {
+		synchronized(this) {
+			detectTransactionEnd();
+
+			if(mPublished != null)
+				publishCommitted();
+
+			return mPublished;
+		}
+	}
+
+	/** Must be called with the new version of an {@link Identity} when it was created or
+	 *  modified. */
+	synchronized void setIdentity(Identity identity) {
+		if(!beginModification())
+			return;
+
+		getRowBuilder(identity.getID()).mIdentity = identity.clone();
+	}
+
+	/** Must be called when an {@link Identity} was deleted. */
+	synchronized void removeIdentity(String identityID) {
+		if(!beginModification())
+			return;
+
+		getRowBuilder(identityID).mIdentity = null;
+	}
+
+	/** Must be called with the new version of a {@link Trust} when it was created or modified. */
+	synchronized void setTrust(Trust trust) {
+		if(!beginModification())
+			return;
+
+		final TrustRecord record = new TrustRecord(trust);
+		getRowBuilder(record.getTrusterID()).givenTrusts().put(record.getTrusteeID(), record);
+		getRowBuilder(record.getTrusteeID()).receivedTrusts().put(record.getTrusterID(), record);
+	}
+
+	/** Must be called when a {@link Trust} was deleted. */
+	synchronized void removeTrust(String trusterID, String trusteeID) {
+		if(!beginModification())
+			return;
+
+		getRowBuilder(trusterID).givenTrusts().remove(trusteeID);
+		getRowBuilder(trusteeID).receivedTrusts().remove(trusterID);
+	}
+
+	/** Must be called with the new version of a {@link Score} when it was created or modified. */
+	synchronized void setScore(Score score) {
+		if(!beginModification())
+			return;
+
+		final ScoreRecord record = new ScoreRecord(score);
+		getRowBuilder(record.getTrusterID()).givenScores().put(record.getTrusteeID(), record);
+		getRowBuilder(record.getTrusteeID()).receivedScores().put(record.getTrusterID(), record);
+	}
+
+	/** Must be called when a {@link Score} was deleted. */
+	synchronized void removeScore(String trusterID, String trusteeID) {
+		if(!beginModification())
+			return;
+
+		getRowBuilder(trusterID).givenScores().remove(trusteeID);
+		getRowBuilder(trusteeID).receivedScores().remove(trusterID);
+	}
+
+	/**
+	 * Discards the snapshot and all buffered changes. The next call to {@link #getSnapshot()}
+	 * will re-load it from the database. Readers which already obtained a snapshot may continue
+	 * to use it. */
+	synchronized void invalidate() {
+		if(logMINOR)
+			Logger.minor(this, "invalidate()", new Exception("Stack trace for debugging"));
+
+		mPublished = null;
+		mUncommitted.clear();
+		mCommitted.clear();
+	}
+
+	/**
+	 * @return False if the modification shall be ignored because there is no snapshot to
+	 *     modify. */
+	private boolean beginModification() {
+		detectTransactionEnd();
+
+		if(mPublished == null)
+			return false;
+
+		mCommitCountAtChange = Persistent.getCommitCount();
+		mRollbackCountAtChange = Persistent.getRollbackCount();
+		return true;
+	}
+
+	/**
+	 * Moves the {@link #mUncommitted} changes to {@link #mCommitted} if their transaction was
+	 * committed, or discards them if it was rolled back.
+	 * All changes in mUncommitted belong to the same transaction: A commit in between two of
+	 * them would have been detected by this function when the second one was made.
+	 * If both a commit and a rollback happened since the last change, we cannot tell which of
+	 * them ended its transaction, and thus {@link #invalidate()} the snapshot. Rollbacks are rare
+	 * so this is acceptable. */
+	private void detectTransactionEnd() {
+		if(mUncommitted.isEmpty())
+			return;
+
+		final boolean committed = Persistent.getCommitCount() != mCommitCountAtChange;
+		final boolean rolledBack = Persistent.getRollbackCount() != mRollbackCountAtChange;
+
+		if(rolledBack) {
+			if(committed) {
+				if(logMINOR) Logger.minor(this, "Commit and rollback happened, re-loading.");
+				invalidate();
+			} else {
+				if(logMINOR) Logger.minor(this, "Transaction was rolled back, discarding changes.");
+				mUncommitted.clear();
+			}
+		} else if(committed) {
+			for(Entry<String, RowBuilder> entry : mUncommitted.entrySet())
+				mCommitted.put(entry.getKey(), entry.getValue().build());
+
+			mUncommitted.clear();
+		}
+	}
+
+	/** Gets the {@link RowBuilder} of the current transaction for the given Identity, or creates
+	 *  it as a copy of the newest committed version of its {@link Row}. */
+	private RowBuilder getRowBuilder(String identityID) {
+		RowBuilder builder = mUncommitted.get(identityID);
+
+		if(builder == null) {
+			Row row = mCommitted.get(identityID);
+			if(row == null)
+				row = mPublished.getRow(identityID);
+
+			builder = new RowBuilder(row);
+			mUncommitted.put(identityID, builder);
+		}
+
+		return builder;
+	}
+
+	private void publishCommitted() {
+		if(mCommitted.isEmpty())
+			return;
+
+		final HashMap<String, Row> rows = new HashMap<String, Row>(mPublished.getRows());
+
+		for(Entry<String, Row> entry : mCommitted.entrySet()) {
+			if(entry.getValue().isEmpty())
+				rows.remove(entry.getKey());
+			else
+				rows.put(entry.getKey(), entry.getValue());
+		}
+
+		mCommitted.clear();
+		mPublished = new ReadSnapshot(Persistent.getCommitCount(), rows);
+		++mPublishCount;
+
+		if(logDEBUG) Logger.debug(this, "Published snapshot version " + mPublished.getVersion());
+	}
+
+	/** Must be called while holding the transactionLock so there are no uncommitted changes. */
+	private void load() {
+		if(logMINOR) Logger.minor(this, "Loading read snapshot from database...");
+
+		assert(mUncommitted.isEmpty());
+		mCommitted.clear();
+
+		final HashMap<String, RowBuilder> builders = new HashMap<String, RowBuilder>();
+
+		for(Identity identity : mWebOfTrust.getAllIdentities())
+			getRowBuilder(builders, identity.getID()).mIdentity = identity.clone();
+
+		for(Trust trust : mWebOfTrust.getAllTrusts()) {
+			final TrustRecord record = new TrustRecord(trust);
+			getRowBuilder(builders, record.getTrusterID()).givenTrusts()
+				.put(record.getTrusteeID(), record);
+			getRowBuilder(builders, record.getTrusteeID()).receivedTrusts()
+				.put(record.getTrusterID(), record);
+		}
+
+		for(Score score : mWebOfTrust.getAllScores()) {
+			final ScoreRecord record = new ScoreRecord(score);
+			getRowBuilder(builders, record.getTrusterID()).givenScores()
+				.put(record.getTrusteeID(), record);
+			getRowBuilder(builders, record.getTrusteeID()).receivedScores()
+				.put(record.getTrusterID(), record);
+		}
+
+		final HashMap<String, Row> rows = new HashMap<String, Row>(builders.size() * 2);
+		for(Entry<String, RowBuilder> entry : builders.entrySet())
+			rows.put(entry.getKey(), entry.getValue().build());
+
+		mPublished = new ReadSnapshot(Persistent.getCommitCount(), rows);
+		++mLoadCount;
+		++mPublishCount;
+
+		if(logMINOR) {
+			Logger.minor(this, "Loaded read snapshot: " + mPublished.getIdentityCount()
+				+ " Identitys, " + mPublished.getTrustCount() + " Trusts, "
+				+ mPublished.getScoreCount() + " Scores.");
+		}
+	}
+
+	private static RowBuilder getRowBuilder(HashMap<String, RowBuilder> builders,
+			String identityID) {
+
+		RowBuilder builder = builders.get(identityID);
+
+		if(builder == null) {
+			builder = new RowBuilder(Row.EMPTY);
+			builders.put(identityID, builder);
+		}
+
+		return builder;
+	}
+
+	/** For statistics and unit tests. */
+	synchronized int getLoadCount() {
+		return mLoadCount;
+	}
+
+	/** For statistics and unit tests. */
+	synchronized int getPublishCount() {
+		return mPublishCount;
+	}
+
+}
@@ -81,10 +81,19 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 	 * query.constrain(Score.class);
 	 * query.descend("mID").constrain(mTruster.getID() + "@" + mTrustee.getID()).identity();
 	 * final ObjectSet<Score> result = new Persistent.InitializingObjectSet<Score>(this, query); 
+	 * 
+	 * The ID is not indexed anymore though: Queries use the index on {@link #mKey} instead and
+	 * only constrain the ID to filter out objects with the same key.
 	 */
-	@IndexedField
 	private String mID;
 	
+	/**
+	 * {@link IdentityPairKey#fromID(String)} of {@link #mID}. Indexed instead of the ID because
+	 * the index is a lot smaller and faster.
+	 */
+	@IndexedField
+	private long mKey;
+	
 	/** The actual score of the Identity. Used to decide if the OwnIdentity sees the Identity or not */
 	@IndexedField
 	private int mValue;
@@ -109,6 +118,21 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
      *  Stored as String to reduce db4o maintenance overhead. */
     private String mVersionID = null;
 
+	/**
+	 * {@link #getValue()} as it is stored in the database if {@link #mStoredValuesKnown}, i.e.
+	 * if it may have been changed since this Score was last stored. Passed to the trustee by
+	 * {@link #storeWithoutCommit()} and {@link #deleteWithoutCommit()} so it only needs to query
+	 * its other Scores if this was its best one, see
+	 * {@link Identity#onScoreStoredWithoutCommit(Score, boolean, int, int)}.
+	 * Not stored in the database. */
+	private transient int mStoredValue;
+
+	/** {@link #getCapacity()} as it is stored in the database, see {@link #mStoredValue}. */
+	private transient int mStoredCapacity;
+
+	/** @see #mStoredValue */
+	private transient boolean mStoredValuesKnown = false;
+
 
 	/**
 	 * A class for generating and validating Score IDs.
@@ -142,7 +166,16 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 			mTrusteeID = trustee.getID();
 			mID = truster.getID() + "@" + trustee.getID();
 		}
-		
+
+		/**
+		 * Does not validate the given IDs. To be used by code which obtained them from a trusted
+		 * source such as the {@link TrustGraph}, where the Identity objects are not at hand. */
+		ScoreID(String trusterID, String trusteeID) {
+			mTrusterID = trusterID;
+			mTrusteeID = trusteeID;
+			mID = trusterID + "@" + trusteeID;
+		}
+
 		private ScoreID(String id) {
 			if(id.length() != LENGTH)
 				throw new IllegalArgumentException("ID has wrong length: " + id.length());
@@ -243,6 +276,7 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 		mTruster = myTruster;
 		mTrustee = myTrustee;
 		mID = new ScoreID(mTruster, mTrustee).toString();
+		mKey = IdentityPairKey.fromID(mID);
 		setValue(myValue);
 		setRank(myRank);
 		setCapacity(myCapacity);
@@ -303,6 +337,24 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 		if(mID != null)
 			throw new RuntimeException("ID is already set for " + this);
 		mID = new ScoreID(getTruster(), getTrustee()).toString();
+		mKey = IdentityPairKey.fromID(mID);
+	}
+
+	/** @return The indexed database key, see {@link IdentityPairKey}. */
+	long getKey() {
+		checkedActivate(1); // long is a db4o primitive type so 1 is enough
+		return mKey;
+	}
+	
+	/**
+	 * Computes the {@link #getKey()} of objects which were stored before it existed.
+	 * 
+	 * @deprecated Only for being used in {@link WebOfTrust.upgradeDB()}
+	 */
+	@Deprecated
+	protected void generateKey() {
+		checkedActivate(1);
+		mKey = IdentityPairKey.fromID(mID);
 	}
 
 	/** @deprecated Use {@link #getValue()} */
@@ -323,6 +375,7 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 	 */
 	protected void setValue(int newValue) {
 		checkedActivate(1); // int/Date is a db4o primitive type so 1 is enough
+		rememberStoredValues();
 		
 		if(mValue == newValue)
 			return;
@@ -378,6 +431,7 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 			throw new IllegalArgumentException("Illegal capacity: " + newCapacity);
 
 		checkedActivate(1); // int/Date is a db4o primitive type so 1 is enough
+		rememberStoredValues();
 		
 		if(newCapacity == mCapacity)
 			return;
@@ -386,6 +440,26 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 		mLastChangedDate = CurrentTimeUTC.get();
 	}
 
+	/** Must be called by the setters of the value and capacity before changing them. */
+	private void rememberStoredValues() {
+		if(mStoredValuesKnown)
+			return;
+		
+		mStoredValue = mValue;
+		mStoredCapacity = mCapacity;
+		mStoredValuesKnown = true;
+	}
+
+	/** @return {@link #getValue()} as it is stored in the database. */
+	private int getStoredValue() {
+		return mStoredValuesKnown ? mStoredValue : mValue;
+	}
+
+	/** @return {@link #getCapacity()} as it is stored in the database. */
+	private int getStoredCapacity() {
+		return mStoredValuesKnown ? mStoredCapacity : mCapacity;
+	}
+
 	/**
 	 * Gets the {@link Date} when the value, capacity or rank of this score was last changed.
 	 */
@@ -411,7 +485,12 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 			activateFully();
 			throwIfNotStored(mTruster);
 			throwIfNotStored(mTrustee);
+			final boolean wasStored = mDB.isStored(this);
+			final int oldValue = getStoredValue();
+			final int oldCapacity = getStoredCapacity();
 			checkedStore();
+			mStoredValuesKnown = false;
+			mTrustee.onScoreStoredWithoutCommit(this, wasStored, oldValue, oldCapacity);
 		}
 		catch(final RuntimeException e) {
 			// TODO: Code quality: We very likely don't need to catch/throw/rollback here:
@@ -423,6 +502,25 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 		}
 	}
 	
+	/**
+	 * Also updates the best Score / capacity of the trustee, see
+	 * {@link Identity#onScoreDeletedWithoutCommit(Score, int, int)}.
+	 */
+	@Override
+	protected void deleteWithoutCommit() {
+		checkedActivate(1); // int is a db4o primitive type so 1 is enough
+		final int oldValue = getStoredValue();
+		final int oldCapacity = getStoredCapacity();
+		super.deleteWithoutCommit();
+		
+		// The trustee is null for orphan Scores, which are deleted by the startup database
+		// cleanup code in WebOfTrust.
+		if(mTrustee != null && mDB.isStored(mTrustee)) {
+			mTrustee.initializeTransient(mWebOfTrust);
+			mTrustee.onScoreDeletedWithoutCommit(this, oldValue, oldCapacity);
+		}
+	}
+	
 	/**
 	 * Test if two scores are equal.
 	 * - <b>All</b> attributes are compared <b>except</b> the dates.<br />
@@ -467,7 +565,21 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 	@Override
 	public Score clone() {
 		activateFully();
-		final Score clone = new Score(mWebOfTrust, getTruster().clone(), getTrustee().clone(), getScore(), getRank(), getCapacity());
+		return cloneWithIdentities(mWebOfTrust, getTruster().clone(), getTrustee().clone());
+	}
+
+	/**
+	 * Same as {@link #clone()} but the clone uses the given Identitys instead of clones of the
+	 * truster / trustee. Used by {@link DatabaseCloner} to copy this Score into the database of
+	 * the given WebOfTrust, which the Identitys must be stored in. */
+	final Score cloneWithIdentities(WebOfTrustInterface wot, OwnIdentity truster,
+			Identity trustee) {
+		
+		assert(truster.getID().equals(getTruster().getID()));
+		assert(trustee.getID().equals(getTrustee().getID()));
+		
+		activateFully();
+		final Score clone = new Score(wot, truster, trustee, getScore(), getRank(), getCapacity());
 		clone.setCreationDate(getCreationDate());
 		clone.mLastChangedDate = (Date)mLastChangedDate.clone();	// Clone it because date is mutable
 		if(mVersionID != null)
@@ -475,6 +587,23 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 		return clone;
 	}
 
+	/**
+	 * Re-creates what {@link #clone()} would have returned for a Score with the given attributes.
+	 * For code which stores the attributes instead of a clone to save memory, see
+	 * {@link ScoreChangeTracker}.
+	 * 
+	 * @param truster Will be cloned.
+	 * @param trustee Will be cloned. */
+	static Score restoreClone(WebOfTrustInterface wot, OwnIdentity truster, Identity trustee,
+			int value, int rank, int capacity, Date creationDate, Date lastChangedDate) {
+		
+		final Score clone
+			= new Score(wot, truster.clone(), trustee.clone(), value, rank, capacity);
+		clone.setCreationDate(creationDate);
+		clone.mLastChangedDate = (Date)lastChangedDate.clone();	// Clone it because date is mutable
+		return clone;
+	}
+
 	@Override public Score cloneP() {
 		return clone();
 	}
@@ -498,6 +627,9 @@ public final class Score extends Persistent implements ReallyCloneable<Score>, E
 		
 		ScoreID.constructAndValidate(this, mID); // Throws if invalid
 		
+		if(mKey != IdentityPairKey.fromID(mID))
+			throw new IllegalStateException("mKey does not match mID: " + mKey);
+		
 		if(mRank < -1)
 			throw new IllegalStateException("Invalid rank: " + mRank);
 	
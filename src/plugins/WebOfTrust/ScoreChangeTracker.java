@@ -0,0 +1,569 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.Arrays.copyOf;
+import static java.util.Arrays.fill;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.ConcurrentModificationException;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+
+import plugins.WebOfTrust.Score.ScoreID;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.support.Logger;
+
+/**
+ * Records the state of {@link Score}s before they were changed by
+ * {@link WebOfTrust#updateScoresAfterDistrustWithoutCommit(Identity)}, so the
+ * {@link SubscriptionManager} and {@link IdentityFetcher} can be notified about each changed
+ * Score once after all changes have been made.
+ *
+ * A distrust of a well-connected Identity can change the Scores of a large part of the trust
+ * trees. Previously, each change was stored as a clone of the Score - which includes clones of
+ * its truster and trustee - in a HashMap keyed by the String {@link Score#getID()}. This class
+ * instead stores the changes as primitive records:
+ * - A Score is identified by an int "key" which is computed from the index of its
+ *   {@link OwnIdentity} in the list of tree owners and the {@link TrustGraph} index of its
+ *   trustee, see {@link #getKey(int, int)}. Sets of Scores can thus be stored as
+ *   {@link BitSet}s, see {@link #contains(int)}.
+ * - The old value, rank, capacity and dates of a Score are stored in parallel primitive arrays.
+ *   The clone which the notifications need is re-created from them when reading the record,
+ *   see {@link Cursor#getOldScore()}.
+ * - Once more than the configured amount of records is held in memory, they are written to a
+ *   temporary file and the arrays are re-used. Reading the records returns the ones from the
+ *   file first, so the order of {@link #record(int, Score, Score)} is preserved.
+ * The memory limit is the int {@link Configuration} parameter {@link #MEMORY_LIMIT_CONFIG_KEY},
+ * default {@link #DEFAULT_MEMORY_LIMIT}.
+ *
+ * The TrustGraph must not be modified while an instance is in use. Instances must be
+ * {@link #close()}d to delete the temporary file.
+ *
+ * Synchronization:
+ * Not thread-safe. Must be used while holding the same locks as
+ * {@link WebOfTrust#updateScoresAfterDistrustWithoutCommit(Identity)}. */
+final class ScoreChangeTracker implements Closeable {
+
+	/**
+	 * Name of the int {@link Configuration} parameter which overrides
+	 * {@link #DEFAULT_MEMORY_LIMIT}. */
+	static final String MEMORY_LIMIT_CONFIG_KEY = "ScoreChangeTracker.MaxRecordsInMemory";
+
+	/**
+	 * Default maximal amount of records which are kept in memory before they are written to the
+	 * temporary file. A record in memory uses about 50 bytes, plus the {@link Score} object it
+	 * references, so this is in the order of 10 MiB. */
+	static final int DEFAULT_MEMORY_LIMIT = 100000;
+
+	/** Flag of a record: There was no Score before the change. */
+	private static final byte CREATED = 1;
+
+	/** Flag of a record: There is no Score after the change. */
+	private static final byte DELETED = 2;
+
+	private final WebOfTrust mWebOfTrust;
+
+	private final TrustGraph mGraph;
+
+	/** {@link TrustGraph#getIdentityCount()} at construction. */
+	private final int mGraphIdentityCount;
+
+	private final List<OwnIdentity> mTreeOwners;
+
+	/** Key = {@link Identity#getID()} of the tree owner, value = index in {@link #mTreeOwners}. */
+	private final HashMap<String, Integer> mTreeOwnerIndices;
+
+	/**
+	 * IDs of Identitys which have no {@link TrustGraph} index, for example because they had
+	 * their last received Trust removed and the graph was re-loaded since then. Their identity
+	 * index as used by {@link #getKey(int, int)} is {@link #mGraphIdentityCount} plus their
+	 * position in this list. Typically empty or very small.
+	 * Shared with the trackers created by {@link #newTrackerWithSameKeys()}. */
+	private final ArrayList<String> mExtraIdentityIDs;
+
+	/** Key = element of {@link #mExtraIdentityIDs}, value = identity index. */
+	private final HashMap<String, Integer> mExtraIdentityIndices;
+
+	private final int mMemoryLimit;
+
+	private final File mSpillDirectory;
+
+	/** Index = key of a Score, true if {@link #record(int, Score, Score)} was called for it. */
+	private final BitSet mRecorded = new BitSet();
+
+	/* Records which are held in memory. Only the first mSize slots are used. */
+
+	private int mSize = 0;
+
+	private int[] mKeys = new int[16];
+
+	private byte[] mFlags = new byte[mKeys.length];
+
+	private int[] mOldValues = new int[mKeys.length];
+
+	private int[] mOldRanks = new int[mKeys.length];
+
+	private int[] mOldCapacities = new int[mKeys.length];
+
+	private long[] mOldCreationDates = new long[mKeys.length];
+
+	private long[] mOldLastChangedDates = new long[mKeys.length];
+
+	/** The Score after the change, null if it was deleted. Saves the query for it when reading
+	 *  the record. Not written to the temporary file. */
+	private Score[] mNewScores = new Score[mKeys.length];
+
+	/** Null until the memory limit is first exceeded. */
+	private File mSpillFile = null;
+
+	private DataOutputStream mSpillOutput = null;
+
+	private int mSpilledCount = 0;
+
+	/** Incremented by {@link #record(int, Score, Score)} to detect usage of a {@link Cursor} while
+	 *  records are added. */
+	private int mModificationCount = 0;
+
+
+	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
+
+	private static transient volatile boolean logDEBUG = false;
+	private static transient volatile boolean logMINOR = false;
+
+	static {
+		Logger.registerClass(ScoreChangeTracker.class);
+	}
+
+
+	/**
+	 * @param treeOwners All {@link OwnIdentity}s. Must not change while this object is in use.
+	 * @param memoryLimit See {@link #DEFAULT_MEMORY_LIMIT}. Must be at least 1.
+	 * @param spillDirectory The directory of the temporary file. */
+	ScoreChangeTracker(WebOfTrust webOfTrust, TrustGraph graph, List<OwnIdentity> treeOwners,
+			int memoryLimit, File spillDirectory) {
+
+		if(memoryLimit < 1)
+			throw new IllegalArgumentException("Illegal memory limit: " + memoryLimit);
+
+		mWebOfTrust = webOfTrust;
+		mGraph = graph;
+		mGraphIdentityCount = graph.getIdentityCount();
+		mTreeOwners = treeOwners;
+		mMemoryLimit = memoryLimit;
+		mSpillDirectory = spillDirectory;
+		mTreeOwnerIndices = new HashMap<String, Integer>(treeOwners.size() * 2);
+		mExtraIdentityIDs = new ArrayList<String>(0);
+		mExtraIdentityIndices = new HashMap<String, Integer>();
+
+		for(int i = 0; i < treeOwners.size(); ++i)
+			mTreeOwnerIndices.put(treeOwners.get(i).getID(), i);
+	}
+
+	/** @see #newTrackerWithSameKeys() */
+	private ScoreChangeTracker(ScoreChangeTracker original) {
+		mWebOfTrust = original.mWebOfTrust;
+		mGraph = original.mGraph;
+		mGraphIdentityCount = original.mGraphIdentityCount;
+		mTreeOwners = original.mTreeOwners;
+		mTreeOwnerIndices = original.mTreeOwnerIndices;
+		mExtraIdentityIDs = original.mExtraIdentityIDs;
+		mExtraIdentityIndices = original.mExtraIdentityIndices;
+		mMemoryLimit = original.mMemoryLimit;
+		mSpillDirectory = original.mSpillDirectory;
+	}
+
+	/**
+	 * @return An empty tracker which computes the same {@link #getKey(int, int)} for each Score
+	 *     as this one, so the keys of both may be mixed. For recording further changes while
+	 *     a {@link Cursor} of this one is in use. */
+	ScoreChangeTracker newTrackerWithSameKeys() {
+		return new ScoreChangeTracker(this);
+	}
+
+	/**
+	 * @return The key of the Score with the given tree owner index and identity index.
+	 *     Keys of Scores with the same trustee are consecutive, so a {@link BitSet} of them
+	 *     grows with the amount of Identitys, not with the amount of Scores.
+	 * @throws ArithmeticException If the amount of Identitys multiplied by the amount of tree
+	 *     owners does not fit into an int. */
+	int getKey(int treeOwnerIndex, int identityIndex) {
+		assert(treeOwnerIndex >= 0 && treeOwnerIndex < mTreeOwners.size());
+		assert(identityIndex >= 0);
+
+		final long key = (long)identityIndex * mTreeOwners.size() + treeOwnerIndex;
+		if(key > Integer.MAX_VALUE)
+			throw new ArithmeticException("Too many Identitys for ScoreChangeTracker: " + key);
+
+		return (int)key;
+	}
+
+	/** @see #getKey(int, int) */
+	int getKey(OwnIdentity treeOwner, Identity trustee) {
+		return getKey(getTreeOwnerIndex(treeOwner), getIdentityIndex(trustee.getID()));
+	}
+
+	int getTreeOwnerIndex(OwnIdentity treeOwner) {
+		final Integer index = mTreeOwnerIndices.get(treeOwner.getID());
+		if(index == null)
+			throw new IllegalArgumentException("Unknown tree owner: " + treeOwner);
+
+		return index;
+	}
+
+	int getTreeOwnerIndex(int key) {
+		return key % mTreeOwners.size();
+	}
+
+	OwnIdentity getTreeOwner(int key) {
+		return mTreeOwners.get(getTreeOwnerIndex(key));
+	}
+
+	/**
+	 * @return The {@link TrustGraph} index of the trustee of the Score with the given key, or
+	 *     {@link TrustGraph#NONE} if it has none. */
+	int getTrustGraphIndex(int key) {
+		final int identityIndex = key / mTreeOwners.size();
+		return identityIndex < mGraphIdentityCount ? identityIndex : TrustGraph.NONE;
+	}
+
+	private int getIdentityIndex(String identityID) {
+		final int index = mGraph.getIndex(identityID);
+		if(index != TrustGraph.NONE) {
+			assert(index < mGraphIdentityCount) : "TrustGraph was modified";
+			return index;
+		}
+
+		Integer extraIndex = mExtraIdentityIndices.get(identityID);
+		if(extraIndex == null) {
+			extraIndex = mGraphIdentityCount + mExtraIdentityIDs.size();
+			mExtraIdentityIDs.add(identityID);
+			mExtraIdentityIndices.put(identityID, extraIndex);
+		}
+		return extraIndex;
+	}
+
+	private String getIdentityID(int key) {
+		final int identityIndex = key / mTreeOwners.size();
+		return identityIndex < mGraphIdentityCount
+			? mGraph.getIdentityID(identityIndex)
+			: mExtraIdentityIDs.get(identityIndex - mGraphIdentityCount);
+	}
+
+	/** @return The {@link Score#getID()} of the Score with the given key. */
+	String getScoreID(int key) {
+		return new ScoreID(getTreeOwner(key).getID(), getIdentityID(key)).toString();
+	}
+
+	/** Queries the Score with the given key from the database. */
+	Score getScore(int key) throws NotInTrustTreeException {
+		return mWebOfTrust.getScore(getScoreID(key));
+	}
+
+	/** @return True if {@link #record(int, Score, Score)} was called for the given key. */
+	boolean contains(int key) {
+		return mRecorded.get(key);
+	}
+
+	/** @return The amount of records. */
+	int size() {
+		return mSpilledCount + mSize;
+	}
+
+	/** @return The amount of records which were written to the temporary file. */
+	int getSpilledCount() {
+		return mSpilledCount;
+	}
+
+	/**
+	 * Records a change of the Score with the given key. Must be called at most once per key.
+	 *
+	 * @param before The Score before the change, or null if it did not exist. Its values are
+	 *     copied immediately, so this must be called before modifying it.
+	 * @param after The Score after the change, or null if it was deleted. May be the same object
+	 *     as before. */
+	void record(int key, Score before, Score after) {
+		assert(before != null || after != null);
+		assert(!mRecorded.get(key)) : "Each Score must only be recorded once";
+
+		mRecorded.set(key);
+		++mModificationCount;
+
+		if(mSize == mMemoryLimit)
+			spill();
+
+		if(mSize == mKeys.length) {
+			final int newLength = Math.min(mMemoryLimit, mKeys.length * 2);
+			mKeys = copyOf(mKeys, newLength);
+			mFlags = copyOf(mFlags, newLength);
+			mOldValues = copyOf(mOldValues, newLength);
+			mOldRanks = copyOf(mOldRanks, newLength);
+			mOldCapacities = copyOf(mOldCapacities, newLength);
+			mOldCreationDates = copyOf(mOldCreationDates, newLength);
+			mOldLastChangedDates = copyOf(mOldLastChangedDates, newLength);
+			mNewScores = copyOf(mNewScores, newLength);
+		}
+
+		byte flags = 0;
+		if(before == null)
+			flags |= CREATED;
+		if(after == null)
+			flags |= DELETED;
+
+		mKeys[mSize] = key;
+		mFlags[mSize] = flags;
+		if(before != null) {
+			mOldValues[mSize] = before.getValue();
+			mOldRanks[mSize] = before.getRank();
+			mOldCapacities[mSize] = before.getCapacity();
+			mOldCreationDates[mSize] = before.getCreationDate().getTime();
+			mOldLastChangedDates[mSize] = before.getDateOfLastChange().getTime();
+		}
+		mNewScores[mSize] = after;
+		++mSize;
+	}
+
+	/** Appends the records which are held in memory to the temporary file. */
+	private void spill() {
+		try {
+			if(mSpillOutput == null) {
+				mSpillFile = File.createTempFile("ScoreChangeTracker", ".tmp", mSpillDirectory);
+				mSpillOutput = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(mSpillFile)));
+			}
+
+			for(int i = 0; i < mSize; ++i) {
+				mSpillOutput.writeInt(mKeys[i]);
+				mSpillOutput.writeByte(mFlags[i]);
+				mSpillOutput.writeInt(mOldValues[i]);
+				mSpillOutput.writeInt(mOldRanks[i]);
+				mSpillOutput.writeInt(mOldCapacities[i]);
+				mSpillOutput.writeLong(mOldCreationDates[i]);
+				mSpillOutput.writeLong(mOldLastChangedDates[i]);
+			}
+		} catch(IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		if(logMINOR)
+			Logger.minor(this, "Wrote " + mSize + " records to " + mSpillFile);
+
+		mSpilledCount += mSize;
+		mSize = 0;
+		// Allow the Score objects to be garbage collected
+		fill(mNewScores, null);
+	}
+
+	/**
+	 * @return A new {@link Cursor} over all records, in the order in which they were added.
+	 *     No records may be added while it is in use. */
+	Cursor cursor() {
+		return new Cursor();
+	}
+
+	/** Deletes the temporary file, if any. */
+	@Override public void close() {
+		if(mSpillOutput != null) {
+			try {
+				mSpillOutput.close();
+			} catch(IOException e) {
+				Logger.error(this, "Closing " + mSpillFile + " failed", e);
+			}
+			mSpillOutput = null;
+		}
+
+		if(mSpillFile != null) {
+			if(!mSpillFile.delete())
+				Logger.error(this, "Deleting " + mSpillFile + " failed");
+			mSpillFile = null;
+		}
+	}
+
+	/**
+	 * Reads the records of a {@link ScoreChangeTracker}. Usage:
+	 * <code>
+	 * Cursor cursor = tracker.cursor();
+	 * while(cursor.next())
+	 *     doSomething(cursor.getKey(), cursor.getOldScore(), cursor.getNewScore());
+	 * </code> */
+	final class Cursor {
+
+		private final int mExpectedModificationCount = mModificationCount;
+
+		/** Null if there is no temporary file or it has been read completely. */
+		private DataInputStream mSpillInput = null;
+
+		private int mSpilledRemaining = mSpilledCount;
+
+		/** Index of the current record in memory, or -1 if it was read from the file. */
+		private int mMemoryPosition = -1;
+
+		/** Next index in memory, used once the file has been read. */
+		private int mNextMemoryPosition = 0;
+
+		private int mKey;
+
+		private byte mRecordFlags;
+
+		private int mOldValue;
+
+		private int mOldRank;
+
+		private int mOldCapacity;
+
+		private long mOldCreationDate;
+
+		private long mOldLastChangedDate;
+
+		/** The Score after the change, queried lazily for records which were read from the
+		 *  file. */
+		private Score mNewScore;
+
+		/** Cache of {@link #getTrustee()}. */
+		private Identity mTrustee;
+
+
+		private Cursor() {
+			if(mSpilledRemaining > 0) {
+				try {
+					mSpillOutput.flush();
+					mSpillInput = new DataInputStream(
+						new BufferedInputStream(new FileInputStream(mSpillFile)));
+				} catch(IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+		}
+
+		/** @return False if there are no more records. Then the cursor must not be used anymore. */
+		boolean next() {
+			if(mModificationCount != mExpectedModificationCount)
+				throw new ConcurrentModificationException();
+
+			if(mSpilledRemaining > 0) {
+				try {
+					mKey = mSpillInput.readInt();
+					mRecordFlags = mSpillInput.readByte();
+					mOldValue = mSpillInput.readInt();
+					mOldRank = mSpillInput.readInt();
+					mOldCapacity = mSpillInput.readInt();
+					mOldCreationDate = mSpillInput.readLong();
+					mOldLastChangedDate = mSpillInput.readLong();
+
+					if(--mSpilledRemaining == 0) {
+						mSpillInput.close();
+						mSpillInput = null;
+					}
+				} catch(IOException e) {
+					throw new RuntimeException(e);
+				}
+
+				mMemoryPosition = -1;
+				mNewScore = null;
+				mTrustee = null;
+				return true;
+			}
+
+			if(mNextMemoryPosition == mSize)
+				return false;
+
+			final int i = mMemoryPosition = mNextMemoryPosition++;
+			mKey = mKeys[i];
+			mRecordFlags = mFlags[i];
+			mOldValue = mOldValues[i];
+			mOldRank = mOldRanks[i];
+			mOldCapacity = mOldCapacities[i];
+			mOldCreationDate = mOldCreationDates[i];
+			mOldLastChangedDate = mOldLastChangedDates[i];
+			mNewScore = mNewScores[i];
+			mTrustee = null;
+			return true;
+		}
+
+		int getKey() {
+			return mKey;
+		}
+
+		/** @return True if the Score did not exist before the change. */
+		boolean wasCreated() {
+			return (mRecordFlags & CREATED) != 0;
+		}
+
+		/** @return True if the Score was deleted by the change. */
+		boolean wasDeleted() {
+			return (mRecordFlags & DELETED) != 0;
+		}
+
+		/** Must not be used if {@link #wasCreated()}. */
+		int getOldCapacity() {
+			assert(!wasCreated());
+			return mOldCapacity;
+		}
+
+		OwnIdentity getTreeOwner() {
+			return ScoreChangeTracker.this.getTreeOwner(mKey);
+		}
+
+		/**
+		 * @return The trustee of the Score as stored in the database. Queries it if the Score
+		 *     was deleted or the record was read from the temporary file. */
+		Identity getTrustee() {
+			if(mTrustee != null)
+				return mTrustee;
+
+			if(!wasDeleted())
+				return mTrustee = getNewScore().getTrustee();
+
+			try {
+				return mTrustee = mWebOfTrust.getIdentityByID(getIdentityID(mKey));
+			} catch(UnknownIdentityException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		/**
+		 * @return A clone of the Score before the change, equal to what {@link Score#clone()}
+		 *     would have returned. Null if {@link #wasCreated()}. */
+		Score getOldScore() {
+			if(wasCreated())
+				return null;
+
+			return Score.restoreClone(mWebOfTrust, getTreeOwner(), getTrustee(), mOldValue,
+				mOldRank, mOldCapacity, new Date(mOldCreationDate), new Date(mOldLastChangedDate));
+		}
+
+		/**
+		 * @return The Score after the change as stored in the database, null if
+		 *     {@link #wasDeleted()}. Queries it if the record was read from the temporary
+		 *     file. */
+		Score getNewScore() {
+			if(wasDeleted())
+				return null;
+
+			if(mNewScore == null) {
+				assert(mMemoryPosition == -1);
+				try {
+					mNewScore = getScore(mKey);
+				} catch(NotInTrustTreeException e) {
+					throw new RuntimeException(e);
+				}
+			}
+			return mNewScore;
+		}
+
+	}
+
+}
@@ -8,6 +8,9 @@ import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.UUID;
 
+import plugins.WebOfTrust.LockOrder.Lock;
+import plugins.WebOfTrust.LockStatistics.Acquisition;
+import plugins.WebOfTrust.LockStatistics.Site;
 import plugins.WebOfTrust.exceptions.DuplicateObjectException;
 import plugins.WebOfTrust.ui.fcp.FCPInterface.FCPCallFailedException;
 import plugins.WebOfTrust.util.jobs.BackgroundJob;
@@ -68,6 +71,7 @@ import freenet.support.io.NativeThread;
  *	synchronized(Persistent.transactionLock(instance of ObjectContainer)) {
  * This does not mean that you need to take all of those locks when calling functions of the SubscriptionManager:
  * Its just the general order of locks which is used all over Web Of Trust to prevent deadlocks.
+ * It is defined centrally by {@link LockOrder}, see there for how to check it.
  * Any functions which require synchronization upon some of the locks will mention it.
  * 
  * TODO: Allow out-of-order notifications if the client desires them
@@ -230,7 +234,8 @@ public final class SubscriptionManager implements PrioRunnable {
 		/**
 		 * Sends out the notification queue for this Client, in sequence.
 		 * 
-		 * If a notification is sent successfully, it is deleted and the transaction is committed.
+		 * If a notification is sent successfully, it is deleted and the transaction is committed
+		 * using {@link Persistent#checkedCommitDeferrable(ExtObjectContainer, Object)}.
 		 * 
 		 * If sending a single notification fails, the failure counter {@link #mSendNotificationsFailureCount} is incremented
 		 * and {@link SubscriptionManager#scheduleNotificationProcessing()} is executed to retry sending the notification after some time.
@@ -271,6 +276,7 @@ public final class SubscriptionManager implements PrioRunnable {
                                 // Shutdown of WOT was requested. This is normal mode of operation,
                                 // and not the fault of the client, so we do not increment its
                                 // failure counter.
+                                Persistent.flushDeferredCommits(mDB, this);
                                 Persistent.checkedRollback(mDB, this, e, LogLevel.NORMAL);
                                 throw e;
                             } catch(Throwable e) {
@@ -280,6 +286,21 @@ public final class SubscriptionManager implements PrioRunnable {
 							    // compatible until the next build. Change it back to the
 							    // Java7-style catch(). 
 							    
+								// The transaction only contains the deletion of the previously
+								// sent notifications, which checkedCommitDeferrable() below may
+								// not have committed yet: notifySubscriberByFCP() doesn't modify
+								// the database, and deleteWithoutCommit() rolls back on its own.
+								// So we commit them to prevent the rollback from causing them to
+								// be sent again.
+								// If that fails they will be sent again, which is better than
+								// skipping the failure handling of the client below.
+								try {
+									Persistent.flushDeferredCommits(mDB, this);
+								} catch(RuntimeException flushFailure) {
+									Logger.error(manager, "sendNotifications(): Flushing the "
+										+ "deferred commits failed, the sent notifications may be "
+										+ "sent again", flushFailure);
+								}
 								Persistent.checkedRollback(mDB, this, e, LogLevel.WARNING);
 								
 								final byte failureCount = incrementSendNotificationsFailureCountWithoutCommit();
@@ -314,9 +335,13 @@ public final class SubscriptionManager implements PrioRunnable {
 							
 							// If processing of a single notification fails, we do not want the previous notifications
 							// to be sent again when the failed notification is retried. Therefore, we commit after
-							// each processed notification but do not catch RuntimeExceptions here
-							
-							Persistent.checkedCommit(mDB, this);
+							// each processed notification but do not catch RuntimeExceptions here.
+							// The commit is deferrable: Many notifications are sent in a row, and
+							// the physical commit of each would dominate the cost of sending them.
+							// Losing it upon a rollback of another transaction only causes the
+							// notification to be sent again, which clients must tolerate anyway:
+							// It also happens if the node crashes before the commit.
+							Persistent.checkedCommitDeferrable(mDB, this);
 						} catch(RuntimeException e) {
 							Persistent.checkedRollbackAndThrow(mDB, this, e);
 						}
@@ -1244,6 +1269,9 @@ public final class SubscriptionManager implements PrioRunnable {
 	public static final byte DISCONNECT_CLIENT_AFTER_FAILURE_COUNT = 5;
 	
 	
+	/** The {@link LockStatistics} {@link Site} of {@link #run()}. */
+	private static final Site RUN_SITE = new Site("SubscriptionManager.run");
+	
 	/**
 	 * The {@link WebOfTrust} to which this SubscriptionManager belongs.
 	 */
@@ -1462,6 +1490,7 @@ public final class SubscriptionManager implements PrioRunnable {
     public String subscribeToIdentities(UUID fcpID)
             throws InterruptedException, SubscriptionExistsAlreadyException {
 
+		assert(mWoT.getLockOrder().mayAcquire(Lock.WEB_OF_TRUST));
 		synchronized(mWoT) {
 		synchronized(this) {
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -1506,6 +1535,7 @@ public final class SubscriptionManager implements PrioRunnable {
 	public String subscribeToTrusts(UUID fcpID)
 	    throws InterruptedException, SubscriptionExistsAlreadyException {
 	    
+		assert(mWoT.getLockOrder().mayAcquire(Lock.WEB_OF_TRUST));
 		synchronized(mWoT) {
 		synchronized(this) {
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -1550,6 +1580,7 @@ public final class SubscriptionManager implements PrioRunnable {
 	public String subscribeToScores(UUID fcpID)
 	        throws InterruptedException, SubscriptionExistsAlreadyException {
 	    
+		assert(mWoT.getLockOrder().mayAcquire(Lock.WEB_OF_TRUST));
 		synchronized(mWoT) {
 		synchronized(this) {
 	    synchronized(Persistent.transactionLock(mDB)) {
@@ -1843,6 +1874,11 @@ public final class SubscriptionManager implements PrioRunnable {
 	protected void storeIdentityChangedNotificationWithoutCommit(final Identity oldIdentity, final Identity newIdentity) {
 		if(logDEBUG) Logger.debug(this, "storeIdentityChangedNotificationWithoutCommit(): old=" + oldIdentity + "; new=" + newIdentity);
 		
+		if(newIdentity != null)
+			mWoT.getReadSnapshotPublisher().setIdentity(newIdentity);
+		else
+			mWoT.getReadSnapshotPublisher().removeIdentity(oldIdentity.getID());
+		
 		@SuppressWarnings("unchecked")
 		final ObjectSet<IdentitiesSubscription> subscriptions = (ObjectSet<IdentitiesSubscription>)getSubscriptions(IdentitiesSubscription.class);
 		
@@ -1873,6 +1909,13 @@ public final class SubscriptionManager implements PrioRunnable {
 	protected void storeTrustChangedNotificationWithoutCommit(final Trust oldTrust, final Trust newTrust) {
 		if(logDEBUG) Logger.debug(this, "storeTrustChangedNotificationWithoutCommit(): old=" + oldTrust + "; new=" + newTrust);
 		
+		if(newTrust != null)
+			mWoT.getReadSnapshotPublisher().setTrust(newTrust);
+		else {
+			mWoT.getReadSnapshotPublisher().removeTrust(
+				oldTrust.getTruster().getID(), oldTrust.getTrustee().getID());
+		}
+		
 		@SuppressWarnings("unchecked")
 		final ObjectSet<TrustsSubscription> subscriptions = (ObjectSet<TrustsSubscription>)getSubscriptions(TrustsSubscription.class);
 		
@@ -1903,6 +1946,13 @@ public final class SubscriptionManager implements PrioRunnable {
 	protected void storeScoreChangedNotificationWithoutCommit(final Score oldScore, final Score newScore) {
 		if(logDEBUG) Logger.debug(this, "storeScoreChangedNotificationWithoutCommit(): old=" + oldScore + "; new=" + newScore);
 		
+		if(newScore != null)
+			mWoT.getReadSnapshotPublisher().setScore(newScore);
+		else {
+			mWoT.getReadSnapshotPublisher().removeScore(
+				oldScore.getTruster().getID(), oldScore.getTrustee().getID());
+		}
+		
 		@SuppressWarnings("unchecked")
 		final ObjectSet<ScoresSubscription> subscriptions = (ObjectSet<ScoresSubscription>)getSubscriptions(ScoresSubscription.class);
 		
@@ -1935,7 +1985,10 @@ public final class SubscriptionManager implements PrioRunnable {
 		 * Notification objects contain serialized clones of all required objects for deploying them, they are self-contained.
 		 * Therefore, we don't have to take the WebOfTrust lock and can execute in parallel to threads which need to lock the WebOfTrust.*/
 		// synchronized(mWoT) {
+		final Acquisition acquisition = mWoT.getLockStatistics().begin(RUN_SITE);
 		synchronized(this) {
+		acquisition.acquired(Lock.SUBSCRIPTION_MANAGER);
+		try {
 		    // TODO: Optimization: We should investigate whether we can deploy notifications in
 		    // a thread for each client instead of one thread which iterates over all clients:
 		    // This will prevent a single slow client from causing all others to starve.
@@ -1956,6 +2009,9 @@ public final class SubscriptionManager implements PrioRunnable {
 					Persistent.checkedRollback(mDB, this, e);
 				}
 			}
+		} finally {
+			acquisition.released();
+		}
 		}
 		//}
 		
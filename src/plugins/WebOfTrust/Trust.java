@@ -74,10 +74,19 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 	 * query.constrain(Trust.class);
 	 * query.descend("mID").constrain(mTruster.getID() + "@" + mTrustee.getID()).identity();
 	 * final ObjectSet<Trust> result = new Persistent.InitializingObjectSet<Trust>(this, query); 
+	 * 
+	 * The ID is not indexed anymore though: Queries use the index on {@link #mKey} instead and
+	 * only constrain the ID to filter out objects with the same key.
 	 */
-	@IndexedField
 	private String mID;
 	
+	/**
+	 * {@link IdentityPairKey#fromID(String)} of {@link #mID}. Indexed instead of the ID because
+	 * the index is a lot smaller and faster.
+	 */
+	@IndexedField
+	private long mKey;
+	
 	/** The value assigned with the trust, from -100 to +100 where negative means distrust */
 	@IndexedField
 	private byte mValue;
@@ -270,6 +279,7 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 		mTruster = truster;
 		mTrustee = trustee;
 		mID = new TrustID(mTruster, mTrustee).toString();
+		mKey = IdentityPairKey.fromID(mID);
 		setValue(value);
 		mComment = "";	// Simplify setComment
 		setComment(comment);
@@ -327,6 +337,24 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 		if(mID != null)
 			throw new RuntimeException("ID is already set for " + this);
 		mID = new TrustID(getTruster(), getTrustee()).toString();
+		mKey = IdentityPairKey.fromID(mID);
+	}
+
+	/** @return The indexed database key, see {@link IdentityPairKey}. */
+	long getKey() {
+		checkedActivate(1); // long is a db4o primitive type so 1 is enough
+		return mKey;
+	}
+	
+	/**
+	 * Computes the {@link #getKey()} of objects which were stored before it existed.
+	 * 
+	 * @deprecated Only for being used in {@link WebOfTrust.upgradeDB()}
+	 */
+	@Deprecated
+	protected void generateKey() {
+		checkedActivate(1);
+		mKey = IdentityPairKey.fromID(mID);
 	}
 
 	/** @return value Numeric value of this trust relationship. The allowed range is -100 to +100, including both limits. 0 counts as positive. */
@@ -428,18 +456,40 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 		mTrustee.initializeTransient(mWebOfTrust);
 	}
 	
+	/**
+	 * Also updates the {@link Identity#getReceivedTrustCount()} of the trustee if this Trust was
+	 * not stored yet.
+	 */
 	@Override
 	protected void storeWithoutCommit() {
 		try {		
 			activateFully();
 			throwIfNotStored(mTruster);
 			throwIfNotStored(mTrustee);
+			final boolean isNew = !mDB.isStored(this);
 			checkedStore();
+			if(isNew)
+				mTrustee.onTrustStoredWithoutCommit(this);
 		}
 		catch(final RuntimeException e) {
 			checkedRollbackAndThrow(e);
 		}
 	}
+	
+	/**
+	 * Also updates the {@link Identity#getReceivedTrustCount()} of the trustee.
+	 */
+	@Override
+	protected void deleteWithoutCommit() {
+		super.deleteWithoutCommit();
+		
+		// The trustee is null for orphan Trusts, which are deleted by the startup database
+		// cleanup code in WebOfTrust.
+		if(mTrustee != null && mDB.isStored(mTrustee)) {
+			mTrustee.initializeTransient(mWebOfTrust);
+			mTrustee.onTrustDeletedWithoutCommit(this);
+		}
+	}
 
 	/**
 	 * Test if two trust objects are equal.<br />
@@ -484,12 +534,26 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 	
 	@Override
 	public Trust clone() {
+		activateFully();
+		return cloneWithIdentities(mWebOfTrust, getTruster().clone(), getTrustee().clone());
+	}
+
+	/**
+	 * Same as {@link #clone()} but the clone uses the given Identitys instead of clones of the
+	 * truster / trustee. Used by {@link DatabaseCloner} to copy this Trust into the database of
+	 * the given WebOfTrust, which the Identitys must be stored in.
+	 * Also copies the {@link #getVersionID()}. */
+	final Trust cloneWithIdentities(WebOfTrustInterface wot, Identity truster, Identity trustee) {
+		assert(truster.getID().equals(getTruster().getID()));
+		assert(trustee.getID().equals(getTrustee().getID()));
+		
 		try {
 			activateFully();
-			Trust clone = new Trust(mWebOfTrust, getTruster().clone(), getTrustee().clone(), getValue(), getComment());
+			Trust clone = new Trust(wot, truster, trustee, getValue(), getComment());
 			clone.setCreationDate(getCreationDate());
 			clone.mLastChangedDate = (Date)mLastChangedDate.clone();	// Clone it because date is mutable
 			clone.mTrusterTrustListEdition = mTrusterTrustListEdition; // Don't use the getter since it will re-query it from the actual Identity object which might have changed
+			clone.mVersionID = mVersionID; // No need to clone, String is immutable
 			return clone;
 		} catch (InvalidParameterException e) {
 			throw new RuntimeException(e);
@@ -515,6 +579,9 @@ public final class Trust extends Persistent implements ReallyCloneable<Trust>, E
 		
 		TrustID.constructAndValidate(this, mID); // Throws if invalid
 		
+		if(mKey != IdentityPairKey.fromID(mID))
+			throw new IllegalStateException("mKey does not match mID: " + mKey);
+		
 		if(mValue < -100 || mValue > 100)
 			throw new IllegalStateException("Invalid value: " + mValue);
 		
@@ -0,0 +1,678 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.lang.Math.max;
+import static java.util.Arrays.binarySearch;
+import static java.util.Arrays.copyOf;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.Trust.TrustID;
+import freenet.support.Logger;
+
+/**
+ * In-memory mirror of the {@link Trust} table of the database, for use by the rank and
+ * {@link Score} computation algorithms of {@link WebOfTrust}.
+ * Walking the Trust graph using db4o queries such as {@link WebOfTrust#getGivenTrusts(Identity)}
+ * costs one query per vertex, which makes a full Score computation on a large database take
+ * minutes. This class instead stores the graph as primitive arrays in the "compressed sparse row"
+ * (CSR) format:
+ * - Each {@link Identity} which is involved in any Trust is assigned an int "index", see
+ *   {@link #getIndex(String)} and {@link #getIdentityID(int)}.
+ * - The Trusts which an Identity has given are stored as a "row" of consecutive slots in the
+ *   "forward" arrays, sorted by the index of the trustee. The Trusts which an Identity has
+ *   received are stored in the same way in the "reverse" arrays, sorted by the index of the
+ *   truster.
+ * - Trust values are stored as byte, just like {@link Trust#getValue()}.
+ *
+ * Other than in plain CSR, each row has its own begin, end and limit position instead of
+ * ending where the next row begins. This allows changing a Trust without re-building the whole
+ * arrays: Changing a value or removing a Trust happens in place. Adding a Trust uses the free
+ * slots at the end of its row, or if there are none, relocates the row to the end of the arrays
+ * with twice its size. The space left behind by relocated rows is reclaimed by compacting the
+ * arrays once it exceeds half of their size.
+ *
+ * Traversal of a row:
+ * <code>
+ * for(int e = graph.getGivenTrustsBegin(i); e &lt; graph.getGivenTrustsEnd(i); ++e)
+ *     doSomething(graph.getTrustee(e), graph.getGivenTrustValue(e));
+ * </code>
+ * ATTENTION: The positions are only valid until the graph is modified.
+ *
+ * Keeping the mirror current:
+ * - {@link WebOfTrust#setTrustWithoutCommit(Identity, Identity, byte, String)},
+ *   {@link WebOfTrust#removeTrustWithoutCommit(Trust)} and any other code which modifies Trust
+ *   objects must call {@link #setTrust(String, String, byte)} / {@link #removeTrust(String,
+ *   String)} / {@link #removeIdentity(String)} - or {@link #invalidate()} if modifying many
+ *   Trusts in ways which are difficult to track.
+ * - Transaction rollbacks are detected using {@link Persistent#getRollbackCount()}: If a rollback
+ *   happened after this mirror had been modified and before the modification was committed, the
+ *   mirror will be discarded and re-loaded from the database upon the next access.
+ *
+ * Synchronization:
+ * This class is not thread-safe. All functions must be called while being synchronized on the
+ * {@link WebOfTrust}. Functions which modify the mirror must additionally be called while holding
+ * the {@link Persistent#transactionLock(com.db4o.ext.ExtObjectContainer)} of the transaction
+ * which modifies the database, so the commit / rollback tracking works.
+ * An exception are read-only copies obtained by {@link #snapshot()}: They may be read by multiple
+ * threads concurrently without locking. */
+final class TrustGraph {
+
+	/** Returned by {@link #getValue(int, int)} / {@link #getIndex(String)} if there is no such
+	 *  Trust / Identity. Not a valid byte value so it cannot be confused with a Trust value. */
+	public static final int NONE = Integer.MIN_VALUE;
+
+	private final WebOfTrust mWebOfTrust;
+
+	/** True if this is a copy created by {@link #snapshot()}. */
+	private final boolean mReadOnly;
+
+	/** False if the arrays have not been loaded from the database yet or have been
+	 *  {@link #invalidate()}d. */
+	private boolean mLoaded = false;
+
+	/** Key = {@link Identity#getID()}, value = index of the Identity in the arrays. */
+	private final HashMap<String, Integer> mIdentityIndices = new HashMap<String, Integer>();
+
+	/** Inverse of {@link #mIdentityIndices}. Only the first {@link #mIdentityCount} slots are
+	 *  used. */
+	private String[] mIdentityIDs = new String[0];
+
+	private int mIdentityCount = 0;
+
+	/** Rows = truster, neighbours = trustees. */
+	private Adjacency mForward = new Adjacency();
+
+	/** Rows = trustee, neighbours = trusters. */
+	private Adjacency mReverse = new Adjacency();
+
+	/** True if this mirror was modified and the modification was not committed yet. */
+	private boolean mHasUncommittedChanges = false;
+
+	/** {@link Persistent#getCommitCount()} at the time of the last modification. */
+	private long mCommitCountAtChange;
+
+	/** {@link Persistent#getRollbackCount()} at the time of the last modification. */
+	private long mRollbackCountAtChange;
+
+	/** Statistics: How often the mirror was loaded from the database. */
+	private int mLoadCount = 0;
+
+
+	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
+
+	private static transient volatile boolean logDEBUG = false;
+	private static transient volatile boolean logMINOR = false;
+
+	static {
+		Logger.registerClass(TrustGraph.class);
+	}
+
+
+	TrustGraph(WebOfTrust webOfTrust) {
+		mWebOfTrust = webOfTrust;
+		mReadOnly = false;
+	}
+
+	/** @see #snapshot() */
+	private TrustGraph(TrustGraph original) {
+		original.ensureLoaded();
+
+		mWebOfTrust = original.mWebOfTrust;
+		mReadOnly = true;
+		mLoaded = true;
+		mIdentityIndices.putAll(original.mIdentityIndices);
+		mIdentityIDs = copyOf(original.mIdentityIDs, original.mIdentityCount);
+		mIdentityCount = original.mIdentityCount;
+		mForward = new Adjacency(original.mForward);
+		mReverse = new Adjacency(original.mReverse);
+	}
+
+	/**
+	 * Returns a read-only copy of the current state of this graph. It will not change when this
+	 * graph is modified, and can thus be read by multiple threads concurrently without locking,
+	 * for example for computing the trust trees of multiple {@link OwnIdentity}s in parallel.
+	 * The indices of the copy are the same as the ones of this graph at the time of the call.
+	 * Functions which modify the graph will throw {@link UnsupportedOperationException}.
+	 * 
+	 * Runtime is O(IdentityCount + TrustCount). */
+	TrustGraph snapshot() {
+		return new TrustGraph(this);
+	}
+
+	/**
+	 * @return The amount of indices which {@link #getIdentityID(int)} accepts.
+	 *     ATTENTION: Indices of Identitys which were deleted are not recycled until the mirror is
+	 *     re-loaded, so this may be larger than the actual amount of Identitys. */
+	public int getIdentityCount() {
+		ensureLoaded();
+		return mIdentityCount;
+	}
+
+	/** @return The index of the given {@link Identity#getID()}, or {@link #NONE} if the Identity
+	 *      has neither given nor received any Trust. */
+	public int getIndex(String identityID) {
+		ensureLoaded();
+		final Integer index = mIdentityIndices.get(identityID);
+		return index != null ? index : NONE;
+	}
+
+	/** @return The {@link Identity#getID()} of the Identity with the given index. */
+	public String getIdentityID(int index) {
+		ensureLoaded();
+		assert(index >= 0 && index < mIdentityCount);
+		return mIdentityIDs[index];
+	}
+
+	/**
+	 * @return The {@link Trust#getValue()} of the Trust from the truster with the given index to
+	 *     the trustee with the given index, or {@link #NONE} if there is no such Trust.
+	 *     The indices may be {@link #NONE}. */
+	public int getValue(int trusterIndex, int trusteeIndex) {
+		ensureLoaded();
+
+		if(trusterIndex == NONE || trusteeIndex == NONE)
+			return NONE;
+
+		return mForward.get(trusterIndex, trusteeIndex);
+	}
+
+	/** Same as {@link #getValue(int, int)} but with {@link Identity#getID()} as parameters. */
+	public int getValue(String trusterID, String trusteeID) {
+		return getValue(getIndex(trusterID), getIndex(trusteeID));
+	}
+
+	/** @return The amount of Trusts. */
+	public int getTrustCount() {
+		ensureLoaded();
+		return mForward.mEdgeCount;
+	}
+
+	/** @return Position of the first Trust which the given truster has given, see the class
+	 *      level JavaDoc for how to use it. */
+	public int getGivenTrustsBegin(int trusterIndex) {
+		ensureLoaded();
+		return mForward.mBegin[trusterIndex];
+	}
+
+	/** @return Position after the last Trust which the given truster has given.
+	 *  @see #getGivenTrustsBegin(int) */
+	public int getGivenTrustsEnd(int trusterIndex) {
+		return mForward.mEnd[trusterIndex];
+	}
+
+	/** @see #getGivenTrustsBegin(int) */
+	public int getTrustee(int givenTrustPosition) {
+		return mForward.mNeighbours[givenTrustPosition];
+	}
+
+	/** @see #getGivenTrustsBegin(int) */
+	public byte getGivenTrustValue(int givenTrustPosition) {
+		return mForward.mValues[givenTrustPosition];
+	}
+
+	/** @return Position of the first Trust which the given trustee has received, see the class
+	 *      level JavaDoc for how to use it. */
+	public int getReceivedTrustsBegin(int trusteeIndex) {
+		ensureLoaded();
+		return mReverse.mBegin[trusteeIndex];
+	}
+
+	/** @return Position after the last Trust which the given trustee has received.
+	 *  @see #getReceivedTrustsBegin(int) */
+	public int getReceivedTrustsEnd(int trusteeIndex) {
+		return mReverse.mEnd[trusteeIndex];
+	}
+
+	/** @see #getReceivedTrustsBegin(int) */
+	public int getTruster(int receivedTrustPosition) {
+		return mReverse.mNeighbours[receivedTrustPosition];
+	}
+
+	/** @see #getReceivedTrustsBegin(int) */
+	public byte getReceivedTrustValue(int receivedTrustPosition) {
+		return mReverse.mValues[receivedTrustPosition];
+	}
+
+	/** Must be called when a {@link Trust} is created or its value is changed. */
+	public void setTrust(String trusterID, String trusteeID, byte value) {
+		assert(value >= Trust.MIN_TRUST_VALUE && value <= Trust.MAX_TRUST_VALUE);
+
+		beginModification();
+
+		if(!mLoaded) // Will be loaded from the database including the change upon next access.
+			return;
+
+		final int truster = getOrCreateIndex(trusterID);
+		final int trustee = getOrCreateIndex(trusteeID);
+		mForward.put(truster, trustee, value);
+		mReverse.put(trustee, truster, value);
+	}
+
+	/** Must be called when a {@link Trust} is deleted. */
+	public void removeTrust(String trusterID, String trusteeID) {
+		beginModification();
+
+		if(!mLoaded)
+			return;
+
+		final Integer truster = mIdentityIndices.get(trusterID);
+		final Integer trustee = mIdentityIndices.get(trusteeID);
+
+		if(truster == null || trustee == null
+				|| !mForward.remove(truster, trustee) || !mReverse.remove(trustee, truster)) {
+
+			Logger.error(this, "removeTrust(): Trust is not in the graph: "
+			                 + new TrustID(trusterID, trusteeID), new RuntimeException());
+			invalidate();
+		}
+	}
+
+	/** Must be called when an {@link Identity} is deleted. Removes all its given and received
+	 *  Trusts. */
+	public void removeIdentity(String identityID) {
+		beginModification();
+
+		if(!mLoaded)
+			return;
+
+		final Integer index = mIdentityIndices.get(identityID);
+		if(index == null)
+			return; // Had no Trusts
+
+		for(int e = mForward.mBegin[index]; e < mForward.mEnd[index]; ++e) {
+			final boolean removed = mReverse.remove(mForward.mNeighbours[e], index);
+			assert(removed);
+		}
+		mForward.clear(index);
+
+		for(int e = mReverse.mBegin[index]; e < mReverse.mEnd[index]; ++e) {
+			final boolean removed = mForward.remove(mReverse.mNeighbours[e], index);
+			assert(removed);
+		}
+		mReverse.clear(index);
+
+		// We keep the index itself: Recycling it would require re-building all arrays. It will
+		// vanish upon the next load from the database.
+	}
+
+	/**
+	 * Discards the mirror. It will be re-loaded from the database upon the next access.
+	 * To be used by code which modifies the Trust table in ways which are difficult to track
+	 * with {@link #setTrust(String, String, byte)} etc., for example database upgrade code. */
+	public void invalidate() {
+		if(mReadOnly)
+			throw new UnsupportedOperationException("Snapshots are read-only!");
+
+		if(logMINOR && mLoaded)
+			Logger.minor(this, "invalidate()", new Exception("Stack trace for debugging"));
+
+		mLoaded = false;
+		mHasUncommittedChanges = false;
+		mIdentityIndices.clear();
+		mIdentityIDs = new String[0];
+		mIdentityCount = 0;
+		mForward = new Adjacency();
+		mReverse = new Adjacency();
+	}
+
+	/** For unit tests and statistics: How often the mirror was loaded from the database. */
+	int getLoadCount() {
+		return mLoadCount;
+	}
+
+	/**
+	 * Only for being used in assert()s: Loads a second mirror from the database and checks
+	 * whether it matches this one.
+	 * Runtime is O(TrustCount * log(TrustCount)). */
+	boolean isEqualToDatabase() {
+		ensureLoaded();
+
+		final TrustGraph reference = new TrustGraph(mWebOfTrust);
+
+		for(int truster = 0; truster < mIdentityCount; ++truster) {
+			for(int e = getGivenTrustsBegin(truster); e < getGivenTrustsEnd(truster); ++e) {
+				final String trusterID = mIdentityIDs[truster];
+				final String trusteeID = mIdentityIDs[getTrustee(e)];
+				final int expected = reference.getValue(trusterID, trusteeID);
+
+				if(getGivenTrustValue(e) != expected) {
+					Logger.error(this, "Mismatch for Trust " + new TrustID(trusterID, trusteeID)
+						+ ": mirror: " + getGivenTrustValue(e) + "; database: " + expected);
+					return false;
+				}
+			}
+		}
+
+		if(getTrustCount() != reference.getTrustCount()
+				|| mReverse.mEdgeCount != mForward.mEdgeCount) {
+
+			Logger.error(this, "Trust count mismatch: mirror: " + getTrustCount()
+			                 + "; database: " + reference.getTrustCount());
+			return false;
+		}
+
+		return true;
+	}
+
+
+	/**
+	 * Loads the mirror from the database if it is not loaded yet, or if the database was rolled
+	 * back after it had been modified. */
+	private void ensureLoaded() {
+		if(mReadOnly)
+			return;
+
+		detectRollback();
+
+		if(mLoaded)
+			return;
+
+		load();
+	}
+
+	/**
+	 * If a rollback happened after the last modification and before it was committed, the
+	 * mirror contains data which the database doesn't contain anymore. Thus, we then
+	 * {@link #invalidate()} it.
+	 * Notice that we cannot tell whether the rollback happened before or after the commit,
+	 * and whether it affected the transaction which modified us at all, so we conservatively
+	 * assume the worst. Rollbacks are rare so this is acceptable. */
+	private void detectRollback() {
+		if(!mHasUncommittedChanges)
+			return;
+
+		if(Persistent.getRollbackCount() != mRollbackCountAtChange) {
+			if(logMINOR) Logger.minor(this, "Transaction was rolled back, discarding mirror.");
+			invalidate();
+		} else if(Persistent.getCommitCount() != mCommitCountAtChange)
+			mHasUncommittedChanges = false;
+	}
+
+	/** Must be called by all functions which modify the mirror before modifying it. */
+	private void beginModification() {
+		if(mReadOnly)
+			throw new UnsupportedOperationException("Snapshots are read-only!");
+
+		detectRollback();
+
+		mHasUncommittedChanges = true;
+		mCommitCountAtChange = Persistent.getCommitCount();
+		mRollbackCountAtChange = Persistent.getRollbackCount();
+	}
+
+	private void load() {
+		if(logMINOR) Logger.minor(this, "Loading Trust graph from database...");
+
+		assert(!mLoaded);
+		invalidate();
+
+		// The database might contain uncommitted changes of the current transaction, which would
+		// be loaded as well. So we must treat loading like a modification to make a rollback of
+		// the current transaction discard the mirror.
+		beginModification();
+
+		int[] trusters = new int[1024];
+		int[] trustees = new int[trusters.length];
+		byte[] values = new byte[trusters.length];
+		int edgeCount = 0;
+
+		for(Trust trust : mWebOfTrust.getAllTrusts()) {
+			// Obtain the IDs from the Trust ID to avoid the database activation of the Identity
+			// objects which trust.getTruster().getID() would do.
+			final String trustID = trust.getID();
+			final String trusterID = trustID.substring(0, IdentityID.LENGTH);
+			final String trusteeID = trustID.substring(IdentityID.LENGTH + 1);
+			assert(trustID.charAt(IdentityID.LENGTH) == '@');
+
+			if(edgeCount == trusters.length) {
+				trusters = copyOf(trusters, trusters.length * 2);
+				trustees = copyOf(trustees, trusters.length);
+				values = copyOf(values, trusters.length);
+			}
+
+			trusters[edgeCount] = getOrCreateIndex(trusterID);
+			trustees[edgeCount] = getOrCreateIndex(trusteeID);
+			values[edgeCount] = trust.getValue();
+			++edgeCount;
+		}
+
+		mForward = new Adjacency(mIdentityCount, trusters, trustees, values, edgeCount);
+		mReverse = new Adjacency(mIdentityCount, trustees, trusters, values, edgeCount);
+
+		mLoaded = true;
+		++mLoadCount;
+
+		if(logMINOR) {
+			Logger.minor(this, "Loaded Trust graph from database: Identitys: " + mIdentityCount
+			                 + "; Trusts: " + edgeCount);
+		}
+	}
+
+	private int getOrCreateIndex(String identityID) {
+		final Integer existing = mIdentityIndices.get(identityID);
+		if(existing != null)
+			return existing;
+
+		if(mIdentityCount == mIdentityIDs.length)
+			mIdentityIDs = copyOf(mIdentityIDs, max(16, mIdentityIDs.length * 2));
+
+		final int index = mIdentityCount++;
+		mIdentityIDs[index] = identityID;
+		mIdentityIndices.put(identityID, index);
+		mForward.addVertex(mIdentityCount);
+		mReverse.addVertex(mIdentityCount);
+		return index;
+	}
+
+
+	/**
+	 * One direction of the graph: For each vertex, a row of neighbour vertices sorted by their
+	 * index, and the Trust values of the edges to them.
+	 * See the JavaDoc of {@link TrustGraph} for how the rows are laid out. */
+	private static final class Adjacency {
+		/** Index = vertex, value = position of the first slot of its row. */
+		int[] mBegin;
+
+		/** Index = vertex, value = position after the last used slot of its row. */
+		int[] mEnd;
+
+		/** Index = vertex, value = position after the last slot reserved for its row.
+		 *  The slots in [mEnd, mLimit) are free for adding edges without relocating the row. */
+		int[] mLimit;
+
+		int[] mNeighbours;
+
+		byte[] mValues;
+
+		/** Amount of slots of {@link #mNeighbours} which are used by rows, including their free
+		 *  slots, or are {@link #mGarbage}. */
+		int mSize;
+
+		/** Amount of slots in [0, {@link #mSize}) which belong to no row anymore because rows
+		 *  were relocated. */
+		int mGarbage;
+
+		int mEdgeCount;
+
+		Adjacency() {
+			this(0, new int[0], new int[0], new byte[0], 0);
+		}
+
+		/** Creates a copy of the given Adjacency without free slots and {@link #mGarbage}. */
+		Adjacency(Adjacency original) {
+			mBegin = copyOf(original.mBegin, original.mBegin.length);
+			mEnd = copyOf(original.mEnd, original.mEnd.length);
+			mLimit = copyOf(original.mLimit, original.mLimit.length);
+			mNeighbours = original.mNeighbours;
+			mValues = original.mValues;
+			mSize = original.mSize;
+			mGarbage = original.mGarbage;
+			mEdgeCount = original.mEdgeCount;
+			// Creates new arrays, so the original ones which we share are not modified.
+			compact();
+		}
+
+		/** Constructs the rows from an unsorted edge list using counting sort. */
+		Adjacency(int vertexCount, int[] vertices, int[] neighbours, byte[] values,
+				int edgeCount) {
+
+			mBegin = new int[vertexCount];
+			mEnd = new int[vertexCount];
+			mLimit = new int[vertexCount];
+			mNeighbours = new int[edgeCount];
+			mValues = new byte[edgeCount];
+			mSize = edgeCount;
+			mGarbage = 0;
+			mEdgeCount = edgeCount;
+
+			for(int i = 0; i < edgeCount; ++i)
+				++mLimit[vertices[i]];
+
+			for(int vertex = 0, position = 0; vertex < vertexCount; ++vertex) {
+				mBegin[vertex] = mEnd[vertex] = position;
+				position += mLimit[vertex];
+				mLimit[vertex] = position;
+			}
+
+			// To sort each row by neighbour with a single sort of primitives, we pack the
+			// neighbour and the value into a long. The value is packed as unsigned byte so it
+			// does not disturb the sort order.
+			final long[] packed = new long[edgeCount];
+			for(int i = 0; i < edgeCount; ++i) {
+				packed[mEnd[vertices[i]]++]
+					= ((long)neighbours[i] << 8) | (values[i] & 0xFF);
+			}
+
+			for(int vertex = 0; vertex < vertexCount; ++vertex) {
+				Arrays.sort(packed, mBegin[vertex], mEnd[vertex]);
+
+				for(int e = mBegin[vertex]; e < mEnd[vertex]; ++e) {
+					mNeighbours[e] = (int)(packed[e] >>> 8);
+					mValues[e] = (byte)packed[e];
+				}
+			}
+		}
+
+		/** Adds empty rows for all vertices below the given count which have none yet. */
+		void addVertex(int vertexCount) {
+			final int oldCount = mBegin.length;
+			if(vertexCount <= oldCount)
+				return;
+
+			final int newLength = max(vertexCount, oldCount * 2);
+			mBegin = copyOf(mBegin, newLength);
+			mEnd = copyOf(mEnd, newLength);
+			mLimit = copyOf(mLimit, newLength);
+
+			for(int vertex = oldCount; vertex < newLength; ++vertex)
+				mBegin[vertex] = mEnd[vertex] = mLimit[vertex] = mSize;
+		}
+
+		/** @return The value of the edge, or {@link TrustGraph#NONE}. */
+		int get(int vertex, int neighbour) {
+			final int position
+				= binarySearch(mNeighbours, mBegin[vertex], mEnd[vertex], neighbour);
+
+			return position >= 0 ? mValues[position] : NONE;
+		}
+
+		void put(int vertex, int neighbour, byte value) {
+			int position = binarySearch(mNeighbours, mBegin[vertex], mEnd[vertex], neighbour);
+
+			if(position >= 0) {
+				mValues[position] = value;
+				return;
+			}
+
+			// binarySearch() returns (-(insertion point) - 1) if the key is not contained.
+			position = -(position + 1);
+
+			if(mEnd[vertex] == mLimit[vertex]) {
+				final int offsetInRow = position - mBegin[vertex];
+				relocate(vertex, max(4, (mEnd[vertex] - mBegin[vertex]) * 2));
+				position = mBegin[vertex] + offsetInRow;
+			}
+
+			final int tail = mEnd[vertex] - position;
+			System.arraycopy(mNeighbours, position, mNeighbours, position + 1, tail);
+			System.arraycopy(mValues, position, mValues, position + 1, tail);
+			mNeighbours[position] = neighbour;
+			mValues[position] = value;
+			++mEnd[vertex];
+			++mEdgeCount;
+		}
+
+		/** @return False if there was no such edge. */
+		boolean remove(int vertex, int neighbour) {
+			final int position
+				= binarySearch(mNeighbours, mBegin[vertex], mEnd[vertex], neighbour);
+
+			if(position < 0)
+				return false;
+
+			final int tail = mEnd[vertex] - position - 1;
+			System.arraycopy(mNeighbours, position + 1, mNeighbours, position, tail);
+			System.arraycopy(mValues, position + 1, mValues, position, tail);
+			--mEnd[vertex];
+			--mEdgeCount;
+			return true;
+		}
+
+		/** Removes all edges of the given vertex. */
+		void clear(int vertex) {
+			mEdgeCount -= mEnd[vertex] - mBegin[vertex];
+			mEnd[vertex] = mBegin[vertex];
+		}
+
+		/** Moves the row of the vertex to the end of the arrays and gives it the given amount of
+		 *  slots. */
+		private void relocate(int vertex, int newCapacity) {
+			if(mGarbage > mSize / 2)
+				compact();
+
+			if(mSize + newCapacity > mNeighbours.length) {
+				final int newLength = max(mSize + newCapacity, mNeighbours.length * 2);
+				mNeighbours = copyOf(mNeighbours, newLength);
+				mValues = copyOf(mValues, newLength);
+			}
+
+			final int length = mEnd[vertex] - mBegin[vertex];
+			System.arraycopy(mNeighbours, mBegin[vertex], mNeighbours, mSize, length);
+			System.arraycopy(mValues, mBegin[vertex], mValues, mSize, length);
+
+			mGarbage += mLimit[vertex] - mBegin[vertex];
+			mBegin[vertex] = mSize;
+			mEnd[vertex] = mSize + length;
+			mLimit[vertex] = mSize + newCapacity;
+			mSize += newCapacity;
+		}
+
+		/** Removes the {@link #mGarbage} and the free slots of all rows. */
+		private void compact() {
+			final int[] neighbours = new int[mEdgeCount];
+			final byte[] values = new byte[mEdgeCount];
+			int position = 0;
+
+			for(int vertex = 0; vertex < mBegin.length; ++vertex) {
+				final int length = mEnd[vertex] - mBegin[vertex];
+				System.arraycopy(mNeighbours, mBegin[vertex], neighbours, position, length);
+				System.arraycopy(mValues, mBegin[vertex], values, position, length);
+				mBegin[vertex] = position;
+				position += length;
+				mEnd[vertex] = mLimit[vertex] = position;
+			}
+
+			assert(position == mEdgeCount);
+			mNeighbours = neighbours;
+			mValues = values;
+			mSize = position;
+			mGarbage = 0;
+		}
+	}
+
+}
@@ -0,0 +1,276 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.Arrays.fill;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Computes the ranks and {@link Score} values of all {@link Identity}s in the trust tree of a
+ * single {@link OwnIdentity}, as part of {@link WebOfTrust#computeAllScoresWithoutCommit()}.
+ *
+ * The computation only reads the given {@link TrustGraph}, it does not access the database.
+ * Thus, if the graph is a {@link TrustGraph#snapshot()}, the trees of multiple OwnIdentitys can
+ * be computed in parallel by executing multiple instances of this class on a
+ * {@link ForkJoinPool}. Storing the results to the database is left to the caller because it has
+ * to happen in a single thread.
+ *
+ * The results are stored in int arrays indexed by the TrustGraph index of the Identitys, and the
+ * queue of the breadth first search is an int array as well, so the computation does not
+ * allocate any objects per Identity or Trust. {@link Score} objects are only created by the
+ * caller when storing the results, and only for Scores which need to be created.
+ *
+ * See {@link WebOfTrust#computeAllScoresWithoutCommit()} for an explanation of the algorithm. */
+final class TrustTreeComputation extends RecursiveAction {
+
+	private static final long serialVersionUID = 1L;
+
+	private final TrustGraph mGraph;
+
+	/** {@link TrustGraph} index of the treeOwner. May be {@link TrustGraph#NONE} if it has
+	 *  neither given nor received any Trust. */
+	private final int mTreeOwnerIndex;
+
+	/** Rank of the treeOwner in its own trust tree, or -1 if it has none. */
+	private final int mTreeOwnerRank;
+
+	/**
+	 * Index = {@link TrustGraph} index of the identity; Value = Rank of the identity, or -1 if
+	 * it has none.
+	 * Only valid after {@link #compute()} has finished. */
+	private int[] mRanks = null;
+
+	/**
+	 * Index = {@link TrustGraph} index of the identity; Value = Capacity of the identity, see
+	 * {@link WebOfTrust#computeCapacity(TrustGraph, int, int, int)}. 0 if it has no rank.
+	 * Only valid after {@link #compute()} has finished. */
+	private int[] mCapacities = null;
+
+	/**
+	 * Index = {@link TrustGraph} index of the identity; Value = Score value of the identity.
+	 * Undefined if it has no rank and thus shouldn't have a Score object.
+	 * Only valid after {@link #compute()} has finished. */
+	private int[] mScores = null;
+
+
+	/** @param treeOwnerRank Rank of the treeOwner in its own trust tree, or -1 if it has none. */
+	TrustTreeComputation(TrustGraph graph, int treeOwnerIndex, int treeOwnerRank) {
+		assert(treeOwnerRank >= -1);
+
+		mGraph = graph;
+		mTreeOwnerIndex = treeOwnerIndex;
+		mTreeOwnerRank = treeOwnerRank;
+	}
+
+	/**
+	 * Constructs an object which contains results which were computed already by
+	 * {@link MultiSourceTrustTreeComputation}. It must not be executed. */
+	TrustTreeComputation(TrustGraph graph, int treeOwnerIndex, int treeOwnerRank, int[] ranks,
+			int[] capacities, int[] scores) {
+
+		this(graph, treeOwnerIndex, treeOwnerRank);
+		mRanks = ranks;
+		mCapacities = capacities;
+		mScores = scores;
+	}
+
+	@Override protected void compute() {
+		assert(!hasResults());
+
+		final int identityCount = mGraph.getIdentityCount();
+		mRanks = new int[identityCount];
+		mCapacities = new int[identityCount];
+		mScores = new int[identityCount];
+		fill(mRanks, -1);
+
+		// It can only give it's rank if it has a valid one
+		if(mTreeOwnerIndex == TrustGraph.NONE || mTreeOwnerRank == -1)
+			return;
+
+		computeRanks();
+		computeCapacities();
+		computeScores();
+	}
+
+	private void computeRanks() {
+		final TrustGraph graph = mGraph;
+		final int[] rankValues = mRanks;
+
+		// For each identity which is added to rankValues, all its trustees are added to unprocessedTrusters.
+		// The inner loop then pulls out one unprocessed identity and computes the rank of its trustees:
+		// All trustees which have received positive (> 0) trust will get his rank + 1
+		// Trustees with negative trust or 0 trust will get a rank of Integer.MAX_VALUE.
+		// Trusters with rank Integer.MAX_VALUE cannot inherit their rank to their trustees so the trustees will get no rank at all.
+		// Identities with no rank are considered to be not in the trust tree of the own identity and their score will be null / none.
+		//
+		// Further, if the treeOwner has assigned a trust value to an identity, the rank decision is done by only considering this trust value:
+		// The decision of the own identity shall not be overpowered by the view of the remote identities.
+		//
+		// The purpose of differentiation between Integer.MAX_VALUE and -1 is:
+		// Score objects of identities with rank Integer.MAX_VALUE are kept in the database because WoT will usually "hear" about those identities by seeing
+		// them in the trust lists of trusted identities (with 0 or negative trust values). So it must store the trust values to those identities and
+		// have a way of telling the user "this identity is not trusted" by keeping a score object of them.
+		// Score objects of identities with rank -1 are deleted because they are the trustees of distrusted identities and we will not get to the point where
+		// we hear about those identities because the only way of hearing about them is importing a trust list of a identity with Integer.MAX_VALUE rank
+		// - and we never import their trust lists.
+		// We include trust values of 0 in the set of rank Integer.MAX_VALUE (instead of only NEGATIVE trust) so that identities which only have solved
+		// introduction puzzles cannot inherit their rank to their trustees.
+		// Value = TrustGraph index of the identity
+		// An identity is only enqueued when it receives a rank which is neither -1 nor
+		// Integer.MAX_VALUE, and such a rank is never changed again. So each identity is enqueued
+		// at most once and an array of IdentityCount slots suffices, it never wraps around.
+		final int[] unprocessedTrusters = new int[rankValues.length];
+		int unprocessedBegin = 0;
+		int unprocessedEnd = 0;
+
+		// The own identity is the root of the trust tree, it should assign itself a rank of 0 , a capacity of 100 and a symbolic score of Integer.MAX_VALUE
+		// (It can only give it's rank if it has a valid one, the caller ensures that.)
+		assert(mTreeOwnerRank >= 0);
+		rankValues[mTreeOwnerIndex] = mTreeOwnerRank;
+		unprocessedTrusters[unprocessedEnd++] = mTreeOwnerIndex;
+
+		while(unprocessedBegin < unprocessedEnd) {
+			final int truster = unprocessedTrusters[unprocessedBegin++];
+
+			final int trusterRank = rankValues[truster];
+
+			// The truster cannot give his rank to his trustees because he has none (or infinite), they receive no rank at all.
+			if(trusterRank == -1 || trusterRank == Integer.MAX_VALUE) {
+				// (Normally this does not happen because we do not enqueue the identities if they have no rank but we check for security)
+				continue;
+			}
+
+			final int trusteeRank = trusterRank + 1;
+
+			for(int e = graph.getGivenTrustsBegin(truster);
+					e < graph.getGivenTrustsEnd(truster); ++e) {
+				final int trustee = graph.getTrustee(e);
+				final byte trustValue = graph.getGivenTrustValue(e);
+				final int oldTrusteeRank = rankValues[trustee];
+
+
+				if(oldTrusteeRank == -1) { // The trustee was not processed yet
+					if(trustValue > 0) {
+						rankValues[trustee] = trusteeRank;
+						unprocessedTrusters[unprocessedEnd++] = trustee;
+					}
+					else
+						rankValues[trustee] = Integer.MAX_VALUE;
+				} else {
+					// Breadth first search will process all rank one identities are processed before any rank two identities, etc.
+					assert(oldTrusteeRank == Integer.MAX_VALUE || trusteeRank >= oldTrusteeRank);
+
+					if(oldTrusteeRank == Integer.MAX_VALUE) {
+						// If we found a rank less than infinite we can overwrite the old rank with this one, but only if the infinite rank was not
+						// given by the tree owner.
+						final int treeOwnerTrust = graph.getValue(mTreeOwnerIndex, trustee);
+
+						if(treeOwnerTrust != TrustGraph.NONE) {
+							assert(treeOwnerTrust <= 0)
+								: "The treeOwner Trusts are processed before all other "
+								+ "Trusts, and their rank value overwrites the ones of "
+								+ "non-treeOwner Trusts. Thus, if there is a treeOwner "
+								+ "Trust, it should have a value which could have caused "
+								+ "the current rank of Integer.MAX_VALUE.";
+						} else if(trustValue > 0) {
+							rankValues[trustee] = trusteeRank;
+							unprocessedTrusters[unprocessedEnd++] = trustee;
+						}
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Computes the capacity of each identity once, so {@link #computeScores()} needs no
+	 * {@link TrustGraph#getValue(int, int)} lookup of the treeOwner's Trust per received Trust. */
+	private void computeCapacities() {
+		final TrustGraph graph = mGraph;
+
+		for(int identity = 0; identity < mRanks.length; ++identity) {
+			final int rank = mRanks[identity];
+
+			// The capacity is a weight function for trust values which are given from an identity:
+			// The higher the rank, the less the capacity.
+			// If the rank is Integer.MAX_VALUE (infinite) or -1 (no rank at all) the capacity will be 0.
+			if(rank != -1 && rank != Integer.MAX_VALUE) {
+				mCapacities[identity]
+					= WebOfTrust.computeCapacity(graph, mTreeOwnerIndex, identity, rank);
+			}
+		}
+	}
+
+	private void computeScores() {
+		final TrustGraph graph = mGraph;
+		final int[] capacities = mCapacities;
+
+		for(int target = 0; target < mRanks.length; ++target) {
+			// The score of an identity is the sum of all weighted trust values it has received.
+			// Each trust value is weighted with the capacity of the truster - the capacity decays with increasing rank.
+			final int targetRank = mRanks[target];
+
+			if(targetRank == -1)
+				continue;
+
+			// The treeOwner trusts himself.
+			if(targetRank == 0) {
+				mScores[target] = Integer.MAX_VALUE;
+				continue;
+			}
+
+			// If the treeOwner has assigned a trust value to the target, it always overrides the "remote" score.
+			final int treeOwnerTrust = graph.getValue(mTreeOwnerIndex, target);
+
+			if(treeOwnerTrust != TrustGraph.NONE) {
+				mScores[target] = treeOwnerTrust;
+				continue;
+			}
+
+			int targetScore = 0;
+			for(int e = graph.getReceivedTrustsBegin(target);
+					e < graph.getReceivedTrustsEnd(target); ++e) {
+				targetScore += (graph.getReceivedTrustValue(e) * capacities[graph.getTruster(e)])
+					/ 100;
+			}
+			mScores[target] = targetScore;
+		}
+	}
+
+	/** @return True if {@link #compute()} was executed, or if the results were computed by a
+	 *      {@link MultiSourceTrustTreeComputation}. */
+	private boolean hasResults() {
+		return mScores != null;
+	}
+
+	/** @return The rank of the treeOwner in its own trust tree, or -1 if it has none. */
+	int getTreeOwnerRank() {
+		return mTreeOwnerRank;
+	}
+
+	/** @return The rank of the identity with the given {@link TrustGraph} index, or -1 if it
+	 *      has none. The index may be {@link TrustGraph#NONE}. */
+	int getRank(int identityIndex) {
+		assert(hasResults());
+		return identityIndex != TrustGraph.NONE ? mRanks[identityIndex] : -1;
+	}
+
+	/** @return The capacity of the identity with the given {@link TrustGraph} index, 0 if it has
+	 *      no rank. The index may be {@link TrustGraph#NONE}. */
+	int getCapacity(int identityIndex) {
+		assert(hasResults());
+		return identityIndex != TrustGraph.NONE ? mCapacities[identityIndex] : 0;
+	}
+
+	/** @return The Score value of the identity with the given {@link TrustGraph} index. Must
+	 *      only be used if {@link #getRank(int)} is not -1. */
+	int getScore(int identityIndex) {
+		assert(hasResults());
+		assert(getRank(identityIndex) != -1);
+		return mScores[identityIndex];
+	}
+
+}
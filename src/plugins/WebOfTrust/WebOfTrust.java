@@ -3,6 +3,7 @@
  * any later version). See http://www.gnu.org/ for details of the GPL. */
 package plugins.WebOfTrust;
 
+import static java.util.Arrays.copyOf;
 import static java.util.Arrays.copyOfRange;
 import static java.util.Arrays.sort;
 
@@ -11,22 +12,30 @@ import java.io.IOException;
 import java.lang.reflect.Field;
 import java.net.MalformedURLException;
 import java.util.ArrayList;
-import java.util.Collection;
-import java.util.Comparator;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.IdentityHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.PriorityQueue;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
 
 import plugins.WebOfTrust.Identity.FetchState;
 import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.LockOrder.Lock;
+import plugins.WebOfTrust.LockStatistics.Acquisition;
+import plugins.WebOfTrust.LockStatistics.Site;
+import plugins.WebOfTrust.ReadSnapshot.ScoreRecord;
 import plugins.WebOfTrust.Score.ScoreID;
 import plugins.WebOfTrust.Trust.TrustID;
 import plugins.WebOfTrust.exceptions.DuplicateIdentityException;
@@ -42,11 +51,13 @@ import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
 import plugins.WebOfTrust.introduction.IntroductionServer;
 import plugins.WebOfTrust.introduction.OwnIntroductionPuzzle;
 import plugins.WebOfTrust.ui.fcp.DebugFCPClient;
-import plugins.WebOfTrust.ui.fcp.FCPClientReferenceImplementation.ChangeSet;
 import plugins.WebOfTrust.ui.fcp.FCPInterface;
 import plugins.WebOfTrust.ui.web.WebInterface;
 import plugins.WebOfTrust.util.IdentifierHashSet;
 import plugins.WebOfTrust.util.StopWatch;
+import plugins.WebOfTrust.util.jobs.DelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
+import plugins.WebOfTrust.util.jobs.TickerDelayedBackgroundJob;
 
 import com.db4o.Db4o;
 import com.db4o.ObjectContainer;
@@ -64,6 +75,7 @@ import freenet.keys.USK;
 import freenet.l10n.BaseL10n;
 import freenet.l10n.BaseL10n.LANGUAGE;
 import freenet.l10n.PluginL10n;
+import freenet.node.PrioRunnable;
 import freenet.node.RequestClient;
 import freenet.pluginmanager.FredPlugin;
 import freenet.pluginmanager.FredPluginBaseL10n;
@@ -77,7 +89,6 @@ import freenet.pluginmanager.PluginReplySender;
 import freenet.pluginmanager.PluginRespirator;
 import freenet.support.CurrentTimeUTC;
 import freenet.support.Executor;
-import freenet.support.IdentityHashSet;
 import freenet.support.Logger;
 import freenet.support.Logger.LogLevel;
 import freenet.support.PooledExecutor;
@@ -85,6 +96,7 @@ import freenet.support.SimpleFieldSet;
 import freenet.support.SizeUtil;
 import freenet.support.api.Bucket;
 import freenet.support.io.FileUtil;
+import freenet.support.io.NativeThread.PriorityLevel;
 
 /**
  * A web of trust plugin based on Freenet.
@@ -108,7 +120,73 @@ public final class WebOfTrust extends WebOfTrustInterface
 	public static final String SELF_URI = "/WebOfTrust";
 	
 	public static final String DATABASE_FILENAME =  WebOfTrustInterface.WOT_NAME + ".db4o"; 
-	public static final int DATABASE_FORMAT_VERSION = 7;
+	public static final int DATABASE_FORMAT_VERSION = 10;
+	
+	/**
+	 * {@link Configuration} key of a boolean which enables asynchronous Score computation:
+	 * {@link #finishTrustListImport()} then does not update the Scores but leaves the Trust
+	 * changes pending for a background job, which processes the changes of all trust lists which
+	 * were imported in the meantime at once. Disabled by default.
+	 * @see #isScoreComputationPending() */
+	public static final String ASYNCHRONOUS_SCORE_COMPUTATION_CONFIG_KEY
+		= "WebOfTrust.AsynchronousScoreComputation";
+	
+	/**
+	 * Delay of the Score computation in asynchronous mode, see
+	 * {@link #ASYNCHRONOUS_SCORE_COMPUTATION_CONFIG_KEY}. The longer it is, the more trust lists
+	 * are processed by a single computation, but the longer the Scores are outdated. */
+	public static final long PENDING_SCORES_DELAY = TimeUnit.MINUTES.toMillis(1);
+
+	/**
+	 * {@link Configuration} key of a boolean which is true while Scores are pending due to
+	 * {@link #ASYNCHRONOUS_SCORE_COMPUTATION_CONFIG_KEY}. It is stored in the same transaction as
+	 * the trust list import which deferred them. The Trust changes of pending Scores are only
+	 * known in memory, so if WoT is shut down or crashes before they were updated, a full Score
+	 * computation is done at the next startup. Not a user setting.
+	 * @see #storeScoreComputationPendingWithoutCommit(boolean) */
+	static final String SCORE_COMPUTATION_PENDING_CONFIG_KEY
+		= "WebOfTrust.ScoreComputationPending";
+
+	/**
+	 * {@link Configuration} key of a boolean which enables the measurement of lock contention by
+	 * {@link LockStatistics}. Disabled by default. Only read at startup. */
+	public static final String LOCK_STATISTICS_CONFIG_KEY = "WebOfTrust.LockStatistics";
+	
+	/**
+	 * {@link Configuration} key of an int which overrides {@link #DEFAULT_GROUP_COMMIT_BATCH_SIZE}.
+	 * 1 disables group commit. Only read at startup.
+	 * @see Persistent#checkedCommitDeferrable(ExtObjectContainer, Object) */
+	public static final String GROUP_COMMIT_BATCH_SIZE_CONFIG_KEY
+		= "WebOfTrust.GroupCommitBatchSize";
+	
+	/**
+	 * {@link Configuration} key of an int which overrides
+	 * {@link #DEFAULT_GROUP_COMMIT_MAX_LATENCY}. Only read at startup. */
+	public static final String GROUP_COMMIT_MAX_LATENCY_CONFIG_KEY
+		= "WebOfTrust.GroupCommitMaxLatencyMillis";
+	
+	/**
+	 * {@link Configuration} key of a boolean which makes the periodic defragmentation at startup
+	 * copy the database using {@link DatabaseCloner} instead of using db4o's defragmentation.
+	 * The copy does not contain the {@link IntroductionPuzzle}s, so it is disabled by default.
+	 * @see #compactDatabase(File, File, File) */
+	public static final String COMPACT_INSTEAD_OF_DEFRAG_CONFIG_KEY
+		= "WebOfTrust.CompactInsteadOfDefrag";
+	
+	/**
+	 * {@link Configuration} key of an int which enables the periodic {@link OnlineBackup} of the
+	 * database with the given interval in hours. Disabled if not set or not positive.
+	 * Only read at startup. */
+	public static final String ONLINE_BACKUP_INTERVAL_CONFIG_KEY
+		= "WebOfTrust.OnlineBackupIntervalHours";
+	
+	/**
+	 * Maximal amount of deferrable commits, such as the ones of notifications which the
+	 * {@link SubscriptionManager} has sent, which share a single physical commit. */
+	public static final int DEFAULT_GROUP_COMMIT_BATCH_SIZE = 64;
+	
+	/** Maximal delay in milliseconds of the physical commit of a deferrable commit. */
+	public static final int DEFAULT_GROUP_COMMIT_MAX_LATENCY = (int)TimeUnit.SECONDS.toMillis(1);
 
 	/* References from the node */
 	
@@ -191,6 +269,116 @@ public final class WebOfTrust extends WebOfTrustInterface
 	
 	private boolean mTrustListImportInProgress = false;
 	
+	/**
+	 * {@link TrustGraph#snapshot()} of {@link #mTrustGraph} as it was before the first Trust
+	 * change of the current trust list import, or null if nothing changed yet.
+	 * Together with {@link #mTrustListImportChangedTrusters} this is the delta which
+	 * {@link #updateScoresAfterTrustListImportWithoutCommit()} processes.
+	 * In asynchronous mode it is kept after the import, see {@link #mScoreComputationPending}.
+	 * @see #recordTrustListImportChange(String, String) */
+	private TrustGraph mTrustListImportOldGraph = null;
+	
+	/**
+	 * {@link Identity#getID()} of all Identitys whose given Trust values were changed by the
+	 * current trust list import.
+	 * @see #recordTrustListImportChange(String, String) */
+	private final HashSet<String> mTrustListImportChangedTrusters = new HashSet<String>();
+	
+	/**
+	 * {@link Identity#getID()} of all Identitys whose received Trust values were changed by the
+	 * current trust list import. Not needed for the Score computation, so unlike
+	 * {@link #mTrustListImportChangedTrusters} it is also recorded if a full computation is
+	 * scheduled, and not kept for asynchronous mode. Cleared by {@link #beginTrustListImport()}.
+	 * @see #didTrustListImportChangeReceivedTrusts(String) */
+	private final HashSet<String> mTrustListImportChangedTrustees = new HashSet<String>();
+	
+	/**
+	 * True if {@link #mTrustListImportOldGraph} and {@link #mTrustListImportChangedTrusters}
+	 * contain Trust changes of committed trust list imports whose Scores were not updated yet.
+	 * This can only happen if {@link #ASYNCHRONOUS_SCORE_COMPUTATION_CONFIG_KEY} is enabled.
+	 * Volatile so {@link #isScoreComputationPending()} can be called without locking.
+	 * @see #updatePendingScoresWithoutCommit() */
+	private volatile boolean mScoreComputationPending = false;
+	
+	/**
+	 * The {@link #mTrustListImportOldGraph} and {@link #mTrustListImportChangedTrusters} which
+	 * were last cleared in asynchronous mode, to be restored if the transaction which updated the
+	 * Scores is rolled back: The Trust changes themselves were committed by previous
+	 * transactions, so they would not be rolled back with it.
+	 * Null if there is nothing to restore.
+	 * @see #detectPendingScoresRollback() */
+	private TrustGraph mPendingScoresRollbackOldGraph = null;
+	
+	/** @see #mPendingScoresRollbackOldGraph */
+	private HashSet<String> mPendingScoresRollbackChangedTrusters = null;
+	
+	/** {@link Persistent#getCommitCount()} when {@link #mPendingScoresRollbackOldGraph} was set. */
+	private long mPendingScoresRollbackCommitCount;
+	
+	/** {@link Persistent#getRollbackCount()} when {@link #mPendingScoresRollbackOldGraph} was
+	 *  set. */
+	private long mPendingScoresRollbackRollbackCount;
+	
+	/**
+	 * Runs {@link #updatePendingScores()} after trust list imports in asynchronous mode.
+	 * A {@link MockDelayedBackgroundJob} when running without a node, i.e. in unit tests. */
+	private DelayedBackgroundJob mPendingScoresJob = MockDelayedBackgroundJob.DEFAULT;
+	
+	/**
+	 * Physically commits deferrable commits once their maximal latency has expired, see
+	 * {@link Persistent#configureGroupCommit(int, long, DelayedBackgroundJob)}.
+	 * A {@link MockDelayedBackgroundJob} when running without a node, i.e. in unit tests: There
+	 * group commit is not configured, so deferrable commits are regular ones. */
+	private DelayedBackgroundJob mGroupCommitJob = MockDelayedBackgroundJob.DEFAULT;
+	
+	/**
+	 * Loads the {@link ReadSnapshot} for {@link #getIdentityFilePriority(FreenetURI)}, which must
+	 * not wait for that itself.
+	 * A {@link MockDelayedBackgroundJob} when running without a node, i.e. in unit tests. */
+	private DelayedBackgroundJob mReadSnapshotLoadJob = MockDelayedBackgroundJob.DEFAULT;
+	
+	/**
+	 * The {@link DirtyPageTracker} which db4o uses for the file of {@link #mDB}.
+	 * Null if the database was not opened by {@link #openDatabase(File)}. */
+	private DirtyPageTracker mDirtyPageTracker = null;
+	
+	/** Null if disabled, see {@link #ONLINE_BACKUP_INTERVAL_CONFIG_KEY}. */
+	private OnlineBackup mOnlineBackup = null;
+	
+	/** Runs {@link OnlineBackup#backup()} periodically if {@link #mOnlineBackup} is enabled. */
+	private DelayedBackgroundJob mOnlineBackupJob = MockDelayedBackgroundJob.DEFAULT;
+	
+	/**
+	 * In-memory mirror of the {@link Trust} table which the rank and {@link Score} computation
+	 * algorithms use instead of database queries. Loaded lazily upon first use.
+	 * ATTENTION: Any code which modifies Trust objects must update it, see {@link TrustGraph}. */
+	private final TrustGraph mTrustGraph = new TrustGraph(this);
+	
+	/**
+	 * Publishes the {@link ReadSnapshot}s of {@link #getReadSnapshot()}. Loaded lazily upon first
+	 * use.
+	 * ATTENTION: Code which modifies Identitys, Trusts or Scores without notifying the
+	 * {@link SubscriptionManager} must update it, see {@link ReadSnapshotPublisher}. */
+	private final ReadSnapshotPublisher mReadSnapshots = new ReadSnapshotPublisher(this);
+	
+	/** @see #getLockOrder() */
+	private final LockOrder mLockOrder = new LockOrder(this);
+	
+	/** @see #getLockStatistics() */
+	private final LockStatistics mLockStatistics = new LockStatistics();
+	
+	/** @see #getTrustTreeComputationPool() */
+	private volatile ForkJoinPool mTrustTreeComputationPool = null;
+	
+	/** Used by {@link #getIdentityByID(String)}, see {@link ObjectCache}. */
+	private ObjectCache<Identity> mIdentityCache = null;
+	
+	/** Used by {@link #getTrust(String)}, see {@link ObjectCache}. */
+	private ObjectCache<Trust> mTrustCache = null;
+	
+	/** Used by {@link #getScore(String)}, see {@link ObjectCache}. */
+	private ObjectCache<Score> mScoreCache = null;
+	
 	
 	/* User interfaces */
 	
@@ -213,6 +401,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 	private long mIncrementalScoreRecomputationDueToTrustNanos = 0;
 	private long mIncrementalScoreRecomputationDueToDistrustNanos = 0;
 	private long mIncrementalScoreRecomputationDueToDistrustNanosSlow = 0;
+	private int mIncrementalScoreRecomputationDueToTrustListCount = 0;
+	private long mIncrementalScoreRecomputationDueToTrustListNanos = 0;
+	/** Number of trust list imports whose Score computation was left to the
+	 *  {@link #mPendingScoresJob}. */
+	private int mDeferredTrustListImportCount = 0;
 
 	
 	/* These booleans are used for preventing the construction of log-strings if logging is disabled (for saving some cpu cycles) */
@@ -234,14 +427,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 	
 			mPR = myPR;
 			
-			/* TODO: This can be used for clean copies of the database to get rid of corrupted internal db4o structures. 
-			/* We should provide an option on the web interface to run this once during next startup and switch to the cloned database */
-			// cloneDatabase(getDatabaseFile(), new File(getUserDataDirectory(), DATABASE_FILENAME + ".clone"));
-			
 			mDB = openDatabase(getDatabaseFile());
 			
 			mConfig = getOrCreateConfig();
 			
+			createObjectCaches();
+			
+			mLockStatistics.setEnabled(mConfig.getBoolean(LOCK_STATISTICS_CONFIG_KEY));
+			
 			mSubscriptionManager = new SubscriptionManager(this);
 			
 			mPuzzleStore = new IntroductionPuzzleStore(this);
@@ -262,7 +455,12 @@ public final class WebOfTrust extends WebOfTrustInterface
 			};
 
 
-			mIdentityFileQueue = new IdentityFileDiskQueue(getUserDataDirectory());
+			mIdentityFileQueue = new IdentityFileDiskQueue(getUserDataDirectory(),
+				new IdentityFileDiskQueue.PriorityCallback() {
+					@Override public int getPriority(FreenetURI identityFileURI) {
+						return getIdentityFilePriority(identityFileURI);
+					}
+				});
 			// You may use this instead for debugging purposes, or on very high memory nodes.
 			// See its JavaDoc for requirements of making this a config option.
 			/* mIdentityFileQueue = new IdentityFileMemoryQueue(); */
@@ -272,6 +470,23 @@ public final class WebOfTrust extends WebOfTrustInterface
 			mIdentityFileProcessor = new IdentityFileProcessor(
 				mIdentityFileQueue, mPR.getNode().getTicker(), mXMLTransformer);
 
+			mPendingScoresJob = new TickerDelayedBackgroundJob(new PendingScoresUpdater(),
+				"WoT Score computation", PENDING_SCORES_DELAY, mPR.getNode().getTicker());
+
+			final int groupCommitMaxLatency
+				= mConfig.containsInt(GROUP_COMMIT_MAX_LATENCY_CONFIG_KEY)
+				? mConfig.getInt(GROUP_COMMIT_MAX_LATENCY_CONFIG_KEY)
+				: DEFAULT_GROUP_COMMIT_MAX_LATENCY;
+			mGroupCommitJob = new TickerDelayedBackgroundJob(new GroupCommitFlusher(),
+				"WoT group commit", groupCommitMaxLatency, mPR.getNode().getTicker());
+			mReadSnapshotLoadJob = new TickerDelayedBackgroundJob(new ReadSnapshotLoader(),
+				"WoT read snapshot loader", 0, mPR.getNode().getTicker());
+			Persistent.configureGroupCommit(
+				mConfig.containsInt(GROUP_COMMIT_BATCH_SIZE_CONFIG_KEY)
+					? mConfig.getInt(GROUP_COMMIT_BATCH_SIZE_CONFIG_KEY)
+					: DEFAULT_GROUP_COMMIT_BATCH_SIZE,
+				groupCommitMaxLatency, mGroupCommitJob);
+
 			mFetcher = new IdentityFetcher(this, getPluginRespirator(), mIdentityFileQueue);
 
 
@@ -310,8 +525,16 @@ public final class WebOfTrust extends WebOfTrustInterface
 						
 			// Database is up now, integrity is checked. We can start to actually do stuff
 			
-			// TODO: This can be used for doing backups. Implement auto backup, maybe once a week or month
-			//backupDatabase(new File(getUserDataDirectory(), DATABASE_FILENAME + ".backup"));
+			final int onlineBackupInterval = mConfig.containsInt(ONLINE_BACKUP_INTERVAL_CONFIG_KEY)
+				? mConfig.getInt(ONLINE_BACKUP_INTERVAL_CONFIG_KEY) : 0;
+			if(onlineBackupInterval > 0) {
+				mOnlineBackup = new OnlineBackup(mDB, mDirtyPageTracker,
+					new File(getUserDataDirectory(), DATABASE_FILENAME + ".onlinebackup"));
+				mOnlineBackupJob = new TickerDelayedBackgroundJob(new OnlineBackupRunner(),
+					"WoT online backup", TimeUnit.HOURS.toMillis(onlineBackupInterval),
+					mPR.getNode().getTicker());
+				mOnlineBackupJob.triggerExecution();
+			}
 
 			mSubscriptionManager.start();
 			
@@ -371,6 +594,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		mConfig = getOrCreateConfig();
 		
+		createObjectCaches();
+		
 		if(mConfig.getDatabaseFormatVersion() != WebOfTrust.DATABASE_FORMAT_VERSION)
 			throw new RuntimeException("Database format version mismatch. Found: " + mConfig.getDatabaseFormatVersion() + 
 					"; expected: " + WebOfTrust.DATABASE_FORMAT_VERSION);
@@ -409,6 +634,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 		/* mIdentityFileQueue.start(); */    // Not necessary, has no thread.
 		
 		mFetcher.start();
+		
+		// Done by maybeVerifyAndCorrectStoredScores() in the regular constructor.
+		if(mConfig.getBoolean(SCORE_COMPUTATION_PENDING_CONFIG_KEY))
+			verifyAndCorrectStoredScores();
 
 		mFCPInterface = new FCPInterface(this);
 		
@@ -466,7 +695,7 @@ public final class WebOfTrust extends WebOfTrustInterface
         
         // Registration of indices (also performance)
         
-        // ATTENTION: Also update cloneDatabase() when adding new classes!
+        // ATTENTION: Also update DatabaseCloner when adding new classes!
         @SuppressWarnings("unchecked")
 		final Class<? extends Persistent>[] persistentClasses = new Class[] {
         	Configuration.class,
@@ -525,6 +754,11 @@ public final class WebOfTrust extends WebOfTrustInterface
     		}
         }
         
+        // Trust and Score were queried by their mID before database format version 9, they use
+        // mKey now. db4o keeps the index of existing databases unless it is disabled explicitly.
+        cfg.objectClass(Trust.class).objectField("mID").indexed(false);
+        cfg.objectClass(Score.class).objectField("mID").indexed(false);
+        
         // TODO: We should check whether db4o inherits the indexed attribute to child classes, for example for this one:
         // Unforunately, db4o does not provide any way to query the indexed() property of fields, you can only set it
         // We might figure out whether inheritance works by writing a benchmark.
@@ -580,6 +814,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 			}
 		}	
 		
+		// Result of an interrupted compactDatabase() if it exists.
+		final File compactFile = new File(databaseFile.getAbsolutePath() + ".compact");
+		
 		// Open it first, because defrag will throw if it needs to upgrade the file.
 		{
 			// Db4o will throw during defragmentation if new fields were added to classes and we didn't initialize their values on existing
@@ -588,16 +825,40 @@ public final class WebOfTrust extends WebOfTrustInterface
 
 			if(!canDefragment) {
 				Logger.normal(this, "Not defragmenting, database format version changed!");
+				// The copy was created by a different version of WoT, don't resume it.
+				FileUtil.secureDelete(compactFile);
 				return;
 			}
 			
 			final ObjectContainer database = Db4o.openFile(getNewDatabaseConfiguration(), databaseFile.getAbsolutePath());
+			final Configuration databaseConfig = peekConfiguration(this, database.ext());
+			
+			final boolean compact = databaseConfig != null
+				&& databaseConfig.getBoolean(COMPACT_INSTEAD_OF_DEFRAG_CONFIG_KEY);
 
 			// Check whether the minimal delay between defragmentations is expired
 			// TODO: Code quality: Only update last defrag date if defragmentation actually succeeds
-			boolean mayDefrag = tryUpdateLastDefragDate(this, database.ext());
+			boolean mayDefrag = databaseConfig != null && tryUpdateLastDefragDate(databaseConfig);
 			
 			while(!database.close());
+			
+			if(compact) {
+				// An interrupted compaction is resumed even if the minimal delay is not expired:
+				// It happens before the database is opened, so the database was not modified
+				// since then, which resuming requires.
+				if(mayDefrag || compactFile.exists())
+					compactDatabase(databaseFile, compactFile, backupFile);
+				else
+					Logger.normal(this, "Not compacting, minimal delay not expired.");
+				
+				return;
+			}
+			
+			if(compactFile.exists()) {
+				Logger.normal(this, "Compaction was disabled, deleting interrupted compaction: "
+					+ compactFile.getAbsolutePath());
+				FileUtil.secureDelete(compactFile);
+			}
 
 			if(!mayDefrag) {
 				Logger.normal(this, "Not defragmenting, minimal delay not expired.");
@@ -667,6 +928,68 @@ public final class WebOfTrust extends WebOfTrustInterface
 	}
 
 	
+	/**
+	 * Alternative to db4o's defragmentation, see {@link #COMPACT_INSTEAD_OF_DEFRAG_CONFIG_KEY}:
+	 * Copies the database to the compactFile using {@link DatabaseCloner} and replaces the
+	 * database with the copy. The original database is kept as the backupFile until then.
+	 * If the compactFile exists, it is the result of an interrupted compaction, which is resumed.
+	 * 
+	 * Does not do proper synchronization! Only use it in single-thread-mode during startup.
+	 */
+	private synchronized void compactDatabase(File databaseFile, File compactFile, File backupFile)
+			throws IOException {
+		
+		Logger.normal(this, (compactFile.exists() ? "Resuming" : "Starting")
+			+ " compaction of database to " + compactFile.getAbsolutePath());
+		
+		WebOfTrust source = null;
+		WebOfTrust target = null;
+		
+		try {
+			source = new WebOfTrust(databaseFile.getAbsolutePath());
+			target = new WebOfTrust(compactFile.getAbsolutePath());
+			new DatabaseCloner(source, target, DatabaseCloner.DEFAULT_BATCH_SIZE, null).run();
+		} catch(RuntimeException e) {
+			// Resuming would fail the same way, so start from scratch next time.
+			Logger.error(this, "Compaction failed, keeping the old database", e);
+			FileUtil.secureDelete(compactFile);
+			return;
+		} finally {
+			if(source != null) {
+				source.terminate();
+				assert(source.isTerminated());
+			}
+			
+			if(target != null) {
+				target.terminate();
+				assert(target.isTerminated());
+			}
+		}
+		
+		if(!databaseFile.renameTo(backupFile)) {
+			Logger.error(this, "Unable to rename database to backup file, keeping the old database: "
+				+ backupFile.getAbsolutePath());
+			FileUtil.secureDelete(compactFile);
+			return;
+		}
+		
+		// If we are shot before the next rename, defragmentDatabase() will restore the backup
+		// during the next startup, and then resume the compaction with the existing compactFile.
+		if(!compactFile.renameTo(databaseFile)) {
+			Logger.error(this, "Unable to rename compacted database, restoring backup: "
+				+ compactFile.getAbsolutePath());
+			restoreDatabaseBackup(databaseFile, backupFile);
+			return;
+		}
+		
+		final long oldSize = backupFile.length();
+		final long newSize = databaseFile.length();
+		final double change = 100.0 * (((double)(oldSize - newSize)) / ((double)oldSize));
+		FileUtil.secureDelete(backupFile);
+		Logger.normal(this, "Compaction completed. "+SizeUtil.formatSize(oldSize)+" ("+oldSize+") -> "
+				+SizeUtil.formatSize(newSize)+" ("+newSize+") ("+(int)change+"% shrink)");
+	}
+	
 	/**
 	 * ATTENTION: This function is duplicated in the Freetalk plugin, please backport any changes.
 	 * 
@@ -690,7 +1013,13 @@ public final class WebOfTrust extends WebOfTrustInterface
 			throw new RuntimeException(e);
 		}
 
-		return Db4o.openFile(getNewDatabaseConfiguration(), file.getAbsolutePath()).ext();
+		final com.db4o.config.Configuration config = getNewDatabaseConfiguration();
+		// Allows OnlineBackup to only copy the pages which were written since the last backup.
+		final DirtyPageTracker tracker = new DirtyPageTracker(config.io());
+		config.io(tracker);
+		final ExtObjectContainer db = Db4o.openFile(config, file.getAbsolutePath()).ext();
+		mDirtyPageTracker = tracker.getOpenedFile();
+		return db;
 	}
 	
 	/**
@@ -710,6 +1039,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		Logger.normal(this, "Upgrading database format version " + databaseFormatVersion);
 		
 		//synchronized(this) { // Already done at function level
+		assert(mLockOrder.mayAcquire(Lock.INTRODUCTION_PUZZLE_STORE));
 		synchronized(mPuzzleStore) { // For deleteWithoutCommit(Identity) / restoreOwnIdentityWithoutCommit()
 		synchronized(mFetcher) { // For deleteWithoutCommit(Identity) / restoreOwnIdentityWithoutCommit()
 		synchronized(mSubscriptionManager) { // For deleteWithoutCommit(Identity) / restoreOwnIdentityWithoutCommit()
@@ -721,6 +1051,15 @@ public final class WebOfTrust extends WebOfTrustInterface
                 if (databaseFormatVersion < 5)
                     upgradeDatabaseFormatVersion12345();
 
+				// upgradeDatabaseFormatVersion8() must be called before the other upgrade functions
+				// as well: getTrust() / getScore() don't find objects without a key.
+				// Version 1 has no IDs yet, upgradeDatabaseFormatVersion1() computes IDs and keys.
+				if(databaseFormatVersion > 1 && databaseFormatVersion < 9)
+					upgradeDatabaseFormatVersion8();
+				// Same for upgradeDatabaseFormatVersion9(): Identity.getEdition() needs it.
+				if(databaseFormatVersion < 10)
+					upgradeDatabaseFormatVersion9();
+
 				switch(databaseFormatVersion) {
 					case 1: upgradeDatabaseFormatVersion1(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
 					case 2: upgradeDatabaseFormatVersion2(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
@@ -732,10 +1071,24 @@ public final class WebOfTrust extends WebOfTrustInterface
 					case 4: upgradeDatabaseFormatVersion4(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
                     case 5: upgradeDatabaseFormatVersion12345(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
 					case 6: upgradeDatabaseFormatVersion6(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
-					case 7: break;
+					case 7: upgradeDatabaseFormatVersion7(); mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
+					case 8:
+						// Was done above already.
+						/* upgradeDatabaseFormatVersion8(); */
+						mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
+					case 9:
+						// Was done above already.
+						/* upgradeDatabaseFormatVersion9(); */
+						mConfig.setDatabaseFormatVersion(++databaseFormatVersion);
+					case 10: break;
 					default:
 						throw new UnsupportedOperationException("Your database is newer than this WOT version! Please upgrade WOT.");
 				}
+				
+				// The upgrade functions modify Trusts without keeping the TrustGraph current.
+				mTrustGraph.invalidate();
+				// Neither do they notify the SubscriptionManager.
+				mReadSnapshots.invalidate();
 
 				mConfig.storeAndCommit();
 				Logger.normal(this, "Upgraded database to format version " + databaseFormatVersion);
@@ -996,6 +1349,69 @@ public final class WebOfTrust extends WebOfTrustInterface
 		mConfig.storeWithoutCommit();
 	}
 
+	/**
+	 * Upgrades database format version 7 to version 8.<br><br>
+	 *
+	 * Initializes values of:<br>
+	 * {@link Identity#hasScores()}<br>
+	 * {@link Identity#getBestScore()}<br>
+	 * {@link Identity#getBestCapacity()} */
+	private void upgradeDatabaseFormatVersion7() {
+		Logger.normal(this, "Computing best Score / capacity of all Identitys...");
+		
+		for(Identity identity : getAllIdentities())
+			identity.updateBestScoreWithoutCommit(null);
+		
+		Logger.normal(this, "Finished computing best Score / capacity of all Identitys.");
+	}
+
+	/**
+	 * Upgrades database format version 8 to version 9.<br><br>
+	 *
+	 * Initializes the values of {@link Trust#getKey()} and {@link Score#getKey()}, which are
+	 * indexed instead of their IDs now. The index upon the IDs is dropped by
+	 * {@link #getNewDatabaseConfiguration()}.<br><br>
+	 *
+	 * Must be called before any other upgrade code which uses {@link #getTrust(String)} or
+	 * {@link #getScore(String)}, see {@link #upgradeDB()}. */
+	@SuppressWarnings("deprecation")
+	private void upgradeDatabaseFormatVersion8() {
+		Logger.normal(this, "Generating Trust keys...");
+		for(Trust trust : getAllTrusts()) {
+			trust.generateKey();
+			trust.storeWithoutCommit();
+		}
+		
+		Logger.normal(this, "Generating Score keys...");
+		for(Score score : getAllScores()) {
+			score.generateKey();
+			score.storeWithoutCommit();
+		}
+		
+		Logger.normal(this, "Finished generating Trust / Score keys.");
+	}
+
+	/**
+	 * Upgrades database format version 9 to version 10.<br><br>
+	 *
+	 * Initializes values of:<br>
+	 * {@link Identity#getEdition()}<br>
+	 * {@link Identity#getReceivedTrustCount()}<br><br>
+	 *
+	 * They are stored and indexed so {@link #getAllIdentitiesFilteredAndSorted(OwnIdentity,
+	 * String, SortOrder)} can let the database sort by them.<br>
+	 * Must be called before any other upgrade code which uses {@link Identity#getEdition()}, see
+	 * {@link #upgradeDB()}. */
+	@SuppressWarnings("deprecation")
+	private void upgradeDatabaseFormatVersion9() {
+		Logger.normal(this, "Computing edition / received Trust count of all Identitys...");
+		
+		for(Identity identity : getAllIdentities())
+			identity.upgradeDatabaseFormatVersion9WithoutCommit();
+		
+		Logger.normal(this, "Finished computing edition / received Trust count of all Identitys.");
+	}
+
 	/**
 	 * DO NOT USE THIS FUNCTION ON A DATABASE WHICH YOU WANT TO CONTINUE TO USE!
 	 * 
@@ -1008,6 +1424,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		Logger.normal(this, "checkForDatabaseLeaks(): Checking for database leaks... This will delete the whole database content!");
 		
 		Logger.normal(this, "checkForDatabaseLeaks(): Deleting all identities...");
+		assert(mLockOrder.mayAcquire(Lock.INTRODUCTION_PUZZLE_STORE));
 		synchronized(mPuzzleStore) {
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
@@ -1079,6 +1496,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 *  Also calls {@link #deleteDuplicateObjects()} and {@link #deleteOrphanObjects()}. */
 	public synchronized boolean verifyDatabaseIntegrity() {
 		// Take locks of all objects which deal with persistent stuff because we act upon ALL persistent objects.
+		assert(mLockOrder.mayAcquire(Lock.INTRODUCTION_PUZZLE_STORE));
 		synchronized(mPuzzleStore) {
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
@@ -1115,192 +1533,6 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 	}
 	
-	/**
-	 * Does not do proper synchronization! Only use it in single-thread-mode during startup.
-	 * 
-	 * Does a backup of the database using db4o's backup mechanism.
-	 * 
-	 * This will NOT fix corrupted internal structures of databases - use cloneDatabase if you need to fix your database.
-	 */
-	private synchronized void backupDatabase(File newDatabase) {
-		Logger.normal(this, "Backing up database to " + newDatabase.getAbsolutePath());
-		
-		if(newDatabase.exists())
-			throw new RuntimeException("Target exists already: " + newDatabase.getAbsolutePath());
-			
-		WebOfTrust backup = null;
-		
-		boolean success = false;
-		
-		try {
-			mDB.backup(newDatabase.getAbsolutePath());
-			
-			if(logDEBUG) {
-				backup = new WebOfTrust(newDatabase.getAbsolutePath());
-
-				// We do not throw to make the clone mechanism more robust in case it is being used for creating backups
-				
-				Logger.debug(this, "Checking database integrity of clone...");
-				if(backup.verifyDatabaseIntegrity())
-					Logger.debug(this, "Checking database integrity of clone finished.");
-				else 
-					Logger.error(this, "Database integrity check of clone failed!");
-
-				Logger.debug(this, "Checking this.equals(clone)...");
-				if(equals(backup))
-					Logger.normal(this, "Clone is equal!");
-				else
-					Logger.error(this, "Clone is not equal!");
-			}
-			
-			success = true;
-		} finally {
-			if(backup != null) {
-				backup.terminate();
-				assert(backup.isTerminated());
-			}
-			
-			if(!success)
-				newDatabase.delete();
-		}
-		
-		Logger.normal(this, "Backing up database finished.");
-	}
-	
-	/**
-	 * ATTENTION: Please resolve the TODOs in this function before putting it to use.
-	 * 
-	 * Does not do proper synchronization! Only use it in single-thread-mode during startup.
-	 * 
-	 * Creates a clone of the source database by reading all objects of it into memory and then writing them out to the target database.
-	 * Does NOT copy the Configuration, the IntroductionPuzzles or the IdentityFetcher command queue.
-	 * 
-	 * The difference to backupDatabase is that it does NOT use db4o's backup mechanism, instead it creates the whole database from scratch.
-	 * This is useful because the backup mechanism of db4o does nothing but copying the raw file:
-	 * It wouldn't fix databases which cannot be defragmented anymore due to internal corruption.
-	 * - Databases which were cloned by this function CAN be defragmented even if the original database couldn't.
-	 * 
-	 * HOWEVER this function uses lots of memory as the whole database is copied into memory.
-	 */
-	private synchronized void cloneDatabase(File sourceDatabase, File targetDatabase) {
-		Logger.normal(this, "Cloning " + sourceDatabase.getAbsolutePath() + " to " + targetDatabase.getAbsolutePath());
-		
-		if(targetDatabase.exists())
-			throw new RuntimeException("Target exists already: " + targetDatabase.getAbsolutePath());
-		
-		WebOfTrust original = null;
-		WebOfTrust clone = null;
-		
-		boolean success = false;
-		
-		try {
-			original = new WebOfTrust(sourceDatabase.getAbsolutePath());
-			
-			// We need to copy all objects into memory and then close & unload the source database before writing the objects to the target one.
-			// - I tried implementing this function in a way where it directly takes the objects from the source database and stores them
-			// in the target database while the source is still open. This did not work: Identity objects disappeared magically, resulting
-			// in Trust objects .storeWithoutCommit throwing "Mandatory object not found" on their associated identities.
-			
-			// TODO: Clone the Configuration object
-			
-			// This function aims to be resistant against corrupted databases, so it must be able to
-			// deal with duplicates of Identity/Trust/Score objects. Thus, it uses class
-			// IdentitifierHashSet for deduplication instead of IdentityHashSet.
-			
-			final IdentifierHashSet<Identity> allIdentities
-				= new IdentifierHashSet<Identity>(original.getAllIdentities());
-			final IdentifierHashSet<Trust> allTrusts
-				= new IdentifierHashSet<Trust>(original.getAllTrusts());
-			final IdentifierHashSet<Score> allScores
-				= new IdentifierHashSet<Score>(original.getAllScores());
-			
-			for(Identity identity : allIdentities) {
-				identity.activateFully();
-				identity.mWebOfTrust = null;
-				identity.mDB = null;
-			}
-			
-			for(Trust trust : allTrusts) {
-				trust.activateFully();
-				trust.mWebOfTrust = null;
-				trust.mDB = null;
-			}
-			
-			for(Score score : allScores) {
-				score.activateFully();
-				score.mWebOfTrust = null;
-				score.mDB = null;
-			}
-			
-			// We don't clone:
-			// - Introduction puzzles because we can just download new ones
-			// - IdentityFetcher commands because they aren't persistent across startups anyway
-			// - Subscription and Notification objects because subscriptions are also not persistent across startups.
-			
-			original.terminate();
-			assert(original.isTerminated());
-			original = null;
-			System.gc();
-			
-			// Now we write out the in-memory copies ...
-			
-			clone = new WebOfTrust(targetDatabase.getAbsolutePath());
-			
-			for(Identity identity : allIdentities) {
-				identity.initializeTransient(clone);
-				identity.storeWithoutCommit();
-			}
-			Persistent.checkedCommit(clone.getDatabase(), clone);
-			
-			for(Trust trust : allTrusts) {
-				trust.initializeTransient(clone);
-				trust.storeWithoutCommit();
-			}
-			Persistent.checkedCommit(clone.getDatabase(), clone);
-			
-			for(Score score : allScores) {
-				score.initializeTransient(clone);
-				score.storeWithoutCommit();
-			}
-			Persistent.checkedCommit(clone.getDatabase(), clone);
-			
-			// And because cloning is a complex operation we do a mandatory database integrity check
-
-			Logger.normal(this, "Checking database integrity of clone...");
-			if(clone.verifyDatabaseIntegrity())
-				Logger.normal(this, "Checking database integrity of clone finished.");
-			else 
-				throw new RuntimeException("Database integrity check of clone failed!");
-			
-			// ... and also test whether the Web Of Trust is equals() to the clone. This does a deep check of all identities, scores & trusts!
-
-			original = new WebOfTrust(sourceDatabase.getAbsolutePath());
-				
-			Logger.normal(this, "Checking original.equals(clone)...");
-			if(original.equals(clone))
-				Logger.normal(this, "Clone is equal!");
-			else
-				throw new RuntimeException("Clone is not equal!");
-
-			success = true;
-		} finally {
-			if(original != null) {
-				original.terminate();
-				assert(original.isTerminated());
-			}
-			
-			if(clone != null) {
-				clone.terminate();
-				assert(clone.isTerminated());
-			}
-			
-			if(!success)
-				targetDatabase.delete();
-		}
-		
-		Logger.normal(this, "Cloning database finished.");
-	}
-
 	/**
 	 * If a delay of {@value Configuration#DEFAULT_VERIFY_SCORES_INTERVAL} has expired since the
 	 * last execution, verifies that all stored {@link Score} objects are correct.<br><br>
@@ -1314,6 +1546,12 @@ public final class WebOfTrust extends WebOfTrustInterface
 			Logger.debug(this, "maybeVerifyAndCorrectStoredScores(): Executing verification: "
 			                 + "DEBUG logging enabled");
 			doVerify = true;
+		} else if(mConfig.getBoolean(SCORE_COMPUTATION_PENDING_CONFIG_KEY)) {
+			// The Trust changes whose Scores were pending are unknown now, so we cannot update
+			// the Scores incrementally.
+			Logger.normal(this, "maybeVerifyAndCorrectStoredScores(): Executing verification: "
+			                  + "Scores were pending at shutdown");
+			doVerify = true;
 		} else {
 			Date lastVerification = mConfig.getLastVerificationOfScoresDate();
 			Date nextVerification = new Date(lastVerification.getTime()
@@ -1344,6 +1582,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 */
 	public synchronized boolean verifyAndCorrectStoredScores() {
 		Logger.normal(this, "Veriying all stored scores ...");
+		assert(mLockOrder.mayAcquire(Lock.IDENTITY_FETCHER));
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -1398,6 +1637,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	synchronized void deleteDuplicateObjects() {
 		if(logDEBUG) Logger.debug(this, "deleteDuplicateObjects() ...");
 		
+		assert(mLockOrder.mayAcquire(Lock.INTRODUCTION_PUZZLE_STORE));
 		synchronized(mPuzzleStore) { // Needed for deleteWithoutCommit(Identity) etc.
 		synchronized(mFetcher) { // Needed for deleteWithoutCommit(Identity) etc.
 		synchronized(mSubscriptionManager) { // Needed for deleteWithoutCommit(Identity) etc.
@@ -1476,6 +1716,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 */
 	private synchronized void deleteOrphanObjects() {
 		// synchronized(this) { // For computeAllScoresWithoutCommit(). Done at function level already.
+		assert(mLockOrder.mayAcquire(Lock.IDENTITY_FETCHER));
 		synchronized(mFetcher) { // For computeAllScoresWithoutCommit()
 		synchronized(mSubscriptionManager) { // For computeAllScoresWithoutCommit()
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -1503,6 +1744,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 				}
 				
 				if(orphanTrustFound) {
+					// The TrustGraph cannot represent Trusts without truster / trustee so we
+					// don't try to update it incrementally.
+					mTrustGraph.invalidate();
+					mReadSnapshots.invalidate();
 					computeAllScoresWithoutCommit();
 					Persistent.checkedCommit(mDB, this);
 				}
@@ -1515,6 +1760,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 
 		// synchronized(this) { // For computeAllScoresWithoutCommit(). Done at function level already.
+		assert(mLockOrder.mayAcquire(Lock.IDENTITY_FETCHER));
 		synchronized(mFetcher) { // For computeAllScoresWithoutCommit()
 		synchronized(mSubscriptionManager) { // For computeAllScoresWithoutCommit()
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -1596,8 +1842,27 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 *     Will also call {@link Configuration#updateLastDefragDate()} and store the modified
 	 *     configuration.
 	 */
+	private static boolean tryUpdateLastDefragDate(Configuration config) {
+		Date lastDefragDate = config.getLastDefragDate();
+		Date nextDefragDate
+			= new Date(lastDefragDate.getTime() + Configuration.DEFAULT_DEFRAG_INTERVAL);
+	
+		if(!nextDefragDate.after(CurrentTimeUTC.get())) {
+			config.updateLastDefragDate();
+			config.storeAndCommit();
+			return true;
+		} else
+			return false;
+	}
+
+	/**
+	 * ATTENTION: This function is not synchronized, use it only in single threaded mode.
+	 * @return
+	 *     The {@link Configuration} of the given database, which is not opened by a WebOfTrust
+	 *     yet, or null if it does not contain exactly one.
+	 */
 	@SuppressWarnings("deprecation")
-	private static boolean tryUpdateLastDefragDate(WebOfTrust wot, ExtObjectContainer database) {
+	private static Configuration peekConfiguration(WebOfTrust wot, ExtObjectContainer database) {
 		final Query query = database.query();
 		query.constrain(Configuration.class);
 		@SuppressWarnings("unchecked")
@@ -1609,24 +1874,41 @@ public final class WebOfTrust extends WebOfTrustInterface
 				config.initializeTransient(wot, database);
 				// For the HashMaps to stay alive we need to activate to full depth.
 				config.checkedActivate(4);
-				
-				Date lastDefragDate = config.getLastDefragDate();
-				Date nextDefragDate
-					= new Date(lastDefragDate.getTime() + Configuration.DEFAULT_DEFRAG_INTERVAL);
-			
-				if(!nextDefragDate.after(CurrentTimeUTC.get())) {
-					config.updateLastDefragDate();
-					config.storeAndCommit();
-					return true;
-				} else
-					return false;
+				return config;
 			}
 			default:
-				Logger.error(wot, "tryUpdateLastDefragDate(): No Configuration found!");
-				return false;
+				Logger.error(wot, "peekConfiguration(): No Configuration found!");
+				return null;
 		}
 	}
 
+	/**
+	 * Creates the {@link ObjectCache}s with the size of the {@link Configuration} and registers
+	 * them at {@link Persistent#registerObjectCache(ObjectCache)}. */
+	private void createObjectCaches() {
+		final int size = mConfig.containsInt(ObjectCache.SIZE_CONFIG_KEY)
+			? mConfig.getInt(ObjectCache.SIZE_CONFIG_KEY)
+			: ObjectCache.DEFAULT_SIZE;
+		
+		mIdentityCache = new ObjectCache<Identity>(mDB, Identity.class, size);
+		mTrustCache = new ObjectCache<Trust>(mDB, Trust.class, size);
+		mScoreCache = new ObjectCache<Score>(mDB, Score.class, size);
+		
+		for(ObjectCache<?> cache : getObjectCaches())
+			Persistent.registerObjectCache(cache);
+	}
+	
+	/** Undoes {@link #createObjectCaches()}, to be called before the database is closed. */
+	private void closeObjectCaches() {
+		if(mIdentityCache == null) // terminate() after failed startup
+			return;
+		
+		for(ObjectCache<?> cache : getObjectCaches()) {
+			Persistent.unregisterObjectCache(cache);
+			cache.clear();
+		}
+	}
+	
 	/**
 	 * Loads an existing Config object from the database and adds any missing default values to it, creates and stores a new one if none exists.
 	 * @return The config object.
@@ -1730,16 +2012,30 @@ public final class WebOfTrust extends WebOfTrustInterface
 	private int computeCapacity(OwnIdentity truster, Identity trustee, int rank) {
 		if(truster == trustee)
 			return 100;
-		 
-		try {
-            // TODO: Performance: The comment "Security check, if rank computation breaks this will
-            // hit." below sounds like we don't actually need to execute this because the callers
-            // probably do it implicitly. Check if this is true and if yes, convert it to an assert.
-			if(getTrust(truster, trustee).getValue() <= 0) { // Security check, if rank computation breaks this will hit.
-				assert(rank == Integer.MAX_VALUE);
-				return 0;
-			}
-		} catch(NotTrustedException e) { }
+		
+		return computeCapacity(mTrustGraph, mTrustGraph.getIndex(truster.getID()),
+			mTrustGraph.getIndex(trustee.getID()), rank);
+	}
+
+	/**
+	 * Same as {@link #computeCapacity(OwnIdentity, Identity, int)} but identifies the truster and
+	 * trustee by their index in the given {@link TrustGraph}. Thus it does not need a database
+	 * query to obtain the {@link Trust} between them, and can be used by the threads of
+	 * {@link TrustTreeComputation} on a {@link TrustGraph#snapshot()}.
+	 * The indices may be {@link TrustGraph#NONE} if the Identity has neither given nor received
+	 * any Trust. */
+	static int computeCapacity(TrustGraph graph, int trusterIndex, int trusteeIndex, int rank) {
+		if(trusterIndex == trusteeIndex && trusterIndex != TrustGraph.NONE)
+			return 100;
+		
+        // TODO: Performance: The comment "Security check, if rank computation breaks this will
+        // hit." below sounds like we don't actually need to execute this because the callers
+        // probably do it implicitly. Check if this is true and if yes, convert it to an assert.
+		final int trustValue = graph.getValue(trusterIndex, trusteeIndex);
+		if(trustValue != TrustGraph.NONE && trustValue <= 0) { // Security check, if rank computation breaks this will hit.
+			assert(rank == Integer.MAX_VALUE);
+			return 0;
+		}
 		
 		if(rank == -1 || rank == Integer.MAX_VALUE)
 			return 0;
@@ -1761,6 +2057,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * Therefore, the algorithm is very vulnerable to bugs since one wrong value will stay in the database
 	 * and affect many others. So it is useful to have this function.
 	 * 
+	 * The trust trees of multiple {@link OwnIdentity}s are computed in parallel, see
+	 * {@link #computeTrustTrees(TrustGraph, List)}. Storing the resulting Scores and the
+	 * {@link SubscriptionManager} notifications happens in the calling thread.
+	 * 
 	 * Synchronization:
 	 * This function does neither lock the database nor commit the transaction. You have to surround it with
 	 * <code>
@@ -1778,323 +2078,493 @@ public final class WebOfTrust extends WebOfTrustInterface
 	protected boolean computeAllScoresWithoutCommit() {
 		if(logMINOR) Logger.minor(this, "Doing a full computation of all Scores...");
 		
+		// In asynchronous mode the Scores of previous trust list imports might be pending. Update
+		// them first so only actual errors of the stored Scores are reported below.
+		detectPendingScoresRollback();
+		if(mScoreComputationPending && !mTrustListImportInProgress && !mFullScoreComputationNeeded)
+			updatePendingScoresWithoutCommit();
+		
 		final long beginTime = CurrentTimeUTC.getInMillis();
 		
 		boolean returnValue = true;
 		
+		// All Trusts are walked using a read-only copy of the in-memory mirror of the Trust table
+		// instead of database queries, see class TrustGraph. The copy allows us to compute the
+		// trust trees of multiple OwnIdentitys in parallel, see class TrustTreeComputation.
+		final TrustGraph graph = mTrustGraph.snapshot();
+		
+		final ArrayList<OwnIdentity> treeOwners = new ArrayList<OwnIdentity>();
+		// The trust trees of dormant OwnIdentitys only contain their own Score, see
+		// setTrustTreeDormant(). Thus they don't need to be computed.
+		final ArrayList<OwnIdentity> dormantTreeOwners = new ArrayList<OwnIdentity>();
+		
+		for(OwnIdentity ownIdentity : getAllOwnIdentities()) {
+			if(ownIdentity.isTrustTreeDormant())
+				dormantTreeOwners.add(ownIdentity);
+			else
+				treeOwners.add(ownIdentity);
+		}
+		
+		// Each trust tree needs O(IdentityCount) memory, so we don't compute all trees at once but
+		// in batches. Their results are then stored to the database in this thread, before the
+		// next batch is computed.
+		final int batchSize = getTrustTreeBatchSize();
+		List<TrustTreeComputation> batch = null;
+		
+		final ObjectSet<Identity> allIdentities = getAllIdentities();
+		
 		// Scores are a rating of an identity from the view of an OwnIdentity so we compute them per OwnIdentity.
-		for(OwnIdentity treeOwner : getAllOwnIdentities()) {
-			// TODO: Performance: Move this outside the above loop once the issue which caused this
-			// workaround is fixed: https://bugs.freenetproject.org/view.php?id=6646
-			final ObjectSet<Identity> allIdentities = getAllIdentities();
+		for(int treeOwnerNumber = 0; treeOwnerNumber < treeOwners.size(); ++treeOwnerNumber) {
+			final OwnIdentity treeOwner = treeOwners.get(treeOwnerNumber);
 			
-			// Key = Identity.getID(); Value = Rank of the identity
-			// At the end of the loop body, this table will be filled with the ranks of all identities which are visible for treeOwner.
-			// An identity is visible if there is a trust chain from the owner to it.
-			// The rank is the distance in trust steps from the treeOwner.			
-			// So the treeOwner is rank 0, the trustees of the treeOwner are rank 1 and so on.
-			// (The initial size is specified as twice the possible maximal amount of entries to
-			// ensure that the HashMap does not have to be grown.)
-			final HashMap<String, Integer> rankValues
-				= new HashMap<String, Integer>(allIdentities.size() * 2);
-			
-			// Compute the rank values
-			{
-				// For each identity which is added to rankValues, all its trustees are added to unprocessedTrusters.
-				// The inner loop then pulls out one unprocessed identity and computes the rank of its trustees:
-				// All trustees which have received positive (> 0) trust will get his rank + 1
-				// Trustees with negative trust or 0 trust will get a rank of Integer.MAX_VALUE.
-				// Trusters with rank Integer.MAX_VALUE cannot inherit their rank to their trustees so the trustees will get no rank at all.
-				// Identities with no rank are considered to be not in the trust tree of the own identity and their score will be null / none.
-				//
-				// Further, if the treeOwner has assigned a trust value to an identity, the rank decision is done by only considering this trust value:
-				// The decision of the own identity shall not be overpowered by the view of the remote identities.
-				//
-				// The purpose of differentiation between Integer.MAX_VALUE and -1 is:
-				// Score objects of identities with rank Integer.MAX_VALUE are kept in the database because WoT will usually "hear" about those identities by seeing
-				// them in the trust lists of trusted identities (with 0 or negative trust values). So it must store the trust values to those identities and
-				// have a way of telling the user "this identity is not trusted" by keeping a score object of them.
-				// Score objects of identities with rank -1 are deleted because they are the trustees of distrusted identities and we will not get to the point where
-				// we hear about those identities because the only way of hearing about them is importing a trust list of a identity with Integer.MAX_VALUE rank
-				// - and we never import their trust lists. 
-				// We include trust values of 0 in the set of rank Integer.MAX_VALUE (instead of only NEGATIVE trust) so that identities which only have solved
-				// introduction puzzles cannot inherit their rank to their trustees.
-				final LinkedList<Identity> unprocessedTrusters = new LinkedList<Identity>();
-				
-				// The own identity is the root of the trust tree, it should assign itself a rank of 0 , a capacity of 100 and a symbolic score of Integer.MAX_VALUE
-				
-				try {
-					Score selfScore = getScore(treeOwner, treeOwner);
-					
-					if(selfScore.getRank() >= 0) { // It can only give it's rank if it has a valid one
-						rankValues.put(treeOwner.getID(), selfScore.getRank());
-						unprocessedTrusters.addLast(treeOwner);
-					} else {
-						rankValues.put(treeOwner.getID(), null);
-					}
-				} catch(NotInTrustTreeException e) {
-					// This only happens in unit tests.
-				}
-				 
-				while(!unprocessedTrusters.isEmpty()) {
-					final Identity truster = unprocessedTrusters.removeFirst();
-	
-					final Integer trusterRank = rankValues.get(truster.getID());
-					
-					// The truster cannot give his rank to his trustees because he has none (or infinite), they receive no rank at all.
-					if(trusterRank == null || trusterRank == Integer.MAX_VALUE) {
-						// (Normally this does not happen because we do not enqueue the identities if they have no rank but we check for security)
-						continue;
-					}
-					
-					final int trusteeRank = trusterRank + 1;
-					
-					for(Trust trust : getGivenTrusts(truster)) {
-						final Identity trustee = trust.getTrustee();
-						final Integer oldTrusteeRank = rankValues.get(trustee.getID());
-						
-						
-						if(oldTrusteeRank == null) { // The trustee was not processed yet
-							if(trust.getValue() > 0) {
-								rankValues.put(trustee.getID(), trusteeRank);
-								unprocessedTrusters.addLast(trustee);
-							}
-							else
-								rankValues.put(trustee.getID(), Integer.MAX_VALUE);
-						} else {
-							// Breadth first search will process all rank one identities are processed before any rank two identities, etc.
-							assert(oldTrusteeRank == Integer.MAX_VALUE || trusteeRank >= oldTrusteeRank);
-							
-							if(oldTrusteeRank == Integer.MAX_VALUE) {
-								// If we found a rank less than infinite we can overwrite the old rank with this one, but only if the infinite rank was not
-								// given by the tree owner.
-								try {
-									final Trust treeOwnerTrust = getTrust(treeOwner, trustee);
-									assert(treeOwnerTrust.getValue() <= 0)
-										: "The treeOwner Trusts are processed before all other "
-										+ "Trusts, and their rank value overwrites the ones of "
-										+ "non-treeOwner Trusts. Thus, if there is a treeOwner "
-										+ "Trust, it should have a value which could have caused "
-										+ "the current rank of Integer.MAX_VALUE.";
-								} catch(NotTrustedException e) {
-									if(trust.getValue() > 0) {
-										rankValues.put(trustee.getID(), trusteeRank);
-										unprocessedTrusters.addLast(trustee);
-									}
-								}
-							}
-						}
-					}
-				}
+			if(treeOwnerNumber % batchSize == 0) {
+				batch = computeTrustTrees(graph, treeOwners.subList(treeOwnerNumber,
+					Math.min(treeOwnerNumber + batchSize, treeOwners.size())));
 			}
 			
+			// At this point, this contains the ranks of all identities which are visible for
+			// treeOwner, and their Score values.
+			// An identity is visible if there is a trust chain from the owner to it.
+			// The rank is the distance in trust steps from the treeOwner.
+			// So the treeOwner is rank 0, the trustees of the treeOwner are rank 1 and so on.
+			final TrustTreeComputation tree = batch.get(treeOwnerNumber % batchSize);
+			
 			// Rank values of all visible identities are computed now.
-			// Next step is to compute the scores of all identities
+			// Next step is to store the scores of all identities
 			
 			for(Identity target : allIdentities) {
-				// The score of an identity is the sum of all weighted trust values it has received.
-				// Each trust value is weighted with the capacity of the truster - the capacity decays with increasing rank.
-				Integer targetScore;
-				final Integer targetRank = rankValues.get(target.getID());
+				final int targetIndex = graph.getIndex(target.getID());
+				final int targetRank;
+				final int targetScore;
+				final int targetCapacity;
+				
+				if(targetIndex != TrustGraph.NONE) {
+					targetRank = tree.getRank(targetIndex);
+					targetScore = targetRank != -1 ? tree.getScore(targetIndex) : 0;
+					targetCapacity = tree.getCapacity(targetIndex);
+				} else if(target.getID().equals(treeOwner.getID())) {
+					// The target has neither given nor received any Trust, so only the treeOwner
+					// itself can have a rank.
+					targetRank = tree.getTreeOwnerRank();
+					// The treeOwner trusts himself.
+					targetScore = targetRank == 0 ? Integer.MAX_VALUE : 0;
+					targetCapacity = targetRank != -1 ? 100 : 0;
+				} else {
+					targetRank = -1;
+					targetScore = 0;
+					targetCapacity = 0;
+				}
 				
 				/* RankComputationTest does this as a unit test for us
 				 * 
-				assert(computeRankFromScratch(treeOwner, target)
-					== (targetRank != null ? targetRank : -1));
+				assert(computeRankFromScratch(treeOwner, target) == targetRank);
 				*/
 				
-				if(targetRank == null) {
-					targetScore = null;
-				} else {
-					// The treeOwner trusts himself.
-					if(targetRank == 0) {
-						targetScore = Integer.MAX_VALUE;
-					}
-					else {
-						// If the treeOwner has assigned a trust value to the target, it always overrides the "remote" score.
-						try {
-							targetScore = (int)getTrust(treeOwner, target).getValue();
-						} catch(NotTrustedException e) {
-							targetScore = 0;
-							for(Trust receivedTrust : getReceivedTrusts(target)) {
-								final Identity truster = receivedTrust.getTruster();
-								final Integer trusterRank = rankValues.get(truster.getID());
-								
-								// The capacity is a weight function for trust values which are given from an identity:
-								// The higher the rank, the less the capacity.
-								// If the rank is Integer.MAX_VALUE (infinite) or -1 (no rank at all) the capacity will be 0.
-								final int capacity = computeCapacity(treeOwner, truster, trusterRank != null ? trusterRank : -1);
-								
-								targetScore += (receivedTrust.getValue() * capacity) / 100;
-							}
-						}
-					}
-				}
+				if(!storeScoreWithoutCommit(treeOwner, target, targetRank, targetScore,
+						targetCapacity, !mFullScoreComputationNeeded))
+					returnValue = false;
+			}
+		}
+		
+		for(OwnIdentity treeOwner : dormantTreeOwners) {
+			if(!storeDormantTrustTreeWithoutCommit(treeOwner, !mFullScoreComputationNeeded))
+				returnValue = false;
+		}
+		
+		mFullScoreComputationNeeded = false;
+		
+		// All Scores match the current Trust graph now, so the delta of the current trust list
+		// import, or the pending one of asynchronous mode, is not needed anymore.
+		clearTrustListImportDelta();
+		
+		++mFullScoreRecomputationCount;
+		mFullScoreRecomputationMilliseconds += CurrentTimeUTC.getInMillis() - beginTime;
+		
+		if(logMINOR) {
+			Logger.minor(this, "Full score computation finished. Amount: " + mFullScoreRecomputationCount + "; Avg Time:" + getAverageFullScoreRecomputationTime() + "s");
+		}
+		
+		return returnValue;
+	}
+	
+	/**
+	 * Compares the given rank and Score value of the target in the trust tree of the treeOwner
+	 * with the stored {@link Score}, and corrects the Score if they differ. Also updates the
+	 * {@link IdentityFetcher} state of the target if it changed due to that.
+	 * Used by {@link #computeAllScoresWithoutCommit()} and
+	 * {@link #updateScoresAfterTrustListImportWithoutCommit()}.
+	 * 
+	 * Synchronization:
+	 * Must be called while holding the locks which computeAllScoresWithoutCommit() requires.
+	 * 
+	 * The new Score is given as primitive values, and a {@link Score} object is only created if
+	 * no Score was stored yet: Most Scores are correct, so this avoids creating one object per
+	 * Identity in each trust tree.
+	 * 
+	 * @param targetRank The new rank, or -1 if the target has no rank and thus should have no
+	 *     Score.
+	 * @param targetScore The new Score value, ignored if targetRank is -1.
+	 * @param targetCapacity The new capacity, as computed by
+	 *     {@link #computeCapacity(OwnIdentity, Identity, int)}. Ignored if targetRank is -1.
+	 * @param logErrors If true, a stored Score which differs from the given values is logged as
+	 *     an error: The caller expected the stored Scores to be correct.
+	 * @return True if the stored Score and the fetch state of the target were correct. */
+	private boolean storeScoreWithoutCommit(OwnIdentity treeOwner, Identity target,
+			int targetRank, int targetScore, int targetCapacity, boolean logErrors) {
+		
+		assert(targetRank == -1
+			|| targetCapacity == computeCapacity(treeOwner, target, targetRank));
+		
+		boolean returnValue = true;
+		final boolean hasNewScore = targetRank != -1;
+		
+		boolean needToCheckFetchStatus = false;
+		boolean oldShouldFetch = false;
+		int oldCapacity = 0;
+		
+		// Now we have the rank and the score of the target computed and can check whether the database-stored score object is correct.
+		try {
+			Score currentStoredScore = getScore(treeOwner, target);
+			oldCapacity = currentStoredScore.getCapacity();
+			
+			if(!hasNewScore) {
+				returnValue = false;
+				if(logErrors)
+					Logger.error(this, "Correcting wrong score: The identity has no rank and should have no score but score was " + currentStoredScore, new RuntimeException());
 				
-				Score newScore = null;
-				if(targetScore != null) {
-					newScore = new Score(this, treeOwner, target, targetScore, targetRank, computeCapacity(treeOwner, target, targetRank));
-				}
+				needToCheckFetchStatus = true;
+				oldShouldFetch = shouldFetchIdentity(target);
 				
-				boolean needToCheckFetchStatus = false;
-				boolean oldShouldFetch = false;
-				int oldCapacity = 0;
+				currentStoredScore.deleteWithoutCommit();
+				mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(currentStoredScore, null);
 				
-				// Now we have the rank and the score of the target computed and can check whether the database-stored score object is correct.
-				try {
-					Score currentStoredScore = getScore(treeOwner, target);
-					oldCapacity = currentStoredScore.getCapacity();
-					
-					if(newScore == null) {
-						returnValue = false;
-						if(!mFullScoreComputationNeeded)
-							Logger.error(this, "Correcting wrong score: The identity has no rank and should have no score but score was " + currentStoredScore, new RuntimeException());
-						
-						needToCheckFetchStatus = true;
-						oldShouldFetch = shouldFetchIdentity(target);
-						
-						currentStoredScore.deleteWithoutCommit();
-						mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(currentStoredScore, null);
-						
-					} else {
-						if(!newScore.equals(currentStoredScore)) {
-							returnValue = false;
-							if(!mFullScoreComputationNeeded)
-								Logger.error(this, "Correcting wrong score: Should have been " + newScore + " but was " + currentStoredScore, new RuntimeException());
-							
-							needToCheckFetchStatus = true;
-							oldShouldFetch = shouldFetchIdentity(target);
-							
-							final Score oldScore = currentStoredScore.clone();
-							
-							currentStoredScore.setRank(newScore.getRank());
-							currentStoredScore.setCapacity(newScore.getCapacity());
-							currentStoredScore.setValue(newScore.getScore());
-
-							currentStoredScore.storeWithoutCommit();
-							mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(oldScore, currentStoredScore);
-						}
-					}
-				} catch(NotInTrustTreeException e) {
-					oldCapacity = 0;
-					
-					if(newScore != null) {
-						returnValue = false;
-						if(!mFullScoreComputationNeeded)
-							Logger.error(this, "Correcting wrong score: No score was stored for the identity but it should be " + newScore, new RuntimeException());
-						
-						needToCheckFetchStatus = true;
-						oldShouldFetch = shouldFetchIdentity(target);
-						
-						newScore.storeWithoutCommit();
-						mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(null, newScore);
-					}
-				}
-
-				if(!needToCheckFetchStatus) {
-					// The Score database was correct, and thus shouldFetchIdentity() cannot have
-					// changed its value since no Score changed - which is why
-					// needToCheckFetchStatus == false is false yet.
-					// However, previously called alternate Score computation implementations could
-					// have forgotten to tell IdentityFetcher the shouldFetchIdentity() value, so
-					// for debugging purposes we now also check whether IdentityFetcher has the
-					// correct state.
+			} else {
+				if(currentStoredScore.getRank() != targetRank
+						|| currentStoredScore.getCapacity() != targetCapacity
+						|| currentStoredScore.getValue() != targetScore) {
 					
-					final boolean realOldShouldFetch = mFetcher.getShouldFetchState(target.getID());
-					final boolean newShouldFetch = shouldFetchIdentity(target);
+					returnValue = false;
+					if(logErrors)
+						Logger.error(this, "Correcting wrong score: Should have been rank: " + targetRank + "; capacity: " + targetCapacity + "; value: " + targetScore + " but was " + currentStoredScore, new RuntimeException());
 					
-					if(realOldShouldFetch != newShouldFetch) {
-						needToCheckFetchStatus = true;
-						returnValue = false;
-						oldShouldFetch = realOldShouldFetch;
-						
-						// We purposely always log an error even if mFullScoreComputationNeeded is
-						// false: needToCheckFetchStatus was false when we entered this branch
-						// because the stored Scores were correct, so the Scores were already
-						// correct before this function was called, and thus the code which
-						// set mFullScoreComputationNeeded wasn't responsible for the wrong
-						// shouldFetchState as it didn't create those Scores either.
-						Logger.error(this, "Correcting wrong IdentityFetcher shouldFetch state: "
-							+ "was: " + realOldShouldFetch + "; should be: " + newShouldFetch + "; "
-							+ "identity: " + target, new Exception());
-					}
+					needToCheckFetchStatus = true;
+					oldShouldFetch = shouldFetchIdentity(target);
 					
-					// ATTENTION if you want to implement an alternate Score computation algorithm:
-					// What we just validated about the previous Score computation run is NOT the 
-					// whole deal of verifying the IdentityFetcher state. What also would have to be
-					// validated is: If the capacity of the identity was 0 before the previous run
-					// and then changed to > 0 in the previous run, then the current edition of the
-					// identity has to be marked as "not fetched". This is because identities with
-					// capacity 0 are not allowed to introduce trustees, but identities with
-					// capacity > 0 are. To get those trustees, we have to re-fetch the identity's
-					// tust list.
-					// We cannot check this here though: The information whether capacity changed
-					// from 0 to > 0 in the previous Score computation run only available *during*
-					// the previous run, not now.
-					// We compensate for this by having a unit test for this situation:
-					// WoTTest.testRefetchDueToCapacityChange()
+					final Score oldScore = currentStoredScore.clone();
 					
-					// TODO: Code quality: Instead of only checking the "should fetch?" state for
-					// existing Identitys, also check for those which have been deleted: Obtain the
-					// full list of URIs being fetched from the IdentityFetcher, and check for any
-					// URIs which don't belong to an existing Identity which should be fetched.
-					// However, these false positives are not security critical: When the
-					// XMLTransformer imports fetched files, it will check whether an Identity
-					// exists (and whether should be fetched).
+					currentStoredScore.setRank(targetRank);
+					currentStoredScore.setCapacity(targetCapacity);
+					currentStoredScore.setValue(targetScore);
+
+					currentStoredScore.storeWithoutCommit();
+					mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(oldScore, currentStoredScore);
 				}
+			}
+		} catch(NotInTrustTreeException e) {
+			oldCapacity = 0;
+			
+			if(hasNewScore) {
+				final Score newScore = new Score(this, treeOwner, target, targetScore, targetRank,
+					targetCapacity);
 				
-				if(needToCheckFetchStatus) {
-					// If fetch status changed from false to true, we need to start fetching it
-					// If the capacity changed from 0 to positive, we need to refetch the current edition: Identities with capacity 0 cannot
-					// cause new identities to be imported from their trust list, capacity > 0 allows this.
-					// If the fetch status changed from true to false, we need to stop fetching it
-					if((!oldShouldFetch || (oldCapacity == 0 && newScore != null && newScore.getCapacity() > 0)) && shouldFetchIdentity(target) ) {
-						returnValue = false;
-						
-						if(logMINOR) {
-							if(!oldShouldFetch)
-								Logger.minor(this, "Fetch status changed from false to true, refetching " + target);
-							else
-								Logger.minor(this, "Capacity changed from 0 to " + newScore.getCapacity() + ", refetching" + target);
-						}
+				returnValue = false;
+				if(logErrors)
+					Logger.error(this, "Correcting wrong score: No score was stored for the identity but it should be " + newScore, new RuntimeException());
+				
+				needToCheckFetchStatus = true;
+				oldShouldFetch = shouldFetchIdentity(target);
+				
+				newScore.storeWithoutCommit();
+				mSubscriptionManager.storeScoreChangedNotificationWithoutCommit(null, newScore);
+			}
+		}
 
-						final Identity oldTarget = target.clone();
-						
-						target.markForRefetch();
-						target.storeWithoutCommit();
-						
-						// Clients shall determine shouldFetch from the scores of an identity on their own so there is no need to notify the client about that
-						// - but we do tell the client the state of Identity.getCurrentEditionFetchState() which is changed by markForRefetch().
-						// Therefore we me must store a notification nevertheless.
-						if(!oldTarget.equals(target)) // markForRefetch() will not change anything if the current edition had not been fetched yet
-							mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(oldTarget, target);
+		if(!needToCheckFetchStatus) {
+			// The Score database was correct, and thus shouldFetchIdentity() cannot have
+			// changed its value since no Score changed - which is why
+			// needToCheckFetchStatus == false is false yet.
+			// However, previously called alternate Score computation implementations could
+			// have forgotten to tell IdentityFetcher the shouldFetchIdentity() value, so
+			// for debugging purposes we now also check whether IdentityFetcher has the
+			// correct state.
+			
+			final boolean realOldShouldFetch = mFetcher.getShouldFetchState(target.getID());
+			final boolean newShouldFetch = shouldFetchIdentity(target);
+			
+			if(realOldShouldFetch != newShouldFetch) {
+				needToCheckFetchStatus = true;
+				returnValue = false;
+				oldShouldFetch = realOldShouldFetch;
+				
+				// We purposely always log an error even if logErrors is false:
+				// needToCheckFetchStatus was false when we entered this branch because the
+				// stored Score was correct, so the Score was already correct before this
+				// function was called, and thus the caller which passed logErrors = false
+				// wasn't responsible for the wrong shouldFetchState as it didn't create the
+				// Score either.
+				Logger.error(this, "Correcting wrong IdentityFetcher shouldFetch state: "
+					+ "was: " + realOldShouldFetch + "; should be: " + newShouldFetch + "; "
+					+ "identity: " + target, new Exception());
+			}
+			
+			// ATTENTION if you want to implement an alternate Score computation algorithm:
+			// What we just validated about the previous Score computation run is NOT the 
+			// whole deal of verifying the IdentityFetcher state. What also would have to be
+			// validated is: If the capacity of the identity was 0 before the previous run
+			// and then changed to > 0 in the previous run, then the current edition of the
+			// identity has to be marked as "not fetched". This is because identities with
+			// capacity 0 are not allowed to introduce trustees, but identities with
+			// capacity > 0 are. To get those trustees, we have to re-fetch the identity's
+			// tust list.
+			// We cannot check this here though: The information whether capacity changed
+			// from 0 to > 0 in the previous Score computation run only available *during*
+			// the previous run, not now.
+			// We compensate for this by having a unit test for this situation:
+			// WoTTest.testRefetchDueToCapacityChange()
+			
+			// TODO: Code quality: Instead of only checking the "should fetch?" state for
+			// existing Identitys, also check for those which have been deleted: Obtain the
+			// full list of URIs being fetched from the IdentityFetcher, and check for any
+			// URIs which don't belong to an existing Identity which should be fetched.
+			// However, these false positives are not security critical: When the
+			// XMLTransformer imports fetched files, it will check whether an Identity
+			// exists (and whether should be fetched).
+		}
+		
+		if(needToCheckFetchStatus) {
+			// If fetch status changed from false to true, we need to start fetching it
+			// If the capacity changed from 0 to positive, we need to refetch the current edition: Identities with capacity 0 cannot
+			// cause new identities to be imported from their trust list, capacity > 0 allows this.
+			// If the fetch status changed from true to false, we need to stop fetching it
+			if((!oldShouldFetch || (oldCapacity == 0 && hasNewScore && targetCapacity > 0)) && shouldFetchIdentity(target) ) {
+				returnValue = false;
+				
+				if(logMINOR) {
+					if(!oldShouldFetch)
+						Logger.minor(this, "Fetch status changed from false to true, refetching " + target);
+					else
+						Logger.minor(this, "Capacity changed from 0 to " + targetCapacity + ", refetching" + target);
+				}
 
-						mFetcher.storeStartFetchCommandWithoutCommit(target);
-					}
-					else if(oldShouldFetch && !shouldFetchIdentity(target)) {
-						returnValue = false;
-						
-						if(logMINOR) Logger.minor(this, "Fetch status changed from true to false, aborting fetch of " + target);
+				final Identity oldTarget = target.clone();
+				
+				target.markForRefetch();
+				target.storeWithoutCommit();
+				
+				// Clients shall determine shouldFetch from the scores of an identity on their own so there is no need to notify the client about that
+				// - but we do tell the client the state of Identity.getCurrentEditionFetchState() which is changed by markForRefetch().
+				// Therefore we me must store a notification nevertheless.
+				if(!oldTarget.equals(target)) // markForRefetch() will not change anything if the current edition had not been fetched yet
+					mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(oldTarget, target);
 
-						mFetcher.storeAbortFetchCommandWithoutCommit(target);
-					}
-				}
+				mFetcher.storeStartFetchCommandWithoutCommit(target);
+			}
+			else if(oldShouldFetch && !shouldFetchIdentity(target)) {
+				returnValue = false;
+				
+				if(logMINOR) Logger.minor(this, "Fetch status changed from true to false, aborting fetch of " + target);
+
+				mFetcher.storeAbortFetchCommandWithoutCommit(target);
 			}
 		}
 		
-		mFullScoreComputationNeeded = false;
+		return returnValue;
+	}
+	
+	/**
+	 * Deletes all {@link Score}s of the trust tree of a dormant OwnIdentity except its own one,
+	 * see {@link #setTrustTreeDormant(String, boolean)}. Also updates the {@link IdentityFetcher}
+	 * state of the affected Identitys.
+	 * Used by {@link #computeAllScoresWithoutCommit()} and when making a tree dormant.
+	 * 
+	 * Synchronization:
+	 * Must be called while holding the locks which computeAllScoresWithoutCommit() requires.
+	 * 
+	 * @param logErrors See {@link #storeScoreWithoutCommit(OwnIdentity, Identity, int, int, int,
+	 *     boolean)}.
+	 * @return True if there were no Scores to delete. */
+	private boolean storeDormantTrustTreeWithoutCommit(OwnIdentity treeOwner, boolean logErrors) {
+		assert(treeOwner.isTrustTreeDormant());
 		
-		++mFullScoreRecomputationCount;
-		mFullScoreRecomputationMilliseconds += CurrentTimeUTC.getInMillis() - beginTime;
+		final String treeOwnerID = treeOwner.getID();
+		// Copy the trustees since the loop deletes the Scores.
+		final ArrayList<Identity> trustees = new ArrayList<Identity>();
+		for(Score score : getGivenScores(treeOwner)) {
+			final Identity trustee = score.getTrustee();
+			if(!trustee.getID().equals(treeOwnerID))
+				trustees.add(trustee);
+		}
 		
-		if(logMINOR) {
-			Logger.minor(this, "Full score computation finished. Amount: " + mFullScoreRecomputationCount + "; Avg Time:" + getAverageFullScoreRecomputationTime() + "s");
+		boolean returnValue = true;
+		for(Identity trustee : trustees) {
+			if(!storeScoreWithoutCommit(treeOwner, trustee, -1, 0, 0, logErrors))
+				returnValue = false;
 		}
 		
 		return returnValue;
 	}
 	
+	/**
+	 * Computes the trust tree of an OwnIdentity which is not dormant anymore, and stores its
+	 * {@link Score}s. Also updates the {@link IdentityFetcher} state of the affected Identitys.
+	 * See {@link #setTrustTreeDormant(String, boolean)}.
+	 * 
+	 * Only the single tree is computed, the other trees are not affected.
+	 * 
+	 * Synchronization:
+	 * Must be called while holding the locks which computeAllScoresWithoutCommit() requires. */
+	private void storeAwakenedTrustTreeWithoutCommit(OwnIdentity treeOwner) {
+		assert(!treeOwner.isTrustTreeDormant());
+		
+		final TrustGraph graph = mTrustGraph.snapshot();
+		final TrustTreeComputation tree
+			= computeTrustTrees(graph, Collections.singletonList(treeOwner)).get(0);
+		final int treeOwnerIndex = graph.getIndex(treeOwner.getID());
+		
+		// Identitys which are not in the graph have neither given nor received any Trust, so they
+		// cannot be in the tree.
+		for(int index = 0; index < graph.getIdentityCount(); ++index) {
+			// The Score of the treeOwner itself is kept when the tree is dormant.
+			if(index == treeOwnerIndex)
+				continue;
+			
+			final int rank = tree.getRank(index);
+			
+			// The dormant tree had no Scores which would have to be deleted.
+			if(rank == -1)
+				continue;
+			
+			final Identity target;
+			try {
+				target = getIdentityByID(graph.getIdentityID(index));
+			} catch(UnknownIdentityException e) {
+				throw new RuntimeException(e);
+			}
+			
+			// The stored Scores match the dormant tree so they are expected to be wrong, no need
+			// to log errors.
+			storeScoreWithoutCommit(treeOwner, target, rank, tree.getScore(index),
+				tree.getCapacity(index), false);
+		}
+	}
+	
+	/**
+	 * Computes the trust trees of the given OwnIdentitys for
+	 * {@link #computeAllScoresWithoutCommit()}. If there are multiple, they are computed in
+	 * parallel using {@link #getTrustTreeComputationPool()}.
+	 * 
+	 * If there are more OwnIdentitys than threads, the trees of the OwnIdentitys of each thread
+	 * are computed by a single {@link MultiSourceTrustTreeComputation}, which walks the Trusts
+	 * which the trees have in common only once for all of them. A single tree is computed by the
+	 * simpler {@link TrustTreeComputation}.
+	 * 
+	 * Must be called while holding the locks which computeAllScoresWithoutCommit() requires.
+	 * The threads of the pool won't take any locks or access the database: They only read the
+	 * given graph, which thus must be a {@link TrustGraph#snapshot()}.
+	 * 
+	 * @param treeOwners At most {@link #getTrustTreeBatchSize()}, each tree needs
+	 *     O(IdentityCount) memory.
+	 * @return The finished computations, in the order of the given OwnIdentitys. */
+	private List<TrustTreeComputation> computeTrustTrees(final TrustGraph graph,
+			final List<OwnIdentity> treeOwners) {
+		
+		final int treeCount = treeOwners.size();
+		final int[] treeOwnerIndices = new int[treeCount];
+		final int[] treeOwnerRanks = new int[treeCount];
+		
+		for(int i = 0; i < treeCount; ++i) {
+			final OwnIdentity treeOwner = treeOwners.get(i);
+			// The own identity is the root of the trust tree, it should assign itself a rank of 0 , a capacity of 100 and a symbolic score of Integer.MAX_VALUE
+			int treeOwnerRank = -1;
+			
+			try {
+				Score selfScore = getScore(treeOwner, treeOwner);
+				
+				if(selfScore.getRank() >= 0) // It can only give it's rank if it has a valid one
+					treeOwnerRank = selfScore.getRank();
+			} catch(NotInTrustTreeException e) {
+				// This only happens in unit tests.
+			}
+			
+			treeOwnerIndices[i] = graph.getIndex(treeOwner.getID());
+			treeOwnerRanks[i] = treeOwnerRank;
+		}
+		
+		// Spread the trees evenly across the threads.
+		final int threadCount = Runtime.getRuntime().availableProcessors();
+		final int treesPerComputation = Math.min(MultiSourceTrustTreeComputation.MAX_SOURCES,
+			(treeCount + threadCount - 1) / threadCount);
+		
+		final ArrayList<RecursiveAction> computations = new ArrayList<RecursiveAction>();
+		
+		for(int begin = 0; begin < treeCount; begin += treesPerComputation) {
+			final int end = Math.min(begin + treesPerComputation, treeCount);
+			
+			if(end - begin == 1) {
+				computations.add(new TrustTreeComputation(
+					graph, treeOwnerIndices[begin], treeOwnerRanks[begin]));
+			} else {
+				computations.add(new MultiSourceTrustTreeComputation(graph,
+					copyOfRange(treeOwnerIndices, begin, end),
+					copyOfRange(treeOwnerRanks, begin, end)));
+			}
+		}
+		
+		if(computations.size() == 1) {
+			// Not worth the overhead of the thread pool
+			computations.get(0).invoke();
+		} else {
+			final ForkJoinPool pool = getTrustTreeComputationPool();
+			
+			for(RecursiveAction computation : computations)
+				pool.execute(computation);
+			
+			// Will throw any exceptions of the computation
+			for(RecursiveAction computation : computations)
+				computation.join();
+		}
+		
+		final ArrayList<TrustTreeComputation> result
+			= new ArrayList<TrustTreeComputation>(treeCount);
+		
+		for(RecursiveAction computation : computations) {
+			if(computation instanceof TrustTreeComputation)
+				result.add((TrustTreeComputation)computation);
+			else
+				result.addAll(((MultiSourceTrustTreeComputation)computation).getTrees());
+		}
+		
+		assert(result.size() == treeCount);
+		return result;
+	}
+	
+	/**
+	 * @return The maximal number of OwnIdentitys which callers of
+	 *     {@link #computeTrustTrees(TrustGraph, List)} should compute at once: Enough for all
+	 *     threads, and at least as many as a single {@link MultiSourceTrustTreeComputation} can
+	 *     compute, so nodes with many OwnIdentitys benefit from it. */
+	private static int getTrustTreeBatchSize() {
+		return Math.max(Runtime.getRuntime().availableProcessors(),
+			MultiSourceTrustTreeComputation.MAX_SOURCES);
+	}
+	
+	/**
+	 * Pool for {@link #computeTrustTrees(TrustGraph, List)}. Created on demand since a full Score
+	 * computation is rare, and only executes upon startup on most nodes.
+	 * Shut down by {@link #terminate()}.
+	 * 
+	 * Must be called while being synchronized on this WebOfTrust. */
+	private ForkJoinPool getTrustTreeComputationPool() {
+		if(mTrustTreeComputationPool == null) {
+			mTrustTreeComputationPool
+				= new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+		}
+		
+		return mTrustTreeComputationPool;
+	}
+	
 	private synchronized void createSeedIdentities() {
+		assert(mLockOrder.mayAcquire(Lock.SUBSCRIPTION_MANAGER));
 		synchronized(mSubscriptionManager) {
 		for(String seedURI : WebOfTrustInterface.SEED_IDENTITIES) {
 			synchronized(Persistent.transactionLock(mDB)) {
@@ -2275,11 +2745,42 @@ public final class WebOfTrust extends WebOfTrustInterface
 			}
 		}});
 
+		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
+			mPendingScoresJob.terminate();
+			try {
+				mPendingScoresJob.waitForTermination(Long.MAX_VALUE);
+			} catch (InterruptedException e) {
+				Logger.error(this, "ShutdownThread should not be interrupted!", e);
+				success.set(false);
+			}
+		}});
+
 		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
 			if(mSubscriptionManager != null)
 				mSubscriptionManager.stop();
 		}});
 
+		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
+			mReadSnapshotLoadJob.terminate();
+			try {
+				mReadSnapshotLoadJob.waitForTermination(Long.MAX_VALUE);
+			} catch (InterruptedException e) {
+				Logger.error(this, "ShutdownThread should not be interrupted!", e);
+				success.set(false);
+			}
+		}});
+
+		shutdownThreads.add(new ShutdownThread() { @Override public void realRun() {
+			// Interrupts a running backup, it is resumed by the next one after the restart.
+			mOnlineBackupJob.terminate();
+			try {
+				mOnlineBackupJob.waitForTermination(Long.MAX_VALUE);
+			} catch (InterruptedException e) {
+				Logger.error(this, "ShutdownThread should not be interrupted!", e);
+				success.set(false);
+			}
+		}});
+
         latch.set(new CountDownLatch(shutdownThreads.size()));
 
         Executor executor = (mPR != null /* Can be null in unit tests */)
@@ -2319,6 +2820,35 @@ public final class WebOfTrust extends WebOfTrustInterface
 			success.set(false);
 		}
 		
+		// Terminating the mPendingScoresJob did not run it. Update the pending Scores now that
+		// no trust lists can be imported anymore: Otherwise the next startup would have to do a
+		// full Score computation, see SCORE_COMPUTATION_PENDING_CONFIG_KEY.
+		try {
+			if(mScoreComputationPending)
+				updatePendingScores();
+		} catch(Exception e) {
+			Logger.error(this, "Error during termination.", e);
+			success.set(false);
+		}
+		
+		// Must happen after anything is down which can do deferrable commits, and before the
+		// rollback below.
+		try {
+			mGroupCommitJob.terminate();
+			mGroupCommitJob.waitForTermination(Long.MAX_VALUE);
+			Persistent.configureGroupCommit(1, 0, null);
+			if(mDB != null)
+				Persistent.flushDeferredCommits(mDB, this);
+		} catch(Exception e) {
+			Logger.error(this, "Error during termination.", e);
+			success.set(false);
+		}
+		
+		// Doesn't wait for running computations, they will finish before the pool terminates.
+		final ForkJoinPool trustTreeComputationPool = mTrustTreeComputationPool;
+		if(trustTreeComputationPool != null)
+			trustTreeComputationPool.shutdown();
+		
 		if(!threadsOnly) {
 			try {
 				if(mDB != null) {
@@ -2329,6 +2859,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 					// - All transactions should be committed after obtaining the lock() on the
 					// database.
 					synchronized(Persistent.transactionLock(mDB)) {
+						// Must be cleared before the rollback, see ObjectCache.
+						closeObjectCaches();
 						System.gc();
 						mDB.rollback();
 						System.gc(); 
@@ -2397,13 +2929,20 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws UnknownIdentityException if there is no identity with this id in the database
 	 */
 	public synchronized Identity getIdentityByID(String id) throws UnknownIdentityException {
+		final Identity cached = mIdentityCache.get(id);
+		if(cached != null)
+			return cached;
+		
 		final Query query = mDB.query();
 		query.constrain(Identity.class);
 		query.descend("mID").constrain(id);
 		final ObjectSet<Identity> result = new Persistent.InitializingObjectSet<Identity>(this, query);
 		
 		switch(result.size()) {
-			case 1: return result.next();
+			case 1:
+				final Identity identity = result.next();
+				mIdentityCache.put(identity);
+				return identity;
 			case 0: throw new UnknownIdentityException(id);
 			default: throw new DuplicateIdentityException(id, result.size());
 		}  
@@ -2491,23 +3030,20 @@ public final class WebOfTrust extends WebOfTrustInterface
 	}
 	
 	public static enum SortOrder {
+		ByAddedAscending,
+		ByAddedDescending,
 	    ByEditionAscending,
 	    ByEditionDescending,
+		ByFetchedAscending,
+		ByFetchedDescending,
 		ByNicknameAscending,
 		ByNicknameDescending,
 		ByScoreAscending,
 		ByScoreDescending,
 		ByLocalTrustAscending,
-		ByLocalTrustDescending
-	}
-
-	/** TODO: Code quality: Use {@link Long#compare(long, long)}} once we require Java 7 */
-	private static final class LongJava6 {
-		public static int compare(long a, long b) {
-			if(a < b) return -1;
-			if(a == b) return 0;
-			return 1;
-		}
+		ByLocalTrustDescending,
+		ByTrustersAscending,
+		ByTrustersDescending
 	}
 
 	/**
@@ -2518,38 +3054,30 @@ public final class WebOfTrust extends WebOfTrustInterface
 		Query q = mDB.query();
 		
 		switch(sortInstruction) {
-            case ByEditionAscending:
-                q.constrain(Identity.class);
-                // TODO: Performance: Add a member variable "mEdition" to Identity and use a native
-                // db4o sorting query upon that. Currently, class Identity stores the edition inside
-                // the String which holds its FreenetURI. The base URI is different for each
-                // identity so we cannot just sort upon the URI string.
-                // Also do the same for the case ByEditionDescending below.
-                // NOTICE: If implement this TODO, you will have to write database upgrade code to
-                // populate the new member variable in old databases. This requires quite a bit of
-                // work and good testing. Thus, I would suggest you implement it together with
-                // all possible further sorting functions which also need new fields. You should 
-                // check the web interface's KnownIdentitiesPage for values which need sorting.
-                // There is also a bugtracker entry for adding more sorting:
-                // https://bugs.freenetproject.org/view.php?id=6501
-                q.sortBy(new Comparator<Identity>() {
-                    @Override public int compare(Identity i1, Identity i2) {
-                        i1.initializeTransient(WebOfTrust.this);
-                        i2.initializeTransient(WebOfTrust.this);
-                        return LongJava6.compare(i1.getEdition(), i2.getEdition());
-                    }
-                });
-                break;
-            case ByEditionDescending:
-                q.constrain(Identity.class);
-                q.sortBy(new Comparator<Identity>() {
-                    @Override public int compare(Identity i1, Identity i2) {
-                        i1.initializeTransient(WebOfTrust.this);
-                        i2.initializeTransient(WebOfTrust.this);
-                        return -LongJava6.compare(i1.getEdition(), i2.getEdition());
-                    }
-                });
-                break;
+			case ByAddedAscending:
+				q.constrain(Identity.class);
+				q.descend("mCreationDate").orderAscending();
+				break;
+			case ByAddedDescending:
+				q.constrain(Identity.class);
+				q.descend("mCreationDate").orderDescending();
+				break;
+			case ByEditionAscending:
+				q.constrain(Identity.class);
+				q.descend("mEdition").orderAscending();
+				break;
+			case ByEditionDescending:
+				q.constrain(Identity.class);
+				q.descend("mEdition").orderDescending();
+				break;
+			case ByFetchedAscending:
+				q.constrain(Identity.class);
+				q.descend("mLastFetchedDate").orderAscending();
+				break;
+			case ByFetchedDescending:
+				q.constrain(Identity.class);
+				q.descend("mLastFetchedDate").orderDescending();
+				break;
 			case ByNicknameAscending:
 				q.constrain(Identity.class);
 				q.descend("mNickname").orderAscending();
@@ -2584,6 +3112,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 				q.descend("mValue").orderDescending();
 				q = q.descend("mTrustee");
 				break;
+			case ByTrustersAscending:
+				q.constrain(Identity.class);
+				q.descend("mReceivedTrustCount").orderAscending();
+				break;
+			case ByTrustersDescending:
+				q.constrain(Identity.class);
+				q.descend("mReceivedTrustCount").orderDescending();
+				break;
 		}
 		
 		if(nickFilter != null) {
@@ -2694,6 +3230,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 				// We call computeAllScores anyway so we do not use removeTrustWithoutCommit()
 			}
 			
+			mTrustGraph.removeIdentity(identity.getID());
+			
 			mFullScoreComputationNeeded = true; // finishTrustListImport will call computeAllScoresWithoutCommit for us.
 
 			if(logDEBUG) Logger.debug(this, "Deleting associated introduction puzzles ...");
@@ -2735,9 +3273,18 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws NotInTrustTreeException if this identity is not in the required trust tree 
 	 */
 	public synchronized Score getScore(final OwnIdentity truster, final Identity trustee) throws NotInTrustTreeException {
+		final String id = new ScoreID(truster, trustee).toString();
+		final Score cached = mScoreCache.get(id);
+		if(cached != null) {
+			assert(cached.getTruster() == truster);
+			assert(cached.getTrustee() == trustee);
+			return cached;
+		}
+		
 		final Query query = mDB.query();
 		query.constrain(Score.class);
-		query.descend("mID").constrain(new ScoreID(truster, trustee).toString());
+		query.descend("mKey").constrain(IdentityPairKey.fromID(id));
+		query.descend("mID").constrain(id);
 		final ObjectSet<Score> result = new Persistent.InitializingObjectSet<Score>(this, query);
 		
 		switch(result.size()) {
@@ -2745,6 +3292,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				final Score score = result.next();
 				assert(score.getTruster() == truster);
 				assert(score.getTrustee() == trustee);
+				mScoreCache.put(score);
 				return score;
 			case 0: throw new NotInTrustTreeException(truster, trustee);
 			default: throw new DuplicateScoreException(truster, trustee, result.size());
@@ -2755,13 +3303,21 @@ public final class WebOfTrust extends WebOfTrustInterface
 	public synchronized Score getScore(final String id) throws NotInTrustTreeException {
 		// TODO: Code quality: assert(id is valid)
 		
+		final Score cached = mScoreCache.get(id);
+		if(cached != null)
+			return cached;
+		
 		final Query query = mDB.query();
 		query.constrain(Score.class);
+		query.descend("mKey").constrain(IdentityPairKey.fromID(id));
 		query.descend("mID").constrain(id);
 		final ObjectSet<Score> result = new Persistent.InitializingObjectSet<Score>(this, query);
 		
 		switch(result.size()) {
-			case 1: return result.next();
+			case 1:
+				final Score score = result.next();
+				mScoreCache.put(score);
+				return score;
 			case 0: throw new NotInTrustTreeException(id);
 			default: throw new DuplicateScoreException(id, result.size());
 		}
@@ -2796,39 +3352,32 @@ public final class WebOfTrust extends WebOfTrustInterface
 	/**
 	 * Gets the best score this Identity has in existing trust trees.
 	 * 
+	 * Does not query the Scores: The value is stored in the Identity, see
+	 * {@link Identity#getBestScore()}.
+	 * 
 	 * @return the best score this Identity has
 	 * @throws NotInTrustTreeException If the identity has no score in any trusttree.
 	 */
 	public synchronized int getBestScore(final Identity identity) throws NotInTrustTreeException {
-		int bestScore = Integer.MIN_VALUE;
-		final ObjectSet<Score> scores = getScores(identity);
-		
-		if(scores.size() == 0)
+		if(!identity.hasScores())
 			throw new NotInTrustTreeException(identity);
 		
-		// TODO: Cache the best score of an identity as a member variable.
-		for(final Score score : scores) 
-			bestScore = Math.max(score.getScore(), bestScore);
-		
-		return bestScore;
+		return identity.getBestScore();
 	}
 	
 	/**
 	 * Gets the best capacity this identity has in any trust tree.
+	 * 
+	 * Does not query the Scores: The value is stored in the Identity, see
+	 * {@link Identity#getBestCapacity()}.
+	 * 
 	 * @throws NotInTrustTreeException If the identity is not in any trust tree. Can be interpreted as capacity 0.
 	 */
 	public synchronized int getBestCapacity(final Identity identity) throws NotInTrustTreeException {
-		int bestCapacity = 0;
-		final ObjectSet<Score> scores = getScores(identity);
-		
-		if(scores.size() == 0)
+		if(!identity.hasScores())
 			throw new NotInTrustTreeException(identity);
 		
-		// TODO: Cache the best score of an identity as a member variable.
-		for(final Score score : scores) 
-			bestCapacity  = Math.max(score.getCapacity(), bestCapacity);
-		
-		return bestCapacity;
+		return identity.getBestCapacity();
 	}
 	
 	/**
@@ -2842,13 +3391,59 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return new Persistent.InitializingObjectSet<Score>(this, query);
 	}
 	
+	/**
+	 * Priority of a fetched identity file in the {@link IdentityFileDiskQueue}: The files of
+	 * Identitys with a high capacity are imported first, so their trust lists quickly determine
+	 * the Scores of the Identitys they trust, and thereby which Identitys are fetched.
+	 * 
+	 * Does not lock the WebOfTrust or wait for the database: It is called by the
+	 * {@link IdentityFetcher} for each fetched file on the callback thread of fred, which must not
+	 * wait for a trust list import or Score computation. Thus it uses the {@link ScoreRecord}s of
+	 * the {@link ReadSnapshot}: The {@link Identity} clones of the snapshot do not contain
+	 * {@link Identity#getBestCapacity()}, and are not updated when only their Scores change.
+	 * The snapshot may lag behind the running transaction, which merely affects the order of the
+	 * import.
+	 * Loading the snapshot would wait for the transaction lock, so if it is not loaded yet, the
+	 * {@link #mReadSnapshotLoadJob} loads it and the file gets the priority of a capacity of 0.
+	 * 
+	 * @return 0 for {@link OwnIdentity}s, otherwise the index of the best capacity in
+	 *     {@link #capacities}, which is the rank if that is all the Identity has. The length of
+	 *     {@link #capacities} for a capacity of 0 or if the snapshot is not loaded, and one more
+	 *     for unknown Identitys. */
+	int getIdentityFilePriority(FreenetURI identityFileURI) {
+		final String id = IdentityID.constructAndValidateFromURI(identityFileURI).toString();
+		final ReadSnapshot snapshot = mReadSnapshots.getSnapshotIfLoaded();
+		
+		if(snapshot == null) {
+			mReadSnapshotLoadJob.triggerExecution();
+			return capacities.length;
+		}
+		
+		try {
+			if(snapshot.getIdentityByID(id) instanceof OwnIdentity)
+				return 0;
+		} catch(UnknownIdentityException e) {
+			return capacities.length + 1;
+		}
+		
+		int capacity = 0;
+		for(ScoreRecord score : snapshot.getReceivedScores(id))
+			capacity = Math.max(capacity, score.getCapacity());
+		
+		for(int i = 0; i < capacities.length; ++i) {
+			if(capacities[i] == capacity)
+				return i;
+		}
+		return capacities.length;
+	}
+
 	/**
 	 * Checks whether the given identity should be downloaded. 
 	 * 
 	 * Synchronization: You must synchronize on this WebOfTrust when using this function.
 	 * 
-	 * TODO: Performance: Various callers could be optimized by storing the value of this for all
-	 * identities in a database table.
+	 * Does not query the Scores of non-own Identitys: It uses {@link Identity#getBestScore()}
+	 * and {@link Identity#getBestCapacity()}, which are stored in the Identity.
 	 * 
 	 * @return Returns true if the identity has any capacity > 0, any score >= 0 or if it is an own identity.
 	 */
@@ -2868,39 +3463,26 @@ public final class WebOfTrust extends WebOfTrustInterface
 			}
 		}
 		
-		int bestScore = Integer.MIN_VALUE;
-		int bestCapacity = 0;
-		final ObjectSet<Score> scores = getScores(identity);
-			
-		if(scores.size() == 0)
+		if(!identity.hasScores())
 			return false;
-			
-		// TODO: Cache the best score of an identity as a member variable.
-		for(Score score : scores) { 
-			bestCapacity  = Math.max(score.getCapacity(), bestCapacity);
-			bestScore  = Math.max(score.getScore(), bestScore);
-			
-			// Notice: Identitys with negative score are considered as distrusted, so one might
-			// wonder why we hereby download identities even if their Score is negative just because
-			// their capacity is > 0.
-			// This is to ensure that the fetching algorithm allows the score computation algorithm
-			// to be "stable": It should yield the same resulting scores independent of the order in
-			// which identities are downloaded.
-			// If an identity has a capacity of > 0, it is eligible to vote, and thus might cause
-			// the negative score it has to disappear if we do still download its trust lists
-			// *after* the Score is already negative (= changed order of downloading).
-			// This isn't self-voting, it is rather caused by the fact that downloading its votes
-			// could cause many identities to appear which have a much higher capacity than the
-			// current distrusters. Those new identities will cause the current distrusters to be
-			// distrusted; and thus make the currently negative score positive. In other words the
-			// rank graph could be structured completely differently, where the current distrusted
-			// identity has a much lower rank than the current distrusters, and thus its trustees
-			// have higher voting powers than the current distrusters.
-			if(bestCapacity > 0 || bestScore >= 0)
-				return true;
-		}
-			
-		return false;
+		
+		// Notice: Identitys with negative score are considered as distrusted, so one might
+		// wonder why we hereby download identities even if their Score is negative just because
+		// their capacity is > 0.
+		// This is to ensure that the fetching algorithm allows the score computation algorithm
+		// to be "stable": It should yield the same resulting scores independent of the order in
+		// which identities are downloaded.
+		// If an identity has a capacity of > 0, it is eligible to vote, and thus might cause
+		// the negative score it has to disappear if we do still download its trust lists
+		// *after* the Score is already negative (= changed order of downloading).
+		// This isn't self-voting, it is rather caused by the fact that downloading its votes
+		// could cause many identities to appear which have a much higher capacity than the
+		// current distrusters. Those new identities will cause the current distrusters to be
+		// distrusted; and thus make the currently negative score positive. In other words the
+		// rank graph could be structured completely differently, where the current distrusted
+		// identity has a much lower rank than the current distrusters, and thus its trustees
+		// have higher voting powers than the current distrusters.
+		return identity.getBestCapacity() > 0 || identity.getBestScore() >= 0;
 	}
 
 	/**
@@ -2996,8 +3578,13 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @see #getTrust(Identity, Identity)
 	 */
 	public synchronized Trust getTrust(final String trustID) throws NotTrustedException, DuplicateTrustException {
+		final Trust cached = mTrustCache.get(trustID);
+		if(cached != null)
+			return cached;
+		
 		final Query query = mDB.query();
 		query.constrain(Trust.class);
+		query.descend("mKey").constrain(IdentityPairKey.fromID(trustID));
 		query.descend("mID").constrain(trustID);
 		final ObjectSet<Trust> result = new Persistent.InitializingObjectSet<Trust>(this, query);
 		
@@ -3005,6 +3592,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 			case 1: 
 				final Trust trust = result.next();
 				assert(trustID.equals(new TrustID(trust.getTruster(), trust.getTrustee()).toString()));
+				mTrustCache.put(trust);
 				return trust;
 			case 0: throw new NotTrustedException(trustID);
 			default: throw new DuplicateTrustException(trustID, result.size());
@@ -3158,8 +3746,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 			trust.setComment(newComment);
 			final boolean valueChanged = trust.getValue() != newValue; 
 			
-			if(valueChanged)
+			if(valueChanged) {
+				recordTrustListImportChange(truster.getID(), trustee.getID());
 				trust.setValue(newValue);
+				mTrustGraph.setTrust(truster.getID(), trustee.getID(), newValue);
+			}
 			
 			trust.storeWithoutCommit();
 			
@@ -3171,8 +3762,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 				updateScoresWithoutCommit(oldTrust, trust);
 			}
 		} catch (NotTrustedException e) {
+			recordTrustListImportChange(truster.getID(), trustee.getID());
 			final Trust trust = new Trust(this, truster, trustee, newValue, newComment);
 			trust.storeWithoutCommit();
+			mTrustGraph.setTrust(truster.getID(), trustee.getID(), newValue);
 			mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(null, trust);
 			if(logDEBUG) Logger.debug(this, "New trust value ("+ trust +"), now updating Score.");
 			updateScoresWithoutCommit(null, trust);
@@ -3194,6 +3787,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	void setTrust(Identity truster, Identity trustee, byte newValue, String newComment)
 		throws InvalidParameterException {
 		
+		assert(mLockOrder.mayAcquire(Lock.IDENTITY_FETCHER));
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -3250,6 +3844,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * 
 	 */
 	protected void removeTrustWithoutCommit(Trust trust) {
+		recordTrustListImportChange(trust.getTruster().getID(), trust.getTrustee().getID());
+		mTrustGraph.removeTrust(trust.getTruster().getID(), trust.getTrustee().getID());
 		trust.deleteWithoutCommit();
 		mSubscriptionManager.storeTrustChangedNotificationWithoutCommit(trust, null);
 		updateScoresWithoutCommit(trust, null);
@@ -3298,22 +3894,54 @@ public final class WebOfTrust extends WebOfTrustInterface
 		if(trustee == truster)
 			return Integer.MAX_VALUE;
 		
-		int value = 0;
+		final TrustGraph graph = mTrustGraph;
+		final int trusterIndex = graph.getIndex(truster.getID());
+		final int trusteeIndex = graph.getIndex(trustee.getID());
 		
-		try {
-			return getTrust(truster, trustee).getValue();
-		}
-		catch(NotTrustedException e) { }
+		if(trusteeIndex == TrustGraph.NONE) // Has not received any Trust
+			return 0;
+		
+		final int treeOwnerTrust = graph.getValue(trusterIndex, trusteeIndex);
+		if(treeOwnerTrust != TrustGraph.NONE)
+			return treeOwnerTrust;
 		
-		for(Trust trust : getReceivedTrusts(trustee)) {
+		int value = 0;
+		
+		for(int edge = graph.getReceivedTrustsBegin(trusteeIndex);
+				edge < graph.getReceivedTrustsEnd(trusteeIndex); ++edge) {
 			try {
-				final Score trusterScore = getScore(truster, trust.getTruster());
-				value += ( trust.getValue() * trusterScore.getCapacity() ) / 100;
+				final String trusterOfTrusteeID = graph.getIdentityID(graph.getTruster(edge));
+				final Score trusterScore
+					= getScore(new ScoreID(truster.getID(), trusterOfTrusteeID).toString());
+				value += ( graph.getReceivedTrustValue(edge) * trusterScore.getCapacity() ) / 100;
 			} catch (NotInTrustTreeException e) {}
 		}
 		return value;
 	}
 
+	/**
+	 * Returns the {@link RankComputer} which the incremental Score computation uses, currently
+	 * a {@link BucketQueueRankComputer}.
+	 * See {@link RankComputer} for the constraints of using it. */
+	RankComputer newRankComputer() {
+		return new BucketQueueRankComputer(this, mTrustGraph);
+	}
+
+	/**
+	 * Returns a {@link RankComputer} which uses
+	 * {@link #computeRankFromScratch_Caching(OwnIdentity, Identity, Map)}, with a cache which is
+	 * private to the returned object.
+	 * For unit tests and benchmarks which compare it against {@link #newRankComputer()}. */
+	RankComputer newCachingRankComputer() {
+		final HashMap<String, Integer> rankCache = new HashMap<String, Integer>();
+		
+		return new RankComputer() {
+			@Override public int computeRank(OwnIdentity source, Identity target) {
+				return computeRankFromScratch_Caching(source, target, rankCache);
+			}
+		};
+	}
+
 	/** 
 	 * Based on "uniform-cost search" algorithm (= optimized Dijkstra).<br>
 	 * Modified with respect to ignoring "blocked" edges: Having received a rank of
@@ -3326,11 +3954,13 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 *   and then {@link #computeRankFromScratch_Caching(OwnIdentity, Identity, Map)} came
 	 *   from as this function is their predecessor (in the order they were just mentioned).
 	 * - for unit testing purposes, provide an alternate, unoptimized implementation of said
-	 *   functions.
+	 *   functions. To keep it independent from the other implementations, it deliberately walks
+	 *   the Trust graph using database queries instead of the {@link TrustGraph}.
 	 *   
-	 * TODO: Code quality: Since we have 4 implementations of rank computation now
-	 * (including {@link #computeAllScoresWithoutCommit()}), this and the other functions should be
-	 * moved to an interface "RankComputer" with 4 implementing classes.*/
+	 * TODO: Code quality: Since we have 5 implementations of rank computation now
+	 * (including {@link #computeAllScoresWithoutCommit()} and {@link BucketQueueRankComputer}),
+	 * this and the other functions should be moved to implementations of
+	 * {@link RankComputer}.*/
 	int computeRankFromScratch_Forward(final OwnIdentity source, final Identity target) {
 		final class Vertex implements Comparable<Vertex>{
 			final Identity identity;
@@ -3455,7 +4085,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * - ease understanding of where {@link #computeRankFromScratch_Caching(OwnIdentity, Identity,
 	 *   Map)} came from as this function is its predecessor.
 	 * - for unit testing purposes, provide an alternate, unoptimized implementation of said
-	 *   function. */
+	 *   function. Like {@link #computeRankFromScratch_Forward(OwnIdentity, Identity)}, it thus
+	 *   deliberately uses database queries instead of the {@link TrustGraph}. */
 	int computeRankFromScratch(final OwnIdentity source, final Identity target) {
 		final class Vertex implements Comparable<Vertex>{
 			final Identity identity;
@@ -3603,6 +4234,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * - Hence, we can update the cache with shortest paths for E1 and E2 when we searched the
 	 *   path for T.
 	 *   
+	 * Used as {@link RankComputer} via {@link #newCachingRankComputer()}. In practice,
+	 * {@link BucketQueueRankComputer} is used instead, see {@link #newRankComputer()}.
+	 *   
 	 * @param rankCache Key = {@link ScoreID#toString()}, Value = rank.
 	 */
 	int computeRankFromScratch_Caching(final OwnIdentity source, final Identity target,
@@ -3615,9 +4249,16 @@ public final class WebOfTrust extends WebOfTrustInterface
 				return cachedRank;
 		}
 		
+		// The Trust graph is walked using its in-memory mirror instead of database queries, and
+		// Identitys are represented by their index in it, see class TrustGraph.
+		final TrustGraph graph = mTrustGraph;
+		final int sourceIndex = graph.getIndex(source.getID());
+		final int targetIndex = graph.getIndex(target.getID());
+		
 		final class Vertex implements Comparable<Vertex>{
 			final Vertex previous;
-			final Identity identity;
+			/** {@link TrustGraph} index of the Identity. */
+			final int identity;
 			/**
 			 * Current known number of counted rank steps of rank of target, i.e. the shortest-path
 			 * search algorithm counts this up as it walks the PriorityQueue.
@@ -3649,7 +4290,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 			 * In other words: Same as computeRankFromScratch(source, this.identity); */
 			private Integer realRank = null;
 			
-			public Vertex(Vertex previous, Identity identity, int rank) {
+			public Vertex(Vertex previous, int identity, int rank) {
 				this.previous = previous;
 				this.identity = identity;
 				this.rank = rank;
@@ -3663,7 +4304,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 						assert(previous.rankCountedInVertexSteps != Integer.MAX_VALUE);
 						
 						if(previous.realRank != null) {
-							assert(this.identity == source);
+							assert(this.identity == sourceIndex);
 							assert(previous.realRank != Integer.MAX_VALUE);
 							// Steps from source to previous + steps from previous to target. 
 							rankCountedInVertexSteps
@@ -3687,7 +4328,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 				 * A slightly optimized version of this is below. */
 				// assert(rank == computeRankFromScratch(source, identity)) : "My rank is invalid!";
 				
-				Integer oldRank = rankCache.put(new ScoreID(source, identity).toString(), rank);
+				Integer oldRank = rankCache.put(
+					new ScoreID(source.getID(), graph.getIdentityID(identity)).toString(), rank);
 				assert(oldRank == null || oldRank == rank);
 				
 				// This assert() be very slow, please only enable it for debugging purposes.
@@ -3709,7 +4351,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 			 * There are some special cases where the linked list lacks some elements, you will
 			 * understand them if you first read completePathToSourceUsingCache(). */
 			void updateCacheWithMyPath() {
-				assert(this.identity == source) : "Path should be from source to target";
+				assert(this.identity == sourceIndex) : "Path should be from source to target";
 				/* This assert() be very slow, please only enable it for debugging purposes. */
 				// assert(rank == computeRankFromScratch(source, target)) : "My rank is invalid!";
 				
@@ -3743,12 +4385,12 @@ public final class WebOfTrust extends WebOfTrustInterface
 				}
 				
 				for(; ; v = v.previous) {
-					if(lastRankIsMAX_VALUE && v.identity == target)
+					if(lastRankIsMAX_VALUE && v.identity == targetIndex)
 						reversedRank = Integer.MAX_VALUE;
 					
 					new Vertex(null, v.identity, reversedRank).updateCacheWithMyself();
 					
-					if(v.identity == target) {
+					if(v.identity == targetIndex) {
 						assert(v.rank == 0);
 						assert(v.previous == null);
 						break;
@@ -3758,7 +4400,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				}
 				
 				assert(reversedRank == this.rank);
-				assert(v.identity == target) : "Path should be from source to target";
+				assert(v.identity == targetIndex) : "Path should be from source to target";
 			}
 			
 			/**
@@ -3778,10 +4420,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 			 * This has to be and is respected in updateCacheWithMyPath().
 			 */
 			Vertex completePathToSourceUsingCache() {
-				assert(this.identity != source);
-				assert(this.identity != target);
+				assert(this.identity != sourceIndex);
+				assert(this.identity != targetIndex);
 				
-				Integer uplink = rankCache.get(new ScoreID(source, identity).toString());
+				Integer uplink = rankCache.get(
+					new ScoreID(source.getID(), graph.getIdentityID(identity)).toString());
 				if(uplink == null)
 					return null;
 				
@@ -3809,7 +4452,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				
 				this.realRank = uplink;
 				
-				return new Vertex(this, source, targetRank);
+				return new Vertex(this, sourceIndex, targetRank);
 			}
 		}
 		
@@ -3823,50 +4466,47 @@ public final class WebOfTrust extends WebOfTrustInterface
 		// used to amend a non-sorting queue to be able to handle the few cases of MAX_VALUE which
 		// need sorting?
 		PriorityQueue<Vertex> queue = new PriorityQueue<Vertex>();
-		// Notice:
-		// - Regular HashSets cannot be used for the reasons explained at class IdentifierHashSet.
-		// - IdentityHashSet is not related to class Identity, but to the fact that it compares
-		//   object identity ("==") instead of equals().
-		// - To avoid the above misconception, IdentifierHashSet would be more well-placed here.
-		///  But profiling has shown that it would be significantly slower, since class Identity
-		//   needs to do db4o object activation to compute getID(). (Once we move to SQL, this won't
-		//   be relevant anymore, and the code can be changed to IdentifierHashSet: SQL queries will
-		//   usually return fully initialized objects and thus require no activation.)
-		IdentityHashSet<Identity> seen = new IdentityHashSet<Identity>();
+		// Bit index = TrustGraph index of the Identity
+		BitSet seen = new BitSet();
 		
 		Integer sourceRank = rankCache.get(new ScoreID(source, source).toString());
-		try {
-			if(sourceRank == null)
+		if(sourceRank == null) {
+			try {
 				sourceRank = getScore(source, source).getRank();
-			else if(sourceRank == -1) {
-				new Vertex(null, target, -1).updateCacheWithMyself();
-				return -1;
+			} catch (NotInTrustTreeException e) {
+				Logger.warning(this, "initTrustTreeWithoutCommit() not called for: " + source);
+				// Some unit tests require the special case of initTrustTreeWithoutCommit() not
+				// having been called for an OwnIdentity yet to yield a proper result of "no rank".
+				sourceRank = -1;
 			}
 			
-			new Vertex(null, source, sourceRank).updateCacheWithMyself();
-			if(source == target)
-				return sourceRank;
-		} catch (NotInTrustTreeException e) {
-			Logger.warning(this, "initTrustTreeWithoutCommit() not called for: " + source);
-			sourceRank = -1;
-			// Some unit tests require the special case of initTrustTreeWithoutCommit() not having
-			// been called for an OwnIdentity yet to yield a proper result of "no rank".
-			new Vertex(null, source, sourceRank).updateCacheWithMyself();
-			new Vertex(null, target, sourceRank).updateCacheWithMyself();
+			rankCache.put(new ScoreID(source, source).toString(), sourceRank);
+		}
+		
+		if(source == target)
 			return sourceRank;
+		
+		if(sourceRank == -1 || sourceIndex == TrustGraph.NONE || targetIndex == TrustGraph.NONE) {
+			// If the source has no rank, it cannot give one to anyone. And if the source or the
+			// target are not in the TrustGraph, then they have neither given nor received any
+			// Trust, so there cannot be a path between them.
+			rankCache.put(new ScoreID(source, target).toString(), -1);
+			return -1;
 		}
 		
-		seen.add(target);
-		Vertex targetVertex = new Vertex(null, target, 0); // For Vertex.updateCacheWithMyPath()
-		for(Trust targetTrust : getReceivedTrusts(target)) {
-			Identity truster = targetTrust.getTruster();
-			int rank = targetTrust.getValue() > 0 ? 1 : Integer.MAX_VALUE;
+		seen.set(targetIndex);
+		Vertex targetVertex = new Vertex(null, targetIndex, 0); // For Vertex.updateCacheWithMyPath()
+		for(int e = graph.getReceivedTrustsBegin(targetIndex);
+				e < graph.getReceivedTrustsEnd(targetIndex); ++e) {
 			
-			if(truster == source) {
+			int truster = graph.getTruster(e);
+			int rank = graph.getReceivedTrustValue(e) > 0 ? 1 : Integer.MAX_VALUE;
+			
+			if(truster == sourceIndex) {
 				// If a direct Trust exists from the OwnIdentity source to the target, then it
 				// must always overwrite any other rank paths. This is a demand of the specification
 				// of the WOT algorithm, see computeAllScoresWithoutCommit().
-				Vertex result = new Vertex(null, target,
+				Vertex result = new Vertex(null, targetIndex,
 					rank != Integer.MAX_VALUE ? rank + sourceRank : Integer.MAX_VALUE);
 				
 				result.updateCacheWithMyself();
@@ -3876,23 +4516,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 			queue.add(new Vertex(targetVertex, truster, rank));
 		}
 		
-		// If a vertex has received a Trust from the source, all other Trusts it has received can
-		// be ignored. Thus, we cache the source Trusts: This allows us to first check for a
-		// source Trust before we query all Trusts of a vertex. This should be faster since db4o
-		// queries are expensive.
-		// TODO: Performance: Use an array-backed map since this will be small.
-		// Key = Identity which received the Trust
-		IdentityHashMap<Identity, Trust> sourceTrusts = new IdentityHashMap<Identity, Trust>();
-		for(Trust sourceTrust : getGivenTrusts(source)) {
-			// TODO: Performance: Add & use Trust.getTrusteeID(), can be computed from Trust ID
-			sourceTrusts.put(sourceTrust.getTrustee(), sourceTrust);
-		}
-		
 		while(!queue.isEmpty()) {
 			Vertex vertex = queue.poll();
 			
-			if(vertex.identity == source) {
-				Vertex result = new Vertex(vertex.previous, source, 
+			if(vertex.identity == sourceIndex) {
+				Vertex result = new Vertex(vertex.previous, sourceIndex, 
 					vertex.rank != Integer.MAX_VALUE ? vertex.rank + sourceRank
 					                                 : Integer.MAX_VALUE);
 				
@@ -3904,9 +4532,11 @@ public final class WebOfTrust extends WebOfTrustInterface
 			// in the below loop which iterates over the trusts. This is how the paper of Ariel
 			// Felner does it ("Position Paper: Dijkstra’s Algorithm versus Uniform Cost Search or a
 			// Case Against Dijkstra’s Algorithm")
-			if(!seen.add(vertex.identity))
+			if(seen.get(vertex.identity))
 				continue; // Necessary because we do not use decreaseKey(), see below
 			
+			seen.set(vertex.identity);
+			
 			Vertex pathToSource = vertex.completePathToSourceUsingCache();
 			if(pathToSource != null) { // null == Cache couldn't answer whether a path exists.
 				if(pathToSource.rank != -1) // -1 == Cache knew for sure that no path exists.
@@ -3915,14 +4545,16 @@ public final class WebOfTrust extends WebOfTrustInterface
 				continue;
 			}
 			
-			Trust trustFromSource = sourceTrusts.get(vertex.identity);
-			if(trustFromSource != null) {
+			// If a vertex has received a Trust from the source, all other Trusts it has received
+			// can be ignored.
+			final int trustFromSource = graph.getValue(sourceIndex, vertex.identity);
+			if(trustFromSource != TrustGraph.NONE) {
 				// The decision of an OwnIdentity overwrites all other Trust values an identity has
 				// received. Thus, the rank is forced by it as well, and we must not walk other
 				// edges.
 
-				if(trustFromSource.getValue() > 0) {
-					queue.add(new Vertex(vertex, source,
+				if(trustFromSource > 0) {
+					queue.add(new Vertex(vertex, sourceIndex,
 						vertex.rank != Integer.MAX_VALUE ? vertex.rank + 1 : Integer.MAX_VALUE));
 				} else {
 					// An identity with a rank of MAX_VALUE may not give its rank to its trustees.
@@ -3941,10 +4573,12 @@ public final class WebOfTrust extends WebOfTrustInterface
 			}
 
 			
-			for(Trust trust : getReceivedTrusts(vertex.identity)) {
-				Identity neighbourVertex = trust.getTruster();
+			for(int e = graph.getReceivedTrustsBegin(vertex.identity);
+					e < graph.getReceivedTrustsEnd(vertex.identity); ++e) {
 				
-				if(seen.contains(neighbourVertex))
+				int neighbourVertex = graph.getTruster(e);
+				
+				if(seen.get(neighbourVertex))
 					continue; // Prevent infinite loop
 				
 				// FIXME: Performance: The UCS algorithm actually does decreaseKey() here instead of
@@ -3955,7 +4589,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 				// feature of a PQ. But it increases memory usage and runtime to have useless
 				// entries in the PQ.
 				
-				if(trust.getValue() > 0) {
+				if(graph.getReceivedTrustValue(e) > 0) {
 					queue.add(new Vertex(vertex, neighbourVertex,
 						vertex.rank != Integer.MAX_VALUE ? vertex.rank + 1 : Integer.MAX_VALUE));
 				} else {
@@ -3975,7 +4609,9 @@ public final class WebOfTrust extends WebOfTrustInterface
 		// walk the *whole* graph until we find out that no path exists. So we process
 		// O(IdentityCount) Identitys. We can then opportunistically update the cache for all
 		// O(IdentityCount) of them!
-		for(Identity maybeUnreachable : seen) {
+		for(int maybeUnreachable = seen.nextSetBit(0); maybeUnreachable >= 0;
+				maybeUnreachable = seen.nextSetBit(maybeUnreachable + 1)) {
+			
 			// There is one exception to considering seen Identitys as unreachable:
 			// Those which have received a Trust value from outside of the seen set might have an
 			// uplink to the source, so we do not mark them as unreachable. 
@@ -3984,8 +4620,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 			// rank of MAX_VALUE, it couldn't give it to the target, but it does have it for itself
 			// and thus is not unreachable on its own.
 			boolean isUnreachable = true;
-			for(Trust trust : getReceivedTrusts(maybeUnreachable)) {
-				if(!seen.contains(trust.getTruster())) {
+			for(int e = graph.getReceivedTrustsBegin(maybeUnreachable);
+					e < graph.getReceivedTrustsEnd(maybeUnreachable); ++e) {
+				
+				if(!seen.get(graph.getTruster(e))) {
 					isUnreachable = false;
 					break;
 				}
@@ -4034,22 +4672,30 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		int rank = -1;
 		
-		try {
-			Trust treeOwnerTrust = getTrust(truster, trustee);
-			
-			if(treeOwnerTrust.getValue() > 0)
+		final TrustGraph graph = mTrustGraph;
+		final int trusterIndex = graph.getIndex(truster.getID());
+		final int trusteeIndex = graph.getIndex(trustee.getID());
+		
+		if(trusteeIndex == TrustGraph.NONE) // Has not received any Trust
+			return -1;
+		
+		final int treeOwnerTrust = graph.getValue(trusterIndex, trusteeIndex);
+		if(treeOwnerTrust != TrustGraph.NONE) {
+			if(treeOwnerTrust > 0)
 				return 1;
 			else
 				return Integer.MAX_VALUE;
-		} catch(NotTrustedException e) { }
+		}
 		
-		for(Trust trust : getReceivedTrusts(trustee)) {
+		for(int edge = graph.getReceivedTrustsBegin(trusteeIndex);
+				edge < graph.getReceivedTrustsEnd(trusteeIndex); ++edge) {
 			try {
-				Score score = getScore(truster, trust.getTruster());
+				final String trusterOfTrusteeID = graph.getIdentityID(graph.getTruster(edge));
+				Score score = getScore(new ScoreID(truster.getID(), trusterOfTrusteeID).toString());
 
 				if(score.getCapacity() != 0) { // If the truster has no capacity, he can't give his rank
 					// A truster only gives his rank to a trustee if he has assigned a strictly positive trust value
-					if(trust.getValue() > 0 ) {
+					if(graph.getReceivedTrustValue(edge) > 0 ) {
 						// We give the rank to the trustee if it is better than its current rank or he has no rank yet. 
 						if(rank == -1 || score.getRank() < rank)  
 							rank = score.getRank();						
@@ -4073,6 +4719,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	/**
 	 * Begins the import of a trust list. This sets a flag on this WoT which signals that the import of a trust list is in progress.
 	 * This speeds up setTrust/removeTrust as the score calculation is only performed when {@link #finishTrustListImport()} is called.
+	 * It then processes all changed Trusts at once, see {@link #updateScoresAfterTrustListImportWithoutCommit()}.
 	 * 
 	 * ATTENTION: Always take care to call one of {@link #finishTrustListImport()} / {@link #abortTrustListImport(Exception)} / {@link #abortTrustListImport(Exception, LogLevel)}
 	 * for each call to this function.
@@ -4117,8 +4764,17 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		
 		mTrustListImportInProgress = true;
+		mTrustListImportChangedTrustees.clear();
 		assert(!mFullScoreComputationNeeded);
-		assert(computeAllScoresWithoutCommit()); // The database is intact before the import
+		
+		// In asynchronous mode the delta of previous imports may still be pending. The changes of
+		// this import are then added to it.
+		detectPendingScoresRollback();
+		assert(mTrustListImportOldGraph == null
+			? mTrustListImportChangedTrusters.isEmpty() : mScoreComputationPending);
+		// The database is intact before the import. Pending Scores are not, but checking them
+		// would update them and thereby defeat asynchronous mode.
+		assert(mScoreComputationPending || computeAllScoresWithoutCommit());
 	}
 	
 	/**
@@ -4149,7 +4805,17 @@ public final class WebOfTrust extends WebOfTrustInterface
 		assert(mTrustListImportInProgress);
 		mTrustListImportInProgress = false;
 		mFullScoreComputationNeeded = false;
+		// In asynchronous mode the delta may contain the Trust changes of previous imports whose
+		// Scores are still pending, so we must keep it. The changes of this import are rolled
+		// back, so this merely causes their trusters to be processed needlessly.
+		if(!mScoreComputationPending) {
+			mTrustListImportOldGraph = null;
+			mTrustListImportChangedTrusters.clear();
+		}
 		Persistent.checkedRollback(mDB, this, e, logLevel);
+		detectPendingScoresRollback();
+		// The rollback does not restore the value of our Configuration object.
+		mConfig.set(SCORE_COMPUTATION_PENDING_CONFIG_KEY, mScoreComputationPending);
 		assert(computeAllScoresWithoutCommit()); // Test rollback.
 	}
 	
@@ -4209,13 +4875,431 @@ public final class WebOfTrust extends WebOfTrustInterface
 			computeAllScoresWithoutCommit();
 			assert(!mFullScoreComputationNeeded); // It properly clears the flag
 			assert(computeAllScoresWithoutCommit()); // computeAllScoresWithoutCommit() is stable
+		} else if(mTrustListImportOldGraph != null && isScoreComputationAsynchronous()) {
+			// Keep the delta so mPendingScoresJob processes it along with the ones of the
+			// imports which will happen until it runs.
+			if(logMINOR) Logger.minor(this, "Asynchronous mode, deferring Score computation.");
+			
+			mTrustListImportInProgress = false;
+			mScoreComputationPending = true;
+			storeScoreComputationPendingWithoutCommit(true);
+			++mDeferredTrustListImportCount;
+			mPendingScoresJob.triggerExecution();
+			return;
+		} else {
+			if(mTrustListImportOldGraph != null)
+				updateScoresAfterTrustListImportWithoutCommit();
+			
+			// Verify whether updateScoresAfterTrustListImportWithoutCommit() worked.
+			assert(computeAllScoresWithoutCommit());
 		}
-		else
-			assert(computeAllScoresWithoutCommit()); // Verify whether updateScoresWithoutCommit worked.
 		
+		clearTrustListImportDelta();
 		mTrustListImportInProgress = false;
 	}
 	
+	/**
+	 * Must be called by code which changes the value of a {@link Trust}, or creates or deletes
+	 * one, BEFORE it modifies the Trust object or {@link #mTrustGraph}.
+	 * 
+	 * If a trust list import is in progress, this records the delta of the import for
+	 * {@link #updateScoresAfterTrustListImportWithoutCommit()}: The graph as it was before the
+	 * first change, and the IDs of the trusters whose given Trusts changed.
+	 * If a full Score computation is scheduled already, nothing is recorded since
+	 * {@link #finishTrustListImport()} will not need it. Only the trustee is always recorded
+	 * during trust list imports, see {@link #didTrustListImportChangeReceivedTrusts(String)}.
+	 * 
+	 * If Scores are pending due to asynchronous mode, changes outside of trust list imports are
+	 * recorded as well: {@link #updateScoresWithoutCommit(Trust, Trust)} then processes them
+	 * together with the pending ones. */
+	private void recordTrustListImportChange(String trusterID, String trusteeID) {
+		if(mTrustListImportInProgress)
+			mTrustListImportChangedTrustees.add(trusteeID);
+		
+		if(mFullScoreComputationNeeded)
+			return;
+		
+		detectPendingScoresRollback();
+		
+		if(!mTrustListImportInProgress && !mScoreComputationPending)
+			return;
+		
+		// Taking the snapshot lazily avoids its cost for the many imports of trust lists which
+		// didn't change since the previous edition.
+		if(mTrustListImportOldGraph == null)
+			mTrustListImportOldGraph = mTrustGraph.snapshot();
+		
+		mTrustListImportChangedTrusters.add(trusterID);
+	}
+	
+	/**
+	 * Returns true if the current trust list import has changed, created or deleted a
+	 * {@link Trust} which the given Identity receives.
+	 * The Scores are only updated by {@link #finishTrustListImport()}, so the ones of such an
+	 * Identity are outdated until then. */
+	boolean didTrustListImportChangeReceivedTrusts(String identityID) {
+		assert(mTrustListImportInProgress);
+		return mTrustListImportChangedTrustees.contains(identityID);
+	}
+	
+	/**
+	 * Clears the delta of {@link #recordTrustListImportChange(String, String)}. Must be called
+	 * once the stored Scores match the current Trust graph.
+	 * If the delta contained Trust changes whose Scores were pending, it is kept for
+	 * {@link #detectPendingScoresRollback()}. */
+	private void clearTrustListImportDelta() {
+		detectPendingScoresRollback();
+		
+		if(mPendingScoresRollbackOldGraph != null) {
+			// The older graph of both is the one which matches the committed Scores.
+			mPendingScoresRollbackChangedTrusters.addAll(mTrustListImportChangedTrusters);
+		} else if(mScoreComputationPending) {
+			mPendingScoresRollbackOldGraph = mTrustListImportOldGraph;
+			mPendingScoresRollbackChangedTrusters
+				= new HashSet<String>(mTrustListImportChangedTrusters);
+			mPendingScoresRollbackCommitCount = Persistent.getCommitCount();
+			mPendingScoresRollbackRollbackCount = Persistent.getRollbackCount();
+		}
+		
+		mTrustListImportOldGraph = null;
+		mTrustListImportChangedTrusters.clear();
+		mScoreComputationPending = false;
+		storeScoreComputationPendingWithoutCommit(false);
+	}
+	
+	/**
+	 * Stores the {@link #SCORE_COMPUTATION_PENDING_CONFIG_KEY}, only if it changed to not store
+	 * the {@link Configuration} with every trust list import.
+	 * Must be called inside of the transaction which made the Scores pending, respectively which
+	 * updated them. */
+	private void storeScoreComputationPendingWithoutCommit(boolean pending) {
+		if(mConfig.getBoolean(SCORE_COMPUTATION_PENDING_CONFIG_KEY) == pending)
+			return;
+		
+		mConfig.set(SCORE_COMPUTATION_PENDING_CONFIG_KEY, pending);
+		mConfig.storeWithoutCommit();
+	}
+	
+	/**
+	 * If the transaction in which {@link #clearTrustListImportDelta()} cleared pending Scores was
+	 * rolled back, restores them so they are updated again. Must be called before any use of the
+	 * delta of {@link #recordTrustListImportChange(String, String)}.
+	 * This is the same mechanism as the one which {@link TrustGraph} uses to detect rollbacks. */
+	private void detectPendingScoresRollback() {
+		if(mPendingScoresRollbackOldGraph == null)
+			return;
+		
+		// Check for commits first: A rollback of a later transaction doesn't affect the Scores.
+		if(Persistent.getCommitCount() != mPendingScoresRollbackCommitCount) {
+			mPendingScoresRollbackOldGraph = null;
+			mPendingScoresRollbackChangedTrusters = null;
+			return;
+		}
+		
+		if(Persistent.getRollbackCount() == mPendingScoresRollbackRollbackCount)
+			return;
+		
+		if(logMINOR) Logger.minor(this, "Transaction was rolled back, restoring pending Scores.");
+		
+		// The restored graph is older than the current one, if any, so it is the one which
+		// matches the stored Scores.
+		mTrustListImportOldGraph = mPendingScoresRollbackOldGraph;
+		mTrustListImportChangedTrusters.addAll(mPendingScoresRollbackChangedTrusters);
+		mPendingScoresRollbackOldGraph = null;
+		mPendingScoresRollbackChangedTrusters = null;
+		mScoreComputationPending = true;
+		// The rollback restored the stored value already, but not the one of our Configuration
+		// object, which would be stored by the next store of it.
+		mConfig.set(SCORE_COMPUTATION_PENDING_CONFIG_KEY, true);
+		mPendingScoresJob.triggerExecution();
+	}
+	
+	/**
+	 * @return True if {@link #ASYNCHRONOUS_SCORE_COMPUTATION_CONFIG_KEY} is enabled. */
+	private boolean isScoreComputationAsynchronous() {
+		return mConfig.getBoolean(ASYNCHRONOUS_SCORE_COMPUTATION_CONFIG_KEY);
+	}
+	
+	/**
+	 * Returns true if trust lists were imported whose Trust values are not reflected by the
+	 * {@link Score}s yet, which can only happen if
+	 * {@link #ASYNCHRONOUS_SCORE_COMPUTATION_CONFIG_KEY} is enabled. The Scores are updated by
+	 * a background job after {@link #PENDING_SCORES_DELAY}.
+	 * 
+	 * Not synchronized, the result can thus be outdated once it is returned. This is intended for
+	 * displaying the state in the UI, callers cannot make any other use of it anyway. */
+	public boolean isScoreComputationPending() {
+		return mScoreComputationPending;
+	}
+	
+	/**
+	 * Updates the Scores which are pending due to asynchronous mode: Processes the Trust changes
+	 * of all trust lists which were imported since the previous update with a single run of
+	 * {@link #updateScoresAfterTrustListImportWithoutCommit()}. Its runtime mostly depends on
+	 * the number of affected trust trees, not on the number of changes, so processing many
+	 * imports at once is much cheaper than processing each individually.
+	 * 
+	 * Synchronization:
+	 * Must be called while holding the locks which {@link #computeAllScoresWithoutCommit()}
+	 * requires, outside of trust list imports. */
+	private void updatePendingScoresWithoutCommit() {
+		assert(!mTrustListImportInProgress);
+		
+		detectPendingScoresRollback();
+		
+		if(!mScoreComputationPending)
+			return;
+		
+		updateScoresAfterTrustListImportWithoutCommit();
+		clearTrustListImportDelta();
+		
+		// Verify whether updateScoresAfterTrustListImportWithoutCommit() worked.
+		assert(computeAllScoresWithoutCommit());
+	}
+	
+	/**
+	 * Does {@link #updatePendingScoresWithoutCommit()} and commits the transaction.
+	 * Used by the {@link #mPendingScoresJob}, and by unit tests instead of it.
+	 * 
+	 * Synchronized and does a transaction, no outer synchronization is needed. */
+	synchronized void updatePendingScores() {
+		assert(mLockOrder.mayAcquire(Lock.IDENTITY_FETCHER));
+		synchronized(mFetcher) {
+		synchronized(mSubscriptionManager) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				updatePendingScoresWithoutCommit();
+				Persistent.checkedCommit(mDB, this);
+			} catch(RuntimeException e) {
+				// detectPendingScoresRollback() will restore the pending Scores.
+				Persistent.checkedRollbackAndThrow(mDB, this, e);
+			}
+		}
+		}
+		}
+	}
+	
+	/** Run by {@link WebOfTrust#mGroupCommitJob}. */
+	private final class GroupCommitFlusher implements Runnable, PrioRunnable {
+		@Override public void run() {
+			try {
+				Persistent.flushDeferredCommits(mDB, WebOfTrust.this);
+			} catch(RuntimeException e) {
+				// Rolled back already. The changes of deferrable commits are safe to get lost.
+				Logger.error(this, "Flushing deferred commits failed!", e);
+			}
+		}
+		
+		@Override public int getPriority() {
+			// Delaying the commit more than configured is better than slowing down the threads
+			// whose transactions we commit, so don't use a high priority.
+			return PriorityLevel.NORMAL.value;
+		}
+	}
+	
+	/** Run by {@link WebOfTrust#mOnlineBackupJob}. */
+	private final class OnlineBackupRunner implements Runnable, PrioRunnable {
+		@Override public void run() {
+			try {
+				mOnlineBackup.backup();
+			} catch(InterruptedException e) {
+				// Shutdown, don't schedule the next backup.
+				return;
+			} catch(IOException e) {
+				Logger.error(this, "Online backup failed!", e);
+			} catch(RuntimeException e) {
+				Logger.error(this, "Online backup failed!", e);
+			}
+			
+			mOnlineBackupJob.triggerExecution();
+		}
+		
+		@Override public int getPriority() {
+			// The backup only has to happen eventually, don't compete with the imports.
+			return PriorityLevel.LOW_PRIORITY.value;
+		}
+	}
+	
+	/** Run by {@link WebOfTrust#mReadSnapshotLoadJob}. */
+	private final class ReadSnapshotLoader implements Runnable, PrioRunnable {
+		@Override public void run() {
+			try {
+				getReadSnapshot();
+			} catch(RuntimeException e) {
+				// The next getIdentityFilePriority() will trigger the job again.
+				Logger.error(this, "Loading the read snapshot failed!", e);
+			}
+		}
+		
+		@Override public int getPriority() {
+			// Only affects the order of the imports until it has run.
+			return PriorityLevel.LOW_PRIORITY.value;
+		}
+	}
+	
+	/** Run by {@link WebOfTrust#mPendingScoresJob}. */
+	private final class PendingScoresUpdater implements Runnable, PrioRunnable {
+		@Override public void run() {
+			try {
+				updatePendingScores();
+			} catch(RuntimeException e) {
+				// The next trust list import will trigger the job again.
+				Logger.error(this, "Updating pending Scores failed!", e);
+			}
+		}
+		
+		@Override public int getPriority() {
+			// LOW_PRIORITY like the IdentityFileProcessor, whose imports cause our work.
+			return PriorityLevel.LOW_PRIORITY.value;
+		}
+	}
+	
+	/**
+	 * Updates all trust trees which are affected by the Trust changes of the current trust list
+	 * import. Called by {@link #finishTrustListImport()}, or in asynchronous mode by
+	 * {@link #updatePendingScoresWithoutCommit()} for the changes of multiple imports.
+	 * 
+	 * Calling {@link #updateScoresWithoutCommit(Trust, Trust)} for each changed Trust instead
+	 * would be very slow: A trust list can contain 512 Trusts, and each distrust or removal of a
+	 * Trust among them would cause a run of
+	 * {@link #updateScoresAfterDistrustWithoutCommit(Identity)}, which walks the database.
+	 * Instead, each affected trust tree is computed twice in memory using
+	 * {@link TrustTreeComputation}: Once upon {@link #mTrustListImportOldGraph}, which matches
+	 * the stored Scores, and once upon the current Trust graph. Only the Scores whose rank, value
+	 * or capacity differ between both are then corrected in the database, using the same code
+	 * as {@link #computeAllScoresWithoutCommit()}. Thus increased and decreased Trust values are
+	 * processed by the same single pass, no matter whether they are positive or not.
+	 * 
+	 * A trust tree can only be affected if one of the changed trusters has a rank in it which
+	 * it can hand down to its trustees, i.e. a rank other than -1 and Integer.MAX_VALUE: Such
+	 * Identitys would have a capacity of 0, so their Trusts influence neither ranks nor Score
+	 * values. Trust changes cannot change the rank of the truster itself, so we can decide this
+	 * using the stored Scores.
+	 * 
+	 * Synchronization:
+	 * Must be called while holding the locks which {@link #computeAllScoresWithoutCommit()}
+	 * requires. */
+	private void updateScoresAfterTrustListImportWithoutCommit() {
+		if(logMINOR) Logger.minor(this, "Doing an incremental computation of all Scores for a trust list import...");
+		
+		final StopWatch time = new StopWatch();
+		
+		final TrustGraph oldGraph = mTrustListImportOldGraph;
+		final TrustGraph newGraph = mTrustGraph.snapshot();
+		
+		final ArrayList<OwnIdentity> affectedTreeOwners = new ArrayList<OwnIdentity>();
+		
+		for(OwnIdentity treeOwner : getAllOwnIdentities()) {
+			// Its Scores are not maintained, see setTrustTreeDormant().
+			if(treeOwner.isTrustTreeDormant())
+				continue;
+			
+			for(String trusterID : mTrustListImportChangedTrusters) {
+				try {
+					final int trusterRank
+						= getScore(new ScoreID(treeOwner.getID(), trusterID).toString()).getRank();
+					
+					if(trusterRank >= 0 && trusterRank != Integer.MAX_VALUE) {
+						affectedTreeOwners.add(treeOwner);
+						break;
+					}
+				} catch(NotInTrustTreeException e) {
+					// The truster has no rank in the tree, continue with the next one.
+				}
+			}
+		}
+		
+		// See computeAllScoresWithoutCommit() for why we do this in batches.
+		final int batchSize = getTrustTreeBatchSize();
+		
+		for(int batchBegin = 0; batchBegin < affectedTreeOwners.size(); batchBegin += batchSize) {
+			final List<OwnIdentity> batchTreeOwners = affectedTreeOwners.subList(batchBegin,
+				Math.min(batchBegin + batchSize, affectedTreeOwners.size()));
+			
+			final List<TrustTreeComputation> oldTrees
+				= computeTrustTrees(oldGraph, batchTreeOwners);
+			final List<TrustTreeComputation> newTrees
+				= computeTrustTrees(newGraph, batchTreeOwners);
+			
+			for(int i = 0; i < batchTreeOwners.size(); ++i) {
+				updateScoresAfterTrustListImportWithoutCommit(batchTreeOwners.get(i),
+					oldGraph, oldTrees.get(i), newGraph, newTrees.get(i));
+			}
+		}
+		
+		++mIncrementalScoreRecomputationDueToTrustListCount;
+		mIncrementalScoreRecomputationDueToTrustListNanos += time.getNanos();
+		
+		if(logMINOR) Logger.minor(this, "Incremental computation of all Scores for a trust list import finished.");
+	}
+	
+	/**
+	 * Stores the Scores of the trust tree of a single OwnIdentity for
+	 * {@link #updateScoresAfterTrustListImportWithoutCommit()}: Those for which the oldTree
+	 * differs from the newTree. */
+	private void updateScoresAfterTrustListImportWithoutCommit(OwnIdentity treeOwner,
+			TrustGraph oldGraph, TrustTreeComputation oldTree,
+			TrustGraph newGraph, TrustTreeComputation newTree) {
+		
+		final String treeOwnerID = treeOwner.getID();
+		final int newTreeOwnerIndex = newGraph.getIndex(treeOwnerID);
+		
+		// Identitys which are in neither graph have neither given nor received any Trust, so
+		// their Scores cannot have changed.
+		
+		for(int newIndex = 0; newIndex < newGraph.getIdentityCount(); ++newIndex) {
+			// The rank of the treeOwner in its own tree is not affected by Trusts.
+			if(newIndex == newTreeOwnerIndex)
+				continue;
+			
+			final String targetID = newGraph.getIdentityID(newIndex);
+			final int oldIndex = oldGraph.getIndex(targetID);
+			
+			final int oldRank = oldTree.getRank(oldIndex);
+			final int newRank = newTree.getRank(newIndex);
+			final int oldScore = oldRank != -1 ? oldTree.getScore(oldIndex) : 0;
+			final int newScore = newRank != -1 ? newTree.getScore(newIndex) : 0;
+			final int oldCapacity = oldTree.getCapacity(oldIndex);
+			final int newCapacity = newTree.getCapacity(newIndex);
+			
+			if(oldRank == newRank && oldScore == newScore && oldCapacity == newCapacity)
+				continue;
+			
+			final Identity target;
+			try {
+				target = getIdentityByID(targetID);
+			} catch(UnknownIdentityException e) {
+				throw new RuntimeException(e);
+			}
+			
+			// The stored Score matches the oldTree so it is expected to be wrong, no need to
+			// log errors.
+			storeScoreWithoutCommit(treeOwner, target, newRank, newScore, newCapacity, false);
+		}
+		
+		// Identitys which lost all their Trusts are not in the newGraph if mTrustGraph was
+		// re-loaded from the database, e.g. after a rollback. This can happen if the Scores were
+		// pending across transactions in asynchronous mode. Such Identitys have no rank anymore.
+		for(int oldIndex = 0; oldIndex < oldGraph.getIdentityCount(); ++oldIndex) {
+			final String targetID = oldGraph.getIdentityID(oldIndex);
+			
+			if(newGraph.getIndex(targetID) != TrustGraph.NONE || targetID.equals(treeOwnerID))
+				continue;
+			
+			if(oldTree.getRank(oldIndex) == -1 && oldTree.getCapacity(oldIndex) == 0)
+				continue;
+			
+			final Identity target;
+			try {
+				target = getIdentityByID(targetID);
+			} catch(UnknownIdentityException e) {
+				throw new RuntimeException(e);
+			}
+			
+			storeScoreWithoutCommit(treeOwner, target, -1, 0, 0, false);
+		}
+	}
+	
 	/**
 	 * Updates all trust trees which are affected by the given modified score.
 	 * For understanding how score calculation works you should first read {@link #computeAllScoresWithoutCommit()}
@@ -4259,6 +5343,29 @@ public final class WebOfTrust extends WebOfTrustInterface
 			}
 			return;
 		}
+		
+		if(mTrustListImportInProgress) {
+			// finishTrustListImport() will process all Trust changes of the import at once.
+			assert(mTrustListImportOldGraph != null) : "recordTrustListImportChange() not called";
+			
+			if(logMINOR)
+				Logger.minor(this, "Trust list import in progress, not doing incremental one!");
+			
+			return;
+		}
+		
+		detectPendingScoresRollback();
+		
+		if(mScoreComputationPending) {
+			// The stored Scores do not match the Trust graph before this change, which the
+			// algorithms below require. recordTrustListImportChange() has added the change to the
+			// pending ones, so we process all of them instead.
+			if(logMINOR)
+				Logger.minor(this, "Scores are pending, updating them instead of incremental one!");
+			
+			updatePendingScoresWithoutCommit();
+			return;
+		}
 
 		StopWatch time = new StopWatch();
 		
@@ -4289,6 +5396,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 
 		if(!mFullScoreComputationNeeded && (trustWasCreated || trustWasModified)) {
 			for(OwnIdentity treeOwner : getAllOwnIdentities()) {
+				// Its Scores are not maintained, see setTrustTreeDormant().
+				if(treeOwner.isTrustTreeDormant())
+					continue;
+				
 				try {
 					// Throws to abort the update of the trustee's score: If the truster has no rank or capacity in the tree owner's view then we don't need to update the trustee's score.
 					if(getScore(treeOwner, newTrust.getTruster()).getCapacity() == 0)
@@ -4469,51 +5580,278 @@ public final class WebOfTrust extends WebOfTrustInterface
 				Logger.minor(this, "Incremental computation of all Scores not possible, full computation is needed.");
 		}
 		
-		if(!mTrustListImportInProgress) {
-			if(mFullScoreComputationNeeded) {
-				// TODO: Optimization: This uses very much CPU and memory. Write a partial computation function...
-				// TODO: Optimization: While we do not have a partial computation function, we could at least optimize computeAllScores to NOT
-				// keep all objects in memory etc.
-				computeAllScoresWithoutCommit();
-				assert(computeAllScoresWithoutCommit()); // computeAllScoresWithoutCommit is stable
-			} else {
-				assert(computeAllScoresWithoutCommit()); // This function worked correctly.
-			}
-		} else { // a trust list import is in progress
-			// We not do the following here because it would cause too much CPU usage during debugging: Trust lists are large and therefore 
-			// updateScoresWithoutCommit is called often during import of a single trust list
-			// assert(computeAllScoresWithoutCommit());
-		}
+		// Trust list imports have returned above.
+		assert(!mTrustListImportInProgress);
+		
+		if(mFullScoreComputationNeeded) {
+			// TODO: Optimization: This uses very much CPU and memory. Write a partial computation function...
+			// TODO: Optimization: While we do not have a partial computation function, we could at least optimize computeAllScores to NOT
+			// keep all objects in memory etc.
+			computeAllScoresWithoutCommit();
+			assert(computeAllScoresWithoutCommit()); // computeAllScoresWithoutCommit is stable
+		} else {
+			assert(computeAllScoresWithoutCommit()); // This function worked correctly.
+		}
+	}
+
+	/**
+	 * FIXME: Check whether all the BitSets used by this and the callees to avoid double
+	 * computations of stuff actually yield hits. It is possible that I wrongly assumed that double
+	 * computations are possible in some of the cases where a set is used.
+	 * 
+	 * The changed Scores are recorded in {@link ScoreChangeTracker}s instead of maps of Score
+	 * clones: A distrust of a well-connected Identity can change a large part of all Scores, and
+	 * the trackers bound the memory usage by writing their records to a temporary file if there
+	 * are too many. */
+	private void updateScoresAfterDistrustWithoutCommit(Identity distrusted) {
+		final ScoreChangeTracker scoresWithUpdatedRank = newScoreChangeTracker();
+		// Scores whose value changed but which are not in scoresWithUpdatedRank.
+		// No need to have one for Scores with updated capacity: They are a subset of
+		// scoresWithUpdatedRank.
+		final ScoreChangeTracker scoresWithUpdatedValueOnly
+			= scoresWithUpdatedRank.newTrackerWithSameKeys();
+		
+		try {
+			updateRanksAfterDistrustWithoutCommit(distrusted, scoresWithUpdatedRank);
+			
+			BitSet scoresWithUpdatedCapacity
+				= updateCapacitiesAfterDistrustWithoutCommit(scoresWithUpdatedRank);
+			
+			updateValuesAfterDistrustWithoutCommit(distrusted, scoresWithUpdatedRank,
+				scoresWithUpdatedCapacity, scoresWithUpdatedValueOnly);
+			
+			scoresWithUpdatedCapacity = null;
+			
+			// Update SubscriptionManager and IdentityFetcher.
+			// (Instead of having already created events while updating rank, capacity and value,
+			// we now create the events after all three components have been updated to ensure
+			// that we only create one event for each modified Score instead of three.)
+			storeScoreChangedNotificationsWithoutCommit(scoresWithUpdatedRank);
+			storeScoreChangedNotificationsWithoutCommit(scoresWithUpdatedValueOnly);
+			
+			if(logMINOR) {
+				Logger.minor(this, "Scores with changed rank: " + scoresWithUpdatedRank.size()
+				                 + " (written to disk: " + scoresWithUpdatedRank.getSpilledCount()
+				                 + "); with changed value only: "
+				                 + scoresWithUpdatedValueOnly.size() + " (written to disk: "
+				                 + scoresWithUpdatedValueOnly.getSpilledCount() + ")");
+			}
+		} finally {
+			scoresWithUpdatedRank.close();
+			scoresWithUpdatedValueOnly.close();
+		}
+	}
+
+	/**
+	 * @return A {@link ScoreChangeTracker} for all {@link OwnIdentity}s which uses the memory
+	 *     limit of the {@link Configuration} and the directory of the database for its temporary
+	 *     file. */
+	private ScoreChangeTracker newScoreChangeTracker() {
+		final int memoryLimit = mConfig.containsInt(ScoreChangeTracker.MEMORY_LIMIT_CONFIG_KEY)
+			? mConfig.getInt(ScoreChangeTracker.MEMORY_LIMIT_CONFIG_KEY)
+			: ScoreChangeTracker.DEFAULT_MEMORY_LIMIT;
+		
+		return new ScoreChangeTracker(this, mTrustGraph,
+			new ArrayList<OwnIdentity>(getAllOwnIdentities()), memoryLimit,
+			getDatabaseFile().getAbsoluteFile().getParentFile());
+	}
+
+	/**
+	 * Updates the ranks of all Scores which can be affected by the distrust, and records the
+	 * ones which were changed, created or deleted in the given {@link ScoreChangeTracker}. */
+	private void updateRanksAfterDistrustWithoutCommit(Identity distrusted,
+			ScoreChangeTracker scoresWithOutdatedRank) {
+		
+		StopWatch time = logMINOR ? new StopWatch() : null;
+		
+		final TrustGraph graph = mTrustGraph;
+		// Contains ScoreChangeTracker keys. Each Score is queued at most once, so the queue is an
+		// array which only grows.
+		int[] scoreQueue = new int[64];
+		int scoreQueueHead = 0;
+		int scoreQueueTail = 0;
+		BitSet scoresQueued = new BitSet(); // Index = ScoreChangeTracker key
+		// TODO: Performance: This BitSet could be avoided by changing the code which uses it
+		// to flag Score objects as just created by for example setting their rank to -1.
+		// However, I am uncertain whether it is possible that Score objects with a rank of -1 are
+		// created by other code as class Score does allow it explicitely, so it might be used
+		// for other things already.
+		BitSet scoresCreated = new BitSet(); // Index = ScoreChangeTracker key
+
+		// Add all Scores of the distrusted identity to the queue.
+		// We do this by iterating over all treeOwners instead via getScores():
+		// There might *not* have been an existing Score object in every trust tree for the
+		// distrusted identity if it had not received a trust value yet; and by the distrust it
+		// could now be eligible for having one exist.
+		// Thus, we must check whether we need to create a new Score object.
+		// (We do not have to do this for trustees of the distrusted identity: A distrusted
+		// identity must not be allowed to introduce other identities to prevent sybil, so
+		// it cannot give them a Score)
+		// FIXME: Test whether the above is actually true. Do so by attaching a special
+		// marker to the created score values and checking whether they continue to survice 
+		// the loop below which deletes scores.
+		// FIXME: Do something smarter: Maybe we could first look at the changed trust value
+		// to decide whether it could cause a Score object to be created before we do the
+		// expensive database query which follows...
+		for(OwnIdentity treeOwner : getAllOwnIdentities()) {
+			// Its Scores are not maintained, see setTrustTreeDormant(). As only its own Score
+			// exists in its tree, none of its Scores will be queued by the loop below either.
+			if(treeOwner.isTrustTreeDormant())
+				continue;
+			
+			final int key = scoresWithOutdatedRank.getKey(treeOwner, distrusted);
+			
+			try {
+				getScore(treeOwner, distrusted);
+			} catch(NotInTrustTreeException e) {
+				// Use initial rank value of 0 because:
+				// - it is invalid and thus the below "if(score.getRank() == newRank)" will not be
+				//   confused
+				// - cannot use -1 because the below computeRankFromScratch() will return that.
+				new Score(this, treeOwner, distrusted, 0, 0, 0).storeWithoutCommit();
+				scoresCreated.set(key);
+			}
+			
+			if(scoreQueueTail == scoreQueue.length)
+				scoreQueue = copyOf(scoreQueue, scoreQueue.length * 2);
+			scoreQueue[scoreQueueTail++] = key;
+			scoresQueued.set(key);
+		}
+
+		// computeRankFromScratch() has a worst-case runtime of O(IdentityCount * ...)
+		// This function here has a worst-case runtime of O(IdentityCount * ...) as well.
+		// Thus, if we used computeRankFromScratch() in this function, it would have a worst
+		// case runtime of O(IdentityCount ^ 2).
+		// As a consequence, we use a RankComputer which caches ranks and so prevents the
+		// O(... ^ 2) worst case: The BucketQueueRankComputer computes all ranks of a treeOwner
+		// at once in O(IdentityCount + TrustCount), and then answers further requests from its
+		// cache. (Previously, computeRankFromScratch_Caching() was used, which opportunistically
+		// caches more ranks than requested. See its JavaDoc)
+		final RankComputer rankComputer = newRankComputer();
+		
+		while(scoreQueueHead < scoreQueueTail) {
+			final int key = scoreQueue[scoreQueueHead++];
+			
+			Score score;
+			try  {
+				score = scoresWithOutdatedRank.getScore(key);
+			} catch(NotInTrustTreeException e) {
+				// Trustees are queued without checking whether they have a Score. No need to
+				// create one: This function is only called upon distrust.
+				// Distrust can only induce Score creation for the distrusted identity, not
+				// for its trustees. We already dealt with creating scores for the distrusted
+				// identity in all score trees.
+				continue;
+			}
+			
+			final boolean created = scoresCreated.get(key);
+			int newRank = rankComputer.computeRank(score.getTruster(), score.getTrustee());
+			
+			if(score.getRank() == newRank) {
+				assert(!created) : "created scores should be initialized with an invalid rank";
+				continue;
+			}
+
+			if(newRank == -1) {
+				// If we created the Score ourself, don't tell the caller about the deleted rank:
+				// There was no rank before, we had only created the Score to cause an attempt
+				// of finding a possibly newly existing rank.
+				if(!created)
+					scoresWithOutdatedRank.record(key, score, null);
+				
+				score.deleteWithoutCommit();
+			} else {
+				// ScoreChangeTracker asserts that each Score is only recorded once: Each Score
+				// is only queued once so each should only be visited once.
+				scoresWithOutdatedRank.record(key, created ? null : score, score);
+				score.setRank(newRank);
+				score.storeWithoutCommit();
+			}
+			
+			final int trusteeIndex = scoresWithOutdatedRank.getTrustGraphIndex(key);
+			if(trusteeIndex == TrustGraph.NONE) // Has given no Trust
+				continue;
+			
+			final int treeOwnerIndex = scoresWithOutdatedRank.getTreeOwnerIndex(key);
+			
+			for(int e = graph.getGivenTrustsBegin(trusteeIndex);
+					e < graph.getGivenTrustsEnd(trusteeIndex); ++e) {
+				
+				final int neighbourKey
+					= scoresWithOutdatedRank.getKey(treeOwnerIndex, graph.getTrustee(e));
+				
+				if(scoresQueued.get(neighbourKey))
+					continue;
+				
+				if(scoreQueueTail == scoreQueue.length)
+					scoreQueue = copyOf(scoreQueue, scoreQueue.length * 2);
+				scoreQueue[scoreQueueTail++] = neighbourKey;
+				scoresQueued.set(neighbourKey);
+			}
+		}
+		
+		if(logMINOR) {
+			Logger.minor(this,
+				"Time for processing " + scoreQueueTail + " scores to mark "
+			  + scoresWithOutdatedRank.size() + " ranks as outdated: " + time);
+		}
+	}
+
+	/**
+	 * Updates the capacities of the Scores whose rank was changed.
+	 * 
+	 * @return Index = {@link ScoreChangeTracker} key. True for the Scores of the given tracker
+	 *     whose capacity was changed, and for the ones which were deleted. */
+	private BitSet updateCapacitiesAfterDistrustWithoutCommit(
+			ScoreChangeTracker scoresWithOutdatedRank) {
+		
+		StopWatch time = logMINOR ? new StopWatch() : null;
+		
+		final BitSet scoresWithOutdatedCapacity = new BitSet();
+		final ScoreChangeTracker.Cursor changes = scoresWithOutdatedRank.cursor();
+		
+		while(changes.next()) {
+			if(changes.wasDeleted()) {
+				scoresWithOutdatedCapacity.set(changes.getKey());
+				continue;
+			}
+			
+			final Score score = changes.getNewScore();
+			int newCapacity
+				= computeCapacity(score.getTruster(), score.getTrustee(), score.getRank());
+			
+			if(score.getCapacity() == newCapacity)
+				continue;
+			
+			score.setCapacity(newCapacity);
+			score.storeWithoutCommit();
+			
+			scoresWithOutdatedCapacity.set(changes.getKey());
+		}
+		
+		if(logMINOR) {
+			Logger.minor(this,
+				"Time for processing " + scoresWithOutdatedRank.size() + " scores to mark "
+		      + scoresWithOutdatedCapacity.cardinality() + " capacities as outdated: " + time);
+		}
+		
+		return scoresWithOutdatedCapacity;
 	}
 
 	/**
-	 * FIXME: Check whether all the HashMap/HashSet used by this and the callees to avoid double 
-	 * computations of stuff actually yield hits. It is possible that I wrongly assumed that double
-	 * computations are possible in some of the cases where a map is used. */
-	private void updateScoresAfterDistrustWithoutCommit(Identity distrusted) {
-		// FIXME: Profile memory usage of this. It might get too large to fit into memory.
-		// If it does, then instead store this in the database by having an "outdated?" flag on
-		// Score objects.
-		HashMap<String, ChangeSet<Score>> scoresWithUpdatedRank
-			= updateRanksAfterDistrustWithoutCommit(distrusted); // Key = Score.getID()
-		
-		HashMap<String, ChangeSet<Score>> scoresWhichNeedEventNotification = scoresWithUpdatedRank;
-		
-		HashMap<String, ChangeSet<Score>> scoresWithUpdatedCapacity
-			= updateCapacitiesAfterDistrustWithoutCommit(scoresWithUpdatedRank.values());
-		
-		scoresWithUpdatedRank = null;
-		
-		// No need to add scoresWithUpdatedCapacity to scoresWhichNeedEventNotification: They are
-		// a subset of scoresWithUpdatedRank, which is already in scoresWhichNeedEventNotification.
+	 * Updates the values of the Scores which are affected by the distrust or by the changed
+	 * capacities.
+	 * 
+	 * @param scoresWithUpdatedValueOnly Receives the Scores whose value was changed but which
+	 *     are not contained in scoresWithUpdatedRank. */
+	private void updateValuesAfterDistrustWithoutCommit(Identity distrusted,
+			ScoreChangeTracker scoresWithUpdatedRank, BitSet scoresWithUpdatedCapacity,
+			ScoreChangeTracker scoresWithUpdatedValueOnly) {
 		
 		StopWatch time1 = logMINOR ? new StopWatch() : null;
 		
-		// TODO: Code quality: Move whole value processing code below to function
+		BitSet scoresWithUpdatedValue = new BitSet(); // Index = ScoreChangeTracker key
 		
-		HashSet<String> scoresWithUpdatedValue = new HashSet<String>(); // Key = Score.getID()
-		
-		// Now we update Score values.
 		// A Score value in a trust tree of an OwnIdentity is the sum of all Trust values an
 		// identity has received, multiplied by the capacity each trust giver has received in the
 		// Score of the OwnIdentity.
@@ -4530,20 +5868,20 @@ public final class WebOfTrust extends WebOfTrustInterface
 		// Normally, we might have to check whether a new Score has to be created due to the changed
 		// trust value - but updateRanksAfterDistrustWithoutCommit() did this already.
 		for(Score score : getScores(distrusted)) {
-			Score oldScore = score.clone();
-			score.setValue(computeScoreValue(score.getTruster(), distrusted));
-			score.storeWithoutCommit();
+			final int key = scoresWithUpdatedRank.getKey(score.getTruster(), distrusted);
+			final int newValue = computeScoreValue(score.getTruster(), distrusted);
 			
-			String id = score.getID();
+			scoresWithUpdatedValue.set(key);
+			++scoresAffectedByTrustChange;
 			
-			scoresWithUpdatedValue.add(id);
+			if(score.getValue() == newValue)
+				continue;
 			
-			if(!score.equals(oldScore)) {
-				if(!scoresWhichNeedEventNotification.containsKey(id))
-					scoresWhichNeedEventNotification.put(id, new ChangeSet<Score>(oldScore, score));
-			}
-
-			++scoresAffectedByTrustChange;
+			if(!scoresWithUpdatedRank.contains(key))
+				scoresWithUpdatedValueOnly.record(key, score, score);
+			
+			score.setValue(newValue);
+			score.storeWithoutCommit();
 		}
 		
 		if(logMINOR) {
@@ -4554,13 +5892,20 @@ public final class WebOfTrust extends WebOfTrustInterface
 		
 		StopWatch time2 = logMINOR ? new StopWatch() : null;
 		int scoresAffectedByCapacityChange = 0;
+		final TrustGraph graph = mTrustGraph;
 		
 		// The capacity of an Identity's Score is the weight which the Trust values given by
 		// the Identity have when computing Scores of other Identitys.
 		// Thus, if the capacity of a Score X changed, we need to update the other Scores in which
 		// a Trust value which is weighted by X's capacity is involved.
-		for(ChangeSet<Score> changeSet : scoresWithUpdatedCapacity.values()) {
-			if(changeSet.afterChange == null && changeSet.beforeChange.getCapacity() == 0) {
+		final ScoreChangeTracker.Cursor changes = scoresWithUpdatedRank.cursor();
+		while(changes.next()) {
+			final int key = changes.getKey();
+			
+			if(!scoresWithUpdatedCapacity.get(key))
+				continue;
+			
+			if(changes.wasDeleted() && changes.getOldCapacity() == 0) {
 				// The Identity's capacity was deleted *and* the identity had a capacity of 0
 				// before. With capacity of 0, it couldn't have influenced any other Identity's
 				// Score values before and with no capacity now, it also cannot.
@@ -4568,59 +5913,65 @@ public final class WebOfTrust extends WebOfTrustInterface
 				continue;
 			}
 			
-			Score scoreWithUpdatedCapacity
-				= changeSet.afterChange != null ? changeSet.afterChange : changeSet.beforeChange;
-			OwnIdentity treeOwner = scoreWithUpdatedCapacity.getTruster();
-			Identity trustGiver = scoreWithUpdatedCapacity.getTrustee();
+			final int trustGiverIndex = scoresWithUpdatedRank.getTrustGraphIndex(key);
+			if(trustGiverIndex == TrustGraph.NONE) // Has given no Trust
+				continue;
+			
+			final int treeOwnerIndex = scoresWithUpdatedRank.getTreeOwnerIndex(key);
 			
-			for(Trust givenTrust : getGivenTrusts(trustGiver)) {
-				Identity trustReceiver = givenTrust.getTrustee();
-				ScoreID scoreID = new ScoreID(treeOwner, trustReceiver);
+			for(int e = graph.getGivenTrustsBegin(trustGiverIndex);
+					e < graph.getGivenTrustsEnd(trustGiverIndex); ++e) {
 				
-				if(!scoresWithUpdatedValue.add(scoreID.toString()))
+				final int trustReceiverKey
+					= scoresWithUpdatedRank.getKey(treeOwnerIndex, graph.getTrustee(e));
+				
+				if(scoresWithUpdatedValue.get(trustReceiverKey))
 					continue;
 				
+				scoresWithUpdatedValue.set(trustReceiverKey);
+				
 				Score score;
 				try {
-					// TODO: Performance: Use getScore() which consumes ScoreID
-					score = getScore(treeOwner, trustReceiver);
-				} catch(NotInTrustTreeException e) {
+					score = scoresWithUpdatedRank.getScore(trustReceiverKey);
+				} catch(NotInTrustTreeException ex) {
 					// No need to create it: updateRanksAfterDistrustWithoutCommit() has already
 					// created all scores which could be created.
 					continue;
 				}
 				
-				Score oldScore = score.clone();
-				score.setValue(computeScoreValue(treeOwner, trustReceiver));
-				score.storeWithoutCommit();
+				final int newValue = computeScoreValue(score.getTruster(), score.getTrustee());
 				++scoresAffectedByCapacityChange;
-				 
-				if(!score.equals(oldScore)) {
-					String id = score.getID();
-					if(!scoresWhichNeedEventNotification.containsKey(id)) {
-						scoresWhichNeedEventNotification.put(id,
-							new ChangeSet<Score>(oldScore, score));
-					}
+				
+				if(score.getValue() == newValue)
+					continue;
+				
+				if(!scoresWithUpdatedRank.contains(trustReceiverKey)
+						&& !scoresWithUpdatedValueOnly.contains(trustReceiverKey)) {
+					scoresWithUpdatedValueOnly.record(trustReceiverKey, score, score);
 				}
+				
+				score.setValue(newValue);
+				score.storeWithoutCommit();
 			}
 		}
 
-		scoresWithUpdatedCapacity = null;
-		scoresWithUpdatedValue = null;
-
 		if(logMINOR) {
 			Logger.minor(this,
 				"Time for updating " + scoresAffectedByCapacityChange + " score values due to "
 			  + "changed capacity: " + time2);
 		}
+	}
 
-		// Update SubscriptionManager and IdentityFetcher.
-		// (Instead of having already created events while updating rank, capacity and value, we now
-		// create the events after all three components have been updated to ensure that we only
-		// create one event for each modified Score instead of three.)
-		for(ChangeSet<Score> changeSet : scoresWhichNeedEventNotification.values()) {
-			Score oldScore = changeSet.beforeChange;
-			Score newScore = changeSet.afterChange;
+	/**
+	 * Notifies the {@link SubscriptionManager} and {@link IdentityFetcher} about the Score changes
+	 * which {@link #updateScoresAfterDistrustWithoutCommit(Identity)} recorded in the given
+	 * {@link ScoreChangeTracker}. */
+	private void storeScoreChangedNotificationsWithoutCommit(ScoreChangeTracker changes) {
+		final ScoreChangeTracker.Cursor cursor = changes.cursor();
+		
+		while(cursor.next()) {
+			Score oldScore = cursor.getOldScore();
+			Score newScore = cursor.getNewScore();
 			
 			// Update SubscriptionManager
 			
@@ -4642,16 +5993,17 @@ public final class WebOfTrust extends WebOfTrustInterface
 			// a distrusting one and thus not cause an Identity to suddenly be wanted.
 			// Thus, if the Score was created, you might avoid executing this branch.
 			if(shouldFetchIdentity_maybeChanged) {
-				Identity target = newScore != null ? newScore.getTrustee() : oldScore.getTrustee();
+				// Not oldScore.getTrustee(): oldScore is a clone.
+				Identity target = cursor.getTrustee();
 				
-				// TODO: Performance: Use a IdentityHashMap<Identity> to only do this once for
-				// every Identity, i.e. not repeat it for every OwnIdentity's Score tree.
+				// TODO: Performance: Use a BitSet of ScoreChangeTracker.getTrustGraphIndex() to
+				// only do this once for every Identity, i.e. not repeat it for every
+				// OwnIdentity's Score tree.
 				// As long as we don't, the IdentityFetcher will deduplicate the commands itself,
 				// but database queries are expensive.
-				// On the other hand, keeping all Identitys in memory might cause OOM, and the
-				// amount of hits this would cause is likely small: As long as WOT doesn't have
-				// a public gateway mode, the amount of OwnIdentitys can be assumed to be very small
-				// as only one real user is using WOT.
+				// On the other hand, the amount of hits this would cause is likely small: As long
+				// as WOT doesn't have a public gateway mode, the amount of OwnIdentitys can be
+				// assumed to be very small as only one real user is using WOT.
 				
 				if(shouldFetchIdentity(target)) {
 					// If the capacity changed from 0 to > 0, we have to call markForRefetch(), see
@@ -4676,190 +6028,40 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 	}
 
-	private HashMap<String, ChangeSet<Score>>
-			updateRanksAfterDistrustWithoutCommit(Identity distrusted) {
-		
-		StopWatch time = logMINOR ? new StopWatch() : null;
-		
-		LinkedList<Score> scoreQueue = new LinkedList<Score>();
-		HashSet<String> scoresQueued = new HashSet<String>(); // Key = Score.getID()
-		// TODO: Performance: This HashSet could be avoided by changing the code which uses it
-		// to flag Score objects as just created by for example setting their rank to -1.
-		// However, I am uncertain whether it is possible that Score objects with a rank of -1 are
-		// created by other code as class Score does allow it explicitely, so it might be used
-		// for other things already.
-		HashSet<String> scoresCreated = new HashSet<String>(); // Key = Score.getID()
-		// FIXME: Profile memory usage of this. It might get too large to fit into memory.
-		// If it does, then instead store this in the database by having an "outdated?" flag on
-		// Score objects.
-		HashMap<String, ChangeSet<Score>> scoresWithOutdatedRank
-			= new HashMap<String, ChangeSet<Score>>(); // Key = Score.getID()
-
-		// Add all Scores of the distrusted identity to the queue.
-		// We do this by iterating over all treeOwners instead via getScores():
-		// There might *not* have been an existing Score object in every trust tree for the
-		// distrusted identity if it had not received a trust value yet; and by the distrust it
-		// could now be eligible for having one exist.
-		// Thus, we must check whether we need to create a new Score object.
-		// (We do not have to do this for trustees of the distrusted identity: A distrusted
-		// identity must not be allowed to introduce other identities to prevent sybil, so
-		// it cannot give them a Score)
-		// FIXME: Test whether the above is actually true. Do so by attaching a special
-		// marker to the created score values and checking whether they continue to survice 
-		// the loop below which deletes scores.
-		// FIXME: Do something smarter: Maybe we could first look at the changed trust value
-		// to decide whether it could cause a Score object to be created before we do the
-		// expensive database query which follows...
-		for(OwnIdentity treeOwner : getAllOwnIdentities()) {
-			Score outdated;
-			try {
-				outdated = getScore(treeOwner, distrusted);
-			} catch(NotInTrustTreeException e) {
-				// Use initial rank value of 0 because:
-				// - it is invalid and thus the below "if(score.getRank() == newRank)" will not be
-				//   confused
-				// - cannot use -1 because the below computeRankFromScratch() will return that.
-				outdated = new Score(this, treeOwner, distrusted, 0, 0, 0);
-				outdated.storeWithoutCommit();
-				scoresCreated.add(outdated.getID());
-			}
-			
-			scoreQueue.add(outdated);
-			scoresQueued.add(outdated.getID());
-		}
-
-		// computeRankFromScratch() has a worst-case runtime of O(IdentityCount * ...)
-		// This function here has a worst-case runtime of O(IdentityCount * ...) as well.
-		// Thus, if we used computeRankFromScratch() in this function, it would have a worst
-		// case runtime of O(IdentityCount ^ 2).
-		// As a consequence, a function computeRankFromScratch_Caching() has been written which
-		// caches ranks in this Map and so prevents the O(... ^ 2) worst case.
-		// (It also opportunistically computes even more ranks than we request it to compute, which
-		// is the actual trick. See its JavaDoc)
-		HashMap<String, Integer> rankCache = new HashMap<String, Integer>();
-		
-		Score score;
-		while((score = scoreQueue.poll()) != null) {
-			int newRank
-				= computeRankFromScratch_Caching(score.getTruster(), score.getTrustee(), rankCache);
-			
-			if(score.getRank() == newRank) {
-				assert(!scoresCreated.contains(score.getID()))
-					: "created scores should be initialized with an invalid rank";
-				continue;
-			}
-
-			if(newRank == -1) {
-				score.deleteWithoutCommit();
-				// If we created the Score ourself, don't tell the caller about the deleted rank:
-				// There was no rank before, we had only created the Score to cause an attempt
-				// of finding a possibly newly existing rank.
-				if(!scoresCreated.contains(score.getID())) {
-					ChangeSet<Score> diff = new ChangeSet<Score>(score, null);
-					
-					boolean wasAlreadyProcessed
-						= scoresWithOutdatedRank.put(score.getID(), diff) != null;
-					assert(!wasAlreadyProcessed)
-						: "Each Score is only queued once so each should only be visited once";
-				}
-			} else {
-				Score oldScore = scoresCreated.contains(score.getID()) ? null : score.clone();
-				score.setRank(newRank);
-				score.storeWithoutCommit();
-				ChangeSet<Score> diff = new ChangeSet<Score>(oldScore, score);
-				
-				boolean wasAlreadyProcessed
-					= scoresWithOutdatedRank.put(score.getID(), diff) != null;
-				assert(!wasAlreadyProcessed)
-					: "Each Score is only queued once so each should only be visited once";
-			}
-			
-			final OwnIdentity treeOwner = score.getTruster();
-			
-			for(Trust edge : getGivenTrusts(score.getTrustee())) {
-				Identity neighbour = edge.getTrustee();
-				
-				if(scoresQueued.contains(new ScoreID(treeOwner, neighbour).toString()))
-					continue;
-				
-				Score touchedScore;
-				try  {
-					touchedScore = getScore(treeOwner, neighbour);
-				} catch(NotInTrustTreeException e) {
-					// No need to create a Score: This function is only called upon distrust.
-					// Distrust can only induce Score creation for the distrusted identity, not
-					// for its trustees. We already dealt with creating scores for the distrusted
-					// identity in all score trees.
-					continue;
-				}
-				
-				scoreQueue.add(touchedScore);
-				scoresQueued.add(touchedScore.getID());
-			}
-		}
-		
-		if(logMINOR) {
-			Logger.minor(this,
-				"Time for processing " + scoresQueued.size() + " scores to mark "
-			  + scoresWithOutdatedRank.size() + " ranks as outdated: " + time);
-		}
-		
-		return scoresWithOutdatedRank;
-	}
-
-	private HashMap<String, ChangeSet<Score>> updateCapacitiesAfterDistrustWithoutCommit(
-			Collection<ChangeSet<Score>> scoresWithOutdatedRank) {
-		
-		StopWatch time = logMINOR ? new StopWatch() : null;
-		
-		// FIXME: Profile memory usage of this. It might get too large to fit into memory.
-		// If it does, then instead store this in the database by having an "outdated?" flag on
-		// Score objects.
-		HashMap<String, ChangeSet<Score>> scoresWithOutdatedCapacity
-			= new HashMap<String, ChangeSet<Score>>(); // Key = Score.getID()
-		
-		for(ChangeSet<Score> changeSet : scoresWithOutdatedRank) {
-			Score score = changeSet.afterChange;
-			if(score == null) {
-				assert(changeSet.beforeChange != null);
-				scoresWithOutdatedCapacity.put(changeSet.beforeChange.getID(), changeSet);
-				continue;
-			}
-			
-			int newCapacity
-				= computeCapacity(score.getTruster(), score.getTrustee(), score.getRank());
-			
-			if(score.getCapacity() == newCapacity)
-				continue;
-			
-			score.setCapacity(newCapacity);
-			score.storeWithoutCommit();
-			
-			scoresWithOutdatedCapacity.put(score.getID(), changeSet);
-		}
-		
-		if(logMINOR) {
-			Logger.minor(this,
-				"Time for processing " + scoresWithOutdatedRank.size() + " scores to mark "
-		      + scoresWithOutdatedCapacity.size() + " capacities as outdated: " + time);
-		}
-		
-		return scoresWithOutdatedCapacity;
-	}
-
 	/* Client interface functions */
 	
+	/* The LockStatistics Sites of the functions which the UI and FCP clients use to modify the
+	 * database. */
+	private static final Site ADD_IDENTITY_SITE = new Site("WebOfTrust.addIdentity");
+	private static final Site CREATE_OWN_IDENTITY_SITE = new Site("WebOfTrust.createOwnIdentity");
+	private static final Site DELETE_OWN_IDENTITY_SITE = new Site("WebOfTrust.deleteOwnIdentity");
+	private static final Site RESTORE_OWN_IDENTITY_SITE = new Site("WebOfTrust.restoreOwnIdentity");
+	private static final Site SET_TRUST_SITE = new Site("WebOfTrust.setTrust");
+	private static final Site REMOVE_TRUST_SITE = new Site("WebOfTrust.removeTrust");
+	private static final Site SET_PUBLISH_TRUST_LIST_SITE = new Site("WebOfTrust.setPublishTrustList");
+	private static final Site SET_TRUST_TREE_DORMANT_SITE = new Site("WebOfTrust.setTrustTreeDormant");
+	private static final Site SET_PUBLISH_INTRODUCTION_PUZZLES_SITE = new Site("WebOfTrust.setPublishIntroductionPuzzles");
+	private static final Site ADD_CONTEXT_SITE = new Site("WebOfTrust.addContext");
+	private static final Site REMOVE_CONTEXT_SITE = new Site("WebOfTrust.removeContext");
+	private static final Site SET_PROPERTY_SITE = new Site("WebOfTrust.setProperty");
+	private static final Site REMOVE_PROPERTY_SITE = new Site("WebOfTrust.removeProperty");
+
 	/**
 	 * NOTICE: The added identity will not be fetched unless you also add a positive {@link Trust} value from an {@link OwnIdentity} to it.
      * (An exception would be if another identity which is being fetched starts trusting the added identity at some point in the future)
 	 */
-	public synchronized Identity addIdentity(String requestURI) throws MalformedURLException, InvalidParameterException {
+	public Identity addIdentity(String requestURI) throws MalformedURLException, InvalidParameterException {
+		final Acquisition acquisition = mLockStatistics.begin(ADD_IDENTITY_SITE);
+		synchronized(this) {
+		acquisition.acquired(Lock.WEB_OF_TRUST);
+		try {
 		try {
 			getIdentityByURI(requestURI);
 			throw new InvalidParameterException("We already have this identity");
 		}
 		catch(UnknownIdentityException e) {
 			final Identity identity = new Identity(this, requestURI, null, false);
+			assert(mLockOrder.mayAcquire(Lock.SUBSCRIPTION_MANAGER));
 			synchronized(mSubscriptionManager) {
 			synchronized(Persistent.transactionLock(mDB)) {
 				try {
@@ -4877,6 +6079,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 			Logger.normal(this, "addIdentity(): " + identity);
 			return identity;
 		}
+		} finally {
+			acquisition.released();
+		}
+		}
 	}
 	
 	public OwnIdentity createOwnIdentity(String nickName, boolean publishTrustList, String context)
@@ -4889,12 +6095,19 @@ public final class WebOfTrust extends WebOfTrustInterface
 	/**
 	 * @param context A context with which you want to use the identity. Null if you want to add it later.
 	 */
-	public synchronized OwnIdentity createOwnIdentity(FreenetURI insertURI, String nickName,
+	public OwnIdentity createOwnIdentity(FreenetURI insertURI, String nickName,
 			boolean publishTrustList, String context) throws MalformedURLException, InvalidParameterException {
-		
+		final Acquisition acquisition = mLockStatistics.begin(CREATE_OWN_IDENTITY_SITE);
+		synchronized(this) {
+		acquisition.acquired(Lock.WEB_OF_TRUST);
+		try {
+		assert(mLockOrder.mayAcquire(Lock.IDENTITY_FETCHER));
 		synchronized(mFetcher) { // For beginTrustListImport()/setTrustWithoutCommit()
+		acquisition.acquired(Lock.IDENTITY_FETCHER);
 		synchronized(mSubscriptionManager) { // For beginTrustListImport()/setTrustWithoutCommit()/storeIdentityChangedNotificationWithoutCommit()
+		acquisition.acquired(Lock.SUBSCRIPTION_MANAGER);
 		synchronized(Persistent.transactionLock(mDB)) {
+		acquisition.acquired(Lock.TRANSACTION);
 			try {
 				OwnIdentity identity = getOwnIdentityByURI(insertURI);
 				throw new InvalidParameterException(
@@ -4962,6 +6175,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		}
 		}
+		} finally {
+			acquisition.released();
+		}
+		}
 	}
 	
 	/**
@@ -4973,9 +6190,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @param id The {@link Identity.IdentityID} of the identity.
 	 * @throws UnknownIdentityException If there is no {@link OwnIdentity} with the given ID. Also thrown if a non-own identity exists with the given ID.
 	 */
-	public synchronized void deleteOwnIdentity(String id) throws UnknownIdentityException {
+	public void deleteOwnIdentity(String id) throws UnknownIdentityException {
+		final Acquisition acquisition = mLockStatistics.begin(DELETE_OWN_IDENTITY_SITE);
+		synchronized(this) {
+		acquisition.acquired(Lock.WEB_OF_TRUST);
+		try {
 		Logger.normal(this, "deleteOwnIdentity(): Starting... ");
 		
+		assert(mLockOrder.mayAcquire(Lock.INTRODUCTION_PUZZLE_STORE));
 		synchronized(mPuzzleStore) {
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
@@ -5142,6 +6364,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		
 		Logger.normal(this, "deleteOwnIdentity(): Finished.");
+		} finally {
+			acquisition.released();
+		}
+		}
 	}
 
 	/**
@@ -5193,6 +6419,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 					// but we must also store the own version to be able to modify the trust graph.
 					beginTrustListImport();
 					
+					// A new trust tree is created and the trust graph is modified manually below,
+					// which updateScoresAfterTrustListImportWithoutCommit() does not support.
+					mFullScoreComputationNeeded = true;
+					
 					// We already have fetched this identity as a stranger's one. We need to update the database.
 					identity = new OwnIdentity(this, insertFreenetURI, oldIdentity.getNickname(), oldIdentity.doesPublishTrustList());
 					
@@ -5259,13 +6489,16 @@ public final class WebOfTrust extends WebOfTrustInterface
 					// Thus we will first delete the non-own Identity and then re-set the trusts.
 					final ObjectSet<Trust> oldGivenTrusts = getGivenTrusts(oldIdentity);
 					
-					// TODO: No need to copy after this is fixed:
-					// https://bugs.freenetproject.org/view.php?id=6596
+					// Copy them because iterating the ObjectSet skips the Trusts once we deleted
+					// them.
 					final ArrayList<Trust> oldGivenTrustsCopy
 						= new ArrayList<Trust>(oldGivenTrusts);
 					
-					for(Trust oldGivenTrust : oldGivenTrusts)
+					for(Trust oldGivenTrust : oldGivenTrusts) {
 						oldGivenTrust.deleteWithoutCommit();
+						mTrustGraph.removeTrust(oldIdentity.getID(),
+							oldGivenTrust.getTrustee().getID());
+					}
 					
 					assert(getGivenTrusts(oldIdentity).size() == 0);
 					
@@ -5283,10 +6516,8 @@ public final class WebOfTrust extends WebOfTrustInterface
 					
 					oldIdentity.deleteWithoutCommit();
 					
-					// Update all given trusts. This will also cause given scores to be computed,
-					// which is why we had not set them yet.
-					// FIXME: Performance: This could maybe be optimized by setting
-					// mFullScoreComputationNeeded to true. Do benchmarks.
+					// Update all given trusts. The given scores will be computed by
+					// finishTrustListImport(), which is why we had not set them yet.
 					for(Trust givenTrust : oldGivenTrustsCopy)
 						setTrustWithoutCommit(identity, givenTrust.getTrustee(), givenTrust.getValue(), givenTrust.getComment());
 					
@@ -5330,11 +6561,20 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @return An {@link OwnIdentity#clone()} of the restored identity. By cloning, the object is decoupled from the database and you can keep it in memory
 	 *     to do with it whatever you like.
 	 */
-	public synchronized OwnIdentity restoreOwnIdentity(FreenetURI insertFreenetURI) throws MalformedURLException, InvalidParameterException {
+	public OwnIdentity restoreOwnIdentity(FreenetURI insertFreenetURI) throws MalformedURLException, InvalidParameterException {
+		final Acquisition acquisition = mLockStatistics.begin(RESTORE_OWN_IDENTITY_SITE);
+		synchronized(this) {
+		acquisition.acquired(Lock.WEB_OF_TRUST);
+		try {
+		assert(mLockOrder.mayAcquire(Lock.INTRODUCTION_PUZZLE_STORE));
 		synchronized(mPuzzleStore) {
+		acquisition.acquired(Lock.INTRODUCTION_PUZZLE_STORE);
 		synchronized(mFetcher) {
+		acquisition.acquired(Lock.IDENTITY_FETCHER);
 		synchronized(mSubscriptionManager) {
+		acquisition.acquired(Lock.SUBSCRIPTION_MANAGER);
 		synchronized(Persistent.transactionLock(mDB)) {
+		acquisition.acquired(Lock.TRANSACTION);
 			try {
 				final OwnIdentity identity = restoreOwnIdentityWithoutCommit(insertFreenetURI);
 				Persistent.checkedCommit(mDB, this);
@@ -5348,23 +6588,39 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		}
 		}
+		} finally {
+			acquisition.released();
+		}
+		}
 	}
 
 
-	public synchronized void setTrust(String ownTrusterID, String trusteeID, byte value, String comment)
+	public void setTrust(String ownTrusterID, String trusteeID, byte value, String comment)
 		throws UnknownIdentityException, NumberFormatException, InvalidParameterException {
-		
+		final Acquisition acquisition = mLockStatistics.begin(SET_TRUST_SITE);
+		synchronized(this) {
+		acquisition.acquired(Lock.WEB_OF_TRUST);
+		try {
 		final OwnIdentity truster = getOwnIdentityByID(ownTrusterID);
 		Identity trustee = getIdentityByID(trusteeID);
 		
 		setTrust(truster, trustee, value, comment);
+		} finally {
+			acquisition.released();
+		}
+		}
 	}
 	
 	/** FIXME: Should this throw {@link NotTrustedException} instead of swallowing it? */
-	public synchronized void removeTrust(String ownTrusterID, String trusteeID) throws UnknownIdentityException {
+	public void removeTrust(String ownTrusterID, String trusteeID) throws UnknownIdentityException {
+		final Acquisition acquisition = mLockStatistics.begin(REMOVE_TRUST_SITE);
+		synchronized(this) {
+		acquisition.acquired(Lock.WEB_OF_TRUST);
+		try {
 		final OwnIdentity truster = getOwnIdentityByID(ownTrusterID);
 		final Identity trustee = getIdentityByID(trusteeID);
 
+		assert(mLockOrder.mayAcquire(Lock.IDENTITY_FETCHER));
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -5378,6 +6634,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		}
 		}
+		} finally {
+			acquisition.released();
+		}
+		}
 	}
 
 	/**
@@ -5388,6 +6648,7 @@ public final class WebOfTrust extends WebOfTrustInterface
 	public synchronized void removeTrustIncludingNonOwn(String trusterID, String trusteeID)
 			throws UnknownIdentityException, NotTrustedException {
 
+		assert(mLockOrder.mayAcquire(Lock.IDENTITY_FETCHER));
 		synchronized(mFetcher) {
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
@@ -5412,10 +6673,15 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @param publishTrustList Whether to publish the trust list. 
 	 * @throws UnknownIdentityException If there is no {@link OwnIdentity} with the given {@link Identity.IdentityID}.
 	 */
-	public synchronized void setPublishTrustList(final String ownIdentityID, final boolean publishTrustList) throws UnknownIdentityException {
+	public void setPublishTrustList(final String ownIdentityID, final boolean publishTrustList) throws UnknownIdentityException {
+		final Acquisition acquisition = mLockStatistics.begin(SET_PUBLISH_TRUST_LIST_SITE);
+		synchronized(this) {
+		acquisition.acquired(Lock.WEB_OF_TRUST);
+		try {
 		final OwnIdentity identity = getOwnIdentityByID(ownIdentityID);
 		final OwnIdentity oldIdentity = identity.clone(); // For the SubscriptionManager
 		
+		assert(mLockOrder.mayAcquire(Lock.SUBSCRIPTION_MANAGER));
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
 			try {
@@ -5429,6 +6695,79 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		
 		Logger.normal(this, "setPublishTrustList to " + publishTrustList + " for " + identity);
+		} finally {
+			acquisition.released();
+		}
+		}
+	}
+	
+	/**
+	 * Makes the trust tree of an {@link OwnIdentity} dormant, or wakes it up.
+	 * 
+	 * The {@link Score}s of a dormant tree are not maintained: All of them except the one of the
+	 * OwnIdentity itself are deleted, and Trust changes do not cause any Score computation for
+	 * it. Thus nodes with many rarely used OwnIdentitys only pay the storage and update cost of
+	 * the trees which are in use.
+	 * As the {@link IdentityFetcher} decides whether to fetch an Identity by its Scores, see
+	 * {@link #shouldFetchIdentity(Identity)}, Identitys which are only in dormant trees will not
+	 * be fetched anymore. The OwnIdentity itself keeps being fetched and inserted.
+	 * 
+	 * Waking up a tree computes it from the current Trust graph, the trees of the other
+	 * OwnIdentitys are not touched. The UI should do this before displaying the Scores of the
+	 * OwnIdentity: The web interface does it upon login, the FCP interface upon requests which
+	 * specify it as truster.
+	 * 
+	 * Does nothing if the tree already is in the requested state, so it is cheap to wake up a
+	 * tree which is not dormant.
+	 * 
+	 * @param ownIdentityID The {@link Identity.IdentityID} of the {@link OwnIdentity} you want
+	 *     to modify.
+	 * @throws UnknownIdentityException If there is no OwnIdentity with the given ID. */
+	public void setTrustTreeDormant(final String ownIdentityID,
+			final boolean dormant) throws UnknownIdentityException {
+		final Acquisition acquisition = mLockStatistics.begin(SET_TRUST_TREE_DORMANT_SITE);
+		synchronized(this) {
+		acquisition.acquired(Lock.WEB_OF_TRUST);
+		try {
+		final OwnIdentity identity = getOwnIdentityByID(ownIdentityID);
+		
+		if(identity.isTrustTreeDormant() == dormant)
+			return;
+		
+		// A trust list import would be committed by us.
+		assert(!mTrustListImportInProgress);
+		
+		assert(mLockOrder.mayAcquire(Lock.IDENTITY_FETCHER));
+		synchronized(mFetcher) {
+		synchronized(mSubscriptionManager) {
+		synchronized(Persistent.transactionLock(mDB)) {
+			try {
+				identity.setTrustTreeDormant(dormant);
+				identity.storeWithoutCommit();
+				// The flag is not visible to clients so the SubscriptionManager isn't notified.
+				mReadSnapshots.setIdentity(identity);
+				
+				if(mFullScoreComputationNeeded) {
+					// Also computes the Scores of the given tree.
+					computeAllScoresWithoutCommit();
+				} else if(dormant)
+					storeDormantTrustTreeWithoutCommit(identity, false);
+				else
+					storeAwakenedTrustTreeWithoutCommit(identity);
+				
+				Persistent.checkedCommit(mDB, this);
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(mDB, this, e);
+			}
+		}
+		}
+		}
+		
+		Logger.normal(this, "setTrustTreeDormant to " + dormant + " for " + identity);
+		} finally {
+			acquisition.released();
+		}
+		}
 	}
 	
 	/**
@@ -5443,13 +6782,18 @@ public final class WebOfTrust extends WebOfTrustInterface
 	 * @throws UnknownIdentityException If there is no identity with the given ownIdentityID
 	 * @throws InvalidParameterException If publishIntroudctionPuzzles is set to true and {@link OwnIdentity#doesPublishTrustList()} returns false on the selected identity: It doesn't make sense for an identity to allow introduction if it doesn't publish a trust list - the purpose of introduction is to add other identities to your trust list.
 	 */
-	public synchronized void setPublishIntroductionPuzzles(final String ownIdentityID, final boolean publishIntroductionPuzzles, final int count) throws UnknownIdentityException, InvalidParameterException {
+	public void setPublishIntroductionPuzzles(final String ownIdentityID, final boolean publishIntroductionPuzzles, final int count) throws UnknownIdentityException, InvalidParameterException {
+		final Acquisition acquisition = mLockStatistics.begin(SET_PUBLISH_INTRODUCTION_PUZZLES_SITE);
+		synchronized(this) {
+		acquisition.acquired(Lock.WEB_OF_TRUST);
+		try {
 		final OwnIdentity identity = getOwnIdentityByID(ownIdentityID);
 		final OwnIdentity oldIdentity = identity.clone(); // For the SubscriptionManager
 		
 		if(publishIntroductionPuzzles && !identity.doesPublishTrustList())
 			throw new InvalidParameterException("An identity must publish its trust list if it wants to publish introduction puzzles!");
 		
+		assert(mLockOrder.mayAcquire(Lock.SUBSCRIPTION_MANAGER));
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
 			try {
@@ -5470,6 +6814,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		
 		Logger.normal(this, "Set publishIntroductionPuzzles to " + true + " for " + identity);		
+		} finally {
+			acquisition.released();
+		}
+		}
 	}
 	
 	/**
@@ -5479,10 +6827,15 @@ public final class WebOfTrust extends WebOfTrustInterface
 		setPublishIntroductionPuzzles(ownIdentityID, publishIntroductionPuzzles, IntroductionServer.DEFAULT_PUZZLE_COUNT);
 	}
 	
-	public synchronized void addContext(String ownIdentityID, String newContext) throws UnknownIdentityException, InvalidParameterException {
+	public void addContext(String ownIdentityID, String newContext) throws UnknownIdentityException, InvalidParameterException {
+		final Acquisition acquisition = mLockStatistics.begin(ADD_CONTEXT_SITE);
+		synchronized(this) {
+		acquisition.acquired(Lock.WEB_OF_TRUST);
+		try {
 		final OwnIdentity identity = getOwnIdentityByID(ownIdentityID);
 		final OwnIdentity oldIdentity = identity.clone(); // For the SubscriptionManager
 		
+		assert(mLockOrder.mayAcquire(Lock.SUBSCRIPTION_MANAGER));
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
 			try {
@@ -5497,12 +6850,21 @@ public final class WebOfTrust extends WebOfTrustInterface
 
 		
 		if(logDEBUG) Logger.debug(this, "Added context '" + newContext + "' to identity '" + identity.getNickname() + "'");
+		} finally {
+			acquisition.released();
+		}
+		}
 	}
 
-	public synchronized void removeContext(String ownIdentityID, String context) throws UnknownIdentityException, InvalidParameterException {
+	public void removeContext(String ownIdentityID, String context) throws UnknownIdentityException, InvalidParameterException {
+		final Acquisition acquisition = mLockStatistics.begin(REMOVE_CONTEXT_SITE);
+		synchronized(this) {
+		acquisition.acquired(Lock.WEB_OF_TRUST);
+		try {
 		final OwnIdentity identity = getOwnIdentityByID(ownIdentityID);
 		final OwnIdentity oldIdentity = identity.clone(); // For the SubscriptionManager
 		
+		assert(mLockOrder.mayAcquire(Lock.SUBSCRIPTION_MANAGER));
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
 			try {
@@ -5516,16 +6878,25 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		
 		if(logDEBUG) Logger.debug(this, "Removed context '" + context + "' from identity '" + identity.getNickname() + "'");
+		} finally {
+			acquisition.released();
+		}
+		}
 	}
 	
 	public synchronized String getProperty(String identityID, String property) throws InvalidParameterException, UnknownIdentityException {
 		return getIdentityByID(identityID).getProperty(property);
 	}
 
-	public synchronized void setProperty(String ownIdentityID, String property, String value) throws UnknownIdentityException, InvalidParameterException {
+	public void setProperty(String ownIdentityID, String property, String value) throws UnknownIdentityException, InvalidParameterException {
+		final Acquisition acquisition = mLockStatistics.begin(SET_PROPERTY_SITE);
+		synchronized(this) {
+		acquisition.acquired(Lock.WEB_OF_TRUST);
+		try {
 		final OwnIdentity identity = getOwnIdentityByID(ownIdentityID);
 		final OwnIdentity oldIdentity = identity.clone(); // For the SubscriptionManager
 		
+		assert(mLockOrder.mayAcquire(Lock.SUBSCRIPTION_MANAGER));
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
 			try {
@@ -5539,12 +6910,21 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		
 		if(logDEBUG) Logger.debug(this, "Added property '" + property + "=" + value + "' to identity '" + identity.getNickname() + "'");
+		} finally {
+			acquisition.released();
+		}
+		}
 	}
 	
-	public synchronized void removeProperty(String ownIdentityID, String property) throws UnknownIdentityException, InvalidParameterException {
+	public void removeProperty(String ownIdentityID, String property) throws UnknownIdentityException, InvalidParameterException {
+		final Acquisition acquisition = mLockStatistics.begin(REMOVE_PROPERTY_SITE);
+		synchronized(this) {
+		acquisition.acquired(Lock.WEB_OF_TRUST);
+		try {
 		final OwnIdentity identity = getOwnIdentityByID(ownIdentityID);
 		final OwnIdentity oldIdentity = identity.clone(); // For the SubscriptionManager
 		
+		assert(mLockOrder.mayAcquire(Lock.SUBSCRIPTION_MANAGER));
 		synchronized(mSubscriptionManager) {
 		synchronized(Persistent.transactionLock(mDB)) {
 			try {
@@ -5558,6 +6938,10 @@ public final class WebOfTrust extends WebOfTrustInterface
 		}
 		
 		if(logDEBUG) Logger.debug(this, "Removed property '" + property + "' from identity '" + identity.getNickname() + "'");
+		} finally {
+			acquisition.released();
+		}
+		}
 	}
 
 	@Override
@@ -5604,6 +6988,44 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return mFetcher;
 	}
 	
+	/**
+	 * @return The {@link ObjectCache}s of {@link Identity}s, {@link Trust}s and {@link Score}s,
+	 *     in that order. For the hit/miss statistics of the UI and for unit tests. */
+	public List<ObjectCache<?>> getObjectCaches() {
+		return Arrays.<ObjectCache<?>>asList(mIdentityCache, mTrustCache, mScoreCache);
+	}
+	
+	/** For unit tests only. */
+	TrustGraph getTrustGraph() {
+		return mTrustGraph;
+	}
+	
+	/**
+	 * Returns an immutable view of all {@link Identity}s, {@link Trust}s and {@link Score}s as
+	 * they were after the latest commit. Does not synchronize on the WebOfTrust, so UI and FCP
+	 * code can use it for read-only requests without waiting for trust list imports or Score
+	 * computations. See {@link ReadSnapshot}. */
+	public ReadSnapshot getReadSnapshot() {
+		return mReadSnapshots.getSnapshot();
+	}
+	
+	/** For the {@link SubscriptionManager} and unit tests only. */
+	ReadSnapshotPublisher getReadSnapshotPublisher() {
+		return mReadSnapshots;
+	}
+	
+	/**
+	 * The order in which the locks of WoT must be taken, and the debug mode which checks it.
+	 * See {@link LockOrder}. */
+	public LockOrder getLockOrder() {
+		return mLockOrder;
+	}
+	
+	/** Measurements of lock contention, see {@link #LOCK_STATISTICS_CONFIG_KEY}. */
+	public LockStatistics getLockStatistics() {
+		return mLockStatistics;
+	}
+	
 	public IdentityFileQueue getIdentityFileQueue() {
 		return mIdentityFileQueue;
 	}
@@ -5612,6 +7034,16 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return mIdentityFileProcessor;
 	}
 
+	/** @return Null if disabled, see {@link #ONLINE_BACKUP_INTERVAL_CONFIG_KEY}. */
+	public OnlineBackup getOnlineBackup() {
+		return mOnlineBackup;
+	}
+
+	/** Null if the database was not opened by this WebOfTrust, e.g. in-memory. */
+	DirtyPageTracker getDirtyPageTracker() {
+		return mDirtyPageTracker;
+	}
+
     public IdentityInserter getIdentityInserter() {
         return mInserter;
     }
@@ -5707,9 +7139,12 @@ public final class WebOfTrust extends WebOfTrustInterface
 		query.constrain(Identity.class);
 		query.constrain(OwnIdentity.class).not();
 		query.descend("mLastFetchedDate").constrain(new Date(0));
+		// Identitys without Scores are never fetched, see shouldFetchIdentity()
+		query.descend("mHasScores").constrain(true);
 		
-		// TODO: Performance: Once we have a database table for the value of shouldFetchIdentity()
-		// for each identity remove this loop and do everything in the database query.
+		// TODO: Performance: Do everything in the database query by also constraining
+		// Identity.mBestScore / mBestCapacity. This requires an OR constraint which db4o evaluates
+		// slowly unless both fields are indexed.
 		int count = 0;
 		for(Identity identity : new Persistent.InitializingObjectSet<Identity>(this, query)) {
 			if(shouldFetchIdentity(identity))
@@ -5731,6 +7166,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 		return mIncrementalScoreRecomputationDueToTrustCount;
 	}
 
+	public int getNumberOfIncrementalScoreRecomputationDueToTrustList() {
+		return mIncrementalScoreRecomputationDueToTrustListCount;
+	}
+
+	public int getNumberOfDeferredTrustListImports() {
+		return mDeferredTrustListImportCount;
+	}
+
 	public int getNumberOfIncrementalScoreRecomputationDueToDistrust() {
 		return mIncrementalScoreRecomputationDueToDistrustCount;
 	}
@@ -5747,6 +7190,14 @@ public final class WebOfTrust extends WebOfTrustInterface
 			);
 	}
 
+	public synchronized double getAverageTimeForIncrementalScoreRecomputationDueToTrustList() {
+		return (double)mIncrementalScoreRecomputationDueToTrustListNanos / 
+			(1000d * 1000d * 1000d *
+				(mIncrementalScoreRecomputationDueToTrustListCount != 0
+			  ?  mIncrementalScoreRecomputationDueToTrustListCount : 1)
+			);
+	}
+
 	public synchronized double getAverageTimeForIncrementalScoreRecomputationDueToDistrust() {
 		return (double)mIncrementalScoreRecomputationDueToDistrustNanos / 
 			(1000d * 1000d * 1000d *
@@ -17,9 +17,11 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.Random;
 import java.util.TimeZone;
+import java.util.concurrent.TimeUnit;
 
 import javax.xml.XMLConstants;
 import javax.xml.parsers.DocumentBuilder;
@@ -39,6 +41,10 @@ import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 
 import plugins.WebOfTrust.Identity.FetchState;
+import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.LockOrder.Lock;
+import plugins.WebOfTrust.LockStatistics.Acquisition;
+import plugins.WebOfTrust.LockStatistics.Site;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
@@ -98,6 +104,11 @@ public final class XMLTransformer {
 	 */
 	public static final int MAX_IDENTITY_XML_TRUSTEE_AMOUNT = 512;
 	
+	/**
+	 * The {@link LockStatistics} {@link Site} of {@link #importIdentities(List, long)},
+	 * which is where the {@link IdentityFileProcessor} waits for the locks. */
+	private static final Site IMPORT_IDENTITY_SITE = new Site("XMLTransformer.importIdentity");
+	
 	private final WebOfTrust mWoT;
 	
 	/**
@@ -111,6 +122,11 @@ public final class XMLTransformer {
 	/** Used for parsing the identity XML when decoding identities*/
 	private final DocumentBuilder mDocumentBuilder;
 	
+	/**
+	 * Used for parsing XML. A DocumentBuilder is not thread-safe, so each thread gets its own one
+	 * to allow the {@link IdentityFileProcessor} to parse multiple files concurrently. */
+	private final ThreadLocal<DocumentBuilder> mParsers;
+	
 	/* TODO: Check with a profiler how much memory this takes, do not cache it if it is too much */
 	/** Created by mDocumentBuilder, used for building the identity XML DOM when encoding identities */
 	private final DOMImplementation mDOM;
@@ -148,12 +164,25 @@ public final class XMLTransformer {
 		mFastWeakRandom = mWoT.getPluginRespirator() != null ? mWoT.getPluginRespirator().getNode().fastWeakRandom : new SecureRandom();
 		
 		try {
-			DocumentBuilderFactory xmlFactory = DocumentBuilderFactory.newInstance();
+			final DocumentBuilderFactory xmlFactory = DocumentBuilderFactory.newInstance();
 			xmlFactory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
 			// DOM parser uses .setAttribute() to pass to underlying Xerces
 			xmlFactory.setAttribute("http://apache.org/xml/features/disallow-doctype-decl", true);
 			mDocumentBuilder = xmlFactory.newDocumentBuilder(); 
 			mDOM = mDocumentBuilder.getDOMImplementation();
+			
+			mParsers = new ThreadLocal<DocumentBuilder>() {
+				@Override protected DocumentBuilder initialValue() {
+					// The factory is not thread-safe either.
+					synchronized(xmlFactory) {
+						try {
+							return xmlFactory.newDocumentBuilder();
+						} catch (ParserConfigurationException e) {
+							throw new RuntimeException(e);
+						}
+					}
+				}
+			};
 
 			mSerializer = TransformerFactory.newInstance().newTransformer();
 			mSerializer.setOutputProperty(OutputKeys.ENCODING, XML_CHARSET_NAME);
@@ -183,9 +212,7 @@ public final class XMLTransformer {
         if(xmlInputStream.available() > softXMLByteSizeLimit)
             throw new IllegalArgumentException("XML contains too many bytes: " + xmlInputStream.available());
         
-        synchronized(mDocumentBuilder) { // TODO: Figure out whether the DocumentBuilder is maybe synchronized anyway
-            return mDocumentBuilder.parse(xmlInputStream);
-        }
+        return mParsers.get().parse(xmlInputStream);
     }
 
 	public void exportOwnIdentity(OwnIdentity identity, OutputStream os) throws TransformerException {
@@ -207,6 +234,7 @@ public final class XMLTransformer {
 		Element identityElement = xmlDoc.createElement("Identity");
 		identityElement.setAttribute("Version", Integer.toString(XML_FORMAT_VERSION)); /* Version of the XML format */
 		
+		assert(mWoT.getLockOrder().mayAcquire(Lock.WEB_OF_TRUST));
 		synchronized(mWoT) {
 			identityElement.setAttribute("Name", identity.getNickname());
 			identityElement.setAttribute("PublishesTrustList", Boolean.toString(identity.doesPublishTrustList()));
@@ -301,7 +329,10 @@ public final class XMLTransformer {
 
 	}
 	
-	private static final class ParsedIdentityXML {
+	/**
+	 * Result of {@link XMLTransformer#parseIdentityXML(FreenetURI, InputStream)}, which
+	 * {@link XMLTransformer#importIdentities(List, long)} imports. */
+	static final class ParsedIdentityXML {
 		static final class TrustListEntry {
 			final FreenetURI mTrusteeURI;
 			final byte mTrustValue;
@@ -314,6 +345,8 @@ public final class XMLTransformer {
 			}
 		}
 		
+		FreenetURI identityURI = null;
+		
 		Exception parseError = null;
 		
 		String identityName = null;
@@ -324,12 +357,40 @@ public final class XMLTransformer {
 	}
 	
 	/**
+	 * Result of {@link XMLTransformer#importIdentities(List, long)}: What happened to the files
+	 * which it removed from the list. */
+	static final class ImportResult {
+		/** Number of files whose content was imported. */
+		int mImportedFiles = 0;
+		
+		/** Number of files which were not imported because their Identity is not wanted anymore
+		 *  or a newer or the same edition was imported already. */
+		int mSkippedFiles = 0;
+		
+		/** Number of files which were marked as {@link FetchState#ParsingFailed}, either because
+		 *  the XML was invalid or because importing it failed. */
+		int mFailedFiles = 0;
+	}
+	
+	/** What {@link XMLTransformer#importIdentityWithoutCommit(ParsedIdentityXML)} did. */
+	private static enum FileImportOutcome {
+		Imported,
+		Skipped,
+		Failed
+	}
+	
+	/**
+	 * Does not take any locks, so it may be called concurrently by multiple threads.
+	 * 
+	 * @param identityURI The URI from which the file was fetched, for the import.
 	 * @param xmlInputStream An InputStream which must not return more than {@link MAX_IDENTITY_XML_BYTE_SIZE} bytes.
-	 */
-	private ParsedIdentityXML parseIdentityXML(InputStream xmlInputStream) throws IOException {
+	 * @return Contains the {@link ParsedIdentityXML#parseError} if parsing failed, which will be
+	 *     handled by {@link #importIdentities(List, long)}. */
+	ParsedIdentityXML parseIdentityXML(FreenetURI identityURI, InputStream xmlInputStream) {
 		Logger.normal(this, "Parsing identity XML...");
 		
 		final ParsedIdentityXML result = new ParsedIdentityXML();
+		result.identityURI = identityURI;
 		
 		try {			
 			Document xmlDoc = parseDocument(xmlInputStream, MAX_IDENTITY_XML_BYTE_SIZE);
@@ -391,214 +452,361 @@ public final class XMLTransformer {
 	 * @param xmlInputStream The input stream containing the XML.
 	 */
 	public void importIdentity(FreenetURI identityURI, InputStream xmlInputStream) {
-		try { // Catch import problems so we can mark the edition as parsing failed
-		// We first parse the XML without synchronization, then do the synchronized import into the WebOfTrust		
-		final ParsedIdentityXML xmlData = parseIdentityXML(xmlInputStream);
+		// We first parse the XML without synchronization, then do the synchronized import into the WebOfTrust
+		final ArrayList<ParsedIdentityXML> files = new ArrayList<ParsedIdentityXML>(1);
+		files.add(parseIdentityXML(identityURI, xmlInputStream));
+		importIdentities(files, Long.MAX_VALUE);
+	}
+	
+	/**
+	 * Second stage of {@link #importIdentity(FreenetURI, InputStream)}: Imports identity files
+	 * which were parsed by {@link #parseIdentityXML(FreenetURI, InputStream)} before, possibly by
+	 * a different thread. Only this stage takes the locks.
+	 * 
+	 * To reduce the per-file overhead when many files are queued, the files are imported as a
+	 * batch: The locks are taken once, all files are imported by a single trust list import so
+	 * {@link WebOfTrust#finishTrustListImport()} updates the Scores once for all of them, and the
+	 * transaction is committed once.
+	 * The imported files are removed from the front of the given list. Once the given duration
+	 * has expired, no further files are imported, the remaining ones stay in the list. At least
+	 * one file is always imported.
+	 * 
+	 * As the Scores are only updated at the end of a batch, a file is not imported by the same
+	 * batch as a previous file which changed the Trust values its Identity receives: Whether
+	 * its Identity is still wanted and whether the Identitys it trusts are created depends on
+	 * its Scores. The batch is ended before such a file, and it is imported by the next one.
+	 * Indirect changes, i.e. of the Trust values which the truster of its Identity receives, are
+	 * not considered, so their effect on its Scores is only seen by the next edition of the
+	 * file. This is the same as in asynchronous mode, see
+	 * {@link WebOfTrust#ASYNCHRONOUS_SCORE_COMPUTATION_CONFIG_KEY}.
+	 * 
+	 * Files which failed to parse or are not wanted anymore do not affect the other files of the
+	 * batch. If importing a file fails otherwise, the whole batch has to be rolled back since
+	 * db4o does not support rolling back part of a transaction. The failed file is then removed
+	 * from the list and marked as {@link FetchState#ParsingFailed}, and the other files are
+	 * imported again. If the failure happens after all files were imported, i.e. during the Score
+	 * computation or the commit, the files are imported one by one to find the failing one, then
+	 * the remaining files are imported as a batch again.
+	 * 
+	 * @return What happened to the files which were removed from the list.
+	 * @throws RuntimeException If {@link WebOfTrust#beginTrustListImport()} failed. This is not
+	 *     the fault of any of the files, so none is marked as failed and the remaining ones stay
+	 *     in the list. The files which were removed by previous batches were committed already,
+	 *     but are not accounted by any ImportResult then. */
+	ImportResult importIdentities(List<ParsedIdentityXML> files, long maxDurationMillis) {
+		final long startTime = System.nanoTime();
+		final long maxDuration = TimeUnit.MILLISECONDS.toNanos(maxDurationMillis);
+		final ImportResult result = new ImportResult();
 		
+		assert(mWoT.getLockOrder().mayAcquire(Lock.WEB_OF_TRUST));
+		final Acquisition acquisition = mWoT.getLockStatistics().begin(IMPORT_IDENTITY_SITE);
 		synchronized(mWoT) {
+		acquisition.acquired(Lock.WEB_OF_TRUST);
+		try {
 		synchronized(mWoT.getIdentityFetcher()) {
+		acquisition.acquired(Lock.IDENTITY_FETCHER);
 		synchronized(mSubscriptionManager) {
-			final Identity identity = mWoT.getIdentityByURI(identityURI);
-			final Identity oldIdentity = identity.clone(); // For the SubscriptionManager
-			
-			Logger.normal(this, "Importing parsed XML for " + identity);
-
-			// When shouldFetchIdentity() changes from true to false due to an identity becoming
-			// distrusted, this change will not cause the IdentityFetcher to abort the fetch
-			// immediately: It queues the command to abort the fetch, and processes commands after
-			// some seconds.
-			// Also, fetched identity files are enqueued for processing in an IdentityFileQueue, and
-			// might wait there for several minutes.
-			// Thus, it is possible that this function is called for an Identity which is not
-			// actually wanted anymore. So we must check whether the identity is really still
-			// wanted.
-            if(!mWoT.shouldFetchIdentity(identity)) {
-                Logger.normal(this,
-                    "importIdentity() called for unwanted identity, probably because the "
-                  + "IdentityFetcher has not processed the AbortFetchCommand yet or the "
-                  + "file was in the IdentityFileQueue for some time, not importing: "
-                  + identity);
-                return;
-            }
+		acquisition.acquired(Lock.SUBSCRIPTION_MANAGER);
+		synchronized(Persistent.transactionLock(mDB)) {
+		acquisition.acquired(Lock.TRANSACTION);
+			int maxBatchSize = Integer.MAX_VALUE;
 			
-			long newEdition = identityURI.getEdition();
-			if(identity.getEdition() > newEdition) {
-				if(logDEBUG) Logger.debug(this, "Fetched an older edition: current == " + identity.getEdition() + "; fetched == " + identityURI.getEdition());
-				return;
-			} else if(identity.getEdition() == newEdition) {
-				if(identity.getCurrentEditionFetchState() == FetchState.Fetched) {
-					if(logDEBUG) Logger.debug(this, "Fetched current edition which is marked as fetched already, not importing: " + identityURI);
-					return;
-				} else if(identity.getCurrentEditionFetchState() == FetchState.ParsingFailed) {
-					Logger.normal(this, "Re-fetched current-edition which was marked as parsing failed: " + identityURI);
-				}
-			}
+			while(!files.isEmpty()) {
+				final int batchSize = Math.min(maxBatchSize, files.size());
+				int imported = 0;
+				int skipped = 0;
+				int parsingFailed = 0;
+				boolean failedInFile = false;
 				
-			// We throw parse errors AFTER checking the edition number: If this XML was outdated anyway, we don't have to throw.
-			if(xmlData.parseError != null)
-				throw xmlData.parseError;
+				// We delete the old list if !identityPublishesTrustList and it did publish one
+				// earlier => we always call this.
+				// If it fails it has done the rollback already, so it is outside of the try.
+				mWoT.beginTrustListImport();
 				
-			
-			synchronized(Persistent.transactionLock(mDB)) {
-				try { // Transaction rollback block
-					identity.setEdition(newEdition); // The identity constructor only takes the edition number as a hint, so we must store it explicitly.
-					boolean didPublishTrustListPreviously = identity.doesPublishTrustList();
-					identity.setPublishTrustList(xmlData.identityPublishesTrustList);
-					
-					try {
-						identity.setNickname(xmlData.identityName);
-					}
-					catch(Exception e) {
-						/* Nickname changes are not allowed, ignore them... */
-						Logger.warning(this, "setNickname() failed.", e);
-					}
-	
-					try { /* Failure of context importing should not make an identity disappear, therefore we catch exceptions. */
-						identity.setContexts(xmlData.identityContexts);
-					}
-					catch(Exception e) {
-						Logger.warning(this, "setContexts() failed.", e);
-					}
-	
-					try { /* Failure of property importing should not make an identity disappear, therefore we catch exceptions. */
-						identity.setProperties(xmlData.identityProperties);
-					}
-					catch(Exception e) {
-						Logger.warning(this, "setProperties() failed", e);
-					}
-				
-					
-					mWoT.beginTrustListImport(); // We delete the old list if !identityPublishesTrustList and it did publish one earlier => we always call this. 
-					
-					if(xmlData.identityPublishesTrustList) {
-						// We import the trust list of an identity if it's score is equal to 0, but we only create new identities or import edition hints
-						// if the score is greater than 0. Solving a captcha therefore only allows you to create one single identity.
-						boolean positiveScore = false;
-						boolean hasCapacity = false;
-						
-						// TODO: getBestScore/getBestCapacity should always yield a positive result because we store a positive score object for an OwnIdentity
-						// upon creation. The only case where it could not exist might be restoreOwnIdentity() ... check that. If it is created there as well,
-						// remove the additional check here.
-						if(identity instanceof OwnIdentity) {
-							// Importing of OwnIdentities is always allowed
-							positiveScore = true;
-							hasCapacity = true;
-						} else {
-							try {
-								positiveScore = mWoT.getBestScore(identity) > 0;
-								hasCapacity = mWoT.getBestCapacity(identity) > 0;
-							}
-							catch(NotInTrustTreeException e) { }
-						}
+				try {
+					while(imported < batchSize
+							&& (imported == 0 || System.nanoTime() - startTime < maxDuration)) {
 						
+						final ParsedIdentityXML file = files.get(imported);
 						
-						HashSet<String>	identitiesWithUpdatedEditionHint = null;
-
-						if(positiveScore) {
-							identitiesWithUpdatedEditionHint = new HashSet<String>(xmlData.identityTrustList.size() * 2);
-						}
-
-						for(final ParsedIdentityXML.TrustListEntry trustListEntry : xmlData.identityTrustList) {
-							final FreenetURI trusteeURI = trustListEntry.mTrusteeURI;
-							final byte trustValue = trustListEntry.mTrustValue;
-							final String trustComment = trustListEntry.mTrustComment;
-
-							Identity trustee = null;
-							try {
-								trustee = mWoT.getIdentityByURI(trusteeURI);
-								if(positiveScore) {
-									if(trustee.setNewEditionHint(trusteeURI.getEdition())) {
-										identitiesWithUpdatedEditionHint.add(trustee.getID());
-										trustee.storeWithoutCommit();
-										
-										// We don't notify clients about this: The edition hint is not very useful to them.
-										// mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(trustee, trustee);
-									}
-								}
-							}
-							catch(UnknownIdentityException e) {
-								if(hasCapacity) { /* We only create trustees if the truster has capacity to rate them. */
-									try {
-										trustee = new Identity(mWoT, trusteeURI, null, false);
-										trustee.storeWithoutCommit();
-										mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(null, trustee);
-										Logger.normal(this, "New identity received via trust list: " + identity);
-									} catch(MalformedURLException urlEx) {
-										// Logging the exception does NOT log the actual malformed URL so we do it manually.
-										Logger.warning(this, "Received malformed identity URL: " + trusteeURI, urlEx);
-										throw urlEx;
-									}
-								}
-							}
-
-							if(trustee != null)
-								mWoT.setTrustWithoutCommit(identity, trustee, trustValue, trustComment); // Also takes care of SubscriptionManager
-						}
-
-						for(Trust trust : mWoT.getGivenTrustsOfDifferentEdition(identity, identityURI.getEdition())) {
-							mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
+						if(imported > 0 && mWoT.didTrustListImportChangeReceivedTrusts(
+								IdentityID.constructAndValidateFromURI(file.identityURI)
+									.toString())) {
+							
+							if(logDEBUG) Logger.debug(this, "Ending batch, Score outdated: " + file.identityURI);
+							break;
 						}
-
-						IdentityFetcher identityFetcher = mWoT.getIdentityFetcher();
-						if(positiveScore) {
-							for(String id : identitiesWithUpdatedEditionHint)
-								identityFetcher.storeUpdateEditionHintCommandWithoutCommit(id);
-
-							// We do not have to store fetch commands for new identities here, setTrustWithoutCommit does it.
+						
+						failedInFile = true;
+						switch(importIdentityWithoutCommit(file)) {
+							case Skipped: ++skipped; break;
+							case Failed: ++parsingFailed; break;
+							default: break;
 						}
-					} else if(!xmlData.identityPublishesTrustList && didPublishTrustListPreviously && !(identity instanceof OwnIdentity)) {
-						// If it does not publish a trust list anymore, we delete all trust values it has given.
-						for(Trust trust : mWoT.getGivenTrusts(identity))
-							mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
+						failedInFile = false;
+						++imported;
 					}
-
+					
 					mWoT.finishTrustListImport();
-					identity.onFetched(); // Marks the identity as parsed successfully
-					mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(oldIdentity, identity);
-					identity.storeAndCommit();
+					Persistent.checkedCommit(mDB, this);
+					files.subList(0, imported).clear();
+					
+					result.mImportedFiles += imported - skipped - parsingFailed;
+					result.mSkippedFiles += skipped;
+					result.mFailedFiles += parsingFailed;
 				}
-				catch(Exception e) { 
+				catch(Exception e) {
 					mWoT.abortTrustListImport(e, Logger.LogLevel.WARNING); // Does the rollback
-					throw e;
-				} // try
-			} // synchronized(Persistent.transactionLock(db))
+					
+					if(!failedInFile && imported > 1) {
+						Logger.warning(this, "Importing batch failed, importing files one by one.");
+						maxBatchSize = 1;
+						continue;
+					}
+					
+					final int failedIndex = failedInFile ? imported : 0;
+					markParsingFailed(files.remove(failedIndex).identityURI, e);
+					++result.mFailedFiles;
+					// The failing file was found, the others can be imported as a batch again.
+					maxBatchSize = Integer.MAX_VALUE;
+				}
 				
-			Logger.normal(this, "Finished XML import for " + identity);
+				if(System.nanoTime() - startTime >= maxDuration)
+					return result;
+			}
+		} // synchronized(Persistent.transactionLock(db))
 		} // synchronized(mSubscriptionManager)
 		} // synchronized(mWoT.getIdentityFetcher())
+		} finally {
+			acquisition.released();
+		}
 		} // synchronized(mWoT)
-		} // try
+		
+		return result;
+	}
+	
+	/**
+	 * Imports a single file of {@link #importIdentities(List, long)}.
+	 * Must be called while a trust list import is in progress, see
+	 * {@link WebOfTrust#beginTrustListImport()}, and while holding its locks.
+	 * 
+	 * @throws Exception If importing failed, then the transaction must be rolled back. Parse errors
+	 *     of the XML do not cause this, the edition is marked as
+	 *     {@link FetchState#ParsingFailed} without commit then. */
+	private FileImportOutcome importIdentityWithoutCommit(ParsedIdentityXML xmlData)
+			throws Exception {
+		
+		final FreenetURI identityURI = xmlData.identityURI;
+		final Identity identity;
+		try {
+			identity = mWoT.getIdentityByURI(identityURI);
+		} catch(UnknownIdentityException e) {
+			Logger.error(this, "Importing identity XML failed, and marking the edition as "
+				+ "ParsingFailed also did not work - UnknownIdentityException for: "
+				+ identityURI, e);
+			return FileImportOutcome.Failed;
+		}
+		final Identity oldIdentity = identity.clone(); // For the SubscriptionManager
+		
+		Logger.normal(this, "Importing parsed XML for " + identity);
+
+		// When shouldFetchIdentity() changes from true to false due to an identity becoming
+		// distrusted, this change will not cause the IdentityFetcher to abort the fetch
+		// immediately: It queues the command to abort the fetch, and processes commands after
+		// some seconds.
+		// Also, fetched identity files are enqueued for processing in an IdentityFileQueue, and
+		// might wait there for several minutes.
+		// Thus, it is possible that this function is called for an Identity which is not
+		// actually wanted anymore. So we must check whether the identity is really still
+		// wanted.
+		if(!mWoT.shouldFetchIdentity(identity)) {
+			Logger.normal(this,
+				"importIdentity() called for unwanted identity, probably because the "
+			  + "IdentityFetcher has not processed the AbortFetchCommand yet or the "
+			  + "file was in the IdentityFileQueue for some time, not importing: "
+			  + identity);
+			return FileImportOutcome.Skipped;
+		}
+		
+		long newEdition = identityURI.getEdition();
+		if(identity.getEdition() > newEdition) {
+			if(logDEBUG) Logger.debug(this, "Fetched an older edition: current == " + identity.getEdition() + "; fetched == " + identityURI.getEdition());
+			return FileImportOutcome.Skipped;
+		} else if(identity.getEdition() == newEdition) {
+			if(identity.getCurrentEditionFetchState() == FetchState.Fetched) {
+				if(logDEBUG) Logger.debug(this, "Fetched current edition which is marked as fetched already, not importing: " + identityURI);
+				return FileImportOutcome.Skipped;
+			} else if(identity.getCurrentEditionFetchState() == FetchState.ParsingFailed) {
+				Logger.normal(this, "Re-fetched current-edition which was marked as parsing failed: " + identityURI);
+			}
+		}
+		
+		// We handle parse errors AFTER checking the edition number: If this XML was outdated anyway, we don't have to.
+		if(xmlData.parseError != null) {
+			markParsingFailedWithoutCommit(identity, identityURI, xmlData.parseError);
+			return FileImportOutcome.Failed;
+		}
+		
+		identity.setEdition(newEdition); // The identity constructor only takes the edition number as a hint, so we must store it explicitly.
+		boolean didPublishTrustListPreviously = identity.doesPublishTrustList();
+		identity.setPublishTrustList(xmlData.identityPublishesTrustList);
+		
+		try {
+			identity.setNickname(xmlData.identityName);
+		}
+		catch(Exception e) {
+			/* Nickname changes are not allowed, ignore them... */
+			Logger.warning(this, "setNickname() failed.", e);
+		}
+
+		try { /* Failure of context importing should not make an identity disappear, therefore we catch exceptions. */
+			identity.setContexts(xmlData.identityContexts);
+		}
 		catch(Exception e) {
-			synchronized(mWoT) {
-			// synchronized(mSubscriptionManager) { // We don't use the SubscriptionManager, see below
-			synchronized(mWoT.getIdentityFetcher()) {
+			Logger.warning(this, "setContexts() failed.", e);
+		}
+
+		try { /* Failure of property importing should not make an identity disappear, therefore we catch exceptions. */
+			identity.setProperties(xmlData.identityProperties);
+		}
+		catch(Exception e) {
+			Logger.warning(this, "setProperties() failed", e);
+		}
+		
+		if(xmlData.identityPublishesTrustList) {
+			// We import the trust list of an identity if it's score is equal to 0, but we only create new identities or import edition hints
+			// if the score is greater than 0. Solving a captcha therefore only allows you to create one single identity.
+			boolean positiveScore = false;
+			boolean hasCapacity = false;
+			
+			// TODO: getBestScore/getBestCapacity should always yield a positive result because we store a positive score object for an OwnIdentity
+			// upon creation. The only case where it could not exist might be restoreOwnIdentity() ... check that. If it is created there as well,
+			// remove the additional check here.
+			if(identity instanceof OwnIdentity) {
+				// Importing of OwnIdentities is always allowed
+				positiveScore = true;
+				hasCapacity = true;
+			} else {
 				try {
-					final Identity identity = mWoT.getIdentityByURI(identityURI);
-					final long newEdition = identityURI.getEdition();
-					if(identity.getEdition() <= newEdition) {
-						Logger.normal(this, "Marking edition as parsing failed: " + identityURI);
+					positiveScore = mWoT.getBestScore(identity) > 0;
+					hasCapacity = mWoT.getBestCapacity(identity) > 0;
+				}
+				catch(NotInTrustTreeException e) { }
+			}
+			
+			
+			HashSet<String>	identitiesWithUpdatedEditionHint = null;
+
+			if(positiveScore) {
+				identitiesWithUpdatedEditionHint = new HashSet<String>(xmlData.identityTrustList.size() * 2);
+			}
+
+			for(final ParsedIdentityXML.TrustListEntry trustListEntry : xmlData.identityTrustList) {
+				final FreenetURI trusteeURI = trustListEntry.mTrusteeURI;
+				final byte trustValue = trustListEntry.mTrustValue;
+				final String trustComment = trustListEntry.mTrustComment;
+
+				Identity trustee = null;
+				try {
+					trustee = mWoT.getIdentityByURI(trusteeURI);
+					if(positiveScore) {
+						if(trustee.setNewEditionHint(trusteeURI.getEdition())) {
+							identitiesWithUpdatedEditionHint.add(trustee.getID());
+							trustee.storeWithoutCommit();
+							
+							// We don't notify clients about this: The edition hint is not very useful to them.
+							// mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(trustee, trustee);
+						}
+					}
+				}
+				catch(UnknownIdentityException e) {
+					if(hasCapacity) { /* We only create trustees if the truster has capacity to rate them. */
 						try {
-							identity.setEdition(newEdition);
-						} catch (InvalidParameterException e1) {
-							// Would only happen if newEdition < current edition.
-							// We have validated the opposite.
-							throw new RuntimeException(e1);
+							trustee = new Identity(mWoT, trusteeURI, null, false);
+							trustee.storeWithoutCommit();
+							mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(null, trustee);
+							Logger.normal(this, "New identity received via trust list: " + identity);
+						} catch(MalformedURLException urlEx) {
+							// Logging the exception does NOT log the actual malformed URL so we do it manually.
+							Logger.warning(this, "Received malformed identity URL: " + trusteeURI, urlEx);
+							throw urlEx;
 						}
-						identity.onParsingFailed();
-						// We don't notify the SubscriptionManager here since there is not really any new information about the identity because parsing failed.
-						identity.storeAndCommit();
-					} else {
-						Logger.normal(this, "Not marking edition as parsing failed, we have already fetched a new one (" + 
-								identity.getEdition() + "):" + identityURI);
 					}
-					Logger.warning(this, "Parsing identity XML failed gracefully for " + identityURI, e);
 				}
-				catch(UnknownIdentityException uie) {
-					Logger.error(this, "Parsing identity XML failed and marking the edition as ParsingFailed also did not work - UnknownIdentityException for: "
-							+ identityURI, e);
-				}	
+
+				if(trustee != null)
+					mWoT.setTrustWithoutCommit(identity, trustee, trustValue, trustComment); // Also takes care of SubscriptionManager
+			}
+
+			for(Trust trust : mWoT.getGivenTrustsOfDifferentEdition(identity, identityURI.getEdition())) {
+				mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
+			}
+
+			IdentityFetcher identityFetcher = mWoT.getIdentityFetcher();
+			if(positiveScore) {
+				for(String id : identitiesWithUpdatedEditionHint)
+					identityFetcher.storeUpdateEditionHintCommandWithoutCommit(id);
+
+				// We do not have to store fetch commands for new identities here, setTrustWithoutCommit does it.
 			}
+		} else if(!xmlData.identityPublishesTrustList && didPublishTrustListPreviously && !(identity instanceof OwnIdentity)) {
+			// If it does not publish a trust list anymore, we delete all trust values it has given.
+			for(Trust trust : mWoT.getGivenTrusts(identity))
+				mWoT.removeTrustWithoutCommit(trust); // Also takes care of SubscriptionManager
+		}
+		
+		identity.onFetched(); // Marks the identity as parsed successfully
+		mSubscriptionManager.storeIdentityChangedNotificationWithoutCommit(oldIdentity, identity);
+		identity.storeWithoutCommit();
+		
+		Logger.normal(this, "Finished XML import for " + identity);
+		return FileImportOutcome.Imported;
+	}
+	
+	/**
+	 * Marks the given edition of the given Identity as {@link FetchState#ParsingFailed} unless a
+	 * newer edition was fetched already. Does not commit.
+	 * 
+	 * We don't notify the SubscriptionManager here since there is not really any new information
+	 * about the identity because parsing failed. */
+	private void markParsingFailedWithoutCommit(Identity identity, FreenetURI identityURI,
+			Exception e) {
+		
+		final long newEdition = identityURI.getEdition();
+		if(identity.getEdition() <= newEdition) {
+			Logger.normal(this, "Marking edition as parsing failed: " + identityURI);
+			try {
+				identity.setEdition(newEdition);
+			} catch (InvalidParameterException e1) {
+				// Would only happen if newEdition < current edition.
+				// We have validated the opposite.
+				throw new RuntimeException(e1);
 			}
+			identity.onParsingFailed();
+			identity.storeWithoutCommit();
+		} else {
+			Logger.normal(this, "Not marking edition as parsing failed, we have already fetched a new one (" + 
+					identity.getEdition() + "):" + identityURI);
+		}
+		Logger.warning(this, "Parsing identity XML failed gracefully for " + identityURI, e);
+	}
+	
+	/**
+	 * Marks an edition whose import failed as {@link FetchState#ParsingFailed} in a separate
+	 * transaction, see {@link #markParsingFailedWithoutCommit(Identity, FreenetURI, Exception)}.
+	 * Must be called while holding the locks of {@link #importIdentities(List, long)}, outside of
+	 * a trust list import. */
+	private void markParsingFailed(FreenetURI identityURI, Exception e) {
+		try {
+			markParsingFailedWithoutCommit(mWoT.getIdentityByURI(identityURI), identityURI, e);
+			Persistent.checkedCommit(mDB, this);
+		}
+		catch(UnknownIdentityException uie) {
+			Logger.error(this, "Parsing identity XML failed and marking the edition as ParsingFailed also did not work - UnknownIdentityException for: "
+					+ identityURI, e);
+		}
+		catch(RuntimeException re) {
+			Persistent.checkedRollback(mDB, this, re);
 		}
 	}
 
@@ -665,6 +873,7 @@ public final class XMLTransformer {
 		
 		final IdentityFetcher identityFetcher = mWoT.getIdentityFetcher();
 		
+		assert(mWoT.getLockOrder().mayAcquire(Lock.WEB_OF_TRUST));
 		synchronized(mWoT) {
 		synchronized(identityFetcher) {
 		synchronized(mSubscriptionManager) {
@@ -789,6 +998,7 @@ public final class XMLTransformer {
 		Element dataElement = (Element)puzzleElement.getElementsByTagName("Data").item(0);
 		puzzleData = Base64.decodeStandard(dataElement.getAttribute("Value"));
 
+		assert(mWoT.getLockOrder().mayAcquire(Lock.WEB_OF_TRUST));
 		synchronized(mWoT) {
 		synchronized(mWoT.getIntroductionPuzzleStore()) {
 			Identity puzzleInserter = mWoT.getIdentityByURI(puzzleURI);
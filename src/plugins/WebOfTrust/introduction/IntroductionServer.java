@@ -15,6 +15,10 @@ import javax.xml.transform.TransformerException;
 
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.IdentityFetcher;
+import plugins.WebOfTrust.LockOrder.Lock;
+import plugins.WebOfTrust.LockStatistics;
+import plugins.WebOfTrust.LockStatistics.Acquisition;
+import plugins.WebOfTrust.LockStatistics.Site;
 import plugins.WebOfTrust.OwnIdentity;
 import plugins.WebOfTrust.WebOfTrust;
 import plugins.WebOfTrust.XMLTransformer;
@@ -70,6 +74,14 @@ public final class IntroductionServer extends TransferThread {
 	public static final byte PUZZLE_INVALID_AFTER_DAYS = 3;		
 	
 	
+	/**
+	 * The {@link LockStatistics} {@link Site} of {@link #generateNewPuzzles(OwnIdentity)}:
+	 * Generating CAPTCHAs is slow, and the {@link IntroductionPuzzleStore} lock is held meanwhile.
+	 */
+	private static final Site GENERATE_PUZZLES_SITE
+		= new Site("IntroductionServer.generateNewPuzzles");
+	
+	
 	/* Objects from WoT */
 
 	private final WebOfTrust mWoT;
@@ -233,7 +245,10 @@ public final class IntroductionServer extends TransferThread {
 	}
 	
 	private void generateNewPuzzles(final OwnIdentity identity) throws IOException {
+		final Acquisition acquisition = mWoT.getLockStatistics().begin(GENERATE_PUZZLES_SITE);
 		synchronized(mPuzzleStore) {
+		acquisition.acquired(Lock.INTRODUCTION_PUZZLE_STORE);
+		try {
 		int puzzlesToGenerate = getIdentityPuzzleCount(identity) - mPuzzleStore.getOfTodayByInserter(identity).size();
 		Logger.normal(this, "Trying to generate " + puzzlesToGenerate + " new puzzles from " + identity.getNickname());
 		
@@ -246,6 +261,9 @@ public final class IntroductionServer extends TransferThread {
 			}
 			--puzzlesToGenerate;
 		}
+		} finally {
+			acquisition.released();
+		}
 		}
 		
 		Logger.normal(this, "Finished generating puzzles from " + identity.getNickname());
@@ -8,6 +8,7 @@ import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Map.Entry;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
@@ -15,7 +16,15 @@ import java.util.concurrent.TimeUnit;
 import plugins.WebOfTrust.EventSource;
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.LockOrder.Lock;
+import plugins.WebOfTrust.LockStatistics;
+import plugins.WebOfTrust.LockStatistics.Histogram;
+import plugins.WebOfTrust.LockStatistics.Site;
+import plugins.WebOfTrust.LockStatistics.SiteStatistics;
 import plugins.WebOfTrust.OwnIdentity;
+import plugins.WebOfTrust.ReadSnapshot;
+import plugins.WebOfTrust.ReadSnapshot.ScoreRecord;
+import plugins.WebOfTrust.ReadSnapshot.TrustRecord;
 import plugins.WebOfTrust.Score;
 import plugins.WebOfTrust.SubscriptionManager;
 import plugins.WebOfTrust.SubscriptionManager.BeginSynchronizationNotification;
@@ -177,6 +186,8 @@ public final class FCPInterface
                 result = handleGetTrustees(params);
             } else if (message.equals("GetTrusteesCount")) {
                 result = handleGetTrusteesCount(params);
+            } else if (message.equals("SetTrustTreeDormant")) {
+                result = handleSetTrustTreeDormant(params);
             } else if (message.equals("AddContext")) {
                 result = handleAddContext(params);
             } else if (message.equals("RemoveContext")) {
@@ -201,6 +212,8 @@ public final class FCPInterface
                 result = handlePing();
             } else if (message.equals("RandomName")) {
                 result = handleRandomName(params);
+            } else if (message.equals("GetLockStatistics")) {
+                result = handleGetLockStatistics();
             } else {
                 throw new Exception("Unknown message (" + message + ")");
             }
@@ -347,21 +360,19 @@ public final class FCPInterface
     	final String trusteeID = getMandatoryParameter(params, "Trustee");
     	
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
-        // TODO: Performance: The synchronized() can be removed after this is fixed:
-        // https://bugs.freenetproject.org/view.php?id=6247
-    	synchronized(mWoT) {
-            // getTrust() won't validate the IDs. Since we are a UI, it's better to do it:
-            // This will prevent getTrust() claiming that there is no trust due to invalid IDs.
-            IdentityID.constructAndValidateFromString(trusterID);
-            IdentityID.constructAndValidateFromString(trusteeID);
-
-    		Trust trust = null;
-    		try {
-                trust = mWoT.getTrust(trusterID, trusteeID);
-    		} catch(NotTrustedException e) {}
-    		
-    		handleGetTrust(sfs, trust, "0");
-    	}
+        // getTrust() won't validate the IDs. Since we are a UI, it's better to do it:
+        // This will prevent getTrust() claiming that there is no trust due to invalid IDs.
+        IdentityID.constructAndValidateFromString(trusterID);
+        IdentityID.constructAndValidateFromString(trusteeID);
+
+        // Served from the ReadSnapshot instead of the database so we don't have to synchronize
+        // on mWoT, see https://bugs.freenetproject.org/view.php?id=6247
+    	TrustRecord trust = null;
+    	try {
+    		trust = mWoT.getReadSnapshot().getTrust(trusterID, trusteeID);
+    	} catch(NotTrustedException e) {}
+    	
+    	handleGetTrust(sfs, trust, "0");
     	sfs.putOverwrite("Message", "Trust");
     	return sfs;
     }
@@ -386,22 +397,45 @@ public final class FCPInterface
 		return sfs;
     }
     
+    /** Same as {@link #handleGetTrust(SimpleFieldSet, Trust, String)}, for data from a
+     *  {@link ReadSnapshot}. */
+    private SimpleFieldSet handleGetTrust(final SimpleFieldSet sfs, final TrustRecord trust, String suffix) {
+    	final String prefix = "Trusts." + suffix + ".";
+    	
+    	if(trust == null) {
+    		sfs.putOverwrite(prefix + "Value", "Nonexistent");
+    		return sfs;
+    	}
+    	
+		sfs.putOverwrite(prefix + "Truster", trust.getTrusterID());
+		sfs.putOverwrite(prefix + "Trustee", trust.getTrusteeID());
+		sfs.putOverwrite(prefix + "Value", Byte.toString(trust.getValue()));
+		sfs.putOverwrite(prefix + "Comment", trust.getComment());
+		sfs.put(prefix + "TrusterEdition", trust.getTrusterEdition());
+		sfs.putOverwrite(prefix + "VersionID", trust.getVersionID().toString());
+		
+    	sfs.putOverwrite("Trusts.Amount", "1");
+    	
+		return sfs;
+    }
+    
     private SimpleFieldSet handleGetScore(final SimpleFieldSet params) throws UnknownIdentityException, InvalidParameterException {
     	final String trusterID = getMandatoryParameter(params, "Truster");
     	final String trusteeID = getMandatoryParameter(params, "Trustee");
 
     	final SimpleFieldSet sfs = new SimpleFieldSet(true);
-        // TODO: Performance: The synchronized() can be removed after this is fixed:
-        // https://bugs.freenetproject.org/view.php?id=6247
-    	synchronized(mWoT) {
-    		Score score = null;
-    		try {
-        		// TODO: Optimize by implementing https://bugs.freenetproject.org/view.php?id=6076
-    			score = mWoT.getScore(mWoT.getOwnIdentityByID(trusterID), mWoT.getIdentityByID(trusteeID));
-     		} catch(NotInTrustTreeException e) {}
-    		
-    		handleGetScore(sfs, score, "0");
-    	}
+        // Served from the ReadSnapshot instead of the database so we don't have to synchronize
+        // on mWoT, see https://bugs.freenetproject.org/view.php?id=6247
+    	final ReadSnapshot snapshot = getReadSnapshotWithAwakeTrustTree(trusterID);
+    	// Throw UnknownIdentityException if the trustee doesn't exist, as getIdentityByID() did.
+    	snapshot.getIdentityByID(trusteeID);
+    	
+    	ScoreRecord score = null;
+    	try {
+    		score = snapshot.getScore(trusterID, trusteeID);
+    	} catch(NotInTrustTreeException e) {}
+    	
+    	handleGetScore(sfs, score, "0");
 
     	sfs.putOverwrite("Message", "Score");
 		return sfs;
@@ -426,6 +460,47 @@ public final class FCPInterface
     	
 		return sfs;
     }
+    
+    /** Same as {@link #handleGetScore(SimpleFieldSet, Score, String)}, for data from a
+     *  {@link ReadSnapshot}. */
+    private SimpleFieldSet handleGetScore(final SimpleFieldSet sfs, final ScoreRecord score, final String suffix) {
+    	final String prefix = "Scores." + suffix + ".";
+    	
+    	if(score == null) {
+    		sfs.putOverwrite(prefix + "Value", "Nonexistent");
+    		return sfs;
+    	}
+    	
+		sfs.putOverwrite(prefix + "Truster", score.getTrusterID());
+		sfs.putOverwrite(prefix + "Trustee", score.getTrusteeID());
+		sfs.putOverwrite(prefix + "Capacity", Integer.toString(score.getCapacity()));
+		sfs.putOverwrite(prefix + "Rank", Integer.toString(score.getRank()));
+		sfs.putOverwrite(prefix + "Value", Integer.toString(score.getScore()));
+		sfs.putOverwrite(prefix + "VersionID", score.getVersionID().toString());
+		
+    	sfs.putOverwrite("Scores.Amount", "1");
+    	
+		return sfs;
+    }
+    
+    /**
+     * Returns {@link WebOfTrust#getReadSnapshot()}, after waking up the trust tree of the given
+     * {@link OwnIdentity} if it is dormant, see {@link WebOfTrust#setTrustTreeDormant(String,
+     * boolean)}: The client is about to use the Scores of it.
+     * Waking up requires the lock of the WebOfTrust, but this only happens once per dormancy.
+     * 
+     * @throws UnknownIdentityException If there is no OwnIdentity with the given ID.
+     */
+    private ReadSnapshot getReadSnapshotWithAwakeTrustTree(final String ownIdentityID)
+            throws UnknownIdentityException {
+        final ReadSnapshot snapshot = mWoT.getReadSnapshot();
+        
+        if(!snapshot.getOwnIdentityByID(ownIdentityID).isTrustTreeDormant())
+            return snapshot;
+        
+        mWoT.setTrustTreeDormant(ownIdentityID, false);
+        return mWoT.getReadSnapshot();
+    }
 
 
 
@@ -490,54 +565,27 @@ public final class FCPInterface
     	final String trusterID = params.get("Truster");
     	final String identityID = getMandatoryParameter(params, "Identity");
 
-    	final SimpleFieldSet sfs;
+        // Served from the ReadSnapshot instead of the database so we don't have to synchronize
+        // on mWoT. The snapshot is coherent, so the two Identitys cannot change meanwhile.
+    	final ReadSnapshot snapshot = (trusterID != null)
+    		? getReadSnapshotWithAwakeTrustTree(trusterID) : mWoT.getReadSnapshot();
+    	final Identity identity = snapshot.getIdentityByID(identityID);
     	
-        // We query two Identity objects from the database. Thus we must synchronize to ensure that
-        // the returned data is coherent - one of the two might be deleted meanwhile, or change
-        // from being an Identity to being an OwnIdentity.
-    	synchronized(mWoT) {
-    		final Identity identity = mWoT.getIdentityByID(identityID);
-    		final OwnIdentity truster = (trusterID != null ? mWoT.getOwnIdentityByID(trusterID) : null);
-    		
-    		sfs = handleGetIdentity(identity, truster);
-    		sfs.putOverwrite("Message", "Identity");
-    	}
+    	final SimpleFieldSet sfs = handleGetIdentity(snapshot, identity, trusterID);
+    	sfs.putOverwrite("Message", "Identity");
     	
 		return sfs;
 	}
     
     /**
      * Used as backend for:
-     * - {@link #handleGetIdentity(SimpleFieldSet)}
      * - {@link #sendIdentityChangedNotification(String, IdentityChangedNotification)}
+     * {@link #handleGetIdentity(SimpleFieldSet)} uses
+     * {@link #handleGetIdentity(ReadSnapshot, Identity, String)} instead.
      */
     private SimpleFieldSet handleGetIdentity(final Identity identity, final OwnIdentity truster) {
-    	final SimpleFieldSet sfs = new SimpleFieldSet(true);
-    		
-           	// TODO: As of 2013-10-24, this is deprecated code to support old FCP clients.
-    	    // Remove it after some time. Also do not forget to remove the appropriate
-    	    // Stuff.DeprecatedField=true and Stuff.DeprecatedField=false in the rest of this
-    	    // function then.
-    		addIdentityFields(sfs, identity,"", "0");
-
-            // TODO: As of 2013-10-24, this is deprecated code to support old FCP clients.
-            // Remove it after some time. Also do not forget to remove the appropriate
-            // Stuff.DeprecatedField=true and Stuff.DeprecatedField=false in the rest of this
-            // function then.
-            addIdentityFields(sfs, identity,"", "");
-            
-            // The above two have both an empty prefix, and all non-deprecated stuff which this
-            // function adds has a well-defined prefix, so we can use "*.DeprecatedField" to mark
-            // the above two as deprecated by whitelisting the non-deprecated stuff with
-            // "WellDefinedPrefix.DeprecatedField=false"
-            if(logMINOR)
-                sfs.put("*.DeprecatedField", true);
-            
-            addIdentityFields(sfs, identity, "Identities.0.", "");
-            // Don't include the "0": The addIdentityFields will add a field Identities.Amount
-            if(logMINOR)
-                sfs.put("Identities.*.DeprecatedField", false);
-            
+    	final SimpleFieldSet sfs = handleGetIdentity(identity);
+    	
     		if(truster != null) {
     			Trust trust = null;
     			Score score = null;
@@ -570,6 +618,84 @@ public final class FCPInterface
     	
 		return sfs;
 	}
+    
+    /**
+     * Same as {@link #handleGetIdentity(Identity, OwnIdentity)}, for data from a
+     * {@link ReadSnapshot}.
+     * 
+     * @param trusterID Null if no Trust and Score shall be added.
+     */
+    private SimpleFieldSet handleGetIdentity(final ReadSnapshot snapshot, final Identity identity,
+            final String trusterID) {
+    	
+    	final SimpleFieldSet sfs = handleGetIdentity(identity);
+    	
+    		if(trusterID != null) {
+    			TrustRecord trust = null;
+    			ScoreRecord score = null;
+    			
+    			try {
+    				trust = snapshot.getTrust(trusterID, identity.getID());
+    			} catch(NotTrustedException e) {}
+    			
+    			try {
+    				score = snapshot.getScore(trusterID, identity.getID());
+    			} catch(NotInTrustTreeException e) {}
+    			
+    			handleGetTrust(sfs, trust, "0");
+    			if(logMINOR)
+    			    sfs.put("Trusts.*.DeprecatedField", false);
+    			
+    			handleGetScore(sfs, score, "0");
+    			if(logMINOR)
+    			    sfs.put("Scores.*.DeprecatedField", false);
+    			
+    			// No "DeprecatedField" entries needed for the following four, they all add them
+    			// on their own already.
+    			
+            	addTrustFields(sfs, trust, "0"); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
+            	addScoreFields(sfs, score, "0"); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
+            
+            	addTrustFields(sfs, trust, "");	// TODO: As of 2013-08-02, this is deprecated code to support old FCP clients. Remove it after some time.
+            	addScoreFields(sfs, score, ""); // TODO: As of 2013-08-02, this is deprecated code to support old FCP clients. Remove it after some time.
+    		}
+    	
+		return sfs;
+	}
+    
+    /**
+     * Adds the fields which describe the given {@link Identity} itself, used as backend for
+     * the above two.
+     */
+    private SimpleFieldSet handleGetIdentity(final Identity identity) {
+    	final SimpleFieldSet sfs = new SimpleFieldSet(true);
+    		
+           	// TODO: As of 2013-10-24, this is deprecated code to support old FCP clients.
+    	    // Remove it after some time. Also do not forget to remove the appropriate
+    	    // Stuff.DeprecatedField=true and Stuff.DeprecatedField=false in the rest of this
+    	    // function then.
+    		addIdentityFields(sfs, identity,"", "0");
+
+            // TODO: As of 2013-10-24, this is deprecated code to support old FCP clients.
+            // Remove it after some time. Also do not forget to remove the appropriate
+            // Stuff.DeprecatedField=true and Stuff.DeprecatedField=false in the rest of this
+            // function then.
+            addIdentityFields(sfs, identity,"", "");
+            
+            // The above two have both an empty prefix, and all non-deprecated stuff which this
+            // function adds has a well-defined prefix, so we can use "*.DeprecatedField" to mark
+            // the above two as deprecated by whitelisting the non-deprecated stuff with
+            // "WellDefinedPrefix.DeprecatedField=false"
+            if(logMINOR)
+                sfs.put("*.DeprecatedField", true);
+            
+            addIdentityFields(sfs, identity, "Identities.0.", "");
+            // Don't include the "0": The addIdentityFields will add a field Identities.Amount
+            if(logMINOR)
+                sfs.put("Identities.*.DeprecatedField", false);
+            
+		return sfs;
+	}
 
 
     /**
@@ -741,44 +867,80 @@ public final class FCPInterface
     	    sfs.put("Rank" + suffix + ".DeprecatedField", true);
     	}
     }
+    
+    /**
+     * Same as {@link #addTrustFields(SimpleFieldSet, Trust, String)}, for data from a
+     * {@link ReadSnapshot}.
+     * @deprecated Use handleGetTrust instead.
+     */
+    @Deprecated
+    private void addTrustFields(SimpleFieldSet sfs, final TrustRecord trust, String suffix) {
+        if(trust != null)
+            sfs.putOverwrite("Trust" + suffix, Byte.toString(trust.getValue()));
+        else
+            sfs.putOverwrite("Trust" + suffix, "null");
+        
+        if(logMINOR)
+            sfs.put("Trust" + suffix + ".DeprecatedField", true);
+    }
+    
+    /**
+     * Same as {@link #addScoreFields(SimpleFieldSet, Score, String)}, for data from a
+     * {@link ReadSnapshot}.
+     * @deprecated Use handleGetScore() instead
+     */
+    @Deprecated
+    private void addScoreFields(SimpleFieldSet sfs, ScoreRecord score, String suffix) {
+    	if(score != null) {
+            sfs.putOverwrite("Score" + suffix, Integer.toString(score.getScore()));
+            sfs.putOverwrite("Rank" + suffix, Integer.toString(score.getRank()));
+    	} else {
+            sfs.putOverwrite("Score" + suffix, "null");
+            sfs.putOverwrite("Rank" + suffix, "null");
+    	}
+    	
+    	if(logMINOR) {
+    	    sfs.put("Score" + suffix + ".DeprecatedField", true);
+    	    sfs.put("Rank" + suffix + ".DeprecatedField", true);
+    	}
+    }
 
     private SimpleFieldSet handleGetOwnIdentities(final SimpleFieldSet params) {
         final SimpleFieldSet sfs = new SimpleFieldSet(true);
 		sfs.putOverwrite("Message", "OwnIdentities");
 
-        // getAllOwnIdentities() demands that we synchronize while processing the returned list.
-		synchronized(mWoT) {
-			int i = 0;
-			for(final OwnIdentity oid : mWoT.getAllOwnIdentities()) {
-			    // TODO: Unify the layout of this message to conform to the standard which is being
-			    // used in most other messages: It should be Identity.X.Nickname=... instead of
-			    // NicknameX=..., etc.
-			    // See addIdentityFields() for example.
-			    
-				sfs.putOverwrite("Identity" + i, oid.getID()); // TODO: This should be "ID"
-				sfs.putOverwrite("RequestURI" + i, oid.getRequestURI().toString());
-				sfs.putOverwrite("InsertURI" + i, oid.getInsertURI().toString());
-				sfs.putOverwrite("Nickname" + i, oid.getNickname());
-				// TODO: Allow the client to select what data he wants
-
-				int contextCounter = 0;
-				for (String context : oid.getContexts()) {
-				    // TODO: Unify to be same as in addIdentityFields()
-					sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, context);
-				}
+        // Served from the ReadSnapshot instead of the database so we don't have to synchronize
+        // on mWoT, see https://bugs.freenetproject.org/view.php?id=6247
+		int i = 0;
+		for(final OwnIdentity oid : mWoT.getReadSnapshot().getAllOwnIdentities()) {
+		    // TODO: Unify the layout of this message to conform to the standard which is being
+		    // used in most other messages: It should be Identity.X.Nickname=... instead of
+		    // NicknameX=..., etc.
+		    // See addIdentityFields() for example.
+		    
+			sfs.putOverwrite("Identity" + i, oid.getID()); // TODO: This should be "ID"
+			sfs.putOverwrite("RequestURI" + i, oid.getRequestURI().toString());
+			sfs.putOverwrite("InsertURI" + i, oid.getInsertURI().toString());
+			sfs.putOverwrite("Nickname" + i, oid.getNickname());
+			// TODO: Allow the client to select what data he wants
+
+			int contextCounter = 0;
+			for (String context : oid.getContexts()) {
+			    // TODO: Unify to be same as in addIdentityFields()
+				sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, context);
+			}
 
-				int propertiesCounter = 0;
-				for (Entry<String, String> property : oid.getProperties().entrySet()) {
+			int propertiesCounter = 0;
+			for (Entry<String, String> property : oid.getProperties().entrySet()) {
                     // TODO: Unify to be same as in addIdentityFields()
-					sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
-					sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
-				}
-				// This is here so you do not forget to do it IN the "if()" if you add an if() around the put() statements to allow selection
-				++i;
+				sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
+				sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
 			}
-			
-			sfs.put("Amount", i);
+			// This is here so you do not forget to do it IN the "if()" if you add an if() around the put() statements to allow selection
+			++i;
 		}
+		
+		sfs.put("Amount", i);
 
 		return sfs;
     }
@@ -790,24 +952,23 @@ public final class FCPInterface
 		
         final String context = request.params.get("Context");
         
-        // WebOfTrust.getAllIdentities() demands that we synchronize while processing the result.
-		synchronized(mWoT) {
-			final boolean getAll = context == null || context.equals("");
+		final boolean getAll = context == null || context.equals("");
 	
-			int i = 0;
-			for(final Identity identity : mWoT.getAllIdentities()) {
-				if(getAll || identity.hasContext(context)) {
-					// TODO: Allow the client to select what data he wants
-                    addIdentityFields(result.params, identity,
-                        "Identities." + Integer.toString(i) + ".", "");
-					
-					++i;
-				}
+        // Served from the ReadSnapshot instead of the database so we don't have to synchronize
+        // on mWoT.
+		int i = 0;
+		for(final Identity identity : mWoT.getReadSnapshot().getAllIdentities()) {
+			if(getAll || identity.hasContext(context)) {
+				// TODO: Allow the client to select what data he wants
+                addIdentityFields(result.params, identity,
+                    "Identities." + Integer.toString(i) + ".", "");
+				
+				++i;
 			}
-            
-            // Need to use Overwrite because addIdentityFields() sets it to 1
-            result.params.putOverwrite("Identities.Amount", Integer.toString(i));
 		}
+        
+        // Need to use Overwrite because addIdentityFields() sets it to 1
+        result.params.putOverwrite("Identities.Amount", Integer.toString(i));
 		
         return result;
     }
@@ -817,18 +978,17 @@ public final class FCPInterface
         
         result.params.putOverwrite("Message", "Trusts");
    
-        // WebOfTrust.getAllTrusts() demands that we synchronize while processing the result.
-        synchronized(mWoT) {
-        	int i = 0;
-			for(final Trust trust : mWoT.getAllTrusts()) {
-                handleGetTrust(result.params, trust, Integer.toString(i));
-				++i;
-			}
-            
-            // Need to use Overwrite because handleGetTrust() sets it to 1
-            result.params.putOverwrite("Trusts.Amount", Integer.toString(i));
+        // Served from the ReadSnapshot instead of the database so we don't have to synchronize
+        // on mWoT.
+        int i = 0;
+        for(final TrustRecord trust : mWoT.getReadSnapshot().getAllTrusts()) {
+            handleGetTrust(result.params, trust, Integer.toString(i));
+            ++i;
         }
         
+        // Need to use Overwrite because handleGetTrust() sets it to 1
+        result.params.putOverwrite("Trusts.Amount", Integer.toString(i));
+        
         return result;
     }
 
@@ -837,19 +997,17 @@ public final class FCPInterface
        
         result.params.putOverwrite("Message", "Scores");
    
-        // WebOfTrust.getAllScores() demands that we synchronize while processing the result.
-        synchronized(mWoT) {
-        	int i = 0;
-			for(final Score score: mWoT.getAllScores()) {
-                handleGetScore(result.params, score, Integer.toString(i));
-				
-				++i;
-			}
-            
-            // Need to use Overwrite because handleGetScore() sets it to 1
-            result.params.putOverwrite("Scores.Amount", Integer.toString(i));
+        // Served from the ReadSnapshot instead of the database so we don't have to synchronize
+        // on mWoT.
+        int i = 0;
+        for(final ScoreRecord score : mWoT.getReadSnapshot().getAllScores()) {
+            handleGetScore(result.params, score, Integer.toString(i));
+            ++i;
         }
         
+        // Need to use Overwrite because handleGetScore() sets it to 1
+        result.params.putOverwrite("Scores.Amount", Integer.toString(i));
+        
         return result;
     }
 
@@ -870,71 +1028,68 @@ public final class FCPInterface
 		final SimpleFieldSet sfs = new SimpleFieldSet(true);
 		sfs.putOverwrite("Message", "Identities");
 		
-        // WebOfTrust.getIdentitiesByScore() demands that we synchronize while processing the result
-        // Also, we query the OwnIdentity truster before calling it, i.e. query two datasets
-        // from the database. Thus we must synchronize to ensure that the returned data is coherent
-        // - the truster might be deleted meanwhile, or change from being an OwnIdentity to being an
-        // Identity.
-		synchronized(mWoT) {
-			final OwnIdentity truster = trusterID != null ? mWoT.getOwnIdentityByID(trusterID) : null;
-			final boolean getAll = context.equals("");
-	
-			int i = 0;
-			for(final Score score : mWoT.getIdentitiesByScore(truster, select)) {
-				if(getAll || score.getTrustee().hasContext(context)) {
-					// TODO: Allow the client to select what data he wants
-					final OwnIdentity scoreOwner = score.getTruster();
-					final Identity identity = score.getTrustee();
-					final String suffix = Integer.toString(i);
-					
-					// TODO: As of 2013-10-24, this is deprecated code to support old FCP clients.
-					// Remove it after some time. Make sure to update all DeprecatedFields entries
-					// which this function adds.
-					addIdentityFields(sfs, identity, "", suffix);
-					// The above has no prefix, so we set it as deprecated as a whole, and then
-					// whitelist other stuff by setting DeprecatedField=false:
-					if(logMINOR)
-					    sfs.put("*.DeprecatedField", true);
-					
-					addIdentityFields(sfs, identity, "Identities." + suffix + ".", "");
-					if(logMINOR)
-					    sfs.put("Identities." + suffix + ".*.DeprecatedField", false);
+        // Served from the ReadSnapshot instead of the database so we don't have to synchronize
+        // on mWoT, see https://bugs.freenetproject.org/view.php?id=6247
+		final ReadSnapshot snapshot = trusterID != null
+			? getReadSnapshotWithAwakeTrustTree(trusterID) : mWoT.getReadSnapshot();
+		final boolean getAll = context.equals("");
+
+		int i = 0;
+		for(final ScoreRecord score : snapshot.getIdentitiesByScore(trusterID, select)) {
+			final Identity identity = snapshot.getIdentityByID(score.getTrusteeID());
+			
+			if(getAll || identity.hasContext(context)) {
+				// TODO: Allow the client to select what data he wants
+				final String scoreOwnerID = score.getTrusterID();
+				final String suffix = Integer.toString(i);
+				
+				// TODO: As of 2013-10-24, this is deprecated code to support old FCP clients.
+				// Remove it after some time. Make sure to update all DeprecatedFields entries
+				// which this function adds.
+				addIdentityFields(sfs, identity, "", suffix);
+				// The above has no prefix, so we set it as deprecated as a whole, and then
+				// whitelist other stuff by setting DeprecatedField=false:
+				if(logMINOR)
+				    sfs.put("*.DeprecatedField", true);
+				
+				addIdentityFields(sfs, identity, "Identities." + suffix + ".", "");
+				if(logMINOR)
+				    sfs.put("Identities." + suffix + ".*.DeprecatedField", false);
+				
+				// Adds DeprecatedField entries on its own.
+				addScoreFields(sfs, score, suffix); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
+				
+				handleGetScore(sfs, score, suffix);
+				if(logMINOR)
+				    sfs.put("Scores.*.DeprecatedField", false);
+				
+				if(includeTrustValue) {
+		            TrustRecord trust = null;
+					try {
+						trust = snapshot.getTrust(scoreOwnerID, identity.getID());
+					} catch(NotTrustedException e) {}
 					
-					// Adds DeprecatedField entries on its own.
-					addScoreFields(sfs, score, suffix); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
+	                // Adds DeprecatedField entries on its own.
+					addTrustFields(sfs, trust, suffix); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
 					
-					handleGetScore(sfs, score, suffix);
+					handleGetTrust(sfs, trust, suffix);
 					if(logMINOR)
-					    sfs.put("Scores.*.DeprecatedField", false);
-					
-					if(includeTrustValue) {
-			            Trust trust = null;
-						try {
-							trust = mWoT.getTrust(scoreOwner, identity);
-						} catch(NotTrustedException e) {}
-						
-		                // Adds DeprecatedField entries on its own.
-						addTrustFields(sfs, trust, suffix); // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
-						
-						handleGetTrust(sfs, trust, suffix);
-						if(logMINOR)
-						    sfs.put("Trusts.*.DeprecatedField", false);
-					}
-					
-					if(truster == null) { // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
-		    			sfs.putOverwrite("ScoreOwner" + i, scoreOwner.getID());
-		    			if(logMINOR)
-		    			    sfs.put("ScoreOwner" + i + ".DeprecatedField", true); 
-					}
-					
-					++i;
+					    sfs.put("Trusts.*.DeprecatedField", false);
 				}
+				
+				if(trusterID == null) { // TODO: As of 2013-10-25, this is deprecated code to support old FCP clients. Remove it after some time.
+	    			sfs.putOverwrite("ScoreOwner" + i, scoreOwnerID);
+	    			if(logMINOR)
+	    			    sfs.put("ScoreOwner" + i + ".DeprecatedField", true); 
+				}
+				
+				++i;
 			}
-			
-			sfs.put("Amount", i);
-			sfs.put("Identities.Amount", i);
 		}
 		
+		sfs.put("Amount", i);
+		sfs.put("Identities.Amount", i);
+		
 		return sfs;
     }
 
@@ -950,36 +1105,38 @@ public final class FCPInterface
         
         final boolean getAll = context.equals("");
         
-        // WebOfTrust.getReceivedTrusts() demands that we synchronize while processing the result.
-        // Also, we query the Identity trustee before calling it, i.e. query two datasets
-        // from the database. Thus we must synchronize to ensure that the returned data is
-        // coherent - the trustee might be deleted meanwhile.
-        synchronized(mWoT) {
-        	int i = 0;
-			for(final Trust trust : mWoT.getReceivedTrusts(mWoT.getIdentityByID(identityID))) {
-				if(getAll || trust.getTruster().hasContext(params.get("Context"))) {
-					sfs.putOverwrite("Identity" + i, trust.getTruster().getID());
-					sfs.putOverwrite("Nickname" + i, trust.getTruster().getNickname());
-					sfs.putOverwrite("RequestURI" + i, trust.getTruster().getRequestURI().toString());
-					sfs.putOverwrite("Value" + i, Byte.toString(trust.getValue()));
-					sfs.putOverwrite("Comment" + i, trust.getComment());
-
-					int contextCounter = 0;
-					for (String identityContext: trust.getTruster().getContexts()) {
-						sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
-					}
-
-					int propertiesCounter = 0;
-					for (Entry<String, String> property : trust.getTruster().getProperties().entrySet()) {
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
-					}
-					// TODO: Allow the client to select what data he wants
-					++i;
+        // Served from the ReadSnapshot instead of the database so we don't have to synchronize
+        // on mWoT, see https://bugs.freenetproject.org/view.php?id=6247
+        final ReadSnapshot snapshot = mWoT.getReadSnapshot();
+        // Throw UnknownIdentityException if the trustee doesn't exist, as getIdentityByID() did.
+        snapshot.getIdentityByID(identityID);
+        
+    	int i = 0;
+		for(final TrustRecord trust : snapshot.getReceivedTrusts(identityID)) {
+			final Identity truster = snapshot.getIdentityByID(trust.getTrusterID());
+			
+			if(getAll || truster.hasContext(params.get("Context"))) {
+				sfs.putOverwrite("Identity" + i, truster.getID());
+				sfs.putOverwrite("Nickname" + i, truster.getNickname());
+				sfs.putOverwrite("RequestURI" + i, truster.getRequestURI().toString());
+				sfs.putOverwrite("Value" + i, Byte.toString(trust.getValue()));
+				sfs.putOverwrite("Comment" + i, trust.getComment());
+
+				int contextCounter = 0;
+				for (String identityContext: truster.getContexts()) {
+					sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
+				}
+
+				int propertiesCounter = 0;
+				for (Entry<String, String> property : truster.getProperties().entrySet()) {
+					sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
+					sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
 				}
+				// TODO: Allow the client to select what data he wants
+				++i;
 			}
-			sfs.put("Amount", i);
-        }
+		}
+		sfs.put("Amount", i);
         
         return sfs;
     }
@@ -988,6 +1145,12 @@ public final class FCPInterface
     	final String identityID = getMandatoryParameter(params, "Identity");
     	//final String context = getMandatoryParameter(params, "Context"); // TODO: Implement as soon as we have per-context trust
 
+        // Served from the ReadSnapshot instead of the database so we don't have to synchronize
+        // on mWoT, see https://bugs.freenetproject.org/view.php?id=6247
+        final ReadSnapshot snapshot = mWoT.getReadSnapshot();
+        // Throw UnknownIdentityException if the identity doesn't exist, as getIdentityByID() did.
+        snapshot.getIdentityByID(identityID);
+
         String selection = params.get("Selection");
         final int result;
         
@@ -1000,22 +1163,9 @@ public final class FCPInterface
     		else if (selection.equals("0")) select = 0;
     		else throw new InvalidParameterException("Unhandled selection value (" + selection + ")");
         	
-            // getReceivedTrusts() demands that we synchronize while processing the result.
-            // Also, we query the Identity truster before calling it, i.e. query two datasets
-            // from the database. Thus we must synchronize to ensure that the returned data is
-            // coherent - the truster might be deleted meanwhile.
-    		synchronized(mWoT) {
-        		result = mWoT.getReceivedTrusts(mWoT.getIdentityByID(identityID), select).size();
-        	}
-        } else {
-            // getReceivedTrusts() demands that we synchronize while processing the result.
-            // Also, we query the Identity truster before calling it, i.e. query two datasets
-            // from the database. Thus we must synchronize to ensure that the returned data is
-            // coherent - the truster might be deleted meanwhile.
-        	synchronized(mWoT) {
-        		result = mWoT.getReceivedTrusts(mWoT.getIdentityByID(identityID)).size();
-        	}
-        }
+            result = snapshot.getReceivedTrustCount(identityID, select);
+        } else
+            result = snapshot.getReceivedTrusts(identityID).size();
     	
         final SimpleFieldSet sfs = new SimpleFieldSet(true);
         sfs.putOverwrite("Message", "TrustersCount");
@@ -1035,38 +1185,37 @@ public final class FCPInterface
         
         final boolean getAll = context.equals("");
 
-        // WebOfTrust.getGivenTrusts() demands that we synchronize while processing the result.
-        // Also, we query the Identity truster before calling it, i.e. query two datasets
-        // from the database. Thus we must synchronize to ensure that the returned data is
-        // coherent - the truster might be deleted meanwhile.
-        synchronized(mWoT) {
-        	int i = 0;
-        	for(final Trust trust : mWoT.getGivenTrusts(mWoT.getIdentityByID(identityID))) {
-        		final Identity trustee = trust.getTrustee();
-
-				if(getAll || trustee.hasContext(params.get("Context"))) {
-					sfs.putOverwrite("Identity" + i, trustee.getID());
-					sfs.putOverwrite("Nickname" + i, trustee.getNickname());
-					sfs.putOverwrite("RequestURI" + i, trustee.getRequestURI().toString());
-					sfs.putOverwrite("Value" + i, Byte.toString(trust.getValue()));
-					sfs.putOverwrite("Comment" + i, trust.getComment());
-
-					int contextCounter = 0;
-					for (String identityContext: trust.getTruster().getContexts()) {
-						sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
-					}
-
-					int propertiesCounter = 0;
-					for (Entry<String, String> property : trust.getTruster().getProperties().entrySet()) {
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
-						sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
-					}
-					// TODO: Allow the client to select what data he wants
-					++i;
+        // Served from the ReadSnapshot instead of the database so we don't have to synchronize
+        // on mWoT, see https://bugs.freenetproject.org/view.php?id=6247
+        final ReadSnapshot snapshot = mWoT.getReadSnapshot();
+        final Identity truster = snapshot.getIdentityByID(identityID);
+        
+    	int i = 0;
+    	for(final TrustRecord trust : snapshot.getGivenTrusts(identityID)) {
+    		final Identity trustee = snapshot.getIdentityByID(trust.getTrusteeID());
+
+			if(getAll || trustee.hasContext(params.get("Context"))) {
+				sfs.putOverwrite("Identity" + i, trustee.getID());
+				sfs.putOverwrite("Nickname" + i, trustee.getNickname());
+				sfs.putOverwrite("RequestURI" + i, trustee.getRequestURI().toString());
+				sfs.putOverwrite("Value" + i, Byte.toString(trust.getValue()));
+				sfs.putOverwrite("Comment" + i, trust.getComment());
+
+				int contextCounter = 0;
+				for (String identityContext: truster.getContexts()) {
+					sfs.putOverwrite("Contexts" + i + ".Context" + contextCounter++, identityContext);
 				}
-        	}
-        	sfs.put("Amount", i);
-        }
+
+				int propertiesCounter = 0;
+				for (Entry<String, String> property : truster.getProperties().entrySet()) {
+					sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter + ".Name", property.getKey());
+					sfs.putOverwrite("Properties" + i + ".Property" + propertiesCounter++ + ".Value", property.getValue());
+				}
+				// TODO: Allow the client to select what data he wants
+				++i;
+			}
+    	}
+    	sfs.put("Amount", i);
         
         return sfs;
     }
@@ -1075,6 +1224,12 @@ public final class FCPInterface
     	final String identityID = getMandatoryParameter(params, "Identity");
     	//final String context = getMandatoryParameter(params, "Context"); // TODO: Implement as soon as we have per-context trust
 
+        // Served from the ReadSnapshot instead of the database so we don't have to synchronize
+        // on mWoT, see https://bugs.freenetproject.org/view.php?id=6247
+        final ReadSnapshot snapshot = mWoT.getReadSnapshot();
+        // Throw UnknownIdentityException if the identity doesn't exist, as getIdentityByID() did.
+        snapshot.getIdentityByID(identityID);
+
         String selection = params.get("Selection");
         final int result;
         
@@ -1087,22 +1242,9 @@ public final class FCPInterface
     		else if (selection.equals("0")) select = 0;
     		else throw new InvalidParameterException("Unhandled selection value (" + selection + ")");
         	
-            // WebOfTrust.getGivenTrusts() demands that we synchronize while processing the result.
-            // Also, we query the Identity truster before calling it, i.e. query two datasets
-            // from the database. Thus we must synchronize to ensure that the returned data is
-            // coherent - the truster might be deleted meanwhile.
-    		synchronized(mWoT) {
-        		result = mWoT.getGivenTrusts(mWoT.getIdentityByID(identityID), select).size();
-        	}
-        } else {
-            // WebOfTrust.getGivenTrusts() demands that we synchronize while processing the result.
-            // Also, we query the Identity truster before calling it, i.e. query two datasets
-            // from the database. Thus we must synchronize to ensure that the returned data is
-            // coherent - the truster might be deleted meanwhile.
-        	synchronized(mWoT) {
-        		result = mWoT.getGivenTrusts(mWoT.getIdentityByID(identityID)).size();
-        	}
-        }
+            result = snapshot.getGivenTrustCount(identityID, select);
+        } else
+            result = snapshot.getGivenTrusts(identityID).size();
     	
         final SimpleFieldSet sfs = new SimpleFieldSet(true);
         sfs.putOverwrite("Message", "TrusteesCount");
@@ -1110,6 +1252,24 @@ public final class FCPInterface
         return sfs;
     }
     
+    private SimpleFieldSet handleSetTrustTreeDormant(final SimpleFieldSet params)
+            throws InvalidParameterException, UnknownIdentityException {
+    	final String identityID = getMandatoryParameter(params, "Identity");
+    	final String dormantString = getMandatoryParameter(params, "Dormant");
+
+    	// getBoolean() yields the default for values other than "true"/"yes" and "false"/"no",
+    	// so an invalid value is detected by it yielding both defaults.
+    	final boolean dormant = params.getBoolean("Dormant", false);
+    	if(dormant != params.getBoolean("Dormant", true))
+    		throw new InvalidParameterException("Invalid value of Dormant: " + dormantString);
+
+        mWoT.setTrustTreeDormant(identityID, dormant);
+
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "TrustTreeDormantSet");
+        return sfs;
+    }
+
     private SimpleFieldSet handleAddContext(final SimpleFieldSet params) throws InvalidParameterException, UnknownIdentityException {
     	final String identityID = getMandatoryParameter(params, "Identity");
     	final String context = getMandatoryParameter(params, "Context");
@@ -1569,6 +1729,93 @@ public final class FCPInterface
     	return sfs;
     }
 
+    /**
+     * Used for handling the "GetLockStatistics" FCP message, see {@link LockStatistics}.
+     * The reply has the fields:
+     * 
+     * Message = "LockStatistics"
+     * Enabled = true/false, see {@link WebOfTrust#LOCK_STATISTICS_CONFIG_KEY}. If false, all
+     *     following amounts are 0.
+     * HistogramBuckets.Amount = number of buckets of each histogram
+     * HistogramBuckets.X.UpperBound = exclusive upper bound of bucket X in nanoseconds. Not
+     *     present for the last bucket, it has no upper bound.
+     * Sites.Amount = number of places in the code which were measured
+     * Sites.X.Name = name of site X
+     * Sites.X.HoldTimes.HISTOGRAM = how long site X held its locks
+     * Sites.X.Locks.Amount = number of locks which site X takes
+     * Sites.X.Locks.Y.Name = name of lock Y, see {@link Lock}
+     * Sites.X.Locks.Y.WaitTimes.HISTOGRAM = how long site X waited for lock Y
+     * Sites.X.Locks.Y.Contenders.Amount = number of sites which held lock Y while site X
+     *     waited for it
+     * Sites.X.Locks.Y.Contenders.Z.Site = name of contending site Z. Not present if it was code
+     *     which isn't measured.
+     * Sites.X.Locks.Y.Contenders.Z.Count = how often site X had to wait for site Z
+     * 
+     * HISTOGRAM is:
+     * Count = number of measurements
+     * TotalTime = sum of all measurements in nanoseconds
+     * Buckets.B = number of measurements in bucket B
+     */
+    private SimpleFieldSet handleGetLockStatistics() {
+        final LockStatistics lockStatistics = mWoT.getLockStatistics();
+        final SimpleFieldSet sfs = new SimpleFieldSet(true);
+        sfs.putOverwrite("Message", "LockStatistics");
+        sfs.put("Enabled", lockStatistics.isEnabled());
+        
+        sfs.put("HistogramBuckets.Amount", Histogram.SIZE);
+        for(int i = 0; i < Histogram.SIZE - 1; ++i) {
+            sfs.put("HistogramBuckets." + i + ".UpperBound",
+                Histogram.getUpperBoundNanoseconds(i));
+        }
+        
+        final List<SiteStatistics> sites = lockStatistics.getStatistics();
+        sfs.put("Sites.Amount", sites.size());
+        int siteIndex = 0;
+        for(SiteStatistics site : sites) {
+            final String sitePrefix = "Sites." + siteIndex + ".";
+            sfs.putOverwrite(sitePrefix + "Name", site.getSite().getName());
+            addHistogramFields(sfs, site.getHoldTimes(), sitePrefix + "HoldTimes.");
+            
+            sfs.put(sitePrefix + "Locks.Amount", site.getLocks().size());
+            int lockIndex = 0;
+            for(Lock lock : site.getLocks()) {
+                final String lockPrefix = sitePrefix + "Locks." + lockIndex + ".";
+                sfs.putOverwrite(lockPrefix + "Name", lock.toString());
+                addHistogramFields(sfs, site.getWaitTimes(lock), lockPrefix + "WaitTimes.");
+                
+                final Map<Site, Long> contenders = site.getContenders(lock);
+                sfs.put(lockPrefix + "Contenders.Amount", contenders.size());
+                int contenderIndex = 0;
+                for(Entry<Site, Long> contender : contenders.entrySet()) {
+                    final String contenderPrefix
+                        = lockPrefix + "Contenders." + contenderIndex + ".";
+                    if(contender.getKey() != null) {
+                        sfs.putOverwrite(contenderPrefix + "Site",
+                            contender.getKey().getName());
+                    }
+                    sfs.put(contenderPrefix + "Count", contender.getValue());
+                    ++contenderIndex;
+                }
+                
+                ++lockIndex;
+            }
+            
+            ++siteIndex;
+        }
+        
+        return sfs;
+    }
+
+    /** Backend for {@link #handleGetLockStatistics()}. */
+    private static void addHistogramFields(SimpleFieldSet sfs, Histogram histogram,
+            String prefix) {
+        
+        sfs.put(prefix + "Count", histogram.getCount());
+        sfs.put(prefix + "TotalTime", histogram.getTotalNanoseconds());
+        for(int i = 0; i < Histogram.SIZE; ++i)
+            sfs.put(prefix + "Buckets." + i, histogram.getBucket(i));
+    }
+
     /**
      * ATTENTION: This does cause the {@link FCPPluginMessage#errorCode} field to be "InternalError"
      * which complicates error handling at the client. Therefore, only use this for Exception types
@@ -17,6 +17,7 @@ import java.util.Random;
 import java.util.TreeMap;
 import java.util.UUID;
 
+import plugins.WebOfTrust.DatabaseCloner;
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.Trust;
 import plugins.WebOfTrust.Trust.TrustID;
@@ -239,6 +240,25 @@ public final class WOTUtil {
 		}
 	}
 
+	public static void cloneDatabase(WebOfTrust wot, File input, File output, int batchSize) {
+		if(output.exists())
+			System.out.println("Output database exists, resuming...");
+		
+		WebOfTrust clone = null;
+		try {
+			clone = new WebOfTrust(output.getAbsolutePath());
+			new DatabaseCloner(wot, clone, batchSize, System.out).run();
+		} finally {
+			if(clone != null) {
+				clone.terminate();
+				assert(clone.isTerminated());
+			}
+		}
+		
+		System.out.println("Input size: " + input.length());
+		System.out.println("Output size: " + output.length());
+	}
+
 	private static void printSyntax() {
 		PrintStream err = System.err;
 		err.println("Syntax: ");
@@ -247,6 +267,12 @@ public final class WOTUtil {
 		err.println("    ATTENTION: OUTPUT_GNUPLOT will be appended to, not overwritten.");
 		err.println("    Push ENTER to exit for pause. Resume by restarting with same parameters.");
 		err.println("    Deterministic execution by SEED is not supported with resume.");
+		err.println("WOTUtil -cloneDatabase INPUT_DATABASE OUTPUT_DATABASE [BATCH_SIZE]");
+		err.println("    Copies the database object by object to get rid of corrupted internal "
+		          + "structures and to compact it.");
+		err.println("    Does not copy introduction puzzles.");
+		err.println("    Resume by restarting with same parameters, INPUT_DATABASE must not have "
+		          + "been used in between.");
 		err.println("WOTUtil -fcp INPUT_DATABASE Message=WOT_FCP_CALL key1=value1 key2=value2 ...");
 		err.println("WOTUtil -testAndRepair INPUT_DATABASE");
 		err.println("WOTUtil -trustValueHistogram INPUT_DATABASE");
@@ -287,6 +313,13 @@ public final class WOTUtil {
 					return 1;
 				}
 				benchmarkRemoveTrustDestructive(wot, new File(args[2]), Long.parseLong(args[3]));
+			} else if(args[0].equalsIgnoreCase("-cloneDatabase")) {
+				if(args.length != 3 && args.length != 4) {
+					printSyntax();
+					return 1;
+				}
+				cloneDatabase(wot, new File(databaseFile), new File(args[2]), args.length == 4
+					? Integer.parseInt(args[3]) : DatabaseCloner.DEFAULT_BATCH_SIZE);
 			} else if(args[0].equalsIgnoreCase("-fcp")) {
 				FCPPluginMessage message = FCPPluginMessage.construct();
 				for(String keyValuePair : Arrays.copyOfRange(args, 2, args.length)) {
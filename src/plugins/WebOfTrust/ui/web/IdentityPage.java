@@ -21,20 +21,21 @@ package plugins.WebOfTrust.ui.web;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.text.SimpleDateFormat;
+import java.util.Collection;
 import java.util.Date;
 import java.util.Iterator;
 import java.util.TimeZone;
 
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.OwnIdentity;
+import plugins.WebOfTrust.ReadSnapshot;
+import plugins.WebOfTrust.ReadSnapshot.TrustRecord;
 import plugins.WebOfTrust.Trust;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.ui.web.WebInterface.IdentityWebInterfaceToadlet;
 
-import com.db4o.ObjectSet;
-
 import freenet.clients.http.RedirectException;
 import freenet.clients.http.SessionManager.Session;
 import freenet.clients.http.ToadletContext;
@@ -54,6 +55,9 @@ public class IdentityPage extends WebPageImpl {
 	/** The identity to show trust relationships of. */
 	private Identity identity;
 
+	/** From which {@link #identity} and its trust relationships are displayed. */
+	private ReadSnapshot mSnapshot;
+
 
 	/**
 	 * Creates a new trust-relationship web page.
@@ -74,52 +78,58 @@ public class IdentityPage extends WebPageImpl {
 	 */
 	@Override
 	public void make(final boolean mayWrite) {
-        // TODO: Performance: The synchronized() can be removed after this is fixed:
-        // https://bugs.freenetproject.org/view.php?id=6247
-		synchronized(mWebOfTrust) {			
-		    try {
-	            identity = mWebOfTrust.getIdentityByID(mRequest.getParam("id"));
-		    } catch(UnknownIdentityException e) {
-		        new ErrorPage(mToadlet, mRequest, mContext, e).addToPage(this);
-		        return;
-		    }
-		    
-			makeURIBox();
-			makeServicesBox();
-			makeStatisticsBox();
-			makeAddTrustBox(mayWrite);
-			makeTrustsBox(mWebOfTrust.getGivenTrusts(identity), true);
-			makeTrustsBox(mWebOfTrust.getReceivedTrusts(identity), false);
-		}
+		final String identityID = mRequest.getParam("id");
+		
+		// Change the trust before taking the snapshot so it shows the new value.
+		// setTrust() / removeTrust() lock the WebOfTrust on their own.
+		if(mayWrite && mRequest.isPartSet("SetTrust"))
+			setTrust(identityID);
+		
+        // Served from the ReadSnapshot instead of the database so we don't have to synchronize
+        // on mWebOfTrust. The snapshot is coherent, so the tables cannot change meanwhile.
+		mSnapshot = mWebOfTrust.getReadSnapshot();
+		
+	    try {
+            identity = mSnapshot.getIdentityByID(identityID);
+	    } catch(UnknownIdentityException e) {
+	        new ErrorPage(mToadlet, mRequest, mContext, e).addToPage(this);
+	        return;
+	    }
+	    
+		makeURIBox();
+		makeServicesBox();
+		makeStatisticsBox();
+		makeAddTrustBox();
+		makeTrustsBox(mSnapshot.getGivenTrusts(identity.getID()), true);
+		makeTrustsBox(mSnapshot.getReceivedTrusts(identity.getID()), false);
 	}
 	
 	/**
 	 * @author ShadowW4lk3r (ShadowW4lk3r@ye~rQ4m~pu2Iu3O2TH-GOLBbSeKoQ~QR~vC6tJbKmDg.freetalkrc2) - Most of the code
 	 * @author xor (xor@freenetproject.org)	- Minor improvements only
 	 */
-	private void makeAddTrustBox(final boolean mayWrite) {
-		//Change trust level if needed
-		if(mayWrite && mRequest.isPartSet("SetTrust")) {
-			String value = mRequest.getPartAsStringFailsafe("Value", 4).trim();
-			// Set length limit 1 too much to ensure that setTrust() throws if the user entered too much. We need it to throw so we display an error message.
-			String comment = mRequest.getPartAsStringFailsafe("Comment", Trust.MAX_TRUST_COMMENT_LENGTH + 1);
+	private void setTrust(final String identityID) {
+		String value = mRequest.getPartAsStringFailsafe("Value", 4).trim();
+		// Set length limit 1 too much to ensure that setTrust() throws if the user entered too much. We need it to throw so we display an error message.
+		String comment = mRequest.getPartAsStringFailsafe("Comment", Trust.MAX_TRUST_COMMENT_LENGTH + 1);
 
-			try {
-				if(value.equals(""))
-					mWebOfTrust.removeTrust(mLoggedInOwnIdentity.getID(), identity.getID());
-				else {
-					mWebOfTrust.setTrust(mLoggedInOwnIdentity.getID(), identity.getID(),
-					    Byte.parseByte(value), comment);
-				}
-			} catch(NumberFormatException e) {
-				addErrorBox(l10n().getString("KnownIdentitiesPage.SetTrust.Failed"), l10n().getString("Trust.InvalidValue"));
-			} catch(InvalidParameterException e) {
-				addErrorBox(l10n().getString("KnownIdentitiesPage.SetTrust.Failed"), e.getMessage());
-			} catch(Exception e) {
-				addErrorBox(l10n().getString("KnownIdentitiesPage.SetTrust.Failed"), e);
+		try {
+			if(value.equals(""))
+				mWebOfTrust.removeTrust(mLoggedInOwnIdentity.getID(), identityID);
+			else {
+				mWebOfTrust.setTrust(mLoggedInOwnIdentity.getID(), identityID,
+				    Byte.parseByte(value), comment);
 			}
+		} catch(NumberFormatException e) {
+			addErrorBox(l10n().getString("KnownIdentitiesPage.SetTrust.Failed"), l10n().getString("Trust.InvalidValue"));
+		} catch(InvalidParameterException e) {
+			addErrorBox(l10n().getString("KnownIdentitiesPage.SetTrust.Failed"), e.getMessage());
+		} catch(Exception e) {
+			addErrorBox(l10n().getString("KnownIdentitiesPage.SetTrust.Failed"), e);
 		}
+	}
 
+	private void makeAddTrustBox() {
 		HTMLNode boxContent = addContentBox(l10n().getString("IdentityPage.ChangeTrustBox.Header", "nickname", identity.getNickname()));
 
 		String trustValue = "";
@@ -127,7 +137,7 @@ public class IdentityPage extends WebPageImpl {
 
 		try
 		{
-			Trust trust = mWebOfTrust.getTrust(mLoggedInOwnIdentity.getID(), identity.getID());
+			TrustRecord trust = mSnapshot.getTrust(mLoggedInOwnIdentity.getID(), identity.getID());
 			trustValue = String.valueOf(trust.getValue());
 			trustComment = trust.getComment();
 		}
@@ -201,7 +211,7 @@ public class IdentityPage extends WebPageImpl {
 	/**
 	 * @param showTrustee If true, show the trustee of the trust in the table. If false, show the truster.
 	 */
-	private void makeTrustsBox(ObjectSet<Trust> trusts, boolean showTrustee) {
+	private void makeTrustsBox(Collection<TrustRecord> trusts, boolean showTrustee) {
 		String l10n = showTrustee ? "IdentityPage.TrusteeTrustsBox.Header" : "IdentityPage.TrusterTrustsBox.Header";
 		HTMLNode trustsBox = addContentBox(l10n().getString(l10n, "nickname", identity.getNickname()));
 		HTMLNode trustsTable = trustsBox.addChild("table");
@@ -211,19 +221,25 @@ public class IdentityPage extends WebPageImpl {
 		trustsTableHEader.addChild("th", l10n().getString("IdentityPage.TableHeader.Value"));
 		trustsTableHEader.addChild("th", l10n().getString("IdentityPage.TableHeader.Comment"));
 		
-		for(Trust trust : trusts) {
+		for(TrustRecord trust : trusts) {
 			HTMLNode trustRow = trustsTable.addChild("tr");
-			Identity involvedIdentity = showTrustee ? trust.getTrustee() : trust.getTruster(); 
+			String involvedIdentityID = showTrustee ? trust.getTrusteeID() : trust.getTrusterID();
 			
-			String nickname = involvedIdentity.getNickname();
+			String nickname;
+			try {
+				nickname = mSnapshot.getIdentityByID(involvedIdentityID).getNickname();
+			} catch(UnknownIdentityException e) {
+				// Cannot happen: A snapshot only contains Trusts between existing Identitys.
+				throw new RuntimeException(e);
+			}
 			HTMLNode nicknameNode;
 			if(nickname == null)
 				nicknameNode = new HTMLNode("span", "class", "alert-error").addChild("#", l10n().getString("KnownIdentitiesPage.KnownIdentities.Table.NicknameNotDownloadedYet"));
 			else
 				nicknameNode = new HTMLNode("#", nickname);
 			
-			trustRow.addChild("td").addChild("a", "href", getURI(mWebInterface, involvedIdentity.getID()).toString()).addChild(nicknameNode);
-			trustRow.addChild("td", involvedIdentity.getID());
+			trustRow.addChild("td").addChild("a", "href", getURI(mWebInterface, involvedIdentityID).toString()).addChild(nicknameNode);
+			trustRow.addChild("td", involvedIdentityID);
 			trustRow.addChild("td", new String[]{"align", "style"}, new String[]{"right", "background-color:" + KnownIdentitiesPage.getTrustColor(trust.getValue()) + ";"}, Byte.toString(trust.getValue()));
 			trustRow.addChild("td", trust.getComment());
 		}
@@ -4,23 +4,21 @@
 package plugins.WebOfTrust.ui.web;
 
 import java.util.Date;
-import java.util.Iterator;
+import java.util.List;
 import java.util.TreeMap;
 
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.Identity.IdentityID;
-import plugins.WebOfTrust.OwnIdentity;
-import plugins.WebOfTrust.Score;
+import plugins.WebOfTrust.ReadSnapshot;
+import plugins.WebOfTrust.ReadSnapshot.ScoreRecord;
+import plugins.WebOfTrust.ReadSnapshot.TrustRecord;
 import plugins.WebOfTrust.Trust;
 import plugins.WebOfTrust.WebOfTrust;
-import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 
-import com.db4o.ObjectSet;
-
 import freenet.clients.http.InfoboxNode;
 import freenet.clients.http.RedirectException;
 import freenet.clients.http.SessionManager.Session;
@@ -42,10 +40,13 @@ public class KnownIdentitiesPage extends WebPageImpl {
 	public static final int IDENTITIES_PER_PAGE = 15;
 	
 	private static enum SortBy {
+		Added,
 	    Edition,
+		Fetched,
 		Nickname,
 		Score,
-		LocalTrust
+		LocalTrust,
+		Trusters
 	};
 	
 	/**
@@ -231,10 +232,13 @@ public class KnownIdentitiesPage extends WebPageImpl {
 		filtersBox.addChild("#", " " + l10n().getString("KnownIdentitiesPage.FiltersAndSorting.SortIdentitiesBy") + " : ");
 		HTMLNode option = filtersBox.addChild("select", new String[]{"name", "id"}, new String[]{"sortby", "sortby"});
 		TreeMap<String, String> options = new TreeMap<String, String>();
+		options.put(SortBy.Added.toString(), l10n().getString("KnownIdentitiesPage.FiltersAndSorting.SortIdentitiesBy.Added"));
         options.put(SortBy.Edition.toString(), l10n().getString("KnownIdentitiesPage.FiltersAndSorting.SortIdentitiesBy.Edition"));
+		options.put(SortBy.Fetched.toString(), l10n().getString("KnownIdentitiesPage.FiltersAndSorting.SortIdentitiesBy.Fetched"));
 		options.put(SortBy.Nickname.toString(), l10n().getString("KnownIdentitiesPage.FiltersAndSorting.SortIdentitiesBy.Nickname"));
 		options.put(SortBy.Score.toString(), l10n().getString("KnownIdentitiesPage.FiltersAndSorting.SortIdentitiesBy.Score"));
 		options.put(SortBy.LocalTrust.toString(), l10n().getString("KnownIdentitiesPage.FiltersAndSorting.SortIdentitiesBy.LocalTrust"));
+		options.put(SortBy.Trusters.toString(), l10n().getString("KnownIdentitiesPage.FiltersAndSorting.SortIdentitiesBy.Trusters"));
 		for(String e : options.keySet()) {
 			HTMLNode newOption = option.addChild("option", "value", e, options.get(e));
 			if(e.equals(sortBy)) {
@@ -262,53 +266,30 @@ public class KnownIdentitiesPage extends WebPageImpl {
 		
 		WebOfTrust.SortOrder sortInstruction = WebOfTrust.SortOrder.valueOf("By" + sortBy + sortType);
 		
-		synchronized(mWebOfTrust) {
 		long currentTime = CurrentTimeUTC.getInMillis();
 		int indexOfFirstIdentity = page * IDENTITIES_PER_PAGE;
 		
-		// Re-query it instead of using mLoggedInOwnIdentity because mLoggedInOwnIdentity is a
-		// clone() and thus will not work with database queries on the WebOfTrust.
-		// TODO: Performance: This can be removed once the TODO at
-		// WebPageImpl.getLoggedInOwnIdentityFromHTTPSession() of not cloning the
-		// OwnIdentity has been been resolved.
-		final OwnIdentity ownId;
-		try {
-		    ownId = mWebOfTrust.getOwnIdentityByID(mLoggedInOwnIdentity.getID());
-		} catch(UnknownIdentityException e) {
-		    new ErrorPage(mToadlet, mRequest, mContext, e).addToPage(this);
-		    return;
-		}
+		// Served from the ReadSnapshot instead of the database so we don't have to synchronize
+		// on mWebOfTrust. The snapshot is coherent, so the list cannot change while we display it.
+		final ReadSnapshot snapshot = mWebOfTrust.getReadSnapshot();
+		final String ownId = mLoggedInOwnIdentity.getID();
 		
-		ObjectSet<Identity> allIdentities
-		    = mWebOfTrust.getAllIdentitiesFilteredAndSorted(ownId, nickFilter, sortInstruction);
+		List<Identity> allIdentities
+		    = snapshot.getAllIdentitiesFilteredAndSorted(ownId, nickFilter, sortInstruction);
 		
-	    Iterator<Identity> identities;
-		try {
-		    identities = allIdentities.listIterator(indexOfFirstIdentity);
-		} catch(IndexOutOfBoundsException e) {
+		if(indexOfFirstIdentity > 0 && indexOfFirstIdentity >= allIdentities.size()) {
 		    // The user supplied a higher page index than there are pages. This can happen when the
 		    // user changes the search filters while not being on the first page.
 		    // We fall back to displaying the last page.
-		    // Notice: We intentionally do not prevent listIterator() from throwing by checking
-		    // the index for validity before calling listIterator(). This is because we would need
-		    // to call allIdentities.size() to check the index. This would force the database to
-		    // compute the full result set even though we only need the results up to the current
-		    // page if we are not on the last page.
 		    page = getPageCount(allIdentities.size()) - 1;
 		    indexOfFirstIdentity = page * IDENTITIES_PER_PAGE;
-		    
-		    // TODO: Performance: Don't re-query this from the database once the issue which caused
-		    // this workaround is fixed: https://bugs.freenetproject.org/view.php?id=6646
-		    allIdentities
-		    	= mWebOfTrust.getAllIdentitiesFilteredAndSorted(ownId, nickFilter, sortInstruction);
-		    
-		    identities = allIdentities.listIterator(indexOfFirstIdentity);
 		}
 		
-		for(int displayed = 0; displayed < IDENTITIES_PER_PAGE && identities.hasNext(); ++displayed) {
-			final Identity id = identities.next();
-			
-			if(id == ownId) continue;
+		final List<Identity> identities = allIdentities.subList(indexOfFirstIdentity,
+		    Math.min(indexOfFirstIdentity + IDENTITIES_PER_PAGE, allIdentities.size()));
+		
+		for(final Identity id : identities) {
+			if(id.getID().equals(ownId)) continue;
 
 			HTMLNode row=identitiesTable.addChild("tr");
 			
@@ -339,7 +320,7 @@ public class KnownIdentitiesPage extends WebPageImpl {
 			
 			//Score
 			try {
-				final Score score = mWebOfTrust.getScore(ownId, id);
+				final ScoreRecord score = snapshot.getScore(ownId, id.getID());
 				final int scoreValue = score.getScore();
 				final int rank = score.getRank();
 				
@@ -354,7 +335,7 @@ public class KnownIdentitiesPage extends WebPageImpl {
 			}
 			
 			// Own Trust
-			row.addChild(getReceivedTrustCell(ownId, id));
+			row.addChild(getReceivedTrustCell(snapshot, ownId, id));
 			
 			// Checkbox
 			row.addChild(getSetTrustCell(id));
@@ -363,13 +344,13 @@ public class KnownIdentitiesPage extends WebPageImpl {
 			// TODO: Do a direct link to the received-trusts part of the linked page
 			HTMLNode trustersCell = row.addChild("td", new String[] { "align" }, new String[] { "center" });
 			trustersCell.addChild(new HTMLNode("a", "href", IdentityPage.getURI(mWebInterface, id.getID()).toString(),
-					Long.toString(mWebOfTrust.getReceivedTrusts(id).size())));
+					Integer.toString(snapshot.getReceivedTrusts(id.getID()).size())));
 			
 			// Nb Trustees
 			// TODO: Do a direct link to the given-trusts part of the linked page
 			HTMLNode trusteesCell = row.addChild("td", new String[] { "align" }, new String[] { "center" });
 			trusteesCell.addChild(new HTMLNode("a", "href", IdentityPage.getURI(mWebInterface, id.getID()).toString(),
-					Long.toString(mWebOfTrust.getGivenTrusts(id).size())));
+					Long.toString(snapshot.getGivenTrusts(id.getID()).size())));
 			
 			// TODO: Show in advanced mode only once someone finally fixes the "Switch to advanced mode" link on FProxy to work on ALL pages.
 			
@@ -379,7 +360,6 @@ public class KnownIdentitiesPage extends WebPageImpl {
 	    }
         identitiesTable.addChild(getKnownIdentitiesListTableHeader());
         knownIdentitiesBox.addChild(getKnownIdentitiesListPageLinks(page, allIdentities.size()));
-        }
 	}
 	
 	private HTMLNode getKnownIdentitiesListTableHeader() {
@@ -483,14 +463,15 @@ public class KnownIdentitiesPage extends WebPageImpl {
 			return new HTMLNode("b", desiredPageString);
 	}
 	
-	private HTMLNode getReceivedTrustCell (OwnIdentity truster, Identity trustee) throws DuplicateTrustException {
+	private HTMLNode getReceivedTrustCell(ReadSnapshot snapshot, String trusterID,
+			Identity trustee) {
 
 		String trustValue = "";
 		String trustComment = "";
-		Trust trust;
+		TrustRecord trust;
 		
 		try {
-			trust = mWebOfTrust.getTrust(truster, trustee);
+			trust = snapshot.getTrust(trusterID, trustee.getID());
 			trustValue = String.valueOf(trust.getValue());
 			trustComment = trust.getComment();
 		}
@@ -3,7 +3,6 @@
  * http://www.gnu.org/ for further details of the GPL. */
 package plugins.WebOfTrust.ui.web;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import plugins.WebOfTrust.OwnIdentity;
@@ -62,22 +61,17 @@ public final class LogInPage extends WebPageImpl {
 	public void make(final boolean mayWrite) {
 		makeWelcomeBox();
 		
-        // TODO: Performance: The synchronized() can be removed after this is fixed:
-        // https://bugs.freenetproject.org/view.php?id=6247
-		synchronized (mWebOfTrust) {
-			// TODO: Performance: Don't convert to ArrayList once the issue which caused this
-			// workaround is fixed: https://bugs.freenetproject.org/view.php?id=6646
-			final List<OwnIdentity> ownIdentities
-				= new ArrayList<OwnIdentity>(mWebOfTrust.getAllOwnIdentities());
-			
-			if (!ownIdentities.isEmpty()) {
-				makeLoginBox(ownIdentities);
-				makeCreateIdentityBox();
-			} else {
-				// Cast because the casted version does not throw RedirectException.
-				((CreateOwnIdentityWebInterfaceToadlet)mWebInterface.getToadlet(CreateOwnIdentityWebInterfaceToadlet.class))
-					.makeWebPage(mRequest, mContext).addToPage(this);
-			}
+        // Served from the ReadSnapshot instead of the database so we don't have to synchronize
+        // on mWebOfTrust, see https://bugs.freenetproject.org/view.php?id=6247
+		final List<OwnIdentity> ownIdentities = mWebOfTrust.getReadSnapshot().getAllOwnIdentities();
+		
+		if (!ownIdentities.isEmpty()) {
+			makeLoginBox(ownIdentities);
+			makeCreateIdentityBox();
+		} else {
+			// Cast because the casted version does not throw RedirectException.
+			((CreateOwnIdentityWebInterfaceToadlet)mWebInterface.getToadlet(CreateOwnIdentityWebInterfaceToadlet.class))
+				.makeWebPage(mRequest, mContext).addToPage(this);
 		}
 	}
 
@@ -9,12 +9,23 @@ import static plugins.WebOfTrust.Configuration.DEFAULT_VERIFY_SCORES_INTERVAL;
 import static plugins.WebOfTrust.ui.web.CommonWebUtils.formatTimeDelta;
 
 import java.util.Date;
+import java.util.Map;
 import java.util.concurrent.TimeUnit;
 
 import plugins.WebOfTrust.Configuration;
 import plugins.WebOfTrust.Identity;
 import plugins.WebOfTrust.IdentityFileProcessor;
 import plugins.WebOfTrust.IdentityFileQueue.IdentityFileQueueStatistics;
+import plugins.WebOfTrust.LockOrder.Lock;
+import plugins.WebOfTrust.LockStatistics;
+import plugins.WebOfTrust.LockStatistics.Histogram;
+import plugins.WebOfTrust.LockStatistics.Site;
+import plugins.WebOfTrust.LockStatistics.SiteStatistics;
+import plugins.WebOfTrust.ObjectCache;
+import plugins.WebOfTrust.OnlineBackup;
+import plugins.WebOfTrust.OwnIdentity;
+import plugins.WebOfTrust.ReadSnapshot;
+import plugins.WebOfTrust.ReadSnapshot.ScoreRecord;
 import plugins.WebOfTrust.SubscriptionManager;
 import plugins.WebOfTrust.WebOfTrust;
 import plugins.WebOfTrust.introduction.IntroductionPuzzleStore;
@@ -47,6 +58,8 @@ public class StatisticsPage extends WebPageImpl {
 		makeSummary();
 		makeIdentityFileQueueBox();
 		makeIdentityFileProcessorBox();
+		makeLockStatisticsBox();
+		makeObjectCacheBox();
 		makeMaintenanceBox();
 	}
 
@@ -57,23 +70,34 @@ public class StatisticsPage extends WebPageImpl {
 		HTMLNode box = addContentBox(l10n().getString("StatisticsPage.SummaryBox.Header"));
 		HTMLNode list = new HTMLNode("ul");
 		
-        // TODO: Performance: All the synchronized() can be removed after this is fixed:
-        // https://bugs.freenetproject.org/view.php?id=6247
+		// The counts of the database are served from the ReadSnapshot so we don't have to
+		// synchronize on mWebOfTrust for iterating over all Identitys.
+		final ReadSnapshot snapshot = mWebOfTrust.getReadSnapshot();
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.OwnIdentities") + ": " + snapshot.getOwnIdentityCount()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.KnownIdentities") + ": " + (snapshot.getIdentityCount() - snapshot.getOwnIdentityCount())));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.UnfetchedIdentities") + " " + getUnfetchedIdentityCount(snapshot)));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.FetchProgress", "editionCount", Long.toString(getEditionSum(snapshot)))));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.TrustRelationships") + ": " + snapshot.getTrustCount()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.ScoreRelationships") + ": " + snapshot.getScoreCount()));
+		
+		// The computation counters are written by the Score computation, which runs under the
+		// lock of mWebOfTrust, so read them under it to get a coherent count/time pair.
+		// This only waits for a running computation, it does not query the database.
 		synchronized(mWebOfTrust) {
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.OwnIdentities") + ": " + mWebOfTrust.getAllOwnIdentities().size()));
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.KnownIdentities") + ": " + mWebOfTrust.getAllNonOwnIdentities().size()));
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.UnfetchedIdentities") + " " + mWebOfTrust.getNumberOfUnfetchedIdentities()));
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.FetchProgress", "editionCount", Long.toString(getEditionSum()))));
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.TrustRelationships") + ": " + mWebOfTrust.getAllTrusts().size()));
-		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.ScoreRelationships") + ": " + mWebOfTrust.getAllScores().size()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.FullRecomputations") + ": " + mWebOfTrust.getNumberOfFullScoreRecomputations()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.FullRecomputationTime") + ": " + mWebOfTrust.getAverageFullScoreRecomputationTime()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalTrustRecomputations") + " " + mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrust()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalTrustRecomputationTime") + " " + mWebOfTrust.getAverageTimeForIncrementalScoreRecomputationDueToTrust()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalTrustListRecomputations") + " " + mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrustList()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalTrustListRecomputationTime") + " " + mWebOfTrust.getAverageTimeForIncrementalScoreRecomputationDueToTrustList()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.DeferredTrustListImports") + " " + mWebOfTrust.getNumberOfDeferredTrustListImports()));
+		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.ScoreComputationPending") + " " + l10n().getString(mWebOfTrust.isScoreComputationPending() ? "Common.Yes" : "Common.No")));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalDistrustRecomputations") + " " + mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToDistrust()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalDistrustRecomputationTime") + " " + mWebOfTrust.getAverageTimeForIncrementalScoreRecomputationDueToDistrust()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalDistrustRecomputationsSlow") + mWebOfTrust.getNumberOfSlowIncrementalScoreRecomputationDueToDistrust()));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.IncrementalDistrustRecomputationTimeSlow") + mWebOfTrust.getAverageTimeForSlowIncrementalScoreRecomputationDueToDistrust()));
+		}
+		
 		IntroductionPuzzleStore puzzleStore = mWebOfTrust.getIntroductionPuzzleStore();
 		synchronized(puzzleStore) {
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.UnsolvedOwnCaptchas") + ": " + puzzleStore.getOwnCatpchaAmount(false)));
@@ -82,7 +106,6 @@ public class StatisticsPage extends WebPageImpl {
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.SolvedCaptchasOfOthers") + ": " + puzzleStore.getNonOwnCaptchaAmount(true)));
 		list.addChild(new HTMLNode("li", l10n().getString("StatisticsPage.SummaryBox.NotInsertedCaptchasSolutions") + ": " + puzzleStore.getUninsertedSolvedPuzzles().size()));
 		}
-		}
 
 		SubscriptionManager sm = mWebOfTrust.getSubscriptionManager();
 		synchronized(sm) {
@@ -98,16 +121,35 @@ public class StatisticsPage extends WebPageImpl {
 	}
 
 	/**
-	 * TODO: Move to class {@link WebOfTrust}
+	 * TODO: Move to class {@link ReadSnapshot}
 	 */
-	private long getEditionSum() {
+	private static long getEditionSum(ReadSnapshot snapshot) {
 		long editionSum = 0;
-		for(Identity identity : mWebOfTrust.getAllIdentities()) {
+		for(Identity identity : snapshot.getAllIdentities()) {
 			editionSum += identity.getEdition();
 		}
 		return editionSum;
 	}
 
+	/** Same as {@link WebOfTrust#getNumberOfUnfetchedIdentities()}, for a {@link ReadSnapshot}. */
+	private static int getUnfetchedIdentityCount(ReadSnapshot snapshot) {
+		final Date never = new Date(0);
+		int count = 0;
+		for(Identity identity : snapshot.getAllIdentities()) {
+			if(identity instanceof OwnIdentity || !identity.getLastFetchedDate().equals(never))
+				continue;
+			
+			// Same decision as WebOfTrust.shouldFetchIdentity(): Fetch if any Score allows it.
+			for(ScoreRecord score : snapshot.getReceivedScores(identity.getID())) {
+				if(score.getCapacity() > 0 || score.getScore() >= 0) {
+					++count;
+					break;
+				}
+			}
+		}
+		return count;
+	}
+
 	public void makeIdentityFileQueueBox() {
 		String l10nPrefix = "StatisticsPage.IdentityFileQueueBox.";
 		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
@@ -128,6 +170,10 @@ public class StatisticsPage extends WebPageImpl {
 			+ " " + stats.mDeduplicatedFiles));
 		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "FailedFiles")
 			+ " " + stats.mFailedFiles));
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "ConvergenceTime")
+			+ " " + (stats.mConvergenceTimeMilliseconds != -1
+				? TimeUtil.formatTime(stats.mConvergenceTimeMilliseconds)
+				: l10n().getString(l10nPrefix + "ConvergenceTime.NotYet"))));
 		
 		box.addChild(list);
 	}
@@ -142,11 +188,17 @@ public class StatisticsPage extends WebPageImpl {
 		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "ProcessedFiles") + " "
 			+ stats.mProcessedFiles));
 
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "SkippedFiles") + " "
+			+ stats.mSkippedFiles));
+
 		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "FailedFiles") + " "
 			+ stats.mFailedFiles));
 
 		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "TotalProcessingTime") + " "
 			+ TimeUtil.formatTime(TimeUnit.NANOSECONDS.toMillis(stats.mProcessingTimeNanoseconds))));
+
+		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "TotalParsingTime") + " "
+			+ TimeUtil.formatTime(TimeUnit.NANOSECONDS.toMillis(stats.mParsingTimeNanoseconds))));
 		
 		list.addChild(new HTMLNode("li", l10n().getString(l10nPrefix + "AverageProcessingTimeSecs")
 			+ " " + stats.getAverageXMLImportTime()));
@@ -154,6 +206,117 @@ public class StatisticsPage extends WebPageImpl {
 		box.addChild(list);
 	}
 
+	public void makeLockStatisticsBox() {
+		String l10nPrefix = "StatisticsPage.LockStatisticsBox.";
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		LockStatistics lockStatistics = mWebOfTrust.getLockStatistics();
+		
+		if(!lockStatistics.isEnabled()) {
+			box.addChild("p", l10n().getString(l10nPrefix + "Disabled", "configKey",
+				WebOfTrust.LOCK_STATISTICS_CONFIG_KEY));
+			return;
+		}
+		
+		HTMLNode table = box.addChild("table");
+		HTMLNode header = table.addChild("tr");
+		header.addChild("th", l10n().getString(l10nPrefix + "TableHeader.Site"));
+		header.addChild("th", l10n().getString(l10nPrefix + "TableHeader.Lock"));
+		header.addChild("th", l10n().getString(l10nPrefix + "TableHeader.Acquisitions"));
+		header.addChild("th", l10n().getString(l10nPrefix + "TableHeader.AverageWaitTime"));
+		header.addChild("th", l10n().getString(l10nPrefix + "TableHeader.WaitTimes"));
+		header.addChild("th", l10n().getString(l10nPrefix + "TableHeader.Contenders"));
+		
+		for(SiteStatistics site : lockStatistics.getStatistics()) {
+			Histogram holdTimes = site.getHoldTimes();
+			HTMLNode holdRow = table.addChild("tr");
+			holdRow.addChild("td", site.getSite().getName());
+			holdRow.addChild("td", l10n().getString(l10nPrefix + "HoldTime"));
+			holdRow.addChild("td", Long.toString(holdTimes.getCount()));
+			holdRow.addChild("td", formatNanoseconds(holdTimes.getAverageNanoseconds()));
+			holdRow.addChild("td", formatHistogram(holdTimes));
+			holdRow.addChild("td", "");
+			
+			for(Lock lock : site.getLocks()) {
+				Histogram waitTimes = site.getWaitTimes(lock);
+				HTMLNode row = table.addChild("tr");
+				row.addChild("td", "");
+				row.addChild("td", lock.toString());
+				row.addChild("td", Long.toString(waitTimes.getCount()));
+				row.addChild("td", formatNanoseconds(waitTimes.getAverageNanoseconds()));
+				row.addChild("td", formatHistogram(waitTimes));
+				
+				StringBuilder contenders = new StringBuilder();
+				for(Map.Entry<Site, Long> contender : site.getContenders(lock).entrySet()) {
+					if(contenders.length() > 0)
+						contenders.append(", ");
+					contenders.append(contender.getKey() != null ? contender.getKey().getName()
+						: l10n().getString(l10nPrefix + "NotInstrumented"));
+					contenders.append(": ").append(contender.getValue());
+				}
+				row.addChild("td", contenders.toString());
+			}
+		}
+	}
+	
+	public void makeObjectCacheBox() {
+		String l10nPrefix = "StatisticsPage.ObjectCacheBox.";
+		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
+		
+		HTMLNode table = box.addChild("table");
+		HTMLNode header = table.addChild("tr");
+		header.addChild("th", l10n().getString(l10nPrefix + "TableHeader.Type"));
+		header.addChild("th", l10n().getString(l10nPrefix + "TableHeader.Size"));
+		header.addChild("th", l10n().getString(l10nPrefix + "TableHeader.Hits"));
+		header.addChild("th", l10n().getString(l10nPrefix + "TableHeader.Misses"));
+		header.addChild("th", l10n().getString(l10nPrefix + "TableHeader.HitRate"));
+		header.addChild("th", l10n().getString(l10nPrefix + "TableHeader.Invalidations"));
+		
+		for(ObjectCache<?> cache : mWebOfTrust.getObjectCaches()) {
+			long hits = cache.getHits();
+			long lookups = hits + cache.getMisses();
+			
+			HTMLNode row = table.addChild("tr");
+			row.addChild("td", cache.getType().getSimpleName());
+			row.addChild("td", cache.getSize() + " / " + cache.getMaxSize());
+			row.addChild("td", Long.toString(hits));
+			row.addChild("td", Long.toString(cache.getMisses()));
+			row.addChild("td", lookups > 0 ? (hits * 100 / lookups) + "%" : "-");
+			row.addChild("td", Long.toString(cache.getInvalidations()));
+		}
+	}
+	
+	/** Lists the non-empty buckets as "&lt; upper bound: count". */
+	private static String formatHistogram(Histogram histogram) {
+		StringBuilder result = new StringBuilder();
+		
+		for(int i = 0; i < Histogram.SIZE; ++i) {
+			if(histogram.getBucket(i) == 0)
+				continue;
+			
+			if(result.length() > 0)
+				result.append(", ");
+			
+			if(i < Histogram.SIZE - 1)
+				result.append("< ").append(formatNanoseconds(Histogram.getUpperBoundNanoseconds(i)));
+			else
+				result.append(">= ").append(formatNanoseconds(Histogram.getUpperBoundNanoseconds(i - 1)));
+			
+			result.append(": ").append(histogram.getBucket(i));
+		}
+		
+		return result.toString();
+	}
+	
+	/** {@link TimeUtil#formatTime(long)} has a resolution of milliseconds only. */
+	private static String formatNanoseconds(long nanoseconds) {
+		if(nanoseconds < TimeUnit.MILLISECONDS.toNanos(10))
+			return TimeUnit.NANOSECONDS.toMicros(nanoseconds) + "\u00B5s";
+		else if(nanoseconds < TimeUnit.SECONDS.toNanos(10))
+			return TimeUnit.NANOSECONDS.toMillis(nanoseconds) + "ms";
+		else
+			return TimeUnit.NANOSECONDS.toSeconds(nanoseconds) + "s";
+	}
+
 	public void makeMaintenanceBox() {
 		String l10nPrefix = "StatisticsPage.MaintenanceBox.";
 		HTMLNode box = addContentBox(l10n().getString(l10nPrefix + "Header"));
@@ -186,8 +349,43 @@ public class StatisticsPage extends WebPageImpl {
 		
 		list.addChild(new HTMLNode("li", defrag));
 		list.addChild(new HTMLNode("li", verification));
+		list.addChild(new HTMLNode("li", getOnlineBackupStatus(now)));
 		
 		box.addChild(list);
 	}
 
+	private String getOnlineBackupStatus(Date now) {
+		String l10nPrefix = "StatisticsPage.MaintenanceBox.OnlineBackup.";
+		OnlineBackup backup = mWebOfTrust.getOnlineBackup();
+		
+		if(backup == null) {
+			return l10n().getString(l10nPrefix + "Disabled",
+				"configKey", WebOfTrust.ONLINE_BACKUP_INTERVAL_CONFIG_KEY);
+		}
+		
+		OnlineBackup.Statistics stats = backup.getStatistics();
+		
+		if(stats.mRunning) {
+			return l10n().getString(l10nPrefix + "Running",
+				new String[] { "pass", "pagesDone", "pages" },
+				new String[] { Integer.toString(stats.mPass),
+				               Integer.toString(stats.mPassPagesDone),
+				               Integer.toString(stats.mPassPages) });
+		}
+		
+		String lastTime = stats.mLastBackupDate != null
+			? formatTimeDelta(now.getTime() - stats.mLastBackupDate.getTime(), l10n())
+			: l10n().getString(l10nPrefix + "Never");
+		
+		return l10n().getString(l10nPrefix + "Last",
+			new String[] { "lastTime", "duration", "writtenPages", "totalPages", "pause",
+			               "failures" },
+			new String[] { lastTime,
+			               formatTime(stats.mLastDurationMilliseconds),
+			               Integer.toString(stats.mLastWrittenPages),
+			               Integer.toString(stats.mLastTotalPages),
+			               formatNanoseconds(stats.mLastPauseNanoseconds),
+			               Integer.toString(stats.mFailedBackups) });
+	}
+
 }
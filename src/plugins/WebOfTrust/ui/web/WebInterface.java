@@ -155,6 +155,8 @@ public class WebInterface {
 		        // https://bugs.freenetproject.org/view.php?id=6247
 			    synchronized(mWoT) {
 			        final OwnIdentity ownIdentity = mWoT.getOwnIdentityByID(ID);
+			        // The pages of the session display the Scores of the OwnIdentity.
+			        mWoT.setTrustTreeDormant(ownIdentity.getID(), false);
 			        sessionManager.createSession(ownIdentity.getID(), ctx);
 			    }
 			} catch(UnknownIdentityException e) {
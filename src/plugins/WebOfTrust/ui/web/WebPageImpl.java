@@ -87,14 +87,13 @@ public abstract class WebPageImpl implements WebPage {
 	    String id = toadlet.getLoggedInUserID(ctx);
 	    WebOfTrust wot = toadlet.webInterface.getWoT();
 	    
-        // TODO: Performance: The synchronized() and clone() can be removed after this is fixed:
-        // https://bugs.freenetproject.org/view.php?id=6247
-        // Once the clone() is removed, please also adapt EditOwnIdentityPage.make(),
-        // KnownIdentitiesPage.makeKnownIdentitiesList() and MyIdentityPage() to not re-query the
-        // identity from the database anymore. See the TODOs there for details.
-        synchronized(wot) {
-            return wot.getOwnIdentityByID(id).clone();
-        }
+        // Served from the ReadSnapshot instead of the database so we don't have to synchronize
+        // on the WebOfTrust. The identities of the snapshot are shared by all readers, so we
+        // hand out a clone() in case the page modifies it.
+        // TODO: Performance: Once the clone() is removed, please also adapt
+        // EditOwnIdentityPage.make() and MyIdentityPage() to not re-query the identity from the
+        // database anymore. See the TODOs there for details.
+        return wot.getReadSnapshot().getOwnIdentityByID(id).clone();
 	}
 	
 	/**
@@ -0,0 +1,97 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+
+/** Tests {@link DatabaseCloner}. */
+public final class DatabaseClonerTest extends AbstractJUnit4BaseTest {
+
+	/** Small so multiple batches are needed. */
+	private static final int BATCH_SIZE = 7;
+
+	private WebOfTrust mWebOfTrust = null;
+
+	private WebOfTrust mClone = null;
+
+
+	@Before public void setUp()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException {
+
+		mWebOfTrust = constructEmptyWebOfTrust();
+		ArrayList<Identity> identities = addRandomIdentities(3, 30);
+		addRandomTrustValues(identities, 200);
+
+		mWebOfTrust.getConfig().set("DatabaseClonerTest", 123);
+		mWebOfTrust.getConfig().storeAndCommit();
+
+		mClone = constructEmptyWebOfTrust();
+	}
+
+	@After public void tearDown() {
+		mClone.terminate();
+		assertTrue(mClone.isTerminated());
+	}
+
+	@Test public void testRun() throws UnknownIdentityException {
+		new DatabaseCloner(mWebOfTrust, mClone, BATCH_SIZE, null).run();
+
+		assertEquals(mWebOfTrust, mClone);
+		assertEquals(123, mClone.getConfig().getInt("DatabaseClonerTest"));
+
+		synchronized(mClone) {
+			for(Identity identity : mWebOfTrust.getAllIdentities()) {
+				assertEquals(identity.getReceivedTrustCount(),
+					mClone.getIdentityByID(identity.getID()).getReceivedTrustCount());
+			}
+		}
+	}
+
+	/** Interrupts the copying after a few batches by throwing from the progress output. */
+	@Test public void testResume() {
+		@SuppressWarnings("serial")
+		final class Interruption extends RuntimeException {}
+
+		final PrintStream interruptingOutput = new PrintStream(new ByteArrayOutputStream()) {
+			private int mLines = 0;
+
+			@Override public void println(String x) {
+				// The first line announces the Identitys, each further one is a committed batch.
+				if(++mLines == 4)
+					throw new Interruption();
+			}
+		};
+
+		try {
+			new DatabaseCloner(mWebOfTrust, mClone, BATCH_SIZE, interruptingOutput).run();
+			fail("Copying should have been interrupted");
+		} catch(Interruption e) {}
+
+		synchronized(mClone) {
+			assertEquals(3 * BATCH_SIZE, mClone.getAllIdentities().size());
+			assertEquals(0, mClone.getAllTrusts().size());
+		}
+
+		new DatabaseCloner(mWebOfTrust, mClone, BATCH_SIZE, null).run();
+		assertEquals(mWebOfTrust, mClone);
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
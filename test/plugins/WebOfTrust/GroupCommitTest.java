@@ -0,0 +1,139 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.HOURS;
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.util.jobs.MockDelayedBackgroundJob;
+
+import com.db4o.ext.ExtObjectContainer;
+
+/**
+ * Tests {@link Persistent#checkedCommitDeferrable(ExtObjectContainer, Object)}.
+ * The changes are done to the {@link Configuration} as it is a Persistent object which can be
+ * modified without any side effects upon the rest of the database. */
+public final class GroupCommitTest extends AbstractJUnit4BaseTest {
+
+	private static final String KEY = "GroupCommitTest.Key";
+
+	private static final int BATCH_SIZE = 3;
+
+	private WebOfTrust mWebOfTrust = null;
+
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+		// Huge latency so only the batch size triggers commits. WebOfTrust.terminate() restores
+		// the default configuration.
+		Persistent.configureGroupCommit(
+			BATCH_SIZE, HOURS.toMillis(1), MockDelayedBackgroundJob.DEFAULT);
+	}
+
+	private void setAndCommitDeferrable(int value) {
+		ExtObjectContainer db = mWebOfTrust.getDatabase();
+		Configuration config = mWebOfTrust.getConfig();
+		synchronized(Persistent.transactionLock(db)) {
+			try {
+				config.set(KEY, value);
+				config.storeWithoutCommit();
+				Persistent.checkedCommitDeferrable(db, this);
+			} catch(RuntimeException e) {
+				Persistent.checkedRollbackAndThrow(db, this, e);
+			}
+		}
+	}
+
+	/** Terminates {@link #mWebOfTrust} and replaces it with a new one on the same database. */
+	private void restart() {
+		File database = mWebOfTrust.getDatabaseFile();
+		mWebOfTrust.terminate();
+		assertTrue(mWebOfTrust.isTerminated());
+		mWebOfTrust = new WebOfTrust(database.toString());
+	}
+
+	@Test public void testBatchSize() {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			final long commitCount = Persistent.getCommitCount();
+
+			for(int i = 1; i < BATCH_SIZE; ++i) {
+				setAndCommitDeferrable(i);
+				assertEquals(i, Persistent.getDeferredCommitCount());
+				assertEquals(commitCount, Persistent.getCommitCount());
+			}
+
+			setAndCommitDeferrable(BATCH_SIZE);
+			assertEquals(0, Persistent.getDeferredCommitCount());
+			assertEquals(commitCount + 1, Persistent.getCommitCount());
+		}
+	}
+
+	@Test public void testRegularCommit() {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			setAndCommitDeferrable(1);
+			assertEquals(1, Persistent.getDeferredCommitCount());
+			Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+			assertEquals(0, Persistent.getDeferredCommitCount());
+		}
+	}
+
+	@Test public void testRollback() {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			final long commitCount = Persistent.getCommitCount();
+			final long rollbackCount = Persistent.getRollbackCount();
+			setAndCommitDeferrable(1);
+			Persistent.checkedRollback(mWebOfTrust.getDatabase(), this, new RuntimeException());
+			assertEquals(0, Persistent.getDeferredCommitCount());
+			assertEquals(commitCount, Persistent.getCommitCount());
+			assertEquals(rollbackCount + 1, Persistent.getRollbackCount());
+		}
+
+		restart();
+		assertFalse(mWebOfTrust.getConfig().containsInt(KEY));
+	}
+
+	@Test public void testFlush() {
+		setAndCommitDeferrable(1);
+		final long commitCount = Persistent.getCommitCount();
+		Persistent.flushDeferredCommits(mWebOfTrust.getDatabase(), this);
+		assertEquals(commitCount + 1, Persistent.getCommitCount());
+
+		// Nothing to flush
+		Persistent.flushDeferredCommits(mWebOfTrust.getDatabase(), this);
+		assertEquals(commitCount + 1, Persistent.getCommitCount());
+
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			Persistent.checkedRollback(mWebOfTrust.getDatabase(), this, new RuntimeException());
+		}
+		restart();
+		assertEquals(1, mWebOfTrust.getConfig().getInt(KEY));
+	}
+
+	/** Termination must not discard deferred commits by its rollback. */
+	@Test public void testTerminate() {
+		setAndCommitDeferrable(1);
+		restart();
+		assertEquals(1, mWebOfTrust.getConfig().getInt(KEY));
+	}
+
+	@Test public void testDisabled() {
+		Persistent.configureGroupCommit(1, 0, null);
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			final long commitCount = Persistent.getCommitCount();
+			setAndCommitDeferrable(1);
+			assertEquals(0, Persistent.getDeferredCommitCount());
+			assertEquals(commitCount + 1, Persistent.getCommitCount());
+		}
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
@@ -0,0 +1,220 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.IdentityFileQueue.IdentityFileQueueStatistics;
+import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
+import freenet.keys.FreenetURI;
+
+/**
+ * Tests the deduplication, prioritization, persistence and compaction of
+ * {@link IdentityFileDiskQueue}.<br>
+ * Processing of the queued files is tested by {@link IdentityFileQueueTest}. */
+public final class IdentityFileDiskQueueTest extends AbstractJUnit4BaseTest {
+
+	/** Small so the tests use many segments. */
+	private static final long SEGMENT_SIZE = 4096;
+
+	private WebOfTrust mWebOfTrust = null;
+
+	private ArrayList<Identity> mIdentities = null;
+
+	private File mDirectory = null;
+
+
+	@Before public void setUp() throws IOException {
+		mWebOfTrust = constructEmptyWebOfTrust();
+		mIdentities = addRandomIdentities(20);
+		mDirectory = mTempFolder.newFolder();
+	}
+
+	private IdentityFileDiskQueue constructQueue() {
+		return constructQueue(null);
+	}
+
+	private IdentityFileDiskQueue constructQueue(
+			IdentityFileDiskQueue.PriorityCallback priorityCallback) {
+		return new IdentityFileDiskQueue(mDirectory, SEGMENT_SIZE, priorityCallback);
+	}
+
+	private static IdentityFileStream constructFile(Identity identity, long edition) {
+		return new IdentityFileStream(identity.getRequestURI().setSuggestedEdition(edition),
+			new ByteArrayInputStream(getXML(identity, edition)));
+	}
+
+	private static byte[] getXML(Identity identity, long edition) {
+		return (identity.getID() + " " + edition).getBytes(XMLTransformer.XML_CHARSET);
+	}
+
+	/**
+	 * Polls all files and checks that they are the latest queued edition of each Identity.
+	 * @param expected Latest queued edition by Identity ID, is cleared. */
+	private static void assertPollsAll(IdentityFileQueue queue, HashMap<String, Long> expected,
+			ArrayList<Identity> identities) throws IOException {
+
+		HashMap<String, Identity> byID = new HashMap<String, Identity>();
+		for(Identity identity : identities)
+			byID.put(identity.getID(), identity);
+
+		IdentityFileStream file;
+		while((file = queue.poll()) != null) {
+			String id = IdentityID.constructAndValidateFromURI(file.mURI).toString();
+			Long edition = expected.remove(id);
+			assertNotNull(edition);
+			assertEquals((long)edition, file.mURI.getEdition());
+
+			byte[] xml = IdentityFile.read(file).mXML;
+			assertArrayEquals(getXML(byID.get(id), edition), xml);
+		}
+
+		assertEquals(0, expected.size());
+		assertEquals(0, queue.getStatistics().mQueuedFiles);
+	}
+
+	@Test public void testDeduplication() throws IOException {
+		IdentityFileDiskQueue queue = constructQueue();
+		Identity identity = mIdentities.get(0);
+
+		queue.add(constructFile(identity, 5));
+		queue.add(constructFile(identity, 3)); // Older: Dropped
+		queue.add(constructFile(identity, 5)); // Same: Replaces the queued one
+		queue.add(constructFile(identity, 7)); // Newer: Replaces the queued one
+
+		IdentityFileQueueStatistics stats = queue.getStatistics();
+		assertEquals(4, stats.mTotalQueuedFiles);
+		assertEquals(1, stats.mQueuedFiles);
+		assertEquals(3, stats.mDeduplicatedFiles);
+
+		HashMap<String, Long> expected = new HashMap<String, Long>();
+		expected.put(identity.getID(), 7L);
+		assertPollsAll(queue, expected, mIdentities);
+
+		stats = queue.getStatistics();
+		assertEquals(1, stats.mFinishedFiles);
+		assertEquals(0, stats.mProcessingFiles);
+	}
+
+	/**
+	 * Files must be returned by priority, and in the order of queueing for equal priority, also
+	 * after a restart. */
+	@Test public void testPriority() throws IOException {
+		final HashMap<String, Integer> priorities = new HashMap<String, Integer>();
+		for(Identity identity : mIdentities)
+			priorities.put(identity.getID(), mRandom.nextInt(4));
+
+		IdentityFileDiskQueue.PriorityCallback callback
+				= new IdentityFileDiskQueue.PriorityCallback() {
+			@Override public int getPriority(FreenetURI identityFileURI) {
+				return priorities.get(
+					IdentityID.constructAndValidateFromURI(identityFileURI).toString());
+			}
+		};
+
+		IdentityFileDiskQueue queue = constructQueue(callback);
+		for(Identity identity : mIdentities)
+			queue.add(constructFile(identity, 1));
+
+		// The aging doesn't change the order as the files are queued within much less than
+		// IdentityFileDiskQueue.AGING_MILLISECONDS.
+		ArrayList<Identity> expected = new ArrayList<Identity>();
+		for(int priority = 0; priority < 4; ++priority) {
+			for(Identity identity : mIdentities) {
+				if(priorities.get(identity.getID()) == priority)
+					expected.add(identity);
+			}
+		}
+
+		for(int restart = 0; restart < 2; ++restart) {
+			for(int i = 0; i < expected.size() / 2; ++i) {
+				IdentityFileStream file = queue.poll();
+				assertEquals(expected.remove(0).getID(),
+					IdentityID.constructAndValidateFromURI(file.mURI).toString());
+				file.mXMLInputStream.close();
+			}
+
+			queue = constructQueue(callback);
+		}
+
+		for(Identity identity : expected) {
+			IdentityFileStream file = queue.poll();
+			assertEquals(identity.getID(),
+				IdentityID.constructAndValidateFromURI(file.mURI).toString());
+			file.mXMLInputStream.close();
+		}
+		assertNull(queue.poll());
+		assertTrue(queue.getStatistics().mConvergenceTimeMilliseconds >= 0);
+	}
+
+	/** Files which were polled must not reappear after a restart, the others must. */
+	@Test public void testRestart() throws IOException {
+		IdentityFileDiskQueue queue = constructQueue();
+		HashMap<String, Long> expected = new HashMap<String, Long>();
+
+		for(Identity identity : mIdentities) {
+			long edition = mRandom.nextInt(10);
+			queue.add(constructFile(identity, edition));
+			queue.add(constructFile(identity, edition + 1));
+			expected.put(identity.getID(), edition + 1);
+		}
+
+		for(int i = 0; i < mIdentities.size() / 2; ++i) {
+			IdentityFileStream file = queue.poll();
+			expected.remove(IdentityID.constructAndValidateFromURI(file.mURI).toString());
+			file.mXMLInputStream.close();
+		}
+
+		queue = constructQueue();
+		assertEquals(expected.size(), queue.getStatistics().mQueuedFiles);
+		assertPollsAll(queue, expected, mIdentities);
+
+		assertEquals(0, constructQueue().getStatistics().mQueuedFiles);
+	}
+
+	/**
+	 * Queues and polls many more files than fit into {@link #SEGMENT_SIZE} and checks that the
+	 * dead segments are deleted. */
+	@Test public void testCompaction() throws IOException {
+		IdentityFileDiskQueue queue = constructQueue();
+		HashMap<String, Long> expected = new HashMap<String, Long>();
+
+		for(long edition = 0; edition < 50; ++edition) {
+			for(Identity identity : mIdentities) {
+				queue.add(constructFile(identity, edition));
+				expected.put(identity.getID(), edition);
+			}
+
+			if(edition % 5 == 0) {
+				IdentityFileStream file = queue.poll();
+				expected.remove(IdentityID.constructAndValidateFromURI(file.mURI).toString());
+				file.mXMLInputStream.close();
+			}
+		}
+
+		File segmentDir = new File(new File(mDirectory, "IdentityFileQueue"), "Segments");
+		int segments = segmentDir.listFiles().length;
+		// The live files need about 2 segments, so this is generous.
+		assertTrue("Segments: " + segments, segments <= 10);
+
+		queue = constructQueue();
+		assertEquals(expected.size(), queue.getStatistics().mQueuedFiles);
+		assertPollsAll(queue, expected, mIdentities);
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
@@ -0,0 +1,276 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.reflect.Field;
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.xml.transform.TransformerException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.Identity.FetchState;
+import plugins.WebOfTrust.Identity.IdentityID;
+import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.keys.FreenetURI;
+import freenet.support.PooledExecutor;
+import freenet.support.PrioritizedTicker;
+
+/**
+ * Tests the parse-ahead pipeline of {@link IdentityFileProcessor}: Failures of single files,
+ * the statistics, and termination while files are being parsed.
+ * The import itself is tested by {@link IdentityFileQueueTest}. */
+public final class IdentityFileProcessorTest extends AbstractJUnit4BaseTest {
+
+	/** Source of the identity files. */
+	private WebOfTrust mWebOfTrust = null;
+
+	/** Into which the identity files are imported. Knows the OwnIdentitys of the source. */
+	private WebOfTrust mTarget = null;
+
+	/** URIs of the identity files of {@link #mXML}, in the same order. */
+	private ArrayList<FreenetURI> mURIs = null;
+
+	private ArrayList<byte[]> mXML = null;
+
+	private ParserExecutor mExecutor = null;
+
+	private IdentityFileMemoryQueue mQueue = null;
+
+	private IdentityFileProcessor mProcessor = null;
+
+
+	/**
+	 * Runs the {@link IdentityFileProcessor.Parser}s like a {@link PooledExecutor}, but lets
+	 * the tests interfere with them. */
+	private static final class ParserExecutor extends PooledExecutor {
+		/** Parsers of this URI fail as if their thread had a bug. */
+		volatile FreenetURI mFailingURI = null;
+
+		/** Parsers of this URI wait for {@link #mBlockedParserRelease}. */
+		volatile FreenetURI mBlockedURI = null;
+
+		final CountDownLatch mBlockedParserStarted = new CountDownLatch(1);
+
+		final CountDownLatch mBlockedParserRelease = new CountDownLatch(1);
+
+		/** Number of parsers which were passed to {@link #execute(Runnable, String)} and have not
+		 *  finished yet. */
+		final AtomicInteger mRunningParsers = new AtomicInteger(0);
+
+		@Override public void execute(final Runnable job, String jobName) {
+			if(!jobName.equals("WOT IdentityFileProcessor parser")) {
+				super.execute(job, jobName);
+				return;
+			}
+
+			final FreenetURI uri = (FreenetURI)getField(job, "mURI");
+			mRunningParsers.incrementAndGet();
+
+			super.execute(new Runnable() { @Override public void run() {
+				try {
+					if(uri.equals(mBlockedURI)) {
+						mBlockedParserStarted.countDown();
+						try {
+							mBlockedParserRelease.await();
+						} catch(InterruptedException e) {
+							throw new RuntimeException(e);
+						}
+					}
+
+					try {
+						if(uri.equals(mFailingURI))
+							setField(job, "mXML", null); // Causes a NullPointerException
+
+						job.run();
+					} catch(RuntimeException e) {
+						assertEquals(mFailingURI, uri);
+					}
+				} finally {
+					mRunningParsers.decrementAndGet();
+				}
+			}}, jobName);
+		}
+
+		private static Object getField(Object object, String name) {
+			try {
+				Field field = object.getClass().getDeclaredField(name);
+				field.setAccessible(true);
+				return field.get(object);
+			} catch(ReflectiveOperationException e) {
+				throw new RuntimeException(e);
+			}
+		}
+
+		private static void setField(Object object, String name, Object value) {
+			try {
+				Field field = object.getClass().getDeclaredField(name);
+				field.setAccessible(true);
+				field.set(object, value);
+			} catch(ReflectiveOperationException e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+
+
+	@Before public void setUp()
+			throws MalformedURLException, InvalidParameterException, UnknownIdentityException,
+			TransformerException {
+
+		mWebOfTrust = constructEmptyWebOfTrust();
+		mTarget = constructEmptyWebOfTrust();
+
+		final ArrayList<OwnIdentity> ownIdentities = addRandomOwnIdentities(5);
+		@SuppressWarnings("unchecked")
+		final ArrayList<Identity> ownIdentitiesCasted
+			= (ArrayList<Identity>) (ArrayList<? extends Identity>)ownIdentities;
+		addRandomTrustValues(ownIdentitiesCasted, 10);
+
+		mURIs = new ArrayList<FreenetURI>(ownIdentities.size());
+		mXML = new ArrayList<byte[]>(ownIdentities.size());
+
+		for(OwnIdentity identity : ownIdentities) {
+			// Re-query since we only have a clone() but db4o needs the original
+			identity = mWebOfTrust.getOwnIdentityByID(identity.getID());
+			identity.setPublishTrustList(true);
+			// Newer than the edition of the restored OwnIdentity, so the file is imported.
+			identity.setEdition(identity.getEdition() + 1);
+			identity.storeAndCommit();
+
+			ByteArrayOutputStream bos
+				= new ByteArrayOutputStream(XMLTransformer.MAX_IDENTITY_XML_BYTE_SIZE + 1);
+			mWebOfTrust.getXMLTransformer().exportOwnIdentity(identity, bos);
+			mURIs.add(identity.getRequestURI());
+			mXML.add(bos.toByteArray());
+
+			mTarget.restoreOwnIdentity(identity.getInsertURI());
+		}
+
+		mExecutor = new ParserExecutor();
+		mQueue = new IdentityFileMemoryQueue();
+		mProcessor = new IdentityFileProcessor(mQueue, new PrioritizedTicker(mExecutor, 0),
+			mTarget.getXMLTransformer());
+		mProcessor.start();
+	}
+
+	private void enqueue(int file) {
+		mQueue.add(new IdentityFileStream(mURIs.get(file),
+			new ByteArrayInputStream(mXML.get(file))));
+	}
+
+	private boolean isImported(int file) throws UnknownIdentityException {
+		final String id = IdentityID.constructAndValidateFromURI(mURIs.get(file)).toString();
+		return mTarget.getOwnIdentityByID(id).getCurrentEditionFetchState() == FetchState.Fetched;
+	}
+
+	/** A file whose {@link IdentityFileProcessor.Parser} fails must not affect the others. */
+	@Test public void testParserFailure() throws InterruptedException, UnknownIdentityException {
+		final int failing = mRandom.nextInt(mURIs.size());
+		mExecutor.mFailingURI = mURIs.get(failing);
+
+		for(int i = 0; i < mURIs.size(); ++i)
+			enqueue(i);
+
+		IdentityFileProcessor.Statistics stats;
+		do {
+			Thread.sleep(100);
+			stats = mProcessor.getStatistics();
+		} while(stats.mProcessedFiles + stats.mFailedFiles < mURIs.size());
+
+		mProcessor.terminate();
+		mProcessor.waitForTermination(Long.MAX_VALUE);
+
+		stats = mProcessor.getStatistics();
+		assertEquals(1, stats.mFailedFiles);
+		assertEquals(mURIs.size() - 1, stats.mProcessedFiles);
+		assertTrue(stats.mParsingTimeNanoseconds > 0);
+		assertEquals(0, mExecutor.mRunningParsers.get());
+
+		for(int i = 0; i < mURIs.size(); ++i)
+			assertEquals(i != failing, isImported(i));
+	}
+
+	/**
+	 * The files which are parsed already must be imported while the next file is still being
+	 * parsed, instead of waiting for a full batch. */
+	@Test public void testImportWhileParsing()
+			throws InterruptedException, UnknownIdentityException {
+
+		mExecutor.mBlockedURI = mURIs.get(1);
+		enqueue(0);
+		enqueue(1);
+
+		assertTrue(mExecutor.mBlockedParserStarted.await(1, MINUTES));
+		while(mProcessor.getStatistics().mProcessedFiles == 0)
+			Thread.sleep(10);
+
+		assertTrue(isImported(0));
+		assertFalse(isImported(1));
+
+		mExecutor.mBlockedParserRelease.countDown();
+		while(mProcessor.getStatistics().mProcessedFiles < 2)
+			Thread.sleep(10);
+
+		assertTrue(isImported(1));
+		assertEquals(0, mProcessor.getStatistics().mFailedFiles);
+
+		mProcessor.terminate();
+		mProcessor.waitForTermination(Long.MAX_VALUE);
+	}
+
+	/**
+	 * Upon {@link IdentityFileProcessor#terminate()} while waiting for a parser, the files which
+	 * were parsed already must not be imported, and
+	 * {@link IdentityFileProcessor#waitForTermination(long)} must wait for the running
+	 * parsers. */
+	@Test public void testTerminateWhileParsing()
+			throws InterruptedException, UnknownIdentityException {
+
+		// The processor only waits for a parser if it has nothing to import, so block the first.
+		mExecutor.mBlockedURI = mURIs.get(0);
+		enqueue(0);
+		enqueue(1);
+
+		assertTrue(mExecutor.mBlockedParserStarted.await(1, MINUTES));
+		// Wait for the second file to be parsed, it must not be imported before the first one.
+		while(mExecutor.mRunningParsers.get() > 1)
+			Thread.sleep(10);
+
+		mProcessor.terminate();
+
+		// Release the blocked parser after a delay so waitForTermination() must wait for it.
+		new Thread() { @Override public void run() {
+			try {
+				Thread.sleep(100);
+			} catch(InterruptedException e) {
+				throw new RuntimeException(e);
+			} finally {
+				mExecutor.mBlockedParserRelease.countDown();
+			}
+		}}.start();
+
+		mProcessor.waitForTermination(Long.MAX_VALUE);
+		assertEquals(0, mExecutor.mRunningParsers.get());
+		assertEquals(0, mProcessor.getStatistics().mProcessedFiles);
+		assertFalse(isImported(0));
+		assertFalse(isImported(1));
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mTarget;
+	}
+
+}
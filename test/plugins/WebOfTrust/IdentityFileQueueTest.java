@@ -201,14 +201,20 @@ public class IdentityFileQueueTest extends AbstractJUnit4BaseTest {
 		new ConcurrentEnqueuer().enqueue(mIdentityFiles1, queue1, proc1);	
 		new ConcurrentEnqueuer().enqueue(mIdentityFiles2, queue2, proc2);
 		
+		// The files are enqueued in random order, so older editions may be skipped.
+		IdentityFileProcessor.Statistics stats1;
+		IdentityFileProcessor.Statistics stats2;
 		do {
 			Thread.sleep(100);
+			stats1 = proc1.getStatistics();
+			stats2 = proc2.getStatistics();
 		} while(
 				queue1.getStatistics().mQueuedFiles != 0
 			 || queue2.getStatistics().mQueuedFiles != 0
-			 || proc1.getStatistics().mProcessedFiles != mIdentityFiles1.size()
+			 || stats1.mProcessedFiles + stats1.mSkippedFiles != mIdentityFiles1.size()
 			 // Deduplication can cause us to process less files than mIdentityFiles2.size()
-			 || proc2.getStatistics().mProcessedFiles != queue2.getStatistics().mFinishedFiles
+			 || stats2.mProcessedFiles + stats2.mSkippedFiles
+			        != queue2.getStatistics().mFinishedFiles
 		 );
 		
 		proc1.terminate();
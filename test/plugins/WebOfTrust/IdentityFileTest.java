@@ -0,0 +1,112 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import org.junit.Test;
+
+import plugins.WebOfTrust.IdentityFileQueue.IdentityFileStream;
+import freenet.keys.FreenetURI;
+import freenet.support.SimpleFieldSet;
+
+/** Tests the file format of {@link IdentityFile}. */
+public final class IdentityFileTest extends AbstractJUnit4BaseTest {
+
+	private IdentityFile constructFile(byte[] xml) {
+		FreenetURI uri = getRandomRequestURI();
+		return IdentityFile.read(new IdentityFileStream(uri, new ByteArrayInputStream(xml)));
+	}
+
+	/** @return XML which is as repetitive as a trust list. */
+	private byte[] getTrustListXML() {
+		StringBuilder xml = new StringBuilder();
+		xml.append("<?xml version=\"1.1\" encoding=\"UTF-8\" standalone=\"no\"?>\n");
+		xml.append("<WebOfTrust Version=\"1\">\n<Identity>\n<TrustList>\n");
+		for(int i = 0; i < 512; ++i) {
+			xml.append("<Trust Comment=\"\" Identity=\"" + getRandomRequestURI() + "\" Value=\""
+				+ (mRandom.nextInt(201) - 100) + "\"/>\n");
+		}
+		xml.append("</TrustList>\n</Identity>\n</WebOfTrust>\n");
+		return xml.toString().getBytes(XMLTransformer.XML_CHARSET);
+	}
+
+	private static byte[] write(IdentityFile file) throws IOException {
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		file.write(bos);
+		return bos.toByteArray();
+	}
+
+	private static IdentityFile read(byte[] serialized) {
+		return IdentityFile.read(new ByteArrayInputStream(serialized));
+	}
+
+	private static void assertFileEquals(IdentityFile expected, IdentityFile actual) {
+		assertEquals(expected.getURI(), actual.getURI());
+		assertArrayEquals(expected.mXML, actual.mXML);
+		assertEquals(expected.crc32(), actual.crc32());
+	}
+
+	@Test public void testCompressed() throws IOException {
+		IdentityFile file = constructFile(getTrustListXML());
+		byte[] serialized = write(file);
+
+		// The random keys of the trustees only compress to the 6 bits per character of Base64,
+		// the rest should nearly vanish. Real trust lists contain more redundant data.
+		assertTrue(serialized.length < file.mXML.length * 3 / 4);
+		assertFileEquals(file, read(serialized));
+	}
+
+	/** Data which doesn't compress must be stored uncompressed. */
+	@Test public void testIncompressible() throws IOException {
+		byte[] xml = new byte[4096];
+		mRandom.nextBytes(xml);
+		IdentityFile file = constructFile(xml);
+		byte[] serialized = write(file);
+
+		assertTrue(serialized.length < xml.length + 512);
+		assertFileEquals(file, read(serialized));
+	}
+
+	/** Files of the previous format version, which was written by older WoT, must be readable. */
+	@Test public void testReadVersion6() throws IOException {
+		IdentityFile file = constructFile(getTrustListXML());
+
+		SimpleFieldSet sfs = new SimpleFieldSet(true);
+		sfs.setHeader("IdentityFile");
+		sfs.put("Version", IdentityFile.FILE_FORMAT_VERSION_UNCOMPRESSED);
+		sfs.putOverwrite("SourceURI", file.getURI().toString());
+		sfs.putOverwrite("CRC32", Long.toHexString(file.crc32()));
+		sfs.put("DataLength", file.mXML.length);
+		sfs.setEndMarker("Data");
+
+		ByteArrayOutputStream bos = new ByteArrayOutputStream();
+		sfs.writeTo(bos);
+		bos.write(file.mXML);
+
+		assertFileEquals(file, read(bos.toByteArray()));
+	}
+
+	@Test public void testCorruption() throws IOException {
+		byte[] serialized = write(constructFile(getTrustListXML()));
+		// Somewhere in the compressed data, which is at the end.
+		serialized[serialized.length - 1 - mRandom.nextInt(100)] ^= 1;
+
+		try {
+			read(serialized);
+			fail("Corruption should have been detected");
+		} catch(RuntimeException e) {
+			assertTrue(e.getCause() instanceof IOException);
+		}
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return null;
+	}
+
+}
@@ -0,0 +1,133 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.ListIterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.Persistent.InitializingObjectSet;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+
+import com.db4o.ObjectSet;
+
+/** Tests {@link InitializingObjectSet}. */
+public final class InitializingObjectSetTest extends AbstractJUnit4BaseTest {
+
+	/** More than one page so paging is tested as well. */
+	private static final int IDENTITY_COUNT = InitializingObjectSet.PAGE_SIZE * 2 + 3;
+
+	private WebOfTrust mWebOfTrust = null;
+
+
+	@Before public void setUp() throws MalformedURLException, InvalidParameterException {
+		mWebOfTrust = constructEmptyWebOfTrust();
+		addRandomIdentities(IDENTITY_COUNT);
+	}
+
+	private static ArrayList<Identity> toList(Iterable<Identity> identities) {
+		ArrayList<Identity> result = new ArrayList<Identity>();
+		for(Identity identity : identities)
+			result.add(identity);
+		return result;
+	}
+
+	@Test public void testMultipleIteration() {
+		synchronized(mWebOfTrust) {
+			final ObjectSet<Identity> identities = mWebOfTrust.getAllIdentities();
+			final ArrayList<Identity> first = toList(identities);
+			assertEquals(IDENTITY_COUNT, first.size());
+			assertEquals(first, toList(identities));
+
+			// Objects are the same as the ones which db4o returns, not copies
+			for(int i = 0; i < first.size(); ++i) {
+				assertSame(first.get(i), identities.get(i));
+				assertEquals(i, identities.indexOf(first.get(i)));
+				assertTrue(identities.contains(first.get(i)));
+			}
+
+			// The functions which ObjectSet inherits from Iterator
+			int count = 0;
+			while(identities.hasNext()) {
+				assertSame(first.get(count), identities.next());
+				++count;
+			}
+			assertEquals(IDENTITY_COUNT, count);
+			identities.reset();
+			assertSame(first.get(0), identities.next());
+		}
+	}
+
+	@Test public void testListIterator() {
+		synchronized(mWebOfTrust) {
+			final ObjectSet<Identity> identities = mWebOfTrust.getAllIdentities();
+			final ArrayList<Identity> expected = toList(identities);
+			final int start = InitializingObjectSet.PAGE_SIZE - 1;
+
+			final ListIterator<Identity> iterator = identities.listIterator(start);
+			for(int i = start; i < expected.size(); ++i) {
+				assertEquals(i, iterator.nextIndex());
+				assertSame(expected.get(i), iterator.next());
+			}
+			assertFalse(iterator.hasNext());
+
+			for(int i = expected.size() - 1; i >= 0; --i)
+				assertSame(expected.get(i), iterator.previous());
+			assertFalse(iterator.hasPrevious());
+
+			assertFalse(identities.listIterator(identities.size()).hasNext());
+			try {
+				identities.listIterator(identities.size() + 1);
+				fail("Index out of bounds must throw");
+			} catch(IndexOutOfBoundsException e) {}
+		}
+	}
+
+	/**
+	 * Objects which were deleted after the query must be skipped by the iterators, and returned
+	 * as null by get() while still being counted by size(). */
+	@Test public void testDeletion() {
+		// Locks needed by deleteWithoutCommit(Identity)
+		synchronized(mWebOfTrust) {
+		synchronized(mWebOfTrust.getIntroductionPuzzleStore()) {
+		synchronized(mWebOfTrust.getIdentityFetcher()) {
+		synchronized(mWebOfTrust.getSubscriptionManager()) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			final ObjectSet<Identity> identities = mWebOfTrust.getAllIdentities();
+			final ArrayList<Identity> expected = toList(identities);
+			final Identity deleted = expected.remove(InitializingObjectSet.PAGE_SIZE);
+
+			try {
+				mWebOfTrust.beginTrustListImport();
+				mWebOfTrust.deleteWithoutCommit(deleted);
+				mWebOfTrust.finishTrustListImport();
+				Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+			} catch(RuntimeException e) {
+				mWebOfTrust.abortTrustListImport(e);
+				throw e;
+			}
+
+			assertEquals(expected, toList(identities));
+			assertFalse(identities.contains(deleted));
+			assertEquals(expected.size() + 1, identities.size());
+			assertNull(identities.get(InitializingObjectSet.PAGE_SIZE));
+			assertSame(expected.get(InitializingObjectSet.PAGE_SIZE),
+				identities.get(InitializingObjectSet.PAGE_SIZE + 1));
+		}
+		}
+		}
+		}
+		}
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
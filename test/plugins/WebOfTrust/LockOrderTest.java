@@ -0,0 +1,63 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.LockOrder.Lock;
+
+/** Tests the debug mode of {@link LockOrder}. */
+public final class LockOrderTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	private LockOrder mLockOrder = null;
+
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+		mLockOrder = mWebOfTrust.getLockOrder();
+	}
+
+	@Test public void testMayAcquire() {
+		for(Lock lock : Lock.values())
+			assertTrue(mLockOrder.mayAcquire(lock));
+
+		synchronized(mLockOrder.getMonitor(Lock.WEB_OF_TRUST)) {
+		synchronized(mLockOrder.getMonitor(Lock.IDENTITY_FETCHER)) {
+			// Skipping locks is allowed.
+			assertTrue(mLockOrder.mayAcquire(Lock.SUBSCRIPTION_MANAGER));
+			assertTrue(mLockOrder.mayAcquire(Lock.TRANSACTION));
+			// Re-entering a held lock is allowed.
+			assertTrue(mLockOrder.mayAcquire(Lock.WEB_OF_TRUST));
+			assertTrue(mLockOrder.mayAcquire(Lock.IDENTITY_FETCHER));
+			// Taking a lock which comes before a held one is not.
+			assertFalse(mLockOrder.mayAcquire(Lock.INTRODUCTION_PUZZLE_STORE));
+		}
+		}
+
+		synchronized(mLockOrder.getMonitor(Lock.TRANSACTION)) {
+			assertFalse(mLockOrder.mayAcquire(Lock.WEB_OF_TRUST));
+			assertFalse(mLockOrder.mayAcquire(Lock.SUBSCRIPTION_MANAGER));
+			assertTrue(mLockOrder.mayAcquire(Lock.TRANSACTION));
+		}
+	}
+
+	/** Checks that the asserts in the write paths don't fire upon legitimate usage. */
+	@Test public void testWritePaths() throws Exception {
+		doRandomChangesToWOT(100);
+
+		synchronized(mWebOfTrust) {
+			doRandomChangesToWOT(100);
+		}
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
@@ -0,0 +1,124 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+import static org.junit.Assert.*;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.LockOrder.Lock;
+import plugins.WebOfTrust.LockStatistics.Acquisition;
+import plugins.WebOfTrust.LockStatistics.Histogram;
+import plugins.WebOfTrust.LockStatistics.Site;
+import plugins.WebOfTrust.LockStatistics.SiteStatistics;
+
+/** Tests {@link LockStatistics} with a monitor which stands in for the {@link Lock}s. */
+public final class LockStatisticsTest {
+
+	private static final Site HOLDER = new Site("LockStatisticsTest.holder");
+
+	private static final Site WAITER = new Site("LockStatisticsTest.waiter");
+
+	private static final long HOLD_TIME_MILLISECONDS = 100;
+
+	private final Object mMonitor = new Object();
+
+	private LockStatistics mStatistics;
+
+
+	@Before public void setUp() {
+		mStatistics = new LockStatistics();
+	}
+
+	@Test public void testDisabled() {
+		assertFalse(mStatistics.isEnabled());
+		Acquisition acquisition = mStatistics.begin(WAITER);
+		synchronized(mMonitor) {
+			acquisition.acquired(Lock.WEB_OF_TRUST);
+			acquisition.released();
+		}
+		assertEquals(0, mStatistics.getStatistics().size());
+	}
+
+	@Test public void testContention() throws InterruptedException {
+		mStatistics.setEnabled(true);
+		final CountDownLatch holding = new CountDownLatch(1);
+
+		Thread holder = new Thread() {
+			@Override public void run() {
+				Acquisition acquisition = mStatistics.begin(HOLDER);
+				synchronized(mMonitor) {
+					acquisition.acquired(Lock.WEB_OF_TRUST);
+					try {
+						holding.countDown();
+						Thread.sleep(HOLD_TIME_MILLISECONDS);
+					} catch(InterruptedException e) {
+						throw new RuntimeException(e);
+					} finally {
+						acquisition.released();
+					}
+				}
+			}
+		};
+		holder.start();
+		holding.await();
+
+		Acquisition acquisition = mStatistics.begin(WAITER);
+		synchronized(mMonitor) {
+			acquisition.acquired(Lock.WEB_OF_TRUST);
+			acquisition.released();
+		}
+		holder.join();
+
+		List<SiteStatistics> sites = mStatistics.getStatistics();
+		assertEquals(2, sites.size());
+		// Sorted by name
+		SiteStatistics holderStatistics = sites.get(0);
+		SiteStatistics waiterStatistics = sites.get(1);
+		assertSame(HOLDER, holderStatistics.getSite());
+		assertSame(WAITER, waiterStatistics.getSite());
+
+		Histogram holdTimes = holderStatistics.getHoldTimes();
+		assertEquals(1, holdTimes.getCount());
+		assertTrue(holdTimes.getTotalNanoseconds()
+			>= MILLISECONDS.toNanos(HOLD_TIME_MILLISECONDS));
+		assertEquals(0, holderStatistics.getContenders(Lock.WEB_OF_TRUST).size());
+
+		Histogram waitTimes = waiterStatistics.getWaitTimes(Lock.WEB_OF_TRUST);
+		assertEquals(1, waitTimes.getCount());
+		assertTrue(waitTimes.getTotalNanoseconds()
+			>= LockStatistics.CONTENTION_THRESHOLD_NANOSECONDS);
+		assertEquals(Long.valueOf(1),
+			waiterStatistics.getContenders(Lock.WEB_OF_TRUST).get(HOLDER));
+
+		long bucketSum = 0;
+		for(int i = 0; i < Histogram.SIZE; ++i)
+			bucketSum += waitTimes.getBucket(i);
+		assertEquals(1, bucketSum);
+
+		mStatistics.clear();
+		assertEquals(0, mStatistics.getStatistics().size());
+	}
+
+	@Test public void testHistogramBuckets() {
+		Histogram histogram = new Histogram();
+		histogram.add(999); // < 1us
+		histogram.add(1000); // [1us, 2us)
+		histogram.add(3999); // [2us, 4us)
+		histogram.add(Long.MAX_VALUE);
+		assertEquals(1, histogram.getBucket(0));
+		assertEquals(1, histogram.getBucket(1));
+		assertEquals(1, histogram.getBucket(2));
+		assertEquals(1, histogram.getBucket(Histogram.SIZE - 1));
+		assertEquals(1000, Histogram.getUpperBoundNanoseconds(0));
+		assertEquals(4000, Histogram.getUpperBoundNanoseconds(2));
+		assertEquals(Long.MAX_VALUE, Histogram.getUpperBoundNanoseconds(Histogram.SIZE - 1));
+	}
+
+}
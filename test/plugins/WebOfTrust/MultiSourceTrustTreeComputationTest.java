@@ -0,0 +1,83 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+
+/**
+ * Tests whether {@link MultiSourceTrustTreeComputation} yields the same results as executing a
+ * {@link TrustTreeComputation} for each {@link OwnIdentity}. */
+public final class MultiSourceTrustTreeComputationTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Test public void testEqualToTrustTreeComputation() throws InvalidParameterException,
+			MalformedURLException, NotTrustedException {
+
+		ArrayList<Identity> identitys = addRandomIdentities(10, 100);
+		addRandomTrustValues(identitys, 1000);
+		doRandomChangesToWOT(200);
+
+		TrustGraph graph = mWebOfTrust.getTrustGraph().snapshot();
+		ArrayList<OwnIdentity> treeOwners
+			= new ArrayList<OwnIdentity>(mWebOfTrust.getAllOwnIdentities());
+		int[] treeOwnerIndices = new int[treeOwners.size()];
+		int[] treeOwnerRanks = new int[treeOwners.size()];
+
+		for(int i = 0; i < treeOwners.size(); ++i) {
+			OwnIdentity treeOwner = treeOwners.get(i);
+			treeOwnerIndices[i] = graph.getIndex(treeOwner.getID());
+			treeOwnerRanks[i] = mWebOfTrust.getScore(treeOwner, treeOwner).getRank();
+		}
+
+		// Test the special cases of treeOwners without a rank and with a non-zero one.
+		treeOwnerRanks[0] = -1;
+		treeOwnerRanks[1] = 3;
+
+		MultiSourceTrustTreeComputation multiSource
+			= new MultiSourceTrustTreeComputation(graph, treeOwnerIndices, treeOwnerRanks);
+		multiSource.invoke();
+		List<TrustTreeComputation> multiSourceTrees = multiSource.getTrees();
+		assertEquals(treeOwners.size(), multiSourceTrees.size());
+
+		for(int i = 0; i < treeOwners.size(); ++i) {
+			TrustTreeComputation expected
+				= new TrustTreeComputation(graph, treeOwnerIndices[i], treeOwnerRanks[i]);
+			expected.invoke();
+			TrustTreeComputation actual = multiSourceTrees.get(i);
+
+			assertEquals(expected.getTreeOwnerRank(), actual.getTreeOwnerRank());
+
+			for(int identity = 0; identity < graph.getIdentityCount(); ++identity) {
+				assertEquals(expected.getRank(identity), actual.getRank(identity));
+				assertEquals(expected.getCapacity(identity), actual.getCapacity(identity));
+				if(expected.getRank(identity) != -1)
+					assertEquals(expected.getScore(identity), actual.getScore(identity));
+			}
+		}
+
+		// The whole computation must still match the stored Scores.
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
@@ -0,0 +1,183 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.DuplicateIdentityException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.support.Logger.LogLevel;
+
+/**
+ * Tests the {@link ObjectCache}s of {@link WebOfTrust}, especially that their contents don't
+ * survive transaction rollback. */
+public final class ObjectCacheTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	private OwnIdentity mTruster = null;
+
+	private Identity mTrustee = null;
+
+	private ObjectCache<?> mIdentityCache = null;
+
+	private ObjectCache<?> mTrustCache = null;
+
+
+	@Before public void setUp() throws MalformedURLException, InvalidParameterException {
+		mWebOfTrust = constructEmptyWebOfTrust();
+		mTruster = addRandomOwnIdentities(1).get(0);
+		mTrustee = addRandomIdentities(1).get(0);
+		mIdentityCache = mWebOfTrust.getObjectCaches().get(0);
+		mTrustCache = mWebOfTrust.getObjectCaches().get(1);
+		assertSame(Identity.class, mIdentityCache.getType());
+		assertSame(Trust.class, mTrustCache.getType());
+	}
+
+	@Test public void testGet() throws UnknownIdentityException {
+		synchronized(mWebOfTrust) {
+			final long hits = mIdentityCache.getHits();
+			final Identity identity = mWebOfTrust.getIdentityByID(mTrustee.getID());
+			assertSame(identity, mWebOfTrust.getIdentityByID(mTrustee.getID()));
+			assertEquals(hits + 1, mIdentityCache.getHits());
+			// OwnIdentitys are cached as well
+			assertSame(mWebOfTrust.getIdentityByID(mTruster.getID()),
+				mWebOfTrust.getIdentityByID(mTruster.getID()));
+		}
+	}
+
+	@Test public void testDelete() throws Exception {
+		mWebOfTrust.setTrust(mTruster.getID(), mTrustee.getID(), (byte)100, "");
+		synchronized(mWebOfTrust) {
+			mWebOfTrust.getTrust(mTruster.getID(), mTrustee.getID());
+			assertEquals(1, mTrustCache.getSize());
+		}
+
+		mWebOfTrust.removeTrust(mTruster.getID(), mTrustee.getID());
+		synchronized(mWebOfTrust) {
+			assertEquals(0, mTrustCache.getSize());
+			try {
+				mWebOfTrust.getTrust(mTruster.getID(), mTrustee.getID());
+				fail("Deleted Trust is still cached");
+			} catch(NotTrustedException e) {}
+		}
+	}
+
+	/** Storing a duplicate of a cached object must not hide it from the duplicate check. */
+	@Test public void testDuplicate() throws UnknownIdentityException {
+		synchronized(mWebOfTrust) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			final Identity identity = mWebOfTrust.getIdentityByID(mTrustee.getID());
+			assertSame(identity, mWebOfTrust.getIdentityByID(mTrustee.getID()));
+
+			final long invalidations = mIdentityCache.getInvalidations();
+			identity.clone().storeWithoutCommit();
+			assertEquals(invalidations + 1, mIdentityCache.getInvalidations());
+
+			try {
+				mWebOfTrust.getIdentityByID(mTrustee.getID());
+				fail("Duplicate was not detected");
+			} catch(DuplicateIdentityException e) {
+			} finally {
+				Persistent.checkedRollback(mWebOfTrust.getDatabase(), this,
+					new RuntimeException(), LogLevel.NORMAL);
+			}
+		}
+		}
+	}
+
+	/** A cached object which was created in a rolled back transaction must not be returned. */
+	@Test public void testRollbackOfCreation() throws Exception {
+		synchronized(mWebOfTrust) {
+		synchronized(mWebOfTrust.getIdentityFetcher()) {
+		synchronized(mWebOfTrust.getSubscriptionManager()) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			mWebOfTrust.beginTrustListImport();
+			mWebOfTrust.setTrustWithoutCommit(mTruster, mTrustee, (byte)100, "");
+			mWebOfTrust.getTrust(mTruster.getID(), mTrustee.getID());
+			assertEquals(1, mTrustCache.getSize());
+			final long invalidations = mTrustCache.getInvalidations();
+			mWebOfTrust.abortTrustListImport(new RuntimeException(), LogLevel.NORMAL);
+			assertEquals(invalidations + 1, mTrustCache.getInvalidations());
+
+			try {
+				mWebOfTrust.getTrust(mTruster.getID(), mTrustee.getID());
+				fail("Rolled back Trust is still cached");
+			} catch(NotTrustedException e) {}
+		}
+		}
+		}
+		}
+	}
+
+	/**
+	 * The cache must not keep a modified object alive across a rollback: db4o does not revert the
+	 * in-memory object, it only re-reads it once it was garbage collected. */
+	@Test public void testRollbackOfModification() throws Exception {
+		mWebOfTrust.setTrust(mTruster.getID(), mTrustee.getID(), (byte)100, "");
+
+		synchronized(mWebOfTrust) {
+		synchronized(mWebOfTrust.getIdentityFetcher()) {
+		synchronized(mWebOfTrust.getSubscriptionManager()) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			mWebOfTrust.beginTrustListImport();
+			mWebOfTrust.setTrustWithoutCommit(mTruster, mTrustee, (byte)-100, "");
+			assertEquals(-100, mWebOfTrust.getTrust(mTruster, mTrustee).getValue());
+			assertEquals(1, mTrustCache.getSize());
+			final long invalidations = mTrustCache.getInvalidations();
+			mWebOfTrust.abortTrustListImport(new RuntimeException(), LogLevel.NORMAL);
+			// Not checking getSize() == 0: abortTrustListImport() may query the Trust from the
+			// database again when it asserts that the rollback worked.
+			assertEquals(invalidations + 1, mTrustCache.getInvalidations());
+		}
+		}
+		}
+		}
+	}
+
+	/** Like {@link DatabaseShutdownRollbackTest}: Nothing may be cached across a restart. */
+	@Test public void testRestart() throws Exception {
+		mWebOfTrust.setTrust(mTruster.getID(), mTrustee.getID(), (byte)100, "");
+		synchronized(mWebOfTrust) {
+			mWebOfTrust.getTrust(mTruster.getID(), mTrustee.getID());
+		}
+
+		final ObjectCache<?> oldTrustCache = mTrustCache;
+		final String database = mWebOfTrust.getDatabaseFile().toString();
+		mWebOfTrust.terminate();
+		assertTrue(mWebOfTrust.isTerminated());
+		assertEquals(0, oldTrustCache.getSize());
+
+		mWebOfTrust = new WebOfTrust(database);
+		mTrustCache = mWebOfTrust.getObjectCaches().get(1);
+		assertEquals(0, mTrustCache.getSize());
+		synchronized(mWebOfTrust) {
+			assertEquals(100, mWebOfTrust.getTrust(mTruster.getID(), mTrustee.getID()).getValue());
+		}
+	}
+
+	/** Size 0 is the configuration for disabling the cache. */
+	@Test public void testDisabled() {
+		ObjectCache<Identity> cache
+			= new ObjectCache<Identity>(mWebOfTrust.getDatabase(), Identity.class, 0);
+		synchronized(mWebOfTrust) {
+			cache.put(mTrustee);
+		}
+		assertEquals(0, cache.getSize());
+		assertNull(cache.get(mTrustee.getID()));
+		assertEquals(1, cache.getMisses());
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
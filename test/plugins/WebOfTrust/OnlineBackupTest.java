@@ -0,0 +1,203 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static java.util.concurrent.TimeUnit.MINUTES;
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+
+/** Tests {@link OnlineBackup}. */
+public final class OnlineBackupTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+	private ArrayList<Identity> mIdentities = null;
+
+	private File mBackupFile = null;
+
+
+	@Before public void setUp()
+			throws MalformedURLException, InvalidParameterException, NotTrustedException,
+			IOException {
+
+		mWebOfTrust = constructEmptyWebOfTrust();
+		mIdentities = addRandomIdentities(3, 30);
+		addRandomTrustValues(mIdentities, 200);
+
+		mBackupFile = new File(mTempFolder.newFolder(), "backup.db4o");
+	}
+
+	private OnlineBackup constructOnlineBackup() {
+		return new OnlineBackup(mWebOfTrust.getDatabase(), mWebOfTrust.getDirtyPageTracker(),
+			mBackupFile);
+	}
+
+	/** Opens the backup as a database and compares it to {@link #mWebOfTrust}. */
+	private void assertBackupEquals() {
+		assertFalse(new File(mBackupFile.getAbsolutePath() + ".incomplete").exists());
+
+		final WebOfTrust backup = new WebOfTrust(mBackupFile.toString());
+		try {
+			assertTrue(backup.verifyDatabaseIntegrity());
+			assertEquals(mWebOfTrust, backup);
+		} finally {
+			backup.terminate();
+			assertTrue(backup.isTerminated());
+		}
+	}
+
+	@Test public void testBackup()
+			throws IOException, InterruptedException, MalformedURLException,
+			InvalidParameterException, NotTrustedException {
+
+		final OnlineBackup onlineBackup = constructOnlineBackup();
+		onlineBackup.backup();
+
+		OnlineBackup.Statistics stats = onlineBackup.getStatistics();
+		assertFalse(stats.mRunning);
+		assertNotNull(stats.mLastBackupDate);
+		assertEquals(stats.mLastTotalPages, stats.mLastWrittenPages);
+		assertEquals(0, stats.mFailedBackups);
+		assertBackupEquals();
+
+		// The next backup is incremental.
+		addRandomTrustValues(mIdentities, 50);
+		onlineBackup.backup();
+		stats = onlineBackup.getStatistics();
+		assertTrue(stats.mLastWrittenPages <= stats.mLastTotalPages);
+		assertBackupEquals();
+	}
+
+	/** A new instance, as after a restart, must only write the pages which differ. */
+	@Test public void testBackupAfterRestart()
+			throws IOException, InterruptedException, MalformedURLException,
+			InvalidParameterException, NotTrustedException {
+
+		constructOnlineBackup().backup();
+
+		addRandomTrustValues(mIdentities, 50);
+		final OnlineBackup onlineBackup = constructOnlineBackup();
+		onlineBackup.backup();
+		final OnlineBackup.Statistics stats = onlineBackup.getStatistics();
+		assertTrue(stats.mLastWrittenPages <= stats.mLastTotalPages);
+		assertBackupEquals();
+	}
+
+	/**
+	 * A failed backup must keep the previous one, and the next backup must complete the working
+	 * file which it left behind. */
+	@Test public void testFailedBackup()
+			throws IOException, InterruptedException, MalformedURLException,
+			InvalidParameterException, NotTrustedException {
+
+		final OnlineBackup onlineBackup = constructOnlineBackup();
+		onlineBackup.backup();
+		final byte[] previousBackup = Files.readAllBytes(mBackupFile.toPath());
+
+		addRandomTrustValues(mIdentities, 50);
+		onlineBackup.setFinalPassCallback(new Runnable() { @Override public void run() {
+			throw new RuntimeException("Simulated failure of the backup");
+		}});
+		try {
+			onlineBackup.backup();
+			fail("The backup should have failed");
+		} catch(RuntimeException e) {}
+
+		assertEquals(1, onlineBackup.getStatistics().mFailedBackups);
+		assertTrue(new File(mBackupFile.getAbsolutePath() + ".incomplete").exists());
+		assertArrayEquals(previousBackup, Files.readAllBytes(mBackupFile.toPath()));
+
+		onlineBackup.setFinalPassCallback(null);
+		onlineBackup.backup();
+		assertBackupEquals();
+	}
+
+	/**
+	 * Backs up the database while another thread keeps changing Trust values. Pages which are
+	 * written during the copy must be copied again, and the final pass must yield the state of
+	 * the database at its end, as seen under the transaction lock.
+	 * The writer is stopped by the final pass itself, so the database stays in that state for
+	 * the comparison. */
+	@Test public void testBackupWhileWriting() throws InterruptedException, IOException {
+		final OnlineBackup onlineBackup = constructOnlineBackup();
+		
+		for(int run = 0; run < 2; ++run) { // The second backup is incremental
+			final AtomicBoolean stop = new AtomicBoolean(false);
+			final CountDownLatch started = new CountDownLatch(10);
+			
+			final Thread writer = new Thread() { @Override public void run() {
+				final Random random = new Random(mRandom.nextLong());
+				final WebOfTrust wot = mWebOfTrust;
+				
+				while(true) {
+					final Identity truster = mIdentities.get(random.nextInt(mIdentities.size()));
+					final Identity trustee = mIdentities.get(random.nextInt(mIdentities.size()));
+					if(truster == trustee)
+						continue;
+					
+					synchronized(wot) {
+					synchronized(wot.getIdentityFetcher()) {
+					synchronized(wot.getSubscriptionManager()) {
+					synchronized(Persistent.transactionLock(wot.getDatabase())) {
+						if(stop.get())
+							return;
+						
+						try {
+							wot.setTrustWithoutCommit(truster, trustee,
+								(byte)(random.nextInt(201) - 100), "");
+							Persistent.checkedCommit(wot.getDatabase(), this);
+						} catch(InvalidParameterException e) {
+							Persistent.checkedRollbackAndThrow(wot.getDatabase(), this,
+								new RuntimeException(e));
+						} catch(RuntimeException e) {
+							Persistent.checkedRollbackAndThrow(wot.getDatabase(), this, e);
+						}
+					}
+					}
+					}
+					}
+					
+					started.countDown();
+				}
+			}};
+			
+			// Run by the final pass while it holds the transaction lock, the writer checks the
+			// flag while holding it as well. So no commit happens after the final pass.
+			onlineBackup.setFinalPassCallback(new Runnable() { @Override public void run() {
+				stop.set(true);
+			}});
+			
+			writer.start();
+			try {
+				assertTrue(started.await(1, MINUTES));
+				onlineBackup.backup();
+			} finally {
+				stop.set(true);
+				writer.join();
+			}
+			
+			assertEquals(0, onlineBackup.getStatistics().mFailedBackups);
+			assertBackupEquals();
+		}
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
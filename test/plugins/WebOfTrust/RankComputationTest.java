@@ -21,7 +21,8 @@ import plugins.WebOfTrust.util.StopWatch;
 import freenet.support.TimeUtil;
 
 /**
- * Tests whether the 4 implementations of rank computation yield the same results:
+ * Tests whether the 5 implementations of rank computation yield the same results:
+ * - {@link BucketQueueRankComputer}
  * - {@link WebOfTrust#computeRankFromScratch_Caching(OwnIdentity, Identity, java.util.Map)}
  * - {@link WebOfTrust#computeRankFromScratch(OwnIdentity, Identity)}
  * - {@link WebOfTrust#computeRankFromScratch_Forward(OwnIdentity, Identity)}
@@ -33,7 +34,7 @@ import freenet.support.TimeUtil;
  * cache entries, the assert which tests its returned rank value (and determine it
  * to be wrong maybe) could make this test fail before it reaches the stage of testing the cache.
  * 
- * Also measures the execution time per rank for the first 3 of them. The last currently only
+ * Also measures the execution time per rank for the first 4 of them. The last currently only
  * receives measurement of the total time for a Score, which includes more computation than a rank.
  * TODO: Performance: Measure rank computation time of
  * {@link WebOfTrust#computeAllScoresWithoutCommit()}. This requires extracting a function
@@ -74,6 +75,7 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 		// Cannot measure computeAllScoresWithoutCommit() per-rank time, see function JavaDoc
 		System.out.println("computeAllScores() avg. time per SCORE: " + computeAllScoresTime);
 		
+		long time_rank_BucketQueueRankComputer = 0;
 		long time_rank_computeRankFromScratch_Caching = 0;
 		long time_rank_computeRankFromScratch = 0;
 		long time_rank_computeRankFromScratch_Forward = 0;
@@ -81,6 +83,9 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 		// For WebOfTrust.computeRankFromScratch_Caching()
 		final HashMap<String, Integer> rankCache = new HashMap<String, Integer>();
 		
+		final RankComputer bucketQueueRankComputer
+			= new BucketQueueRankComputer(mWebOfTrust, mWebOfTrust.getTrustGraph());
+		
 		for(OwnIdentity source : ownIdentitys) {
 			for(Identity target : identitys) {
 				int rank_computeAllScores;
@@ -90,6 +95,11 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 					rank_computeAllScores = -1;
 				}
 				
+				StopWatch tb = new StopWatch();
+				int rank_BucketQueueRankComputer
+					= bucketQueueRankComputer.computeRank(source, target);
+				time_rank_BucketQueueRankComputer += tb.getNanos();
+				
 				StopWatch t0 = new StopWatch();
 				int rank_computeRankFromScratch_Caching
 					= mWebOfTrust.computeRankFromScratch_Caching(source, target, rankCache);
@@ -111,6 +121,7 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 				
 				// System.out.println("computeRankFromScratch_Forward() time: " + t2);
 				
+				assertEquals(rank_computeAllScores, rank_BucketQueueRankComputer);
 				assertEquals(rank_computeAllScores, rank_computeRankFromScratch_Caching);
 				assertEquals(rank_computeAllScores, rank_computeRankFromScratch);
 				assertEquals(rank_computeAllScores, rank_computeRankFromScratch_Forward);
@@ -130,11 +141,15 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 		// cache was just empty and thus invalid.
 		assertEquals(rankCount, rankCache.size());
 		
+		time_rank_BucketQueueRankComputer /= rankCount;
 		time_rank_computeRankFromScratch_Caching /= rankCount;
 		time_rank_computeRankFromScratch /= rankCount;
 		time_rank_computeRankFromScratch_Forward /= rankCount;
 		
 		// TimeUtil wants millis, not nanos
+		time_rank_BucketQueueRankComputer
+			= TimeUnit.NANOSECONDS.toMillis(time_rank_BucketQueueRankComputer);
+
 		time_rank_computeRankFromScratch_Caching
 			= TimeUnit.NANOSECONDS.toMillis(time_rank_computeRankFromScratch_Caching);
 
@@ -144,6 +159,9 @@ public final class RankComputationTest extends AbstractJUnit4BaseTest {
 		time_rank_computeRankFromScratch_Forward
 			= TimeUnit.NANOSECONDS.toMillis(time_rank_computeRankFromScratch_Forward);
 		
+		System.out.println("BucketQueueRankComputer avg. time per rank: "
+			+ TimeUtil.formatTime(time_rank_BucketQueueRankComputer, 3, true));
+		
 		System.out.println("computeRankFromScratch_Caching() avg. time per rank: "
 			+ TimeUtil.formatTime(time_rank_computeRankFromScratch_Caching, 3, true));
 		
@@ -0,0 +1,180 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.ReadSnapshot.ScoreRecord;
+import plugins.WebOfTrust.ReadSnapshot.TrustRecord;
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.support.Logger;
+
+/** Tests whether {@link ReadSnapshot}s stay equal to the committed state of the database. */
+public final class ReadSnapshotTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Test public void testRandomChanges() throws DuplicateTrustException, NotTrustedException,
+			InvalidParameterException, UnknownIdentityException, MalformedURLException,
+			NotInTrustTreeException {
+
+		ArrayList<Identity> identitys = addRandomIdentities(5, 50);
+		addRandomTrustValues(identitys, 500);
+
+		ReadSnapshot snapshot = mWebOfTrust.getReadSnapshot();
+		assertEqualToDatabase(snapshot);
+		int identityCount = snapshot.getIdentityCount();
+		int trustCount = snapshot.getTrustCount();
+		int scoreCount = snapshot.getScoreCount();
+
+		ReadSnapshotPublisher publisher = mWebOfTrust.getReadSnapshotPublisher();
+		int loadCount = publisher.getLoadCount();
+		doRandomChangesToWOT(500);
+		ReadSnapshot newSnapshot = mWebOfTrust.getReadSnapshot();
+		assertEqualToDatabase(newSnapshot);
+		assertTrue(newSnapshot.getVersion() > snapshot.getVersion());
+		// The changes should have been applied incrementally instead of by re-loading.
+		assertEquals(loadCount, publisher.getLoadCount());
+
+		// Publishing the new snapshot must not have modified the old one.
+		assertEquals(identityCount, snapshot.getIdentityCount());
+		assertEquals(trustCount, snapshot.getTrustCount());
+		assertEquals(scoreCount, snapshot.getScoreCount());
+	}
+
+	@Test public void testRollback() throws InvalidParameterException, NotTrustedException,
+			MalformedURLException, UnknownIdentityException, NotInTrustTreeException {
+
+		ArrayList<Identity> identitys = addRandomIdentities(2, 10);
+		addRandomTrustValues(identitys, 50);
+
+		ReadSnapshot snapshot = mWebOfTrust.getReadSnapshot();
+		ReadSnapshotPublisher publisher = mWebOfTrust.getReadSnapshotPublisher();
+		int loadCount = publisher.getLoadCount();
+		assertEquals(50, snapshot.getTrustCount());
+
+		Trust trust = mWebOfTrust.getAllTrusts().get(0);
+		String trusterID = trust.getTruster().getID();
+		String trusteeID = trust.getTrustee().getID();
+		byte value = trust.getValue();
+
+		mWebOfTrust.beginTrustListImport();
+		mWebOfTrust.removeTrustWithoutCommit(trust);
+		// Uncommitted changes must not be published.
+		assertSame(snapshot, mWebOfTrust.getReadSnapshot());
+		// Rolls back the transaction
+		mWebOfTrust.abortTrustListImport(new Exception("Rollback for testing"),
+			Logger.LogLevel.MINOR);
+
+		snapshot = mWebOfTrust.getReadSnapshot();
+		assertEquals(value, snapshot.getTrust(trusterID, trusteeID).getValue());
+		assertEquals(50, snapshot.getTrustCount());
+		assertEqualToDatabase(snapshot);
+		// The rollback should have been detected without re-loading.
+		assertEquals(loadCount, publisher.getLoadCount());
+
+		mWebOfTrust.removeTrust(trusterID, trusteeID);
+		ReadSnapshot newSnapshot = mWebOfTrust.getReadSnapshot();
+		assertEquals(49, newSnapshot.getTrustCount());
+		try {
+			newSnapshot.getTrust(trusterID, trusteeID);
+			fail("Committed changes should be published");
+		} catch(NotTrustedException e) {}
+		assertEqualToDatabase(newSnapshot);
+		assertEquals(value, snapshot.getTrust(trusterID, trusteeID).getValue());
+	}
+
+	@Test public void testInvalidate() throws InvalidParameterException, MalformedURLException,
+			NotTrustedException, UnknownIdentityException, NotInTrustTreeException {
+
+		ArrayList<Identity> identitys = addRandomIdentities(2, 10);
+		addRandomTrustValues(identitys, 50);
+
+		ReadSnapshotPublisher publisher = mWebOfTrust.getReadSnapshotPublisher();
+		ReadSnapshot snapshot = mWebOfTrust.getReadSnapshot();
+		int loadCount = publisher.getLoadCount();
+
+		publisher.invalidate();
+		ReadSnapshot newSnapshot = mWebOfTrust.getReadSnapshot();
+		assertNotSame(snapshot, newSnapshot);
+		assertEquals(loadCount + 1, publisher.getLoadCount());
+		assertEqualToDatabase(newSnapshot);
+	}
+
+	private void assertEqualToDatabase(ReadSnapshot snapshot) throws UnknownIdentityException,
+			NotTrustedException, NotInTrustTreeException {
+
+		assertEquals(mWebOfTrust.getAllIdentities().size(), snapshot.getIdentityCount());
+		assertEquals(mWebOfTrust.getAllOwnIdentities().size(), snapshot.getOwnIdentityCount());
+		assertEquals(mWebOfTrust.getAllTrusts().size(), snapshot.getTrustCount());
+		assertEquals(mWebOfTrust.getAllScores().size(), snapshot.getScoreCount());
+
+		for(Identity identity : mWebOfTrust.getAllIdentities()) {
+			String id = identity.getID();
+			assertEquals(identity, snapshot.getIdentityByID(id));
+			assertEquals(mWebOfTrust.getGivenTrusts(identity).size(),
+				snapshot.getGivenTrusts(id).size());
+			assertEquals(mWebOfTrust.getReceivedTrusts(identity).size(),
+				snapshot.getReceivedTrusts(id).size());
+			assertEquals(mWebOfTrust.getScores(identity).size(),
+				snapshot.getReceivedScores(id).size());
+
+			for(int select = -1; select <= 1; ++select) {
+				assertEquals(mWebOfTrust.getGivenTrusts(identity, select).size(),
+					snapshot.getGivenTrustCount(id, select));
+				assertEquals(mWebOfTrust.getReceivedTrusts(identity, select).size(),
+					snapshot.getReceivedTrustCount(id, select));
+			}
+		}
+
+		for(OwnIdentity ownIdentity : mWebOfTrust.getAllOwnIdentities()) {
+			String id = ownIdentity.getID();
+			assertEquals(ownIdentity, snapshot.getOwnIdentityByID(id));
+			assertEquals(mWebOfTrust.getGivenScores(ownIdentity).size(),
+				snapshot.getGivenScores(id).size());
+
+			for(int select = -1; select <= 1; ++select) {
+				assertEquals(mWebOfTrust.getIdentitiesByScore(ownIdentity, select).size(),
+					snapshot.getIdentitiesByScore(id, select).size());
+			}
+		}
+
+		for(Trust trust : mWebOfTrust.getAllTrusts()) {
+			TrustRecord record
+				= snapshot.getTrust(trust.getTruster().getID(), trust.getTrustee().getID());
+			assertEquals(trust.getID(), record.getID());
+			assertEquals(trust.getValue(), record.getValue());
+			assertEquals(trust.getComment(), record.getComment());
+			assertEquals(trust.getTrusterEdition(), record.getTrusterEdition());
+		}
+
+		for(Score score : mWebOfTrust.getAllScores()) {
+			ScoreRecord record
+				= snapshot.getScore(score.getTruster().getID(), score.getTrustee().getID());
+			assertEquals(score.getScore(), record.getScore());
+			assertEquals(score.getRank(), record.getRank());
+			assertEquals(score.getCapacity(), record.getCapacity());
+		}
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
@@ -12,12 +12,15 @@ import java.net.MalformedURLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 import org.junit.Before;
 import org.junit.Test;
 
+import plugins.WebOfTrust.Score.ScoreID;
 import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotInTrustTreeException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.ui.terminal.WOTUtil;
@@ -649,14 +652,82 @@ public final class ScoreComputationBenchmark extends AbstractSingleNodeTest {
 			NotTrustedException, IOException {
 		
 		
-		final int ownIdentityCount = BENCHMARK_OWN_IDENTITY_COUNT;
+		WebOfTrust wot = getWebOfTrust();
+		ArrayList<OwnIdentity> ownIds = new ArrayList<OwnIdentity>();
+		ArrayList<Identity> ids = new ArrayList<Identity>();
+		int trustCount = createRandomTrustGraph(ownIds, ids);
+		int fullRecomputationsForSetup = wot.getNumberOfFullScoreRecomputations();
+		
+		// Setup complete. Now the actual benchmark follows: 
+		// We remove all trusts in the graph one-by-one, in random order.
+		
+		System.out.println("Removing complete graph of " + trustCount + " Trusts...");
+	
+		ArrayList<Trust> trusts = new ArrayList<Trust>(trustCount + 1);
+		// Workaround for https://bugs.freenetproject.org/view.php?id=6596 
+		for(Trust trust : mWebOfTrust.getAllTrusts())
+			trusts.add(trust.clone());
+		
+		Collections.shuffle(trusts, mRandom);
+		
+		FileWriter output = new FileWriter(GNUPLOT_OUTPUT, true);
+		
+		assertEquals(trustCount, trusts.size());
+		int i = trustCount;
+		StopWatch benchmarkTime = new StopWatch();
+		for(Trust trust : trusts) {
+			System.out.println("Processing Trust: " + i);
+			
+			// Try to exclude GC peaks from single trust benchmarks
+			System.gc();
+			
+			String trusterID = trust.getTruster().getID();
+			String trusteeID = trust.getTrustee().getID();
+			
+			StopWatch individualBenchmarkTime = new StopWatch(); 
+			wot.removeTrustIncludingNonOwn(trusterID, trusteeID);
+			individualBenchmarkTime.stop();
+			
+			double seconds = (double)individualBenchmarkTime.getNanos() / (1000000000d);
+			output.write(i + " " + seconds + '\n');
+			
+			--i;
+		}
+		benchmarkTime.stop();
+		int fullRecomputationsForRemoval
+			= wot.getNumberOfFullScoreRecomputations() - fullRecomputationsForSetup;
+		
+		output.close();
+		
+		System.out.println("Benchmark result time: " + benchmarkTime);
+		System.out.println("Full Score recomputations: " + fullRecomputationsForRemoval);
+	}
+
+	/**
+	 * Creates {@link #BENCHMARK_OWN_IDENTITY_COUNT} OwnIdentitys and
+	 * {@link #BENCHMARK_IDENTITY_COUNT} Identitys with random Trusts between them according to the
+	 * sample distributions. Adds them to the given lists.
+	 * 
+	 * @return The amount of Trusts which were created. */
+	private int createRandomTrustGraph(ArrayList<OwnIdentity> ownIds, ArrayList<Identity> ids)
+			throws InvalidParameterException, NumberFormatException, UnknownIdentityException,
+			NotTrustedException, MalformedURLException {
+		
+		return createRandomTrustGraph(BENCHMARK_OWN_IDENTITY_COUNT, ownIds, ids);
+	}
+
+	/**
+	 * Same as {@link #createRandomTrustGraph(ArrayList, ArrayList)} with a different amount of
+	 * OwnIdentitys. */
+	private int createRandomTrustGraph(int ownIdentityCount, ArrayList<OwnIdentity> ownIds,
+			ArrayList<Identity> ids) throws InvalidParameterException, NumberFormatException,
+			UnknownIdentityException, NotTrustedException, MalformedURLException {
+		
 		final int identityCount = BENCHMARK_IDENTITY_COUNT;
 
 		// Dataset created from paramenters:
 		
 		WebOfTrust wot = getWebOfTrust();
-		ArrayList<OwnIdentity> ownIds = new ArrayList<OwnIdentity>(ownIdentityCount + 1);
-		ArrayList<Identity> ids = new ArrayList<Identity>(identityCount + ownIdentityCount + 1);
 		ArrayList<Byte> trusValueDistribution;
 		ArrayList<Integer> trusteeCountDistribution;
 		int trustCount = 0;
@@ -708,11 +779,10 @@ public final class ScoreComputationBenchmark extends AbstractSingleNodeTest {
 		wot.finishTrustListImport();
 		setupTime.stop();
 		
-		int fullRecomputationsForSetup = mWebOfTrust.getNumberOfFullScoreRecomputations();
-		
 		System.out.println("Setup time: " + setupTime);
 		System.out.println("Trusts created: " + trustCount);
-		System.out.println("Full Score recomputations: " + fullRecomputationsForSetup);
+		System.out.println("Full Score recomputations: "
+			+ mWebOfTrust.getNumberOfFullScoreRecomputations());
 		
 		// Print Trust distribution histograms so you can check whether
 		// getRandomTrusteeCount() / getRandomTrustValue() produce the same histograms
@@ -720,49 +790,133 @@ public final class ScoreComputationBenchmark extends AbstractSingleNodeTest {
 		WOTUtil.trustValueHistogram(mWebOfTrust);
 		WOTUtil.trusteeCountHistogram(mWebOfTrust);
 		
-		// Setup complete. Now the actual benchmark follows: 
-		// We remove all trusts in the graph one-by-one, in random order.
-		
-		System.out.println("Removing complete graph of " + trustCount + " Trusts...");
-	
-		ArrayList<Trust> trusts = new ArrayList<Trust>(trustCount + 1);
-		// Workaround for https://bugs.freenetproject.org/view.php?id=6596 
-		for(Trust trust : mWebOfTrust.getAllTrusts())
-			trusts.add(trust.clone());
-		
-		Collections.shuffle(trusts, mRandom);
+		return trustCount;
+	}
+
+	/**
+	 * Compares the implementations of {@link RankComputer} by computing the ranks of all
+	 * Identitys in the trust trees of all OwnIdentitys, and checks that their results match
+	 * {@link WebOfTrust#computeAllScoresWithoutCommit()}. */
+	@Test
+	public void benchmark_rankComputers() throws InvalidParameterException,
+			NumberFormatException, UnknownIdentityException, NotTrustedException,
+			MalformedURLException {
 		
-		FileWriter output = new FileWriter(GNUPLOT_OUTPUT, true);
+		WebOfTrust wot = getWebOfTrust();
+		ArrayList<OwnIdentity> ownIds = new ArrayList<OwnIdentity>();
+		ArrayList<Identity> ids = new ArrayList<Identity>();
+		createRandomTrustGraph(ownIds, ids);
+		
+		HashMap<String, Integer> expectedRanks = new HashMap<String, Integer>();
+		for(OwnIdentity source : ownIds) {
+			for(Identity target : ids) {
+				int rank;
+				try {
+					rank = wot.getScore(source, target).getRank();
+				} catch(NotInTrustTreeException e) {
+					rank = -1;
+				}
+				expectedRanks.put(new ScoreID(source, target).toString(), rank);
+			}
+		}
 		
-		assertEquals(trustCount, trusts.size());
-		int i = trustCount;
-		StopWatch benchmarkTime = new StopWatch();
-		for(Trust trust : trusts) {
-			System.out.println("Processing Trust: " + i);
-			
-			// Try to exclude GC peaks from single trust benchmarks
+		synchronized(wot) {
 			System.gc();
+			StopWatch bucketQueueTime = new StopWatch();
+			RankComputer bucketQueue = wot.newRankComputer();
+			for(OwnIdentity source : ownIds) {
+				for(Identity target : ids) {
+					assertEquals(expectedRanks.get(new ScoreID(source, target).toString()),
+						(Integer)bucketQueue.computeRank(source, target));
+				}
+			}
+			bucketQueueTime.stop();
 			
-			String trusterID = trust.getTruster().getID();
-			String trusteeID = trust.getTrustee().getID();
-			
-			StopWatch individualBenchmarkTime = new StopWatch(); 
-			wot.removeTrustIncludingNonOwn(trusterID, trusteeID);
-			individualBenchmarkTime.stop();
-			
-			double seconds = (double)individualBenchmarkTime.getNanos() / (1000000000d);
-			output.write(i + " " + seconds + '\n');
+			System.gc();
+			StopWatch cachingTime = new StopWatch();
+			RankComputer caching = wot.newCachingRankComputer();
+			for(OwnIdentity source : ownIds) {
+				for(Identity target : ids) {
+					assertEquals(expectedRanks.get(new ScoreID(source, target).toString()),
+						(Integer)caching.computeRank(source, target));
+				}
+			}
+			cachingTime.stop();
 			
-			--i;
+			System.out.println("Ranks: " + expectedRanks.size());
+			System.out.println("BucketQueueRankComputer total time: " + bucketQueueTime);
+			System.out.println("computeRankFromScratch_Caching() total time: " + cachingTime);
 		}
-		benchmarkTime.stop();
-		int fullRecomputationsForRemoval
-			= wot.getNumberOfFullScoreRecomputations() - fullRecomputationsForSetup;
+	}
+
+	/**
+	 * Compares computing the trust trees of an increasing amount of OwnIdentitys with one
+	 * {@link TrustTreeComputation} per OwnIdentity against a single
+	 * {@link MultiSourceTrustTreeComputation}, and checks that their results match. */
+	@Test
+	public void benchmark_multiSourceTrustTreeComputation() throws InvalidParameterException,
+			NumberFormatException, UnknownIdentityException, NotTrustedException,
+			MalformedURLException {
 		
-		output.close();
+		WebOfTrust wot = getWebOfTrust();
+		ArrayList<OwnIdentity> ownIds = new ArrayList<OwnIdentity>();
+		ArrayList<Identity> ids = new ArrayList<Identity>();
+		createRandomTrustGraph(MultiSourceTrustTreeComputation.MAX_SOURCES, ownIds, ids);
 		
-		System.out.println("Benchmark result time: " + benchmarkTime);
-		System.out.println("Full Score recomputations: " + fullRecomputationsForRemoval);
+		synchronized(wot) {
+			TrustGraph graph = wot.getTrustGraph().snapshot();
+			
+			for(int sourceCount = 1; sourceCount <= ownIds.size(); sourceCount *= 2) {
+				int[] indices = new int[sourceCount];
+				int[] ranks = new int[sourceCount];
+				for(int i = 0; i < sourceCount; ++i) {
+					OwnIdentity source = ownIds.get(i);
+					indices[i] = graph.getIndex(source.getID());
+					try {
+						ranks[i] = wot.getScore(source, source).getRank();
+					} catch(NotInTrustTreeException e) {
+						ranks[i] = -1;
+					}
+				}
+				
+				System.gc();
+				StopWatch singleSourceTime = new StopWatch();
+				ArrayList<TrustTreeComputation> singleSourceTrees
+					= new ArrayList<TrustTreeComputation>(sourceCount);
+				for(int i = 0; i < sourceCount; ++i) {
+					TrustTreeComputation tree
+						= new TrustTreeComputation(graph, indices[i], ranks[i]);
+					tree.invoke();
+					singleSourceTrees.add(tree);
+				}
+				singleSourceTime.stop();
+				
+				System.gc();
+				StopWatch multiSourceTime = new StopWatch();
+				MultiSourceTrustTreeComputation multiSource
+					= new MultiSourceTrustTreeComputation(graph, indices, ranks);
+				multiSource.invoke();
+				List<TrustTreeComputation> multiSourceTrees = multiSource.getTrees();
+				multiSourceTime.stop();
+				
+				for(int i = 0; i < sourceCount; ++i) {
+					TrustTreeComputation expected = singleSourceTrees.get(i);
+					TrustTreeComputation actual = multiSourceTrees.get(i);
+					for(int identity = 0; identity < graph.getIdentityCount(); ++identity) {
+						assertEquals(expected.getRank(identity), actual.getRank(identity));
+						assertEquals(expected.getCapacity(identity), actual.getCapacity(identity));
+						if(expected.getRank(identity) != -1)
+							assertEquals(expected.getScore(identity), actual.getScore(identity));
+					}
+				}
+				
+				System.out.println("OwnIdentitys: " + sourceCount);
+				System.out.println("TrustTreeComputation per OwnIdentity: "
+					+ singleSourceTime.getNanos() / sourceCount / 1000 + " us");
+				System.out.println("MultiSourceTrustTreeComputation per OwnIdentity: "
+					+ multiSourceTime.getNanos() / sourceCount / 1000 + " us");
+			}
+		}
 	}
 
 	private byte getRandomTrustValue(ArrayList<Byte> trustDistribution) {
@@ -0,0 +1,123 @@
+/* This code is part of WoT, a plugin for Freenet. It is distributed
+ * under the GNU General Public License, version 2 (or at your option
+ * any later version). See http://www.gnu.org/ for details of the GPL. */
+package plugins.WebOfTrust;
+
+import static org.junit.Assert.*;
+
+import java.net.MalformedURLException;
+import java.util.ArrayList;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import plugins.WebOfTrust.exceptions.DuplicateTrustException;
+import plugins.WebOfTrust.exceptions.InvalidParameterException;
+import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
+import freenet.support.Logger;
+
+/** Tests whether {@link TrustGraph} stays equal to the {@link Trust} table of the database. */
+public final class TrustGraphTest extends AbstractJUnit4BaseTest {
+
+	private WebOfTrust mWebOfTrust = null;
+
+
+	@Before public void setUp() {
+		mWebOfTrust = constructEmptyWebOfTrust();
+	}
+
+	@Test public void testRandomChanges() throws DuplicateTrustException, NotTrustedException,
+			InvalidParameterException, UnknownIdentityException, MalformedURLException {
+
+		ArrayList<Identity> identitys = addRandomIdentities(5, 50);
+		addRandomTrustValues(identitys, 500);
+
+		TrustGraph graph = mWebOfTrust.getTrustGraph();
+		assertTrue(graph.isEqualToDatabase());
+		assertEquals(mWebOfTrust.getAllTrusts().size(), graph.getTrustCount());
+
+		for(Trust trust : mWebOfTrust.getAllTrusts()) {
+			assertEquals(trust.getValue(),
+				graph.getValue(trust.getTruster().getID(), trust.getTrustee().getID()));
+		}
+
+		int loadCount = graph.getLoadCount();
+		doRandomChangesToWOT(500);
+		assertTrue(graph.isEqualToDatabase());
+		// The changes should have been applied incrementally instead of by re-loading.
+		assertEquals(loadCount, graph.getLoadCount());
+	}
+
+	@Test public void testRollback() throws InvalidParameterException, NotTrustedException,
+			MalformedURLException {
+
+		ArrayList<Identity> identitys = addRandomIdentities(2, 10);
+		addRandomTrustValues(identitys, 50);
+
+		TrustGraph graph = mWebOfTrust.getTrustGraph();
+		int trustCount = graph.getTrustCount();
+		assertEquals(50, trustCount);
+
+		Trust trust = mWebOfTrust.getAllTrusts().get(0);
+		String trusterID = trust.getTruster().getID();
+		String trusteeID = trust.getTrustee().getID();
+		byte value = trust.getValue();
+
+		mWebOfTrust.beginTrustListImport();
+		mWebOfTrust.removeTrustWithoutCommit(trust);
+		assertEquals(TrustGraph.NONE, graph.getValue(trusterID, trusteeID));
+		assertEquals(trustCount - 1, graph.getTrustCount());
+		// Rolls back the transaction
+		mWebOfTrust.abortTrustListImport(new Exception("Rollback for testing"),
+			Logger.LogLevel.MINOR);
+
+		assertEquals(value, graph.getValue(trusterID, trusteeID));
+		assertEquals(trustCount, graph.getTrustCount());
+		assertTrue(graph.isEqualToDatabase());
+	}
+
+	@Test public void testSnapshot() throws InvalidParameterException, NotTrustedException,
+			MalformedURLException {
+
+		ArrayList<Identity> identitys = addRandomIdentities(2, 10);
+		addRandomTrustValues(identitys, 50);
+
+		TrustGraph graph = mWebOfTrust.getTrustGraph();
+		TrustGraph snapshot = graph.snapshot();
+		assertEquals(graph.getIdentityCount(), snapshot.getIdentityCount());
+		assertEquals(graph.getTrustCount(), snapshot.getTrustCount());
+
+		for(Trust trust : mWebOfTrust.getAllTrusts()) {
+			String trusterID = trust.getTruster().getID();
+			String trusteeID = trust.getTrustee().getID();
+			assertEquals(graph.getIndex(trusterID), snapshot.getIndex(trusterID));
+			assertEquals(trust.getValue(), snapshot.getValue(trusterID, trusteeID));
+		}
+
+		Trust trust = mWebOfTrust.getAllTrusts().get(0);
+		String trusterID = trust.getTruster().getID();
+		String trusteeID = trust.getTrustee().getID();
+		byte value = trust.getValue();
+
+		mWebOfTrust.beginTrustListImport();
+		mWebOfTrust.removeTrustWithoutCommit(trust);
+		mWebOfTrust.finishTrustListImport();
+		Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+
+		// Modifying the original must not modify the snapshot
+		assertEquals(TrustGraph.NONE, graph.getValue(trusterID, trusteeID));
+		assertEquals(value, snapshot.getValue(trusterID, trusteeID));
+		assertEquals(graph.getTrustCount() + 1, snapshot.getTrustCount());
+
+		try {
+			snapshot.removeTrust(trusterID, trusteeID);
+			fail("Snapshots should be read-only");
+		} catch(UnsupportedOperationException e) {}
+	}
+
+	@Override protected WebOfTrust getWebOfTrust() {
+		return mWebOfTrust;
+	}
+
+}
@@ -7,6 +7,7 @@ import java.net.MalformedURLException;
 
 import freenet.support.CurrentTimeUTC;
 
+import plugins.WebOfTrust.Trust.TrustID;
 import plugins.WebOfTrust.exceptions.DuplicateTrustException;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
@@ -107,7 +108,15 @@ public class TrustTest extends AbstractJUnit3BaseTest {
 		assertTrue(trust.getValue() == 100);
 		assertEquals("test", trust.getComment());
 	}
-	
+
+	public void testKey() throws DuplicateTrustException, NotTrustedException {
+		final Trust trust = mWoT.getTrust(a, b);
+		assertEquals(IdentityPairKey.fromID(trust.getID()), trust.getKey());
+		assertEquals(trust.getKey(), trust.clone().getKey());
+		assertFalse(trust.getKey() == IdentityPairKey.fromID(new TrustID(b, a).toString()));
+		assertSame(trust, mWoT.getTrust(trust.getID()));
+	}
+
 	public void testTrustPersistence() throws MalformedURLException, UnknownIdentityException, DuplicateTrustException, NotTrustedException {
 		
 		mWoT.terminate();
@@ -7,7 +7,10 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
+import java.io.File;
+import java.io.IOException;
 import java.net.MalformedURLException;
+import java.nio.file.Files;
 import java.util.ArrayList;
 
 import org.junit.Before;
@@ -15,6 +18,7 @@ import org.junit.Test;
 
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.NotTrustedException;
+import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.util.IdentifierHashSet;
 
 /**
@@ -120,6 +124,338 @@ public class WebOfTrustTest extends AbstractJUnit4BaseTest {
 		assertEquals(new IdentifierHashSet<Score>(scores), scoreDuplicateCheck);
 	}
 
+	/**
+	 * Tests whether {@link WebOfTrust#finishTrustListImport()} processes the Trust changes of a
+	 * whole import, including distrust and removal of Trusts, with a single incremental Score
+	 * computation, and whether the resulting Scores are correct. */
+	@Test public void testTrustListImport()
+			throws InvalidParameterException, MalformedURLException, NotTrustedException {
+		
+		ArrayList<Identity> identities = addRandomIdentities(3, 60);
+		addRandomTrustValues(identities, 600);
+		
+		final int trustCount = mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrust();
+		final int distrustCount
+			= mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToDistrust();
+		int trustListCount = mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrustList();
+		
+		for(int i = 0; i < 20; ++i) {
+			boolean changed = importRandomTrustList(identities);
+			
+			if(changed)
+				++trustListCount;
+			
+			assertEquals(trustListCount,
+				mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrustList());
+		}
+		
+		// The per-Trust incremental computation should not have been used.
+		assertEquals(trustCount, mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrust());
+		assertEquals(distrustCount,
+			mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToDistrust());
+		
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+	}
+
+	/**
+	 * Tests whether {@link WebOfTrust#ASYNCHRONOUS_SCORE_COMPUTATION_CONFIG_KEY} defers the Score
+	 * computation of trust list imports, and whether {@link WebOfTrust#updatePendingScores()}
+	 * then processes the changes of all of them at once, including a Trust change which happened
+	 * outside of an import while Scores were pending. */
+	@Test public void testAsynchronousScoreComputation()
+			throws InvalidParameterException, MalformedURLException, NotTrustedException,
+			UnknownIdentityException {
+		
+		Configuration config = mWebOfTrust.getConfig();
+		config.set(WebOfTrust.ASYNCHRONOUS_SCORE_COMPUTATION_CONFIG_KEY, true);
+		config.storeAndCommit();
+		
+		ArrayList<Identity> identities = addRandomIdentities(3, 60);
+		addRandomTrustValues(identities, 600);
+		
+		for(int run = 0; run < 5; ++run) {
+			final int trustListCount
+				= mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrustList();
+			final int deferredCount = mWebOfTrust.getNumberOfDeferredTrustListImports();
+			boolean changed = false;
+			
+			for(int i = 0; i < 10; ++i)
+				changed |= importRandomTrustList(identities);
+			
+			assertEquals(changed, mWebOfTrust.isScoreComputationPending());
+			assertEquals(trustListCount,
+				mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrustList());
+			assertTrue(mWebOfTrust.getNumberOfDeferredTrustListImports() >= deferredCount
+				+ (changed ? 1 : 0));
+			
+			if(run % 2 == 1) {
+				// Outside of imports, changes must be processed along with the pending ones.
+				OwnIdentity truster = mWebOfTrust.getAllOwnIdentities().get(0);
+				Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+				if(!trustee.getID().equals(truster.getID())) {
+					byte value = getRandomTrustValue();
+					try {
+						// Ensure that the Trust is actually changed
+						if(mWebOfTrust.getTrust(truster, trustee).getValue() == value)
+							value = (byte)(value == 100 ? -100 : value + 1);
+					} catch(NotTrustedException e) {}
+					
+					mWebOfTrust.setTrust(truster.getID(), trustee.getID(), value, "");
+					assertFalse(mWebOfTrust.isScoreComputationPending());
+				}
+			}
+			
+			mWebOfTrust.updatePendingScores();
+			assertFalse(mWebOfTrust.isScoreComputationPending());
+			// All imports since the previous update were processed by a single computation.
+			assertTrue(mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToTrustList()
+				<= trustListCount + 1);
+			
+			assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+		}
+	}
+
+	/**
+	 * Tests whether Scores which are pending due to
+	 * {@link WebOfTrust#ASYNCHRONOUS_SCORE_COMPUTATION_CONFIG_KEY} are correct after a restart:
+	 * Termination must update them, and after a crash the
+	 * {@link WebOfTrust#SCORE_COMPUTATION_PENDING_CONFIG_KEY} must cause a full computation. */
+	@Test public void testPendingScoresAtShutdown()
+			throws InvalidParameterException, MalformedURLException, NotTrustedException,
+			IOException {
+		
+		Configuration config = mWebOfTrust.getConfig();
+		config.set(WebOfTrust.ASYNCHRONOUS_SCORE_COMPUTATION_CONFIG_KEY, true);
+		config.storeAndCommit();
+		
+		ArrayList<Identity> identities = addRandomIdentities(3, 60);
+		addRandomTrustValues(identities, 600);
+		
+		while(!importRandomTrustList(identities)) { }
+		assertTrue(mWebOfTrust.isScoreComputationPending());
+		assertTrue(config.getBoolean(WebOfTrust.SCORE_COMPUTATION_PENDING_CONFIG_KEY));
+		
+		// The database file as it would be after a crash: The import was committed, the Trust
+		// changes whose Scores are pending only exist in memory.
+		File database = mWebOfTrust.getDatabaseFile();
+		File crashed = new File(mTempFolder.newFolder(), database.getName());
+		Files.copy(database.toPath(), crashed.toPath());
+		
+		mWebOfTrust.terminate();
+		assertTrue(mWebOfTrust.isTerminated());
+		mWebOfTrust = new WebOfTrust(database.toString());
+		assertFalse(mWebOfTrust.getConfig().getBoolean(
+			WebOfTrust.SCORE_COMPUTATION_PENDING_CONFIG_KEY));
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+		
+		WebOfTrust afterCrash = new WebOfTrust(crashed.toString());
+		try {
+			assertFalse(afterCrash.getConfig().getBoolean(
+				WebOfTrust.SCORE_COMPUTATION_PENDING_CONFIG_KEY));
+			assertTrue(afterCrash.verifyAndCorrectStoredScores());
+		} finally {
+			afterCrash.terminate();
+		}
+		assertTrue(afterCrash.isTerminated());
+	}
+
+	/**
+	 * Tests whether {@link WebOfTrust#setTrustTreeDormant(String, boolean)} deletes the Scores of
+	 * the trust tree, whether Trust changes then leave it alone, and whether waking it up yields
+	 * the Scores and {@link IdentityFetcher} state of a full computation. */
+	@Test public void testSetTrustTreeDormant()
+			throws InvalidParameterException, MalformedURLException, NotTrustedException,
+			UnknownIdentityException {
+		
+		ArrayList<Identity> identities = addRandomIdentities(3, 60);
+		addRandomTrustValues(identities, 600);
+		
+		final String dormantID = mWebOfTrust.getAllOwnIdentities().get(0).getID();
+		mWebOfTrust.setTrustTreeDormant(dormantID, true);
+		OwnIdentity dormant = mWebOfTrust.getOwnIdentityByID(dormantID);
+		assertTrue(dormant.isTrustTreeDormant());
+		// Only the Score of the OwnIdentity itself is kept.
+		assertEquals(1, mWebOfTrust.getGivenScores(dormant).size());
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+		
+		for(int i = 0; i < 20; ++i) {
+			importRandomTrustList(identities);
+			
+			// Also test Trust changes outside of imports, including ones of the dormant
+			// OwnIdentity itself.
+			OwnIdentity truster = mWebOfTrust.getAllOwnIdentities().get(mRandom.nextInt(3));
+			Identity trustee = identities.get(mRandom.nextInt(identities.size()));
+			if(!trustee.getID().equals(truster.getID())) {
+				mWebOfTrust.setTrust(truster.getID(), trustee.getID(), getRandomTrustValue(),
+					"");
+			}
+		}
+		
+		assertEquals(1, mWebOfTrust.getGivenScores(dormant).size());
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+		
+		mWebOfTrust.setTrustTreeDormant(dormantID, false);
+		dormant = mWebOfTrust.getOwnIdentityByID(dormantID);
+		assertFalse(dormant.isTrustTreeDormant());
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+	}
+
+	/**
+	 * Imports a random trust list of a random one of the given Identitys, with the locking and
+	 * transaction which {@link WebOfTrust#beginTrustListImport()} requires.
+	 * @return True if any Trust was changed. */
+	private boolean importRandomTrustList(ArrayList<Identity> identities)
+			throws NotTrustedException {
+		
+		Identity truster = identities.get(mRandom.nextInt(identities.size()));
+		boolean changed = false;
+		
+		synchronized(mWebOfTrust) {
+		synchronized(mWebOfTrust.getIdentityFetcher()) {
+		synchronized(mWebOfTrust.getSubscriptionManager()) {
+		synchronized(Persistent.transactionLock(mWebOfTrust.getDatabase())) {
+			mWebOfTrust.beginTrustListImport();
+			for(Identity trustee : identities) {
+				if(trustee == truster)
+					continue;
+				
+				Trust trust;
+				try {
+					trust = mWebOfTrust.getTrust(truster, trustee);
+				} catch(NotTrustedException e) {
+					trust = null;
+				}
+				
+				switch(mRandom.nextInt(3)) {
+					case 0: {
+						byte value = getRandomTrustValue();
+						changed |= trust == null || trust.getValue() != value;
+						mWebOfTrust.setTrustWithoutCommit(truster, trustee, value, "");
+						break;
+					}
+					case 1:
+						if(trust != null) {
+							mWebOfTrust.removeTrustWithoutCommit(trust);
+							changed = true;
+						}
+						break;
+					default:
+						break;
+				}
+			}
+			mWebOfTrust.finishTrustListImport();
+			Persistent.checkedCommit(mWebOfTrust.getDatabase(), this);
+		}
+		}
+		}
+		}
+		
+		return changed;
+	}
+
+	/**
+	 * Tests whether the incremental Score computation after distrust yields correct Scores if the
+	 * {@link ScoreChangeTracker}s have to write their records to disk. */
+	@Test public void testDistrustWithScoreChangeTrackerSpilling()
+			throws InvalidParameterException, MalformedURLException, NotTrustedException {
+
+		Configuration config = mWebOfTrust.getConfig();
+		config.set(ScoreChangeTracker.MEMORY_LIMIT_CONFIG_KEY, 3);
+		config.storeAndCommit();
+
+		ArrayList<Identity> identities = addRandomIdentities(3, 40);
+		addRandomTrustValues(identities, 400);
+
+		final int distrustCount
+			= mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToDistrust();
+		doRandomChangesToWOT(300);
+		assertTrue(mWebOfTrust.getNumberOfIncrementalScoreRecomputationDueToDistrust()
+			> distrustCount);
+
+		assertTrue(mWebOfTrust.verifyAndCorrectStoredScores());
+	}
+
+	/**
+	 * Tests whether {@link Identity#hasScores()},{@link Identity#getBestScore()} and
+	 * {@link Identity#getBestCapacity()} match the Scores which the Identity has received after
+	 * random changes, including deletion of Identitys, Trusts and thus Scores. */
+	@Test public void testBestScoreAggregate()
+			throws InvalidParameterException, MalformedURLException, NotTrustedException {
+
+		ArrayList<Identity> identities = addRandomIdentities(3, 30);
+		addRandomTrustValues(identities, 300);
+		doRandomChangesToWOT(300);
+
+		for(Identity identity : mWebOfTrust.getAllIdentities()) {
+			boolean hasScores = false;
+			int bestScore = Integer.MIN_VALUE;
+			int bestCapacity = 0;
+
+			for(Score score : mWebOfTrust.getScores(identity)) {
+				hasScores = true;
+				bestScore = Math.max(score.getValue(), bestScore);
+				bestCapacity = Math.max(score.getCapacity(), bestCapacity);
+			}
+
+			assertEquals(hasScores, identity.hasScores());
+			if(!hasScores)
+				continue;
+
+			assertEquals(bestScore, identity.getBestScore());
+			assertEquals(bestCapacity, identity.getBestCapacity());
+			if(!(identity instanceof OwnIdentity)) {
+				assertEquals(bestCapacity > 0 || bestScore >= 0,
+					mWebOfTrust.shouldFetchIdentity(identity));
+			}
+		}
+	}
+
+	/**
+	 * Tests whether {@link Identity#getReceivedTrustCount()} and {@link Identity#getEdition()}
+	 * match the actual values after random changes, and whether
+	 * {@link WebOfTrust#getAllIdentitiesFilteredAndSorted(OwnIdentity, String,
+	 * WebOfTrust.SortOrder)} sorts by them. */
+	@Test public void testSortFieldsAndSorting()
+			throws InvalidParameterException, MalformedURLException, NotTrustedException {
+
+		ArrayList<Identity> identities = addRandomIdentities(3, 30);
+		addRandomTrustValues(identities, 300);
+		doRandomChangesToWOT(300);
+
+		synchronized(mWebOfTrust) {
+			final int identityCount = mWebOfTrust.getAllIdentities().size();
+			for(Identity identity : mWebOfTrust.getAllIdentities()) {
+				assertEquals(mWebOfTrust.getReceivedTrusts(identity).size(),
+					identity.getReceivedTrustCount());
+				assertEquals(identity.getRequestURI().getEdition(), identity.getEdition());
+			}
+
+			long previous = Long.MIN_VALUE;
+			int count = 0;
+			for(Identity identity : mWebOfTrust.getAllIdentitiesFilteredAndSorted(
+					null, null, WebOfTrust.SortOrder.ByTrustersAscending)) {
+				assertTrue(identity.getReceivedTrustCount() >= previous);
+				previous = identity.getReceivedTrustCount();
+				++count;
+			}
+			assertEquals(identityCount, count);
+
+			previous = Long.MAX_VALUE;
+			for(Identity identity : mWebOfTrust.getAllIdentitiesFilteredAndSorted(
+					null, null, WebOfTrust.SortOrder.ByEditionDescending)) {
+				assertTrue(identity.getEdition() <= previous);
+				previous = identity.getEdition();
+			}
+
+			previous = Long.MIN_VALUE;
+			for(Identity identity : mWebOfTrust.getAllIdentitiesFilteredAndSorted(
+					null, null, WebOfTrust.SortOrder.ByAddedAscending)) {
+				assertTrue(identity.getAddedDate().getTime() >= previous);
+				previous = identity.getAddedDate().getTime();
+			}
+		}
+	}
+
 	/**
 	 * Currently empty because {@link ScoreTest#testStoreWithoutCommit()} covers most of what
 	 * this test should do.
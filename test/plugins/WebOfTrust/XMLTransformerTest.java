@@ -7,11 +7,16 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.MalformedURLException;
+import java.util.ArrayList;
+import java.util.HashMap;
 
 import javax.xml.transform.TransformerException;
 
 import org.xml.sax.SAXException;
 
+import plugins.WebOfTrust.Identity.FetchState;
+import plugins.WebOfTrust.XMLTransformer.ParsedIdentityXML;
+import plugins.WebOfTrust.XMLTransformer.ParsedIdentityXML.TrustListEntry;
 import plugins.WebOfTrust.exceptions.InvalidParameterException;
 import plugins.WebOfTrust.exceptions.UnknownIdentityException;
 import plugins.WebOfTrust.introduction.IntroductionPuzzle;
@@ -122,6 +127,61 @@ public class XMLTransformerTest extends AbstractJUnit3BaseTest {
 	public void testImportIdentity() throws Exception {
 		//fail("Not yet implemented"); // TODO
 	}
+	
+	/**
+	 * Tests whether a file whose import fails in the middle of a batch of
+	 * {@link XMLTransformer#importIdentities(java.util.List, long)} is marked as
+	 * {@link FetchState#ParsingFailed}, and the other files of the batch are imported. */
+	public void testImportIdentitiesWithFailingFile() throws Exception {
+		final int fileCount = 5;
+		final int failingFile = fileCount / 2;
+		final ArrayList<Identity> identities = new ArrayList<Identity>(fileCount);
+		final ArrayList<ParsedIdentityXML> files = new ArrayList<ParsedIdentityXML>(fileCount);
+		
+		for(int i = 0; i < fileCount; ++i) {
+			final Identity identity = mWoT.addIdentity(getRandomRequestURI().toString());
+			// Gives the Identity capacity to create the trustees of its trust list.
+			synchronized(mWoT) {
+				mWoT.setTrust(mOwnIdentity, identity, (byte)100, "");
+			}
+			identities.add(identity);
+			
+			final ParsedIdentityXML file = new ParsedIdentityXML();
+			file.identityURI = identity.getRequestURI().setSuggestedEdition(1);
+			file.identityName = "identity" + i;
+			file.identityPublishesTrustList = true;
+			file.identityContexts = new ArrayList<String>();
+			file.identityProperties = new HashMap<String, String>();
+			file.identityTrustList = new ArrayList<TrustListEntry>();
+			file.identityTrustList.add(new TrustListEntry(getRandomRequestURI(), (byte)50, ""));
+			files.add(file);
+		}
+		
+		// Passes parsing, but setTrustWithoutCommit() throws and thereby aborts the batch.
+		files.get(failingFile).identityTrustList.add(
+			new TrustListEntry(getRandomRequestURI(), (byte)(Trust.MAX_TRUST_VALUE + 1), ""));
+		
+		mTransformer.importIdentities(files, Long.MAX_VALUE);
+		assertEquals(0, files.size());
+		
+		flushCaches();
+		for(int i = 0; i < fileCount; ++i) {
+			final Identity identity = mWoT.getIdentityByID(identities.get(i).getID());
+			assertEquals(1, identity.getEdition());
+			
+			if(i == failingFile) {
+				assertEquals(FetchState.ParsingFailed, identity.getCurrentEditionFetchState());
+				assertEquals(0, mWoT.getGivenTrusts(identity).size());
+			} else {
+				assertEquals(FetchState.Fetched, identity.getCurrentEditionFetchState());
+				assertEquals("identity" + i, identity.getNickname());
+				assertEquals(1, mWoT.getGivenTrusts(identity).size());
+			}
+		}
+		
+		// mOwnIdentity, the Identitys of the files and the trustees of the imported files
+		assertEquals(1 + fileCount + (fileCount - 1), mWoT.getAllIdentities().size());
+	}
 
 	public void testExportIntroduction() throws MalformedURLException, InvalidParameterException, TransformerException {
 		ByteArrayOutputStream os = new ByteArrayOutputStream();